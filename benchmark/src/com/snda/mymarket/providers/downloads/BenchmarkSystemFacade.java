@@ -0,0 +1,71 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+/**
+ * A {@link SystemFacade} that always reports an unmetered network and keeps
+ * broadcasts to itself, so that the results don't depend on the state of the
+ * device.
+ */
+class BenchmarkSystemFacade implements SystemFacade {
+
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public Integer getActiveNetworkType() {
+		return ConnectivityManager.TYPE_WIFI;
+	}
+
+	public boolean isNetworkRoaming() {
+		return false;
+	}
+
+	public Long getMaxBytesOverMobile() {
+		return null;
+	}
+
+	public Long getRecommendedMaxBytesOverMobile() {
+		return null;
+	}
+
+	public void sendBroadcast(Intent intent) {
+		// nobody listens to the downloads of the benchmark
+	}
+
+	public boolean userOwnsPackage(int uid, String pckg) {
+		return true;
+	}
+
+	public void startThread(Thread thread) {
+		thread.start();
+	}
+
+	public Future<?> runOnThreadPool(Runnable runnable) {
+		return mExecutor.submit(runnable);
+	}
+
+	@Override
+	public boolean tryReserveSlot(String host) {
+		return true;
+	}
+
+	@Override
+	public void releaseSlot(String host) {
+	}
+
+	public Future<?> runHelperOnThreadPool(Runnable runnable, String host,
+			int schedulingClass) {
+		return mExecutor.submit(runnable);
+	}
+
+	public void clearThreadPool() {
+	}
+}
@@ -0,0 +1,418 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Pair;
+
+/**
+ * A minimal h2c server on the loopback interface, spoken without asking
+ * first, serving <code>GET /&lt;size&gt;</code> with that many bytes. The
+ * bodies hold the same bytes as those of {@link LoopbackServer}, byte n being
+ * <code>(byte) n</code>.
+ * <p>
+ * It sends DATA only as far as the windows granted by the client allow, and
+ * counts what it sent on each stream, so that a test can tell how much a
+ * client that stops reading lets the server buffer in it.
+ */
+class Http2LoopbackServer {
+
+	private static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H',
+			'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M',
+			'\r', '\n', '\r', '\n' };
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_RST_STREAM = 0x3;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int MAX_FRAME_SIZE = 16384;
+
+	private final ServerSocket mServerSocket;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private final byte[] mChunk = new byte[MAX_FRAME_SIZE];
+	private final AtomicInteger mConnections = new AtomicInteger();
+	// guarded by this
+	private final Map<String, Long> mSentPerPath = new HashMap<String, Long>();
+	private volatile boolean mClosed = false;
+
+	Http2LoopbackServer() throws IOException {
+		for (int i = 0; i < MAX_FRAME_SIZE; i++) {
+			mChunk[i] = (byte) i;
+		}
+		mServerSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+	}
+
+	/**
+	 * @return the URL serving a body of the given size; a tag makes the URL
+	 *         of one request stand out in {@link #getBytesSent}
+	 */
+	public String getUrl(long size, String tag) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + size
+				+ "?" + tag;
+	}
+
+	/**
+	 * @return how many connections were accepted so far
+	 */
+	public int getConnectionCount() {
+		return mConnections.get();
+	}
+
+	/**
+	 * @return how many body bytes were sent for a URL so far
+	 */
+	public synchronized long getBytesSent(String url) {
+		Long sent = mSentPerPath.get(url.substring(url.indexOf('/', 7)));
+		return sent != null ? sent : 0;
+	}
+
+	/**
+	 * @return how many body bytes were sent for all URLs so far
+	 */
+	public synchronized long getBytesSent() {
+		long total = 0;
+		for (long sent : mSentPerPath.values()) {
+			total += sent;
+		}
+		return total;
+	}
+
+	public void close() {
+		mClosed = true;
+		try {
+			mServerSocket.close();
+		} catch (IOException ex) {
+			// nothing to do about it
+		}
+		mExecutor.shutdownNow();
+	}
+
+	private synchronized void sent(String path, int bytes) {
+		Long sent = mSentPerPath.get(path);
+		mSentPerPath.put(path, (sent != null ? sent : 0) + bytes);
+	}
+
+	private void acceptLoop() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException ex) {
+				return;
+			}
+			mConnections.incrementAndGet();
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					new Connection(socket).serve();
+				}
+			});
+		}
+	}
+
+	/**
+	 * One client connection. Its thread reads the frames, a task per stream
+	 * writes the response.
+	 */
+	private class Connection {
+		private final Socket mSocket;
+		private final Hpack.Decoder mDecoder = new Hpack.Decoder(4096);
+		private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+		private OutputStream mOut;
+
+		// guarded by this
+		private final Map<Integer, int[]> mStreamWindows = new HashMap<Integer, int[]>();
+		private int mConnectionWindow = DEFAULT_WINDOW;
+		private int mInitialWindow = DEFAULT_WINDOW;
+		private boolean mDone = false;
+
+		// only touched by the reader
+		private int mHeaderStream = 0;
+		private byte[] mHeaderBlock = new byte[0];
+
+		Connection(Socket socket) {
+			mSocket = socket;
+		}
+
+		void serve() {
+			try {
+				mSocket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(
+						mSocket.getInputStream());
+				mOut = new BufferedOutputStream(mSocket.getOutputStream(),
+						MAX_FRAME_SIZE);
+				byte[] preface = new byte[PREFACE.length];
+				in.readFully(preface);
+				for (int i = 0; i < PREFACE.length; i++) {
+					if (preface[i] != PREFACE[i]) {
+						return;
+					}
+				}
+				writeFrame(TYPE_SETTINGS, 0, 0, mFrame, 0, 0);
+				while (!mClosed) {
+					readFrame(in);
+				}
+			} catch (IOException ex) {
+				// the client went away
+			} finally {
+				synchronized (this) {
+					mDone = true;
+					notifyAll();
+				}
+				try {
+					mSocket.close();
+				} catch (IOException ex) {
+					// nothing to do about it
+				}
+			}
+		}
+
+		private void readFrame(DataInputStream in) throws IOException {
+			int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+			int type = in.readUnsignedByte();
+			int flags = in.readUnsignedByte();
+			int streamId = in.readInt() & 0x7fffffff;
+			if (length > MAX_FRAME_SIZE) {
+				throw new IOException("frame of " + length + " bytes");
+			}
+			in.readFully(mFrame, 0, length);
+
+			switch (type) {
+			case TYPE_HEADERS:
+				int offset = 0;
+				int end = length;
+				if ((flags & FLAG_PADDED) != 0) {
+					offset = 1;
+					end -= mFrame[0] & 0xff;
+				}
+				if ((flags & FLAG_PRIORITY) != 0) {
+					offset += 5;
+				}
+				mHeaderStream = streamId;
+				mHeaderBlock = new byte[0];
+				appendHeaderBlock(offset, end - offset, flags);
+				break;
+			case TYPE_CONTINUATION:
+				appendHeaderBlock(0, length, flags);
+				break;
+			case TYPE_SETTINGS:
+				if ((flags & FLAG_ACK) == 0) {
+					onSettings(length);
+					writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, mFrame, 0, 0);
+				}
+				break;
+			case TYPE_WINDOW_UPDATE:
+				onWindowUpdate(streamId, getInt(mFrame, 0) & 0x7fffffff);
+				break;
+			case TYPE_RST_STREAM:
+				synchronized (this) {
+					mStreamWindows.remove(streamId);
+					notifyAll();
+				}
+				break;
+			case TYPE_PING:
+				if ((flags & FLAG_ACK) == 0) {
+					writeFrame(TYPE_PING, FLAG_ACK, 0, mFrame, 0, 8);
+				}
+				break;
+			case TYPE_GOAWAY:
+				throw new IOException("GOAWAY");
+			case TYPE_DATA:
+			default:
+				// requests carry no body, the rest doesn't matter here
+				break;
+			}
+		}
+
+		private void appendHeaderBlock(int offset, int length, int flags)
+				throws IOException {
+			byte[] block = new byte[mHeaderBlock.length + length];
+			System.arraycopy(mHeaderBlock, 0, block, 0, mHeaderBlock.length);
+			System.arraycopy(mFrame, offset, block, mHeaderBlock.length, length);
+			mHeaderBlock = block;
+			if ((flags & FLAG_END_HEADERS) == 0) {
+				return;
+			}
+			String path = null;
+			for (Pair<String, String> header : mDecoder.decode(mHeaderBlock,
+					0, mHeaderBlock.length)) {
+				if (header.first.equals(":path")) {
+					path = header.second;
+				}
+			}
+			final int streamId = mHeaderStream;
+			final String requested = path;
+			synchronized (this) {
+				mStreamWindows.put(streamId, new int[] { mInitialWindow });
+			}
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					respond(streamId, requested);
+				}
+			});
+		}
+
+		private synchronized void onSettings(int length) {
+			for (int offset = 0; offset < length; offset += 6) {
+				int id = ((mFrame[offset] & 0xff) << 8)
+						| (mFrame[offset + 1] & 0xff);
+				if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+					int value = getInt(mFrame, offset + 2);
+					for (int[] window : mStreamWindows.values()) {
+						window[0] += value - mInitialWindow;
+					}
+					mInitialWindow = value;
+				}
+			}
+			notifyAll();
+		}
+
+		private synchronized void onWindowUpdate(int streamId, int increment) {
+			if (streamId == 0) {
+				mConnectionWindow += increment;
+			} else {
+				int[] window = mStreamWindows.get(streamId);
+				if (window != null) {
+					window[0] += increment;
+				}
+			}
+			notifyAll();
+		}
+
+		private void respond(int streamId, String path) {
+			try {
+				long size = -1;
+				try {
+					int query = path.indexOf('?');
+					size = Long.parseLong(path.substring(1,
+							query != -1 ? query : path.length()));
+				} catch (RuntimeException ex) {
+					// answered with a 404
+				}
+				List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+				if (size < 0) {
+					headers.add(Pair.create(":status", "404"));
+					writeHeaders(streamId, headers, true);
+					return;
+				}
+				headers.add(Pair.create(":status", "200"));
+				headers.add(Pair.create("content-type",
+						"application/octet-stream"));
+				headers.add(Pair.create("content-length", Long.toString(size)));
+				writeHeaders(streamId, headers, size == 0);
+				long position = 0;
+				while (position < size) {
+					int length = awaitWindow(streamId,
+							(int) Math.min(MAX_FRAME_SIZE, size - position));
+					if (length < 0) {
+						// reset by the client
+						return;
+					}
+					// frames start at multiples of the chunk size, so the
+					// chunk always lines up with the position
+					boolean last = position + length == size;
+					writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0,
+							streamId, mChunk, 0, length);
+					sent(path, length);
+					position += length;
+				}
+			} catch (IOException ex) {
+				// the connection failed, its reader closes it
+			} finally {
+				synchronized (this) {
+					mStreamWindows.remove(streamId);
+				}
+			}
+		}
+
+		/**
+		 * Wait until the windows let some of a frame through, and take it out
+		 * of them.
+		 *
+		 * @return how much of the frame may be sent, or -1 once the stream or
+		 *         the connection is gone
+		 */
+		private synchronized int awaitWindow(int streamId, int wanted) {
+			for (;;) {
+				int[] window = mStreamWindows.get(streamId);
+				if (window == null || mDone) {
+					return -1;
+				}
+				// a whole frame or nothing, so that frames stay aligned
+				if (window[0] >= wanted && mConnectionWindow >= wanted) {
+					window[0] -= wanted;
+					mConnectionWindow -= wanted;
+					return wanted;
+				}
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+		}
+
+		private void writeHeaders(int streamId,
+				List<Pair<String, String>> headers, boolean endStream)
+				throws IOException {
+			byte[] block = Hpack.encode(headers);
+			writeFrame(TYPE_HEADERS, FLAG_END_HEADERS
+					| (endStream ? FLAG_END_STREAM : 0), streamId, block, 0,
+					block.length);
+		}
+
+		private void writeFrame(int type, int flags, int streamId,
+				byte[] payload, int offset, int length) throws IOException {
+			synchronized (mOut) {
+				mOut.write(length >>> 16);
+				mOut.write(length >>> 8);
+				mOut.write(length);
+				mOut.write(type);
+				mOut.write(flags);
+				mOut.write(streamId >>> 24);
+				mOut.write(streamId >>> 16);
+				mOut.write(streamId >>> 8);
+				mOut.write(streamId);
+				mOut.write(payload, offset, length);
+				mOut.flush();
+			}
+		}
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24)
+				| ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+}
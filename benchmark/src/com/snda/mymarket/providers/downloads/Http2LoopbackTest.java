@@ -0,0 +1,225 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Checks {@link Http2Stack} against an {@link Http2LoopbackServer} on this
+ * device, over h2c: that concurrent downloads share one connection and get
+ * their bodies intact, that a download which stops reading lets the server
+ * send no more than {@link Constants#HTTP2_STREAM_WINDOW} ahead of it and all
+ * of them together no more than {@link Constants#HTTP2_CONNECTION_WINDOW},
+ * and that a server speaking only HTTP/1.1 is left to the other stacks.
+ * <p>
+ * Run it with
+ *
+ * <pre>
+ * adb shell am instrument -w -r
+ *     com.snda.mymarket.downloadprovider.benchmark/com.snda.mymarket.providers.downloads.Http2LoopbackTest
+ * </pre>
+ */
+public class Http2LoopbackTest extends Instrumentation {
+
+	private static final String TAG = "Http2LoopbackTest";
+	private static final int CONCURRENT = 4;
+	/** How long the server has to stop sending to stalled downloads. */
+	private static final long SETTLE_MILLIS = 500;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		int resultCode = Activity.RESULT_OK;
+		try {
+			testConcurrentDownloads();
+			testStalledDownloads();
+			testHttp1Server();
+			results.putString(REPORT_KEY_STREAMRESULT, "OK\n");
+		} catch (Throwable ex) {
+			Log.e(TAG, "test failed", ex);
+			results.putString(REPORT_KEY_STREAMRESULT, "FAILED: " + ex + "\n");
+			resultCode = Activity.RESULT_CANCELED;
+		}
+		finish(resultCode, results);
+	}
+
+	/**
+	 * Several downloads bigger than the windows at the same time.
+	 */
+	private void testConcurrentDownloads() throws Exception {
+		final Http2LoopbackServer server = new Http2LoopbackServer();
+		final Http2Stack.Pool pool = new Http2Stack.Pool(true);
+		try {
+			final long size = 4L * Constants.HTTP2_CONNECTION_WINDOW + 1234;
+			final List<Throwable> failures = new ArrayList<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < CONCURRENT; i++) {
+				final String url = server.getUrl(size, "concurrent" + i);
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							download(pool, url, size);
+						} catch (Throwable ex) {
+							synchronized (failures) {
+								failures.add(ex);
+							}
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			if (!failures.isEmpty()) {
+				throw new AssertionError("download failed: " + failures.get(0));
+			}
+			check(server.getConnectionCount() == 1, CONCURRENT
+					+ " downloads used " + server.getConnectionCount()
+					+ " connections");
+			report("concurrent downloads: OK");
+		} finally {
+			pool.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Downloads that read their headers and nothing more.
+	 */
+	private void testStalledDownloads() throws Exception {
+		Http2LoopbackServer server = new Http2LoopbackServer();
+		Http2Stack.Pool pool = new Http2Stack.Pool(true);
+		try {
+			int streams = Constants.HTTP2_CONNECTION_WINDOW
+					/ Constants.HTTP2_STREAM_WINDOW + 2;
+			long size = 2L * Constants.HTTP2_CONNECTION_WINDOW;
+			List<Http2Stack> stacks = new ArrayList<Http2Stack>();
+			List<String> urls = new ArrayList<String>();
+			for (int i = 0; i < streams; i++) {
+				String url = server.getUrl(size, "stalled" + i);
+				Http2Stack stack = new Http2Stack(pool);
+				stack.performRequest(new HttpGet(url));
+				stacks.add(stack);
+				urls.add(url);
+			}
+			long sent = awaitSettled(server);
+			check(sent <= Constants.HTTP2_CONNECTION_WINDOW, "server sent "
+					+ sent + " bytes ahead of stalled downloads");
+			for (String url : urls) {
+				long stream = server.getBytesSent(url);
+				check(stream <= Constants.HTTP2_STREAM_WINDOW, "server sent "
+						+ stream + " bytes ahead of a stalled download");
+			}
+			report("stalled downloads: " + sent + " bytes buffered for "
+					+ streams + " streams");
+
+			// closing them gives their windows back to the others
+			for (Http2Stack stack : stacks) {
+				stack.close();
+			}
+			download(pool, server.getUrl(size, "after"), size);
+			report("stalled downloads: OK");
+		} finally {
+			pool.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * A server that answers the connection preface as an HTTP/1.1 request.
+	 */
+	private void testHttp1Server() throws Exception {
+		LoopbackServer server = new LoopbackServer();
+		Http2Stack.Pool pool = new Http2Stack.Pool(true);
+		try {
+			check(pool.get(new URI(server.getUrl(16))) == null,
+					"HTTP/1.1 server taken for HTTP/2");
+			report("HTTP/1.1 server: OK");
+		} finally {
+			pool.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * Download a body over HTTP/2 and check each of its bytes.
+	 */
+	private static void download(Http2Stack.Pool pool, String url, long size)
+			throws IOException {
+		Http2Stack stack = new Http2Stack(pool);
+		try {
+			HttpResponse response = stack.performRequest(new HttpGet(url));
+			check(response.getStatusLine().getStatusCode() == 200, "status "
+					+ response.getStatusLine().getStatusCode() + " for " + url);
+			InputStream in = response.getEntity().getContent();
+			byte[] buffer = new byte[Constants.BUFFER_SIZE];
+			long position = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] != (byte) (position + i)) {
+						throw new AssertionError("wrong byte at "
+								+ (position + i) + " of " + url);
+					}
+				}
+				position += read;
+			}
+			check(position == size, "read " + position + " of " + size
+					+ " bytes of " + url);
+		} finally {
+			stack.close();
+		}
+	}
+
+	/**
+	 * Wait until the server stops sending.
+	 *
+	 * @return the bytes it sent
+	 */
+	private static long awaitSettled(Http2LoopbackServer server)
+			throws InterruptedException {
+		long sent = server.getBytesSent();
+		long deadline = System.currentTimeMillis() + HttpStack.TIMEOUT_MSECONDES;
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(SETTLE_MILLIS);
+			long now = server.getBytesSent();
+			if (now == sent && now > 0) {
+				break;
+			}
+			sent = now;
+		}
+		return sent;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private void report(String line) {
+		Log.i(TAG, line);
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, line + "\n");
+		sendStatus(0, status);
+	}
+}
@@ -0,0 +1,142 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, serving
+ * <code>GET /&lt;size&gt;</code> with that many bytes over keep-alive
+ * connections. The body is written from one preset chunk, so that the server
+ * costs as little as possible next to the download it feeds.
+ * <p>
+ * It sends neither an ETag nor Accept-Ranges, which keeps every download on
+ * the single stream path of DownloadTask.
+ */
+class LoopbackServer {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final ServerSocket mServerSocket;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private final byte[] mChunk = new byte[CHUNK_SIZE];
+	private volatile boolean mClosed = false;
+
+	LoopbackServer() throws IOException {
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			mChunk[i] = (byte) i;
+		}
+		mServerSocket = new ServerSocket(0, 50,
+				InetAddress.getByName("127.0.0.1"));
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+	}
+
+	/**
+	 * @return the URL serving a body of the given size
+	 */
+	public String getUrl(long size) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + size;
+	}
+
+	public void close() {
+		mClosed = true;
+		try {
+			mServerSocket.close();
+		} catch (IOException ex) {
+			// nothing to do about it
+		}
+		mExecutor.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException ex) {
+				return;
+			}
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String requestLine;
+			while ((requestLine = readHeaders(in)) != null) {
+				String[] parts = requestLine.split(" ");
+				long size;
+				try {
+					size = Long.parseLong(parts[1].substring(1));
+				} catch (RuntimeException ex) {
+					out.write(("HTTP/1.1 404 Not Found\r\n"
+							+ "Content-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+					out.flush();
+					continue;
+				}
+				out.write(("HTTP/1.1 200 OK\r\n"
+						+ "Content-Type: application/octet-stream\r\n"
+						+ "Content-Length: " + size + "\r\n"
+						+ "Connection: keep-alive\r\n\r\n")
+						.getBytes("US-ASCII"));
+				for (long sent = 0; sent < size; sent += CHUNK_SIZE) {
+					out.write(mChunk, 0, (int) Math.min(CHUNK_SIZE, size - sent));
+				}
+				out.flush();
+			}
+		} catch (IOException ex) {
+			// the client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				// nothing to do about it
+			}
+		}
+	}
+
+	/**
+	 * Read the headers of the next request.
+	 *
+	 * @return the request line, or null once the client closed the connection
+	 */
+	private static String readHeaders(InputStream in) throws IOException {
+		String requestLine = readLine(in);
+		if (requestLine == null || requestLine.length() == 0) {
+			return null;
+		}
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			// the headers of the download don't change the response
+		}
+		return requestLine;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return c == -1 && line.length() == 0 ? null : line.toString();
+	}
+}
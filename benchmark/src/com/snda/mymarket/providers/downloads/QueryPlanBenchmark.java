@@ -0,0 +1,412 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.snda.mymarket.providers.DownloadManager;
+
+/**
+ * Measures the queries on the downloads database: for each query shape the
+ * provider, {@link DownloadManager.Query} and {@link DownloadService} issue it
+ * reports the plan SQLite picks and the median time to run the query and read
+ * all of its rows, first without the indexes of
+ * {@link DownloadProvider.DatabaseHelper#QUERY_INDEXES} and then with them.
+ * <p>
+ * The rows are seeded straight into a scratch database of the provider's
+ * schema, from a fixed random seed so that runs can be compared; the queries
+ * run on it directly, without the provider's IPC and permission checks around
+ * them.
+ * <p>
+ * Run it with
+ *
+ * <pre>
+ * adb shell am instrument -w -r [-e rows 10000,100000] [-e iterations 10] [-e warmup 2]
+ *     com.snda.mymarket.downloadprovider.benchmark/com.snda.mymarket.providers.downloads.QueryPlanBenchmark
+ * </pre>
+ */
+public class QueryPlanBenchmark extends Instrumentation {
+
+	private static final String TAG = "QueryPlanBenchmark";
+	private static final String DB_NAME = "query-benchmark.db";
+	/** The app most downloads in the seeded rows come from. */
+	private static final int UID = 10005;
+	private static final int APPS = 20;
+
+	/**
+	 * A query as one of the callers issues it.
+	 */
+	private static class Shape {
+		public final String mName;
+		public final String mSql;
+		public final String[] mArgs;
+		public final boolean mWrite;
+
+		public Shape(String name, String sql, String[] args, boolean write) {
+			mName = name;
+			mSql = sql;
+			mArgs = args;
+			mWrite = write;
+		}
+	}
+
+	private Bundle mArguments;
+	private long[] mRows;
+	private int mIterations;
+	private int mWarmup;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		mArguments = arguments != null ? arguments : new Bundle();
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		int resultCode = Activity.RESULT_OK;
+		Context context = getTargetContext();
+		DownloadProvider.DatabaseHelper helper = null;
+		try {
+			mRows = getLongs("rows", new long[] { 10000, 100000 });
+			mIterations = (int) getLongs("iterations", new long[] { 10 })[0];
+			mWarmup = (int) getLongs("warmup", new long[] { 2 })[0];
+			context.deleteDatabase(DB_NAME);
+			helper = new DownloadProvider.DatabaseHelper(context, DB_NAME);
+			SQLiteDatabase db = helper.getWritableDatabase();
+			for (long rows : mRows) {
+				seed(db, (int) rows);
+				DownloadProvider.DatabaseHelper.dropQueryIndexes(db);
+				measureAll(db, rows, "bare");
+				DownloadProvider.DatabaseHelper.createQueryIndexes(db);
+				measureAll(db, rows, "indexed");
+			}
+		} catch (Throwable ex) {
+			Log.e(TAG, "benchmark failed", ex);
+			results.putString(REPORT_KEY_STREAMRESULT, "FAILED: " + ex + "\n");
+			resultCode = Activity.RESULT_CANCELED;
+		} finally {
+			if (helper != null) {
+				helper.close();
+			}
+			context.deleteDatabase(DB_NAME);
+		}
+		finish(resultCode, results);
+	}
+
+	/**
+	 * Replace the content of the database with that many downloads, along
+	 * with their request headers, segments and cache entries.
+	 */
+	private void seed(SQLiteDatabase db, int rows) {
+		Random random = new Random(rows);
+		long now = System.currentTimeMillis();
+		db.beginTransaction();
+		try {
+			db.delete(DownloadProvider.DB_TABLE, null, null);
+			db.delete(Downloads.RequestHeaders.HEADERS_DB_TABLE, null, null);
+			db.delete(Downloads.Segments.SEGMENTS_DB_TABLE, null, null);
+			db.delete(Downloads.Cache.CACHE_DB_TABLE, null, null);
+			SQLiteStatement download = db.compileStatement("INSERT INTO "
+					+ DownloadProvider.DB_TABLE + "(" + Downloads._ID + ","
+					+ Downloads.COLUMN_URI + "," + Downloads.COLUMN_STATUS + ","
+					+ Downloads.COLUMN_LAST_MODIFICATION + ","
+					+ Downloads.COLUMN_TOTAL_BYTES + ","
+					+ Downloads.COLUMN_CURRENT_BYTES + "," + Constants.UID + ","
+					+ Downloads.COLUMN_OTHER_UID + ","
+					+ Downloads.COLUMN_DELETED + ","
+					+ Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI + ","
+					+ Downloads.COLUMN_VISIBILITY + ","
+					+ Downloads.COLUMN_DESTINATION + ","
+					+ Downloads.COLUMN_TITLE + ","
+					+ Downloads.COLUMN_DESCRIPTION + ","
+					+ Downloads.COLUMN_NOTIFICATION_PACKAGE + ","
+					+ Downloads.COLUMN_ROW_VERSION
+					+ ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+			SQLiteStatement header = db.compileStatement("INSERT INTO "
+					+ Downloads.RequestHeaders.HEADERS_DB_TABLE + "("
+					+ Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID + ","
+					+ Downloads.RequestHeaders.COLUMN_HEADER + ","
+					+ Downloads.RequestHeaders.COLUMN_VALUE
+					+ ") VALUES (?,?,?)");
+			SQLiteStatement segment = db.compileStatement("INSERT INTO "
+					+ Downloads.Segments.SEGMENTS_DB_TABLE + "("
+					+ Downloads.Segments.COLUMN_DOWNLOAD_ID + ","
+					+ Downloads.Segments.COLUMN_SEGMENT + ","
+					+ Downloads.Segments.COLUMN_START_BYTE + ","
+					+ Downloads.Segments.COLUMN_END_BYTE
+					+ ") VALUES (?,?,?,?)");
+			SQLiteStatement cache = db.compileStatement("INSERT INTO "
+					+ Downloads.Cache.CACHE_DB_TABLE + "("
+					+ Downloads.Cache.COLUMN_DOWNLOAD_ID + ","
+					+ Downloads.Cache.COLUMN_URI + ","
+					+ Downloads.Cache.COLUMN_TOTAL_BYTES + ","
+					+ Downloads.Cache.COLUMN_DATA + ","
+					+ Downloads.Cache.COLUMN_CREATED_AT
+					+ ") VALUES (?,?,?,?,?)");
+			for (int id = 1; id <= rows; id++) {
+				int status = pickStatus(random);
+				long totalBytes = 1024 + random.nextInt(100 * 1024 * 1024);
+				int app = random.nextInt(4) == 0 ? random.nextInt(APPS) : 5;
+				String uri = "http://example.com/" + app + "/" + id + ".apk";
+				download.bindLong(1, id);
+				download.bindString(2, uri);
+				download.bindLong(3, status);
+				download.bindLong(4, now - (long) random.nextInt(90 * 24 * 3600) * 1000);
+				download.bindLong(5, totalBytes);
+				download.bindLong(6, Downloads.isStatusSuccess(status) ? totalBytes
+						: totalBytes / 2);
+				download.bindLong(7, 10000 + app);
+				if (random.nextInt(100) == 0) {
+					download.bindLong(8, UID);
+				} else {
+					download.bindNull(8);
+				}
+				download.bindLong(9, random.nextInt(50) == 0 ? 1 : 0);
+				download.bindLong(10, random.nextInt(10) == 0 ? 0 : 1);
+				download.bindLong(11, DownloadManager.Request.VISIBILITY_VISIBLE);
+				download.bindLong(12, Downloads.DESTINATION_EXTERNAL);
+				download.bindString(13, "Download " + id);
+				download.bindString(14, "");
+				download.bindString(15, "com.example.app" + app);
+				download.bindLong(16, id);
+				download.executeInsert();
+
+				header.bindLong(1, id);
+				header.bindString(2, "User-Agent");
+				header.bindString(3, "Benchmark/1.0");
+				header.executeInsert();
+				if (random.nextInt(3) == 0) {
+					header.bindString(2, "Authorization");
+					header.bindString(3, "Bearer " + Long.toHexString(random.nextLong()));
+					header.executeInsert();
+				}
+				if (!Downloads.isStatusCompleted(status)) {
+					for (int i = 0; i < 4; i++) {
+						segment.bindLong(1, id);
+						segment.bindLong(2, i);
+						segment.bindLong(3, totalBytes * i / 4);
+						segment.bindLong(4, totalBytes * (i + 1) / 4 - 1);
+						segment.executeInsert();
+					}
+				} else if (Downloads.isStatusSuccess(status) && random.nextBoolean()) {
+					cache.bindLong(1, id);
+					cache.bindString(2, uri);
+					cache.bindLong(3, totalBytes);
+					cache.bindString(4, "/sdcard/Download/" + id + ".apk");
+					cache.bindLong(5, now);
+					cache.executeInsert();
+				}
+			}
+			download.close();
+			header.close();
+			segment.close();
+			cache.close();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Most downloads are done; some still run, wait or have failed.
+	 */
+	private static int pickStatus(Random random) {
+		int roll = random.nextInt(100);
+		if (roll < 80) {
+			return Downloads.STATUS_SUCCESS;
+		} else if (roll < 85) {
+			return Downloads.STATUS_PENDING;
+		} else if (roll < 88) {
+			return Downloads.STATUS_RUNNING;
+		} else if (roll < 90) {
+			return Downloads.STATUS_PAUSED_BY_APP;
+		} else if (roll < 92) {
+			return Downloads.STATUS_WAITING_TO_RETRY;
+		} else if (roll < 94) {
+			return Downloads.STATUS_WAITING_FOR_NETWORK;
+		} else if (roll < 97) {
+			return Downloads.STATUS_HTTP_DATA_ERROR;
+		}
+		return Downloads.STATUS_CANCELED;
+	}
+
+	/**
+	 * The queries, built the way their callers build them.
+	 */
+	private List<Shape> buildShapes(long rows) {
+		String table = DownloadProvider.DB_TABLE;
+		String[] columns = DownloadManager.UNDERLYING_COLUMNS;
+		String notDeleted = Downloads.COLUMN_DELETED + " != '1'";
+		String id = Long.toString(rows / 2);
+		String uid = Integer.toString(UID);
+		List<Shape> shapes = new ArrayList<Shape>();
+
+		// DownloadService.updateLocked
+		shapes.add(select("service full sweep", table, null, null, null, null));
+		shapes.add(select("service changed rows", table, null,
+				Downloads.COLUMN_ROW_VERSION + " > ?",
+				new String[] { Long.toString(rows - 10) }, null));
+
+		// DownloadManager.Query, as DownloadList and the apps run it, in the
+		// parentheses the provider puts around a selection
+		String visible = "(" + Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI
+				+ " != '0' AND " + notDeleted + ")";
+		shapes.add(select("list by date", table, columns, visible, null,
+				Downloads.COLUMN_LAST_MODIFICATION + " DESC"));
+		shapes.add(select("list by size", table, columns, visible, null,
+				Downloads.COLUMN_TOTAL_BYTES + " DESC"));
+		shapes.add(select("filter by id", table, columns, "(("
+				+ Downloads._ID + " = ? ) AND " + notDeleted + ")",
+				new String[] { id },
+				Downloads.COLUMN_LAST_MODIFICATION + " DESC"));
+		shapes.add(select("filter running", table, columns, "("
+				+ statusClause("=", Downloads.STATUS_PENDING) + " OR "
+				+ statusClause("=", Downloads.STATUS_RUNNING) + " AND "
+				+ notDeleted + ")", null,
+				Downloads.COLUMN_LAST_MODIFICATION + " DESC"));
+		shapes.add(select("filter failed", table, columns, "(("
+				+ statusClause(">=", 400) + " AND " + statusClause("<", 600)
+				+ ") AND " + notDeleted + ")", null,
+				Downloads.COLUMN_LAST_MODIFICATION + " DESC"));
+
+		// DownloadProvider.query of my_downloads, for an app of its own
+		shapes.add(select("my downloads", table, columns, "(" + notDeleted
+				+ ") AND (" + Constants.UID + "= ? OR "
+				+ Downloads.COLUMN_OTHER_UID + "= ?)",
+				new String[] { uid, uid },
+				Downloads.COLUMN_LAST_MODIFICATION + " DESC"));
+
+		// request headers, segments and cache entries of a download
+		String headers = Downloads.RequestHeaders.HEADERS_DB_TABLE;
+		shapes.add(select("headers of one", headers, null,
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID + "=?",
+				new String[] { id }, null));
+		shapes.add(select("headers of all", headers, null,
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID + " IN (SELECT "
+						+ Downloads._ID + " FROM " + table + ")", null,
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID));
+		shapes.add(select("segments of one", Downloads.Segments.SEGMENTS_DB_TABLE,
+				null, Downloads.Segments.COLUMN_DOWNLOAD_ID + " = ?",
+				new String[] { id }, null));
+		shapes.add(delete("delete headers", headers,
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID + "=" + id));
+		shapes.add(delete("delete segments", Downloads.Segments.SEGMENTS_DB_TABLE,
+				Downloads.Segments.COLUMN_DOWNLOAD_ID + "=" + id));
+		shapes.add(delete("delete cache", Downloads.Cache.CACHE_DB_TABLE,
+				Downloads.Cache.COLUMN_DOWNLOAD_ID + "=" + id));
+		return shapes;
+	}
+
+	private static Shape select(String name, String table, String[] columns,
+			String where, String[] args, String orderBy) {
+		return new Shape(name, SQLiteQueryBuilder.buildQueryString(false, table,
+				columns, where, null, null, orderBy, null), args, false);
+	}
+
+	private static Shape delete(String name, String table, String where) {
+		return new Shape(name, "DELETE FROM " + table + " WHERE " + where,
+				new String[0], true);
+	}
+
+	private static String statusClause(String operator, int value) {
+		return Downloads.COLUMN_STATUS + operator + "'" + value + "'";
+	}
+
+	private void measureAll(SQLiteDatabase db, long rows, String indexes) {
+		for (Shape shape : buildShapes(rows)) {
+			String plan = explain(db, shape);
+			for (int i = 0; i < mWarmup; i++) {
+				run(db, shape);
+			}
+			long[] samples = new long[mIterations];
+			for (int i = 0; i < mIterations; i++) {
+				samples[i] = run(db, shape);
+			}
+			Arrays.sort(samples);
+			report(String.format(Locale.US,
+					"rows=%d indexes=%s query=\"%s\": %.3f ms (max %.3f), plan: %s",
+					rows, indexes, shape.mName, samples[samples.length / 2] / 1e6,
+					samples[samples.length - 1] / 1e6, plan));
+		}
+	}
+
+	private static String explain(SQLiteDatabase db, Shape shape) {
+		Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + shape.mSql,
+				shape.mArgs);
+		try {
+			StringBuilder plan = new StringBuilder();
+			int detail = cursor.getColumnIndexOrThrow("detail");
+			while (cursor.moveToNext()) {
+				if (plan.length() > 0) {
+					plan.append("; ");
+				}
+				plan.append(cursor.getString(detail));
+			}
+			return plan.toString();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Run a query and read all its rows; a write is rolled back.
+	 *
+	 * @return the elapsed time in ns
+	 */
+	private static long run(SQLiteDatabase db, Shape shape) {
+		long start = System.nanoTime();
+		if (shape.mWrite) {
+			db.beginTransaction();
+			try {
+				db.execSQL(shape.mSql);
+			} finally {
+				db.endTransaction();
+			}
+		} else {
+			Cursor cursor = db.rawQuery(shape.mSql, shape.mArgs);
+			try {
+				while (cursor.moveToNext()) {
+					// read every row, as the callers do
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void report(String line) {
+		Log.i(TAG, line);
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, line + "\n");
+		sendStatus(0, status);
+	}
+
+	private long[] getLongs(String key, long[] defaults) {
+		String value = mArguments.getString(key);
+		if (value == null) {
+			return defaults;
+		}
+		String[] parts = value.split(",");
+		long[] values = new long[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Long.parseLong(parts[i].trim());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,210 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Checks {@link StreamingDigest} for each of its algorithms: against the known
+ * answers of FIPS 180 and RFC 1321 for the empty string, "abc" and a million
+ * times "a", against {@link MessageDigest} for random data fed in random
+ * pieces, and through a save and restore of its state at every offset around
+ * the first block boundaries.
+ * <p>
+ * Run it with
+ *
+ * <pre>
+ * adb shell am instrument -w -r
+ *     com.snda.mymarket.downloadprovider.benchmark/com.snda.mymarket.providers.downloads.StreamingDigestTest
+ * </pre>
+ */
+public class StreamingDigestTest extends Instrumentation {
+
+	private static final String TAG = "StreamingDigestTest";
+	private static final String[] ALGORITHMS = { StreamingDigest.MD5,
+			StreamingDigest.SHA1, StreamingDigest.SHA256 };
+	/** The digests of "", "abc" and a million "a", for each algorithm. */
+	private static final String[][] KNOWN_ANSWERS = {
+			{ "d41d8cd98f00b204e9800998ecf8427e",
+					"900150983cd24fb0d6963f7d28e17f72",
+					"7707d6ae4e027c70eea2a935c2296f21" },
+			{ "da39a3ee5e6b4b0d3255bfef95601890afd80709",
+					"a9993e364706816aba3e25717850c26c9cd0d89d",
+					"34aa973cd4c4daa4f61eeb2bdbad27316534016f" },
+			{ "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+					"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+					"cdc76e5c9914fb9281a1c7e284d73e67f1809a48a497200e046d39ccc7112cd0" } };
+	private static final int MILLION = 1000 * 1000;
+	/** Splits are tried at every offset up to three blocks. */
+	private static final int SPLIT_RANGE = 3 * 64 + 1;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		int resultCode = Activity.RESULT_OK;
+		try {
+			for (int i = 0; i < ALGORITHMS.length; i++) {
+				testKnownAnswers(ALGORITHMS[i], KNOWN_ANSWERS[i]);
+				testAgainstMessageDigest(ALGORITHMS[i]);
+				testSaveAndRestore(ALGORITHMS[i]);
+				report(ALGORITHMS[i] + ": OK");
+			}
+			testBadStates();
+			results.putString(REPORT_KEY_STREAMRESULT, "OK\n");
+		} catch (Throwable ex) {
+			Log.e(TAG, "test failed", ex);
+			results.putString(REPORT_KEY_STREAMRESULT, "FAILED: " + ex + "\n");
+			resultCode = Activity.RESULT_CANCELED;
+		}
+		finish(resultCode, results);
+	}
+
+	private static void testKnownAnswers(String algorithm, String[] answers)
+			throws Exception {
+		StreamingDigest digest = StreamingDigest.getInstance(algorithm);
+		checkEquals(answers[0], digest.digest(), algorithm + " of \"\"");
+
+		digest.update("abc".getBytes("US-ASCII"), 0, 3);
+		checkEquals(answers[1], digest.digest(), algorithm + " of \"abc\"");
+		// digest() leaves the state alone
+		checkEquals(answers[1], digest.digest(), algorithm
+				+ " of \"abc\" twice");
+
+		byte[] a = new byte[1000];
+		Arrays.fill(a, (byte) 'a');
+		digest = StreamingDigest.getInstance(algorithm);
+		for (int i = 0; i < MILLION / a.length; i++) {
+			digest.update(a, 0, a.length);
+		}
+		checkEquals(answers[2], digest.digest(), algorithm
+				+ " of a million \"a\"");
+
+		// the same through the ByteBuffer entry point and a small scratch
+		digest = StreamingDigest.getInstance(algorithm);
+		byte[] scratch = new byte[100];
+		for (int i = 0; i < MILLION / a.length; i++) {
+			digest.update(ByteBuffer.wrap(a), scratch);
+		}
+		checkEquals(answers[2], digest.digest(), algorithm
+				+ " of a million \"a\" from buffers");
+	}
+
+	private static void testAgainstMessageDigest(String algorithm)
+			throws Exception {
+		Random random = new Random(algorithm.hashCode());
+		byte[] data = new byte[4096];
+		random.nextBytes(data);
+		for (int round = 0; round < 200; round++) {
+			int length = random.nextInt(data.length + 1);
+			StreamingDigest digest = StreamingDigest.getInstance(algorithm);
+			int offset = 0;
+			while (offset < length) {
+				int count = Math.min(length - offset, random.nextInt(130));
+				digest.update(data, offset, count);
+				offset += count;
+			}
+			checkEquals(expected(algorithm, data, length), digest.digest(),
+					algorithm + " of " + length + " random bytes");
+			check(digest.getCount() == length, algorithm + " counted "
+					+ digest.getCount() + " of " + length + " bytes");
+		}
+	}
+
+	/**
+	 * Save the state after every possible first piece up to three blocks,
+	 * restore it and finish with the rest.
+	 */
+	private static void testSaveAndRestore(String algorithm) throws Exception {
+		Random random = new Random(~algorithm.hashCode());
+		byte[] data = new byte[SPLIT_RANGE + 100];
+		random.nextBytes(data);
+		String expected = expected(algorithm, data, data.length);
+		for (int split = 0; split <= SPLIT_RANGE; split++) {
+			StreamingDigest digest = StreamingDigest.getInstance(algorithm);
+			digest.update(data, 0, split);
+			StreamingDigest restored = StreamingDigest.restoreState(digest
+					.saveState());
+			check(restored != null, algorithm + " state at " + split
+					+ " not restored");
+			checkEquals(algorithm, restored.getAlgorithm(), "algorithm");
+			check(restored.getCount() == split, algorithm + " restored at "
+					+ split + " counts " + restored.getCount());
+			checkEquals(digest.digest(), restored.digest(), algorithm
+					+ " restored at " + split);
+			restored.update(data, split, data.length - split);
+			checkEquals(expected, restored.digest(), algorithm
+					+ " finished after a restore at " + split);
+		}
+
+		// a restore after every piece, as a download saving its progress
+		StreamingDigest digest = StreamingDigest.getInstance(algorithm);
+		int offset = 0;
+		while (offset < data.length) {
+			int count = Math.min(data.length - offset, 1 + random.nextInt(70));
+			digest.update(data, offset, count);
+			offset += count;
+			digest = StreamingDigest.restoreState(digest.saveState());
+		}
+		checkEquals(expected, digest.digest(), algorithm
+				+ " restored after every piece");
+	}
+
+	private static void testBadStates() {
+		String saved = StreamingDigest.getInstance(StreamingDigest.SHA256)
+				.saveState();
+		check(StreamingDigest.restoreState(saved) != null, "fresh state");
+		String[] bad = { null, "", "CRC32:0::",
+				saved.replace(StreamingDigest.SHA256, StreamingDigest.MD5),
+				saved.replaceFirst(":0:", ":1:"),
+				saved.replaceFirst(":0:", ":x:"),
+				saved.replaceFirst(":0:", ":-64:"), saved + ":" };
+		for (String state : bad) {
+			check(StreamingDigest.restoreState(state) == null, "restored \""
+					+ state + "\"");
+		}
+	}
+
+	private static String expected(String algorithm, byte[] data, int length)
+			throws Exception {
+		MessageDigest digest = MessageDigest.getInstance(algorithm);
+		digest.update(data, 0, length);
+		StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest()) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	private static void checkEquals(String expected, String actual,
+			String what) {
+		check(expected.equals(actual), what + " is " + actual + ", expected "
+				+ expected);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private void report(String line) {
+		Log.i(TAG, line);
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, line + "\n");
+		sendStatus(0, status);
+	}
+}
@@ -0,0 +1,352 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import com.snda.mymarket.providers.DownloadManager;
+import com.snda.mymarket.providers.DownloadManager.Request;
+
+/**
+ * Measures the transfer hot path: real {@link DownloadTask}s download from a
+ * {@link LoopbackServer} on this device, through each HTTP stack and transfer
+ * engine, for several file sizes, buffer sizes and numbers of concurrent
+ * downloads. For every combination it reports the throughput in MB/s and the
+ * bytes allocated per MB downloaded; for every stack, the latency to the
+ * first byte of a response on a cold and on a warm connection.
+ * <p>
+ * Run it with
+ *
+ * <pre>
+ * adb shell am instrument -w -r [-e sizes 65536,16777216] [-e buffers 4096,65536]
+ *     [-e threads 1,4] [-e engines stream,nio,pipeline] [-e stacks hurl,apache]
+ *     [-e iterations 5] [-e warmup 2]
+ *     com.snda.mymarket.downloadprovider.benchmark/com.snda.mymarket.providers.downloads.TransferBenchmark
+ * </pre>
+ *
+ * Buffer sizes only apply to the stream engine, the other engines use the
+ * buffers of their own.
+ */
+public class TransferBenchmark extends Instrumentation {
+
+	private static final String TAG = "TransferBenchmark";
+	private static final double MB = 1024 * 1024;
+	/** Size of the responses timed to their first byte. */
+	private static final long FIRST_BYTE_SIZE = 16 * 1024;
+
+	private static final String[] ENGINE_NAMES = { "stream", "nio", "pipeline" };
+	private static final int[] ENGINES = { Constants.TRANSFER_ENGINE_STREAM,
+			Constants.TRANSFER_ENGINE_NIO, Constants.TRANSFER_ENGINE_PIPELINE };
+	private static final String[] STACK_NAMES = { "hurl", "apache" };
+	private static final int[] STACKS = { Constants.HTTP_STACK_HURL,
+			Constants.HTTP_STACK_APACHE };
+
+	private Bundle mArguments;
+	private long[] mSizes;
+	private int[] mBufferSizes;
+	private int[] mThreads;
+	private String[] mEngines;
+	private String[] mStacks;
+	private int mIterations;
+	private int mWarmup;
+
+	private Context mContext;
+	private ContentResolver mResolver;
+	private DownloadManager mDownloadManager;
+	private SystemFacade mSystemFacade;
+	private DownloadNotifier mNotifier;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		mArguments = arguments != null ? arguments : new Bundle();
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Bundle results = new Bundle();
+		int resultCode = Activity.RESULT_OK;
+		LoopbackServer server = null;
+		try {
+			readArguments();
+			mContext = getTargetContext();
+			mResolver = mContext.getContentResolver();
+			mDownloadManager = new DownloadManager(mResolver,
+					mContext.getPackageName());
+			mSystemFacade = new BenchmarkSystemFacade();
+			mNotifier = new DownloadNotifier(mContext);
+			server = new LoopbackServer();
+			runAll(server);
+		} catch (Throwable ex) {
+			Log.e(TAG, "benchmark failed", ex);
+			results.putString(REPORT_KEY_STREAMRESULT, "FAILED: " + ex + "\n");
+			resultCode = Activity.RESULT_CANCELED;
+		} finally {
+			if (server != null) {
+				server.close();
+			}
+			DownloadTask.setTransferEngine(Constants.DEFAULT_TRANSFER_ENGINE);
+			DownloadTask.setBufferSize(Constants.BUFFER_SIZE);
+			HttpStackPool.setHttpStack(Constants.HTTP_STACK_AUTO);
+		}
+		finish(resultCode, results);
+	}
+
+	private void readArguments() {
+		mSizes = getLongs("sizes", new long[] { 64 * 1024, 1024 * 1024,
+				16 * 1024 * 1024 });
+		long[] buffers = getLongs("buffers", new long[] { 4 * 1024,
+				16 * 1024, 64 * 1024 });
+		mBufferSizes = new int[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			mBufferSizes[i] = (int) buffers[i];
+		}
+		long[] threads = getLongs("threads", new long[] { 1, 4 });
+		mThreads = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			mThreads[i] = (int) threads[i];
+		}
+		mEngines = getStrings("engines", ENGINE_NAMES);
+		mStacks = getStrings("stacks", STACK_NAMES);
+		mIterations = (int) getLongs("iterations", new long[] { 5 })[0];
+		mWarmup = (int) getLongs("warmup", new long[] { 2 })[0];
+	}
+
+	private void runAll(LoopbackServer server) throws Exception {
+		for (String stackName : mStacks) {
+			HttpStackPool.setHttpStack(STACKS[indexOf(STACK_NAMES, stackName)]);
+			measureFirstByte(server, stackName);
+			for (String engineName : mEngines) {
+				int engine = ENGINES[indexOf(ENGINE_NAMES, engineName)];
+				DownloadTask.setTransferEngine(engine);
+				int[] bufferSizes = engine == Constants.TRANSFER_ENGINE_STREAM ? mBufferSizes
+						: new int[] { Constants.BUFFER_SIZE };
+				for (long size : mSizes) {
+					for (int bufferSize : bufferSizes) {
+						DownloadTask.setBufferSize(bufferSize);
+						for (int threads : mThreads) {
+							String label = String.format(Locale.US,
+									"stack=%s engine=%s size=%d buffer=%s threads=%d",
+									stackName, engineName, size,
+									engine == Constants.TRANSFER_ENGINE_STREAM ? Integer
+											.toString(bufferSize) : "-",
+									threads);
+							measureTransfer(server, label, size, threads);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Time requests through a stack from sending them to reading the first
+	 * byte of their response. The first request has to open the connection,
+	 * the others reuse it.
+	 */
+	private void measureFirstByte(LoopbackServer server, String stackName)
+			throws IOException {
+		HttpStackPool.shutdown();
+		HttpStack stack = HttpStackPool.getInstance().lease();
+		long[] samples = new long[mIterations + 1];
+		byte[] drain = new byte[Constants.BUFFER_SIZE];
+		try {
+			for (int i = 0; i < samples.length; i++) {
+				HttpGet request = new HttpGet(server.getUrl(FIRST_BYTE_SIZE));
+				long start = System.nanoTime();
+				HttpResponse response = stack.performRequest(request);
+				InputStream in = response.getEntity().getContent();
+				if (in.read() == -1) {
+					throw new IOException("empty response");
+				}
+				samples[i] = System.nanoTime() - start;
+				while (in.read(drain) != -1) {
+					// consume the response so the connection can be reused
+				}
+				in.close();
+			}
+		} finally {
+			stack.close();
+		}
+		long[] warm = new long[mIterations];
+		System.arraycopy(samples, 1, warm, 0, mIterations);
+		report(String.format(Locale.US,
+				"stack=%s first byte: cold %.2f ms, warm %.2f ms", stackName,
+				samples[0] / 1e6, median(warm) / 1e6));
+	}
+
+	/**
+	 * Download a file of the given size on that many threads at once, first to
+	 * warm up and then measured.
+	 */
+	private void measureTransfer(LoopbackServer server, String label,
+			long size, int threads) throws Exception {
+		for (int i = 0; i < mWarmup; i++) {
+			runDownloads(server, size, threads, null);
+		}
+		double[] rates = new double[mIterations];
+		long allocated = 0;
+		for (int i = 0; i < mIterations; i++) {
+			long[] measured = new long[2];
+			runDownloads(server, size, threads, measured);
+			rates[i] = size * threads / MB / (measured[0] / 1e9);
+			allocated += measured[1];
+		}
+		Arrays.sort(rates);
+		double megabytes = size * threads * mIterations / MB;
+		report(String.format(Locale.US,
+				"%s: %.1f MB/s (min %.1f, max %.1f), %.1f KB allocated per MB",
+				label, rates[rates.length / 2], rates[0],
+				rates[rates.length - 1], allocated / 1024.0 / megabytes));
+	}
+
+	/**
+	 * Run one round of concurrent downloads. Only the transfers are measured,
+	 * not the rows being created and removed around them.
+	 *
+	 * @param measured
+	 *            receives the elapsed time in ns and the bytes allocated by
+	 *            all threads, or null
+	 */
+	private void runDownloads(LoopbackServer server, long size, int threads,
+			long[] measured) throws Exception {
+		long[] ids = new long[threads];
+		File[] files = new File[threads];
+		Thread[] workers = new Thread[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				files[i] = new File(mContext.getExternalFilesDir(null),
+						"benchmark-" + i);
+				files[i].delete();
+				ids[i] = mDownloadManager.enqueue(new Request(Uri.parse(server
+						.getUrl(size))).setDestinationUri(Uri.fromFile(files[i])));
+				workers[i] = new Thread(newTask(ids[i]), "Benchmark-" + i);
+			}
+
+			Debug.resetGlobalAllocSize();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+			for (Thread worker : workers) {
+				worker.start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			long elapsed = System.nanoTime() - start;
+			Debug.stopAllocCounting();
+			if (measured != null) {
+				measured[0] = elapsed;
+				measured[1] = Debug.getGlobalAllocSize();
+			}
+
+			for (int i = 0; i < threads; i++) {
+				checkDownload(ids[i], files[i], size);
+			}
+		} finally {
+			for (int i = 0; i < threads; i++) {
+				if (ids[i] != 0) {
+					mResolver.delete(ContentUris.withAppendedId(
+							Downloads.ALL_DOWNLOADS_CONTENT_URI, ids[i]), null,
+							null);
+				}
+				if (files[i] != null) {
+					files[i].delete();
+				}
+			}
+		}
+	}
+
+	private DownloadTask newTask(long id) {
+		Cursor cursor = mResolver.query(ContentUris.withAppendedId(
+				Downloads.ALL_DOWNLOADS_CONTENT_URI, id), null, null, null,
+				null);
+		try {
+			if (!cursor.moveToFirst()) {
+				throw new IllegalStateException("download " + id + " is gone");
+			}
+			DownloadInfo info = new DownloadInfo.Reader(mResolver, cursor)
+					.newDownloadInfo(mContext, mSystemFacade);
+			return new DownloadTask(mContext, mSystemFacade, info, mNotifier);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void checkDownload(long id, File file, long size) {
+		Cursor cursor = mResolver.query(ContentUris.withAppendedId(
+				Downloads.ALL_DOWNLOADS_CONTENT_URI, id),
+				new String[] { Downloads.COLUMN_STATUS }, null, null, null);
+		try {
+			int status = cursor.moveToFirst() ? cursor.getInt(0)
+					: Downloads.STATUS_UNKNOWN_ERROR;
+			if (status != Downloads.STATUS_SUCCESS) {
+				throw new IllegalStateException("download " + id
+						+ " finished with status " + status);
+			}
+		} finally {
+			cursor.close();
+		}
+		if (file.length() != size) {
+			throw new IllegalStateException("download " + id + " has "
+					+ file.length() + " bytes instead of " + size);
+		}
+	}
+
+	private void report(String line) {
+		Log.i(TAG, line);
+		Bundle status = new Bundle();
+		status.putString(REPORT_KEY_STREAMRESULT, line + "\n");
+		sendStatus(0, status);
+	}
+
+	private static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private long[] getLongs(String key, long[] defaults) {
+		String value = mArguments.getString(key);
+		if (value == null) {
+			return defaults;
+		}
+		String[] parts = value.split(",");
+		long[] values = new long[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Long.parseLong(parts[i].trim());
+		}
+		return values;
+	}
+
+	private String[] getStrings(String key, String[] defaults) {
+		String value = mArguments.getString(key);
+		return value == null ? defaults : value.split(",");
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name.trim())) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown value " + name);
+	}
+}
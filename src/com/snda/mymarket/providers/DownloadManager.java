@@ -30,12 +30,17 @@ import android.database.CursorWrapper;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Pair;
 
+import com.snda.mymarket.providers.downloads.BandwidthLimiter;
 import com.snda.mymarket.providers.downloads.DownloadService;
 import com.snda.mymarket.providers.downloads.Downloads;
+import com.snda.mymarket.providers.downloads.ProgressChannel;
 
 /**
  * The download manager is a system service that handles long-running HTTP
@@ -236,6 +241,12 @@ public class DownloadManager {
 	 */
 	public final static int ERROR_FILE_ALREADY_EXISTS = 1009;
 
+	/**
+	 * Value of {@link #COLUMN_REASON} when the downloaded file doesn't have the
+	 * size or digest given with {@link Request#setExpectedDigest}.
+	 */
+	public final static int ERROR_INTEGRITY = 1010;
+
 	/**
 	 * Value of {@link #COLUMN_REASON} when the download is paused because some
 	 * network error occurred and the download manager is waiting before
@@ -330,6 +341,25 @@ public class DownloadManager {
 			 */
 			"'placeholder' AS " + COLUMN_LOCAL_URI,
 			"'placeholder' AS " + COLUMN_REASON };
+	/**
+	 * Receives the progress of running downloads as they make it, several
+	 * times a second, rather than through the database.
+	 * 
+	 * @see DownloadManager#registerProgressListener
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called on the thread of the handler given at registration.
+		 * 
+		 * @param totalBytes
+		 *            the size of the download, -1 if unknown
+		 * @param bytesPerSecond
+		 *            the current speed of the download, 0 if not known yet
+		 */
+		void onProgress(long id, long currentBytes, long totalBytes,
+				long bytesPerSecond);
+	}
+
 	/**
 	 * This class contains all the information necessary to request a new
 	 * download. The URI is the only required parameter.
@@ -396,6 +426,16 @@ public class DownloadManager {
 		// allowed
 		private boolean mIsVisibleInDownloadsUi = true;
 		private boolean mScannable = false;
+		private long mMaxBytesPerSecond = 0;
+		private boolean mCompressionAllowed = false;
+		private String mDeltaBase;
+		private Uri mDeltaUri;
+		private String mDeltaSha256;
+		private String mDigestAlgorithm;
+		private String mExpectedDigest;
+		private long mExpectedSize = -1;
+		private List<Uri> mMirrors = new ArrayList<Uri>();
+		private boolean mMetalink = false;
 		
 		/**
 		 * if a file is designated as a MediaScanner scannable file, the
@@ -625,6 +665,161 @@ public class DownloadManager {
 			return this;
 		}
 
+		/**
+		 * Limit the bandwidth this download may use, so that it leaves room for
+		 * more urgent ones. By default, there is no limit.
+		 * 
+		 * @param bytesPerSecond
+		 *            the maximum rate, or 0 for no limit
+		 * @return this object
+		 * @see DownloadManager#setMaxBytesPerSecond(long, long...)
+		 */
+		public Request setMaxBytesPerSecond(long bytesPerSecond) {
+			if (bytesPerSecond < 0) {
+				throw new IllegalArgumentException(
+						"bytesPerSecond can't be negative");
+			}
+			mMaxBytesPerSecond = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * Let the server send this download gzip-compressed, which saves most
+		 * of the bytes of text, JSON and other uncompressed content. The file
+		 * is inflated once complete, so progress counts compressed bytes until
+		 * then. An interrupted download resumes from its compressed offset.
+		 * Ignored for content types that are compressed already. By default,
+		 * downloads are transferred as they are.
+		 * 
+		 * @param allowed
+		 *            whether to accept a compressed transfer
+		 * @return this object
+		 */
+		public Request setAllowCompression(boolean allowed) {
+			mCompressionAllowed = allowed;
+			return this;
+		}
+
+		/**
+		 * Download a patch against an older version of the file rather than the
+		 * whole file, typically to update an installed application. The file
+		 * is rebuilt from the base file and the patch once the patch is
+		 * complete, so progress counts patch bytes until then. If the patch
+		 * can't be downloaded or applied, or the rebuilt file doesn't have the
+		 * expected digest, the full file is downloaded from the URI of this
+		 * request instead.
+		 * <p>
+		 * The patch is a bsdiff 4.3 patch with an uncompressed body, the whole
+		 * of it gzip-compressed.
+		 * <p>
+		 * The base file is read with the rights of the download manager, so
+		 * only callers holding {@link Downloads#PERMISSION_ACCESS} may
+		 * download patches; {@link DownloadManager#enqueue} throws a
+		 * SecurityException for others.
+		 * 
+		 * @param basePath
+		 *            the path of the older version, which must stay readable
+		 *            until the download completes
+		 * @param patchUri
+		 *            the HTTP URI of the patch
+		 * @param sha256
+		 *            the SHA-256 digest of the new file, in hex
+		 * @return this object
+		 */
+		public Request setDeltaSource(String basePath, Uri patchUri,
+				String sha256) {
+			if (basePath == null || patchUri == null || sha256 == null) {
+				throw new NullPointerException();
+			}
+			if (!new File(basePath).isAbsolute()) {
+				throw new IllegalArgumentException(
+						"The base of a patch must be an absolute path: "
+								+ basePath);
+			}
+			String scheme = patchUri.getScheme();
+			if (scheme == null || !scheme.equals("http")) {
+				throw new IllegalArgumentException(
+						"Can only download HTTP URIs: " + patchUri);
+			}
+			mDeltaBase = basePath;
+			mDeltaUri = patchUri;
+			mDeltaSha256 = sha256;
+			return this;
+		}
+
+		/**
+		 * Have the download manager verify the downloaded file. The digest is
+		 * computed as the data arrives and carries over when an interrupted
+		 * download resumes, so that the file doesn't have to be read again
+		 * once complete. A file with another size or digest fails with
+		 * {@link DownloadManager#ERROR_INTEGRITY}, and the server is never
+		 * asked for the rest of a file it reports the wrong size of.
+		 * 
+		 * @param algorithm
+		 *            MD5, SHA-1 or SHA-256
+		 * @param digest
+		 *            the digest of the file, in hex
+		 * @param size
+		 *            the size of the file in bytes, -1 if unknown
+		 * @return this object
+		 */
+		public Request setExpectedDigest(String algorithm, String digest,
+				long size) {
+			if (algorithm == null || digest == null) {
+				throw new NullPointerException();
+			}
+			if (!algorithm.equalsIgnoreCase("MD5")
+					&& !algorithm.equalsIgnoreCase("SHA-1")
+					&& !algorithm.equalsIgnoreCase("SHA-256")) {
+				throw new IllegalArgumentException("Unsupported digest: "
+						+ algorithm);
+			}
+			mDigestAlgorithm = algorithm;
+			mExpectedDigest = digest;
+			mExpectedSize = size;
+			return this;
+		}
+
+		/**
+		 * Add another HTTP URI of the same file. A download with mirrors
+		 * probes them all and starts from the one that answers fastest; when a
+		 * source fails or stalls, it resumes from the next one instead of
+		 * waiting to retry. The sources must serve identical files, which can
+		 * be checked with {@link #setExpectedDigest}.
+		 * 
+		 * @param uri
+		 *            the HTTP URI of a mirror
+		 * @return this object
+		 */
+		public Request addMirror(Uri uri) {
+			if (uri == null) {
+				throw new NullPointerException();
+			}
+			String scheme = uri.getScheme();
+			if (scheme == null || !scheme.equals("http")) {
+				throw new IllegalArgumentException(
+						"Can only download HTTP URIs: " + uri);
+			}
+			mMirrors.add(uri);
+			return this;
+		}
+
+		/**
+		 * Set whether the URI of this request is a Metalink document (RFC 5854,
+		 * or Metalink 3) rather than the file itself. The download then reads
+		 * the document first and fetches the file from the HTTP sources it
+		 * lists, as mirrors of each other. The size and digest it gives are
+		 * verified unless {@link #setExpectedDigest} was called.
+		 * 
+		 * @param isMetalink
+		 *            whether the URI is a Metalink document
+		 * @return this object
+		 */
+		public Request setMetalink(boolean isMetalink) {
+			mMetalink = isMetalink;
+			return this;
+		}
+
 		/**
 		 * Set whether this download may proceed over a roaming connection. By
 		 * default, roaming is allowed.
@@ -686,6 +881,24 @@ public class DownloadManager {
 			values.put(Downloads.COLUMN_ALLOW_ROAMING, mRoamingAllowed);
 			values.put(Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
 					mIsVisibleInDownloadsUi);
+			values.put(Downloads.COLUMN_MAX_BYTES_PER_SECOND,
+					mMaxBytesPerSecond);
+			values.put(Downloads.COLUMN_ALLOW_COMPRESSION, mCompressionAllowed);
+			if (mDeltaUri != null) {
+				values.put(Downloads.COLUMN_DELTA_BASE, mDeltaBase);
+				values.put(Downloads.COLUMN_DELTA_URI, mDeltaUri.toString());
+				values.put(Downloads.COLUMN_DELTA_SHA256, mDeltaSha256);
+			}
+			if (mDigestAlgorithm != null) {
+				values.put(Downloads.COLUMN_DIGEST_ALGORITHM, mDigestAlgorithm);
+				values.put(Downloads.COLUMN_EXPECTED_DIGEST, mExpectedDigest);
+			}
+			values.put(Downloads.COLUMN_EXPECTED_SIZE, mExpectedSize);
+			if (!mMirrors.isEmpty()) {
+				values.put(Downloads.COLUMN_MIRRORS,
+						TextUtils.join("\n", mMirrors));
+			}
+			values.put(Downloads.COLUMN_METALINK, mMetalink);
 
 			values.put(Downloads.COLUMN_NO_INTEGRITY, true);
 			values.put(Downloads.COLUMN_MEDIA_SCANNED,
@@ -953,6 +1166,68 @@ public class DownloadManager {
 				getWhereArgsForIds(ids));
 	}
 
+	/**
+	 * Change the bandwidth limit of downloads. Running downloads apply it from
+	 * their next read on.
+	 * 
+	 * @param bytesPerSecond
+	 *            the maximum rate, or 0 for no limit
+	 * @param ids
+	 *            the IDs of the downloads to limit
+	 * @return the number of downloads actually updated
+	 */
+	public int setMaxBytesPerSecond(long bytesPerSecond, long... ids) {
+		if (ids == null || ids.length == 0) {
+			throw new IllegalArgumentException(
+					"input param 'ids' can't be null");
+		}
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"bytesPerSecond can't be negative");
+		}
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_MAX_BYTES_PER_SECOND, bytesPerSecond);
+		return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids),
+				getWhereArgsForIds(ids));
+	}
+
+	/**
+	 * Change the bandwidth limit of all downloads together. It is shared by
+	 * the downloads run by the download service of this process, running
+	 * downloads apply it from their next read on.
+	 * 
+	 * @param bytesPerSecond
+	 *            the maximum rate, or 0 for no limit
+	 */
+	public void setMaxBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"bytesPerSecond can't be negative");
+		}
+		BandwidthLimiter.setGlobalMaxBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * Change the bandwidth limit of all downloads together over one type of
+	 * network, on top of the limit of all downloads. It is shared by the
+	 * downloads run by the download service of this process, running
+	 * downloads apply it from their next read on.
+	 * 
+	 * @param networkType
+	 *            one of the ConnectivityManager.TYPE_* constants
+	 * @param bytesPerSecond
+	 *            the maximum rate, or 0 for no limit
+	 */
+	public void setNetworkMaxBytesPerSecond(int networkType,
+			long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"bytesPerSecond can't be negative");
+		}
+		BandwidthLimiter.setNetworkMaxBytesPerSecond(networkType,
+				bytesPerSecond);
+	}
+
 	/**
 	 * Cancel downloads and remove them from the download manager. Each download
 	 * will be stopped if it was running, and it will no longer be accessible
@@ -990,6 +1265,35 @@ public class DownloadManager {
 		return new CursorTranslator(underlyingCursor, mBaseUri);
 	}
 
+	/**
+	 * Listen to the progress of running downloads, without querying for it.
+	 * Only the downloads run by the download service of this process are
+	 * heard of, and only while they transfer data: changes of status still
+	 * have to be queried.
+	 * 
+	 * @param listener
+	 *            the listener to call
+	 * @param handler
+	 *            the handler to call it on, null for the main thread
+	 * @param ids
+	 *            the IDs of the downloads to listen to, none for all
+	 */
+	public void registerProgressListener(ProgressListener listener,
+			Handler handler, long... ids) {
+		if (handler == null) {
+			handler = new Handler(Looper.getMainLooper());
+		}
+		ProgressChannel.getInstance().register(listener, handler, ids);
+	}
+
+	/**
+	 * Stop listening to the progress of downloads. No update reaches the
+	 * listener after this returns on the thread of its handler.
+	 */
+	public void unregisterProgressListener(ProgressListener listener) {
+		ProgressChannel.getInstance().unregister(listener);
+	}
+
 	/**
 	 * Open a downloaded file for reading. The download must have completed.
 	 * 
@@ -1060,6 +1364,50 @@ public class DownloadManager {
 						Downloads.STATUS_PENDING));
 	}
 
+	/**
+	 * Change how many downloads may run at the same time, instead of
+	 * Constants.MAX_RUNNING_DOWNLOADS. Lowering it lets the running downloads
+	 * finish, raising it starts waiting ones right away. This method will
+	 * only work when called from within the download manager's process.
+	 * 
+	 * @param maxRunning
+	 *            the limit, at least 1
+	 */
+	public void setMaxConcurrentDownloads(int maxRunning) {
+		if (maxRunning < 1) {
+			throw new IllegalArgumentException("maxRunning must be positive");
+		}
+		DownloadService.setMaxRunningDownloads(maxRunning);
+	}
+
+	/**
+	 * Select whether fresh downloads started from now on share one selector
+	 * thread rather than run on a thread each. Downloads that need anything
+	 * more than a plain HTTP transfer, and resumed ones, still run on a thread
+	 * each. This method will only work when called from within the download
+	 * manager's process.
+	 * 
+	 * @param enabled
+	 *            whether to use the multiplexed engine
+	 */
+	public void setMultiplexedEngineEnabled(boolean enabled) {
+		DownloadService.setMultiplexedEngineEnabled(enabled);
+	}
+
+	/**
+	 * Select whether downloads started from now on share one HTTP/2 connection
+	 * per server speaking it, including servers speaking it over plain http
+	 * without being asked, rather than use HTTP/1.1. Off by default. This
+	 * method will only work when called from within the download manager's
+	 * process.
+	 * 
+	 * @param enabled
+	 *            whether to use HTTP/2
+	 */
+	public void setHttp2Enabled(boolean enabled) {
+		DownloadService.setHttp2Enabled(enabled);
+	}
+
 	/**
 	 * Resume the given downloads, which must be paused. This method will only
 	 * work when called from within the download manager's process.
@@ -1336,6 +1684,8 @@ public class DownloadManager {
 				return ERROR_CANNOT_RESUME;
 			case Downloads.STATUS_FILE_ALREADY_EXISTS_ERROR:
 				return ERROR_FILE_ALREADY_EXISTS;
+			case Downloads.STATUS_INTEGRITY_ERROR:
+				return ERROR_INTEGRITY;
 			default:
 				return ERROR_UNKNOWN;
 			}
@@ -0,0 +1,137 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.snda.mymarket.providers.DownloadManager;
+
+/**
+ * Shapes the bandwidth of one download with token buckets at three levels:
+ * all downloads together, all downloads over one type of network, and the
+ * download itself. Each level is unlimited while its rate is 0.
+ * <p>
+ * Taking tokens is a single compare-and-set per limited bucket, so that
+ * downloads never lock each other out in their read loops. Rates can be
+ * changed at any time, through {@link DownloadManager#setMaxBytesPerSecond}
+ * and {@link DownloadManager#setNetworkMaxBytesPerSecond} for the shared
+ * levels, and apply from the next read on.
+ */
+public class BandwidthLimiter {
+
+	/** Network types, as in ConnectivityManager.TYPE_*, that get a bucket of their own. */
+	private static final int NETWORK_TYPES = 32;
+
+	private static final TokenBucket sGlobal = new TokenBucket(
+			Constants.MAX_BYTES_PER_SECOND);
+	private static final TokenBucket[] sNetworks = new TokenBucket[NETWORK_TYPES];
+	static {
+		for (int i = 0; i < NETWORK_TYPES; i++) {
+			sNetworks[i] = new TokenBucket(0);
+		}
+	}
+
+	/**
+	 * Limit the bandwidth of all downloads together, 0 for no limit.
+	 */
+	public static void setGlobalMaxBytesPerSecond(long bytesPerSecond) {
+		sGlobal.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Limit the bandwidth of all downloads over a type of network, 0 for no
+	 * limit.
+	 *
+	 * @param networkType
+	 *            one of the ConnectivityManager.TYPE_* constants
+	 */
+	public static void setNetworkMaxBytesPerSecond(int networkType,
+			long bytesPerSecond) {
+		if (networkType < 0 || networkType >= NETWORK_TYPES) {
+			throw new IllegalArgumentException("unknown network type "
+					+ networkType);
+		}
+		sNetworks[networkType].setRate(bytesPerSecond);
+	}
+
+	private final SystemFacade mSystemFacade;
+	private final DownloadInfo mInfo;
+	private final TokenBucket mDownload = new TokenBucket(0);
+	/** The bucket of the active network, looked up again now and then. */
+	private volatile TokenBucket mNetwork;
+	private volatile boolean mNetworkChecked = false;
+	private volatile long mNetworkCheckedAt;
+
+	BandwidthLimiter(SystemFacade systemFacade, DownloadInfo info) {
+		mSystemFacade = systemFacade;
+		mInfo = info;
+	}
+
+	/**
+	 * Take the tokens for bytes just read.
+	 *
+	 * @return how long the caller has to wait before reading more, in ms
+	 */
+	public long acquire(int bytes) {
+		long now = System.nanoTime();
+		mDownload.setRate(mInfo.mMaxBytesPerSecond);
+		long wait = mDownload.take(bytes, now);
+		wait = Math.max(wait, sGlobal.take(bytes, now));
+		TokenBucket network = getNetworkBucket(now);
+		if (network != null) {
+			wait = Math.max(wait, network.take(bytes, now));
+		}
+		return wait / 1000000;
+	}
+
+	private TokenBucket getNetworkBucket(long now) {
+		if (!mNetworkChecked
+				|| now - mNetworkCheckedAt > Constants.NETWORK_CHECK_INTERVAL * 1000000) {
+			Integer type = mSystemFacade.getActiveNetworkType();
+			mNetwork = (type != null && type >= 0 && type < NETWORK_TYPES) ? sNetworks[type]
+					: null;
+			mNetworkCheckedAt = now;
+			mNetworkChecked = true;
+		}
+		return mNetwork;
+	}
+
+	/**
+	 * A token bucket kept as the time by which all tokens taken so far have
+	 * been earned, which fits in a single atomic value.
+	 */
+	private static class TokenBucket {
+		private volatile long mBytesPerSecond;
+		/** In ns, later than now while the bucket is in debt. */
+		private final AtomicLong mEarnedAt = new AtomicLong(Long.MIN_VALUE);
+
+		public TokenBucket(long bytesPerSecond) {
+			mBytesPerSecond = bytesPerSecond;
+		}
+
+		public void setRate(long bytesPerSecond) {
+			// called on every read, skip the volatile write when nothing changed
+			if (mBytesPerSecond != bytesPerSecond) {
+				mBytesPerSecond = bytesPerSecond;
+			}
+		}
+
+		/**
+		 * @return how long to wait until the bucket is out of debt, in ns
+		 */
+		public long take(int bytes, long now) {
+			long rate = mBytesPerSecond;
+			if (rate <= 0) {
+				return 0;
+			}
+			long cost = bytes * 1000000000L / rate;
+			long burst = Constants.BANDWIDTH_BURST * 1000000L;
+			for (;;) {
+				long earnedAt = mEarnedAt.get();
+				// a bucket that has been idle is full, but never fuller
+				long next = Math.max(earnedAt, now - burst) + cost;
+				if (mEarnedAt.compareAndSet(earnedAt, next)) {
+					return Math.max(0, next - now);
+				}
+			}
+		}
+	}
+}
@@ -58,15 +58,15 @@ public class Constants {
 
 	
 	/**
-	 * corePoolSize the number of threads to keep in the pool, even
-     * if they are idle, unless {@code allowCoreThreadTimeOut} is set
+	 * the maximum number of downloads running at the same time, unless changed
+	 * through DownloadManager.setMaxConcurrentDownloads()
 	 */
-	public static final int CORE_POOL_SIZE = 1;
-	
+	public static final int MAX_RUNNING_DOWNLOADS = 5;
+
 	/**
-	 * maximumPoolSize the maximum number of threads to allow in the pool
+	 * the maximum number of downloads running at the same time against one host
 	 */
-	public static final int MAXIMUM_POOL_SIZE = 5;
+	public static final int MAX_RUNNING_DOWNLOADS_PER_HOST = 2;
 	
 	/**
 	 * keepAliveTime when the number of threads is greater than
@@ -75,11 +75,6 @@ public class Constants {
 	 */
 	public static final int KEEP_ALIVE = 10;
 	
-	/**
-	 * maximum work queue size wait to be download. 
-	 */
-	public static final int MAXIMUM_WORK_QUEUE_SIZE = 500;
-	
 	/**
 	 * external database path to store the download.db, if not set or set as empty string, 
 	 * <br>the database will be stored in <b>/data/data/[package name]/databases</b> folder
@@ -102,6 +97,18 @@ public class Constants {
     /** The column that is used for the downloads's ETag */
     public static final String ETAG = "etag";
 
+    /**
+     * The column that is used for the content coding of the partial file, null
+     * unless it holds compressed data still to be inflated
+     */
+    public static final String CONTENT_ENCODING = "content_encoding";
+
+    /**
+     * The column that is used for the saved state of the digest of the partial
+     * file, so that a resumed download continues it
+     */
+    public static final String DIGEST_STATE = "digest_state";
+
     /** The column that is used for the initiating app's UID */
     public static final String UID = "uid";
     
@@ -158,18 +165,204 @@ public class Constants {
     /** The MIME type of APKs */
     public static final String MIMETYPE_APK = "application/vnd.android.package";
 
-    /** The buffer size used to stream the data */
+    /**
+     * The buffer size used to stream the data, unless another one is picked
+     * through DownloadTask.setBufferSize()
+     */
     public static final int BUFFER_SIZE = 4096;
 
+    /** Transfer engine copying the response through a byte[] into a FileOutputStream */
+    public static final int TRANSFER_ENGINE_STREAM = 0;
+
+    /** Transfer engine reading into a direct ByteBuffer and writing through a FileChannel */
+    public static final int TRANSFER_ENGINE_NIO = 1;
+
+    /**
+     * Transfer engine reading on the download thread and writing on the threads
+     * of the shared WriterPool
+     */
+    public static final int TRANSFER_ENGINE_PIPELINE = 2;
+
+    /**
+     * The transfer engine used by new downloads, unless another one is picked
+     * through DownloadTask.setTransferEngine()
+     */
+    public static final int DEFAULT_TRANSFER_ENGINE = TRANSFER_ENGINE_STREAM;
+
+    /** The direct buffer size used by the NIO transfer engine */
+    public static final int NIO_BUFFER_SIZE = 64 * 1024;
+
+    /** The number of threads shared by all downloads to write data to disk */
+    public static final int WRITER_THREADS = 2;
+
+    /** The size of the pooled buffers the pipelined engine reads into */
+    public static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    /** The number of pooled buffers shared by all downloads, bounding the memory in flight */
+    public static final int WRITE_POOL_BUFFERS = 64;
+
+    /** The number of buffers one file may have in flight before its download thread waits */
+    public static final int WRITE_QUEUE_DEPTH = 16;
+
+    /** The maximum number of queued buffers merged into a single write */
+    public static final int WRITE_COALESCE_BUFFERS = 8;
+
+    /**
+     * Whether to reserve the full length of a download on disk once the
+     * response headers give it, instead of growing the file as data arrives
+     */
+    public static final boolean PREALLOCATE_DESTINATION = true;
+
+    /**
+     * The bandwidth all downloads together may use, in bytes/second, unless
+     * changed through DownloadManager.setMaxBytesPerSecond(long); 0 for no
+     * limit
+     */
+    public static final long MAX_BYTES_PER_SECOND = 0;
+
+    /** How much a bandwidth-limited download may get ahead of its rate after being idle, in ms */
+    public static final long BANDWIDTH_BURST = 250;
+
+    /** The longest a bandwidth-limited download sleeps before it checks for pause and cancel, in ms */
+    public static final long BANDWIDTH_SLEEP_STEP = 250;
+
+    /** How often a bandwidth-limited download looks up the type of the active network, in ms */
+    public static final long NETWORK_CHECK_INTERVAL = 1000;
+
+    /** The maximum number of connections open to a single host, shared by all downloads */
+    public static final int MAX_CONNECTIONS_PER_HOST = 8;
+
+    /** The maximum number of connections open at the same time, shared by all downloads */
+    public static final int MAX_CONNECTIONS = 32;
+
+    /** How long an idle connection is kept for reuse by the next download, in ms */
+    public static final long HTTP_KEEP_ALIVE = 30 * 1000;
+
+    /**
+     * The most a response body left unread, such as that of a redirect or an
+     * error, is drained to return its connection to the pool, in bytes
+     */
+    public static final int MAX_DRAIN_BYTES = 8 * 1024;
+
+    /** Pick HttpURLConnection from Gingerbread on and AndroidHttpClient before */
+    public static final int HTTP_STACK_AUTO = 0;
+
+    /** Always use HttpURLConnection */
+    public static final int HTTP_STACK_HURL = 1;
+
+    /** Always use AndroidHttpClient */
+    public static final int HTTP_STACK_APACHE = 2;
+
+    /**
+     * Use HTTP/2 wherever the server speaks it, including h2c over plain http
+     * without asking first, and HttpURLConnection elsewhere
+     */
+    public static final int HTTP_STACK_HTTP2 = 3;
+
+    /** How much of the body of one HTTP/2 download the server may send ahead of it, in bytes */
+    public static final int HTTP2_STREAM_WINDOW = 256 * 1024;
+
+    /**
+     * How much the server may send ahead of all the downloads sharing an HTTP/2
+     * connection, in bytes, which is all the connection ever buffers on the heap
+     */
+    public static final int HTTP2_CONNECTION_WINDOW = 1024 * 1024;
+
+    /**
+     * Whether fresh downloads start on the MultiplexedEngine, one selector
+     * thread for all of them, rather than on a thread each, unless changed
+     * through DownloadManager.setMultiplexedEngineEnabled()
+     */
+    public static final boolean MULTIPLEXED_ENGINE_ENABLED = false;
+
+    /** The most downloads the MultiplexedEngine keeps in flight, within the scheduler's limits */
+    public static final int MULTIPLEXED_MAX_TRANSFERS = 64;
+
+    /** How often the MultiplexedEngine checks its downloads for pause, cancel and timeouts, in ms */
+    public static final long MULTIPLEXED_CHECK_INTERVAL = 500;
+
+    /**
+     * For how long a completed download satisfies new downloads of the same
+     * URI without asking the server, in ms. Older ones are only reused when
+     * the server reports the same ETag and length.
+     */
+    public static final long CACHE_REUSE_WINDOW = 5 * 60 * 1000;
+
+    /** How much of the file a download fetches from each of its mirrors to rank them, in bytes */
+    public static final int MIRROR_PROBE_BYTES = 64 * 1024;
+
+    /** For how long a download probes its mirrors before it picks one, in ms */
+    public static final long MIRROR_PROBE_TIMEOUT = 3000;
+
+    /**
+     * The most mirrors probed at once; the others are only tried, in their
+     * given order, once all the probed ones have failed
+     */
+    public static final int MAX_MIRROR_PROBES = 4;
+
+    /** Downloads known to be smaller than this many bytes don't probe their mirrors */
+    public static final long MIN_MIRROR_PROBE_SIZE = 1024 * 1024;
+
+    /** The maximum size of a Metalink document, in bytes */
+    public static final int MAX_METALINK_SIZE = 256 * 1024;
+
+    /** How many downloads in a row have to fail against a host before its downloads are held */
+    public static final int CIRCUIT_FAILURE_THRESHOLD = 3;
+
+    /** For how long the downloads of a failing host are first held, in ms; it doubles on each failed probe */
+    public static final long CIRCUIT_OPEN_DELAY = 30 * 1000;
+
+    /** The longest the downloads of a failing host are held between probes, in ms */
+    public static final long CIRCUIT_MAX_OPEN_DELAY = 30 * 60 * 1000;
+
+    /** How many pages the write-ahead log of the database grows to before it is checkpointed */
+    public static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /** The size the write-ahead log of the database is cut back to after a checkpoint, in bytes */
+    public static final long WAL_SIZE_LIMIT = 512 * 1024;
+
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 4096;
 
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 1500;
 
+    /** The minimum amount of time between two progress updates passed to the listeners of a download, in ms */
+    public static final long LIVE_PROGRESS_INTERVAL = 200;
+
+    /** The minimum amount of time between two progress updates of the same notification, in ms */
+    public static final long MIN_NOTIFICATION_INTERVAL = 1000;
+
+    /**
+     * How often the progress published by running downloads is stored, in one
+     * batch for all of them, in ms
+     */
+    public static final long PROGRESS_FLUSH_INTERVAL = MIN_PROGRESS_TIME;
+
+    /**
+     * The maximum number of parallel connections used to fetch a single download.
+     * Only servers that advertise byte ranges are split; 1 disables segmentation.
+     */
+    public static final int SEGMENT_COUNT = 4;
+
+    /** The smallest byte range worth its own connection when segmenting a download */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** How often the segment coordinator wakes up to report progress, in ms */
+    public static final long SEGMENT_POLL_INTERVAL = 500;
+
+    /**
+     * How often DownloadService rereads every download rather than only those
+     * whose row version changed since its last pass, in ms
+     */
+    public static final long FULL_SWEEP_INTERVAL = 5 * 60 * 1000;
+
     /** The maximum number of rows in the database (FIFO) */
     public static final int MAX_DOWNLOADS = 1000;
 
+    /** The number of most recent attempts whose phase timings are kept for each download */
+    public static final int MAX_ATTEMPTS_PER_DOWNLOAD = 16;
+
     /**
      * The number of times that the download manager will retry its network
      * operations when no progress is happening before it gives up.
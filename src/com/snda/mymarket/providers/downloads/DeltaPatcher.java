@@ -0,0 +1,210 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a file from an older version of it and a binary patch, in one
+ * pass over both.
+ * <p>
+ * A patch is a gzip stream holding a bsdiff 4.3 patch whose body is not
+ * compressed: the 16 byte magic "ENDSLEY/BSDIFF43", the length of the new
+ * file, then control triples each followed by their diff and extra bytes.
+ * bsdiff compresses the body with bzip2, which the platform has no decoder
+ * for, so servers recompress it with gzip instead.
+ */
+class DeltaPatcher {
+	private static final byte[] MAGIC = { 'E', 'N', 'D', 'S', 'L', 'E', 'Y',
+			'/', 'B', 'S', 'D', 'I', 'F', 'F', '4', '3' };
+
+	/**
+	 * Thrown when a file can't be rebuilt from its patch, whatever the reason:
+	 * a corrupt patch, a missing or different base file, a digest mismatch.
+	 */
+	public static class PatchException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public PatchException(String message) {
+			super(message);
+		}
+
+		public PatchException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private final int mBufferSize;
+
+	DeltaPatcher(int bufferSize) {
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * Apply a patch to a base file.
+	 *
+	 * @param sha256
+	 *            the expected SHA-256 digest of the new file, in hex
+	 * @param digest
+	 *            another digest to feed the new file to, or null
+	 * @return the length of the new file
+	 */
+	public long apply(File base, File patch, File target, String sha256,
+			StreamingDigest digest) throws PatchException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new PatchException("no SHA-256", ex);
+		}
+		DataInputStream in = null;
+		RandomAccessFile old = null;
+		OutputStream out = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(new FileInputStream(patch),
+							mBufferSize), mBufferSize));
+			old = new RandomAccessFile(base, "r");
+			out = new BufferedOutputStream(new FileOutputStream(target),
+					mBufferSize);
+			long newSize = apply(in, old, out, sha, digest);
+			out.close();
+			out = null;
+			String actual = toHex(sha.digest());
+			if (!actual.equalsIgnoreCase(sha256)) {
+				// the actual digest is left out, it tells about the base
+				throw new PatchException("patched file doesn't have SHA-256 "
+						+ sha256);
+			}
+			return newSize;
+		} catch (IOException ex) {
+			throw new PatchException("while patching: " + ex, ex);
+		} finally {
+			closeQuietly(in);
+			closeQuietly(old);
+			closeQuietly(out);
+		}
+	}
+
+	private long apply(DataInputStream in, RandomAccessFile old,
+			OutputStream out, MessageDigest sha, StreamingDigest digest)
+			throws IOException, PatchException {
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				throw new PatchException("not a bsdiff 4.3 patch");
+			}
+		}
+		long newSize = readOffset(in);
+		if (newSize < 0) {
+			throw new PatchException("corrupt patch header");
+		}
+
+		long oldSize = old.length();
+		byte[] data = new byte[mBufferSize];
+		byte[] oldData = new byte[mBufferSize];
+		long oldPos = 0;
+		long newPos = 0;
+		while (newPos < newSize) {
+			long diffLength = readOffset(in);
+			long extraLength = readOffset(in);
+			long seek = readOffset(in);
+			if (diffLength < 0 || extraLength < 0
+					|| diffLength > newSize - newPos
+					|| extraLength > newSize - newPos - diffLength) {
+				throw new PatchException("corrupt patch control block");
+			}
+
+			// the diff bytes are added to the old file, which counts as zeros
+			// outside its bounds
+			long remaining = diffLength;
+			while (remaining > 0) {
+				int count = (int) Math.min(remaining, data.length);
+				in.readFully(data, 0, count);
+				long from = Math.max(oldPos, 0);
+				long to = Math.min(oldPos + count, oldSize);
+				if (from < to) {
+					old.seek(from);
+					old.readFully(oldData, 0, (int) (to - from));
+					int offset = (int) (from - oldPos);
+					for (int i = 0; i < to - from; i++) {
+						data[offset + i] += oldData[i];
+					}
+				}
+				out.write(data, 0, count);
+				sha.update(data, 0, count);
+				if (digest != null) {
+					digest.update(data, 0, count);
+				}
+				oldPos += count;
+				remaining -= count;
+			}
+
+			remaining = extraLength;
+			while (remaining > 0) {
+				int count = (int) Math.min(remaining, data.length);
+				in.readFully(data, 0, count);
+				out.write(data, 0, count);
+				sha.update(data, 0, count);
+				if (digest != null) {
+					digest.update(data, 0, count);
+				}
+				remaining -= count;
+			}
+
+			oldPos += seek;
+			newPos += diffLength + extraLength;
+		}
+		return newSize;
+	}
+
+	/**
+	 * Read a bsdiff offset: a 64-bit little-endian magnitude whose top bit is
+	 * the sign.
+	 */
+	private static long readOffset(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			value |= (long) b << (8 * i);
+		}
+		if ((value & Long.MIN_VALUE) != 0) {
+			value = -(value & Long.MAX_VALUE);
+		}
+		return value;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// nothing can really be done about it
+			}
+		}
+	}
+}
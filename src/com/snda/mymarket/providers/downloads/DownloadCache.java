@@ -0,0 +1,245 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Finds completed downloads of some content and gives new downloads of it a
+ * local copy, through the {@link Downloads.Cache} index.
+ */
+class DownloadCache {
+	private static final String[] PROJECTION = new String[] {
+			Downloads.Cache.COLUMN_DATA, Downloads.Cache.COLUMN_TOTAL_BYTES,
+			Downloads.Cache.COLUMN_ETAG, Downloads.Cache.COLUMN_MIME_TYPE,
+			Downloads.Cache.COLUMN_SHA256, };
+
+	/**
+	 * A completed download whose file is still there.
+	 */
+	public static class Entry {
+		public String mFilename;
+		public long mTotalBytes;
+		public String mETag;
+		public String mMimeType;
+		public String mSha256;
+	}
+
+	private final ContentResolver mResolver;
+	private final int mBufferSize;
+
+	DownloadCache(Context context, int bufferSize) {
+		mResolver = context.getContentResolver();
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * Find a download of a URI completed after some time.
+	 */
+	public Entry findRecent(String uri, long since) {
+		return find(Downloads.Cache.COLUMN_URI + " = ? AND "
+				+ Downloads.Cache.COLUMN_CREATED_AT + " >= ?", new String[] {
+				normalizeUri(uri), Long.toString(since) });
+	}
+
+	/**
+	 * Find a download of a URI that got the same version of its content.
+	 */
+	public Entry findByContent(String uri, String eTag, long totalBytes) {
+		return find(Downloads.Cache.COLUMN_URI + " = ? AND "
+				+ Downloads.Cache.COLUMN_ETAG + " = ? AND "
+				+ Downloads.Cache.COLUMN_TOTAL_BYTES + " = ?", new String[] {
+				normalizeUri(uri), eTag, Long.toString(totalBytes) });
+	}
+
+	/**
+	 * Find a download of any URI with the given content.
+	 */
+	public Entry findBySha256(String sha256) {
+		return find(Downloads.Cache.COLUMN_SHA256 + " = ?",
+				new String[] { sha256.toLowerCase(Locale.ENGLISH) });
+	}
+
+	/**
+	 * Return the most recent entry matching a selection, dropping the entries
+	 * whose file has been deleted or changed on the way.
+	 */
+	private Entry find(String selection, String[] selectionArgs) {
+		Cursor cursor = mResolver.query(Downloads.Cache.CONTENT_URI,
+				PROJECTION, selection, selectionArgs, null);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				Entry entry = new Entry();
+				entry.mFilename = cursor.getString(0);
+				entry.mTotalBytes = cursor.getLong(1);
+				entry.mETag = cursor.getString(2);
+				entry.mMimeType = cursor.getString(3);
+				entry.mSha256 = cursor.getString(4);
+				File file = new File(entry.mFilename);
+				if (file.isFile() && file.length() == entry.mTotalBytes) {
+					return entry;
+				}
+				mResolver.delete(Downloads.Cache.CONTENT_URI,
+						Downloads.Cache.COLUMN_DATA + " = ?",
+						new String[] { entry.mFilename });
+			}
+		} finally {
+			cursor.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Add a completed download to the index.
+	 *
+	 * @param sha256
+	 *            the digest of the file if known, null otherwise
+	 */
+	public void record(long downloadId, String uri, String eTag,
+			String sha256, String filename, String mimeType, long now) {
+		ContentValues values = new ContentValues();
+		values.put(Downloads.Cache.COLUMN_DOWNLOAD_ID, downloadId);
+		values.put(Downloads.Cache.COLUMN_URI, normalizeUri(uri));
+		values.put(Downloads.Cache.COLUMN_ETAG, eTag);
+		values.put(Downloads.Cache.COLUMN_TOTAL_BYTES,
+				new File(filename).length());
+		values.put(Downloads.Cache.COLUMN_SHA256, sha256 != null ? sha256
+				.toLowerCase(Locale.ENGLISH) : null);
+		values.put(Downloads.Cache.COLUMN_DATA, filename);
+		values.put(Downloads.Cache.COLUMN_MIME_TYPE, mimeType);
+		values.put(Downloads.Cache.COLUMN_CREATED_AT, now);
+		mResolver.insert(Downloads.Cache.CONTENT_URI, values);
+	}
+
+	/**
+	 * Give a destination the content of a cache entry, as a hard link to its
+	 * file where the filesystem allows it (API 21 and up), otherwise as a copy.
+	 *
+	 * @return whether the destination has the content; it doesn't exist
+	 *         otherwise
+	 */
+	public boolean copy(Entry entry, File destination) {
+		if (destination.getAbsolutePath().equals(
+				new File(entry.mFilename).getAbsolutePath())) {
+			return true;
+		}
+		destination.delete();
+		if (link(entry.mFilename, destination.getPath())) {
+			return true;
+		}
+		byte[] data = new byte[mBufferSize];
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(entry.mFilename);
+			out = new FileOutputStream(destination);
+			long copied = 0;
+			int count;
+			while ((count = in.read(data)) != -1) {
+				out.write(data, 0, count);
+				copied += count;
+			}
+			out.close();
+			out = null;
+			if (copied == entry.mTotalBytes) {
+				return true;
+			}
+			Log.w(Constants.TAG, entry.mFilename + " changed while copied");
+		} catch (IOException ex) {
+			Log.w(Constants.TAG, "couldn't copy " + entry.mFilename + ": " + ex);
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+		destination.delete();
+		return false;
+	}
+
+	private static boolean link(String from, String to) {
+		if (Build.VERSION.SDK_INT < 21) {
+			return false;
+		}
+		try {
+			Class<?> os = Class.forName("android.system.Os");
+			Method link = os.getMethod("link", String.class, String.class);
+			link.invoke(null, from, to);
+			return true;
+		} catch (InvocationTargetException ex) {
+			// across filesystems, or on one without hard links
+			if (Constants.LOGV) {
+				Log.v(Constants.TAG, "couldn't link " + from + ": "
+						+ ex.getCause());
+			}
+		} catch (Exception ex) {
+			Log.w(Constants.TAG, "link unavailable: " + ex);
+		}
+		return false;
+	}
+
+	/**
+	 * Normalize a URI so that the spellings of one resource share their cache
+	 * entries: lower-case scheme and host, no default port, no fragment.
+	 */
+	static String normalizeUri(String uri) {
+		try {
+			URI parsed = new URI(uri);
+			String scheme = parsed.getScheme();
+			String host = parsed.getHost();
+			if (scheme == null || host == null) {
+				return uri;
+			}
+			scheme = scheme.toLowerCase(Locale.ENGLISH);
+			int port = parsed.getPort();
+			if ((port == 80 && scheme.equals("http"))
+					|| (port == 443 && scheme.equals("https"))) {
+				port = -1;
+			}
+			StringBuilder builder = new StringBuilder();
+			builder.append(scheme).append("://");
+			if (parsed.getRawUserInfo() != null) {
+				builder.append(parsed.getRawUserInfo()).append('@');
+			}
+			builder.append(host.toLowerCase(Locale.ENGLISH));
+			if (port != -1) {
+				builder.append(':').append(port);
+			}
+			String path = parsed.getRawPath();
+			builder.append(path == null || path.length() == 0 ? "/" : path);
+			if (parsed.getRawQuery() != null) {
+				builder.append('?').append(parsed.getRawQuery());
+			}
+			return builder.toString();
+		} catch (URISyntaxException ex) {
+			return uri;
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// nothing can really be done about it
+			}
+		}
+	}
+}
@@ -19,7 +19,9 @@ package com.snda.mymarket.providers.downloads;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import android.content.ContentResolver;
@@ -47,6 +49,8 @@ public class DownloadInfo {
         private Cursor mCursor;
         private CharArrayBuffer mOldChars;
         private CharArrayBuffer mNewChars;
+        /** The request headers read ahead by download id, null if not read ahead */
+        private Map<Long, List<Pair<String, String>>> mHeaders;
 
         public Reader(ContentResolver resolver, Cursor cursor) {
             mResolver = resolver;
@@ -56,10 +60,59 @@ public class DownloadInfo {
         public DownloadInfo newDownloadInfo(Context context, SystemFacade systemFacade) {
             DownloadInfo info = new DownloadInfo(context, systemFacade);
             updateFromDatabase(info);
-            readRequestHeaders(info);
+            if (!Downloads.isStatusCompleted(info.mStatus)) {
+                if (mHeaders != null) {
+                    List<Pair<String, String>> headers = mHeaders.remove(info.mId);
+                    info.setRequestHeaders(headers != null ? headers
+                            : new ArrayList<Pair<String, String>>());
+                } else {
+                    info.setRequestHeaders(info.queryRequestHeaders(mResolver));
+                }
+            }
+            // the headers of a completed download are read if it ever runs again
             return info;
         }
 
+        /**
+         * Read the request headers of all the downloads the cursor selects in
+         * a single query, rather than one query per download as they're
+         * created. Worth it when most rows are new to the caller, as at start.
+         * Completed downloads are left out, like in {@link #newDownloadInfo}.
+         */
+        public void readAheadRequestHeaders(String selection, String[] selectionArgs) {
+            mHeaders = new HashMap<Long, List<Pair<String, String>>>();
+            String where = "NOT ((" + Downloads.COLUMN_STATUS + " >= 200 AND "
+                    + Downloads.COLUMN_STATUS + " < 300) OR (" + Downloads.COLUMN_STATUS
+                    + " >= 400 AND " + Downloads.COLUMN_STATUS + " < 600))";
+            if (selection != null) {
+                where = "(" + selection + ") AND " + where;
+            }
+            Cursor cursor = mResolver.query(Downloads.RequestHeaders.ALL_CONTENT_URI,
+                    null, where, selectionArgs, null);
+            try {
+                int idIndex =
+                        cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID);
+                int headerIndex =
+                        cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_HEADER);
+                int valueIndex =
+                        cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_VALUE);
+                List<Pair<String, String>> headers = null;
+                long lastId = -1;
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(idIndex);
+                    if (headers == null || id != lastId) {
+                        headers = new ArrayList<Pair<String, String>>();
+                        mHeaders.put(id, headers);
+                        lastId = id;
+                    }
+                    headers.add(Pair.create(cursor.getString(headerIndex),
+                            cursor.getString(valueIndex)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
         public void updateFromDatabase(DownloadInfo info) {
             info.mId = getLong(Downloads._ID);
             info.mUri = getString(info.mUri, Downloads.COLUMN_URI);
@@ -94,41 +147,24 @@ public class DownloadInfo {
             info.mDescription = getString(info.mDescription, Downloads.COLUMN_DESCRIPTION);
             info.mBypassRecommendedSizeLimit =
                     getInt(Downloads.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+            info.mMaxBytesPerSecond = getLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND);
+            info.mAllowCompression = getInt(Downloads.COLUMN_ALLOW_COMPRESSION) != 0;
+            info.mContentEncoding = getString(info.mContentEncoding, Constants.CONTENT_ENCODING);
+            info.mDeltaBase = getString(info.mDeltaBase, Downloads.COLUMN_DELTA_BASE);
+            info.mDeltaUri = getString(info.mDeltaUri, Downloads.COLUMN_DELTA_URI);
+            info.mDeltaSha256 = getString(info.mDeltaSha256, Downloads.COLUMN_DELTA_SHA256);
+            info.mDigestAlgorithm = getString(info.mDigestAlgorithm, Downloads.COLUMN_DIGEST_ALGORITHM);
+            info.mExpectedDigest = getString(info.mExpectedDigest, Downloads.COLUMN_EXPECTED_DIGEST);
+            info.mExpectedSize = getLong(Downloads.COLUMN_EXPECTED_SIZE);
+            info.mDigestState = getString(info.mDigestState, Constants.DIGEST_STATE);
+            info.mMirrors = getString(info.mMirrors, Downloads.COLUMN_MIRRORS);
+            info.mMetalink = getInt(Downloads.COLUMN_METALINK) != 0;
 
             synchronized (this) {
                 info.mControl = getInt(Downloads.COLUMN_CONTROL);
             }
         }
 
-        private void readRequestHeaders(DownloadInfo info) {
-            info.mRequestHeaders.clear();
-            Uri headerUri = Uri.withAppendedPath(
-                    info.getAllDownloadsUri(), Downloads.RequestHeaders.URI_SEGMENT);
-            Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-            try {
-                int headerIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_HEADER);
-                int valueIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_VALUE);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-                }
-            } finally {
-                cursor.close();
-            }
-
-            if (info.mCookies != null) {
-                addHeader(info, "Cookie", info.mCookies);
-            }
-            if (info.mReferer != null) {
-                addHeader(info, "Referer", info.mReferer);
-            }
-        }
-
-        private void addHeader(DownloadInfo info, String header, String value) {
-            info.mRequestHeaders.add(Pair.create(header, value));
-        }
-
         /**
          * Returns a String that holds the current value of the column, optimizing for the case
          * where the value hasn't changed.
@@ -241,10 +277,27 @@ public class DownloadInfo {
     public String mTitle;
     public String mDescription;
     public int mBypassRecommendedSizeLimit;
+    /** Read by running tasks on every transfer, so that a new limit applies right away */
+    public volatile long mMaxBytesPerSecond;
+    public boolean mAllowCompression;
+    public String mContentEncoding;
+    public String mDeltaBase;
+    /** The patch to download instead of mUri, null once it has failed */
+    public String mDeltaUri;
+    public String mDeltaSha256;
+    public String mDigestAlgorithm;
+    public String mExpectedDigest;
+    public long mExpectedSize;
+    public String mDigestState;
+    /** Other URIs of the file, one per line, null if it has none */
+    public String mMirrors;
+    /** Whether mUri is a Metalink document still to be read */
+    public boolean mMetalink;
 
     public int mFuzz;
 
-    private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
+    /** The request headers, null until read */
+    private List<Pair<String, String>> mRequestHeaders;
     private SystemFacade mSystemFacade;
     private Future<?> mSubmittedTask;
     private Context mContext;
@@ -255,10 +308,75 @@ public class DownloadInfo {
         mFuzz = Helpers.sRandom.nextInt(1001);
     }
 
-    public Collection<Pair<String, String>> getHeaders() {
+    public synchronized Collection<Pair<String, String>> getHeaders() {
+        if (mRequestHeaders == null) {
+            setRequestHeaders(queryRequestHeaders(mContext.getContentResolver()));
+        }
         return Collections.unmodifiableList(mRequestHeaders);
     }
 
+    /**
+     * Query the headers the request of this download was given.
+     */
+    private List<Pair<String, String>> queryRequestHeaders(ContentResolver resolver) {
+        List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+        Uri headerUri = Uri.withAppendedPath(
+                getAllDownloadsUri(), Downloads.RequestHeaders.URI_SEGMENT);
+        Cursor cursor = resolver.query(headerUri, null, null, null, null);
+        try {
+            int headerIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_HEADER);
+            int valueIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_VALUE);
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                headers.add(Pair.create(cursor.getString(headerIndex),
+                        cursor.getString(valueIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return headers;
+    }
+
+    /**
+     * Set the request headers from those given to the request, adding the
+     * cookies and referer of the download.
+     */
+    private synchronized void setRequestHeaders(List<Pair<String, String>> headers) {
+        if (mCookies != null) {
+            headers.add(Pair.create("Cookie", mCookies));
+        }
+        if (mReferer != null) {
+            headers.add(Pair.create("Referer", mReferer));
+        }
+        mRequestHeaders = headers;
+    }
+
+    /**
+     * Returns the host of mUri, null if it has none.
+     */
+    public String getHost() {
+        return mUri != null ? Uri.parse(mUri).getHost() : null;
+    }
+
+    /**
+     * Returns the URIs the file can be downloaded from, mUri first, or just
+     * mUri if it has no mirrors.
+     */
+    public List<String> getSources() {
+        List<String> sources = new ArrayList<String>();
+        sources.add(mUri);
+        if (mMirrors != null) {
+            for (String mirror : mMirrors.split("\n")) {
+                mirror = mirror.trim();
+                if (mirror.length() > 0 && !sources.contains(mirror)) {
+                    sources.add(mirror);
+                }
+            }
+        }
+        return sources;
+    }
+
     public void sendIntentIfRequested( int status ) {
         if (mPackage == null) {
             return;
@@ -322,9 +440,12 @@ public class DownloadInfo {
 		case Downloads.STATUS_QUEUED_FOR_WIFI:
 			return checkCanUseNetwork() == NETWORK_OK;
 		case Downloads.STATUS_WAITING_TO_RETRY:
-			// download was waiting for a delayed restart
+			// download was waiting for a delayed restart, which is over as
+			// soon as its host has proven healthy again
 			final long now = mSystemFacade.currentTimeMillis();
-			return restartTime(now) <= now;
+			return restartTime(now) <= now
+					|| HostHealthRegistry.getInstance().hasRecoveredSince(
+							getHost(), mLastMod);
 		case Downloads.STATUS_DEVICE_NOT_FOUND_ERROR:
 			// is the media mounted?
 			return Environment.getExternalStorageState().equals(
@@ -462,6 +583,11 @@ public class DownloadInfo {
 			final boolean isActive = mSubmittedTask != null
 					&& !mSubmittedTask.isDone();
 			if (isReady && !isActive) {
+				// a failing host gets a single download as a probe
+				if (!HostHealthRegistry.getInstance().allowStart(getHost(),
+						mId, mSystemFacade.currentTimeMillis())) {
+					return false;
+				}
 				if (mStatus != Downloads.STATUS_RUNNING) {
 					mStatus = Downloads.STATUS_RUNNING;
 					ContentValues values = new ContentValues();
@@ -469,8 +595,14 @@ public class DownloadInfo {
 					mContext.getContentResolver().update(getAllDownloadsUri(),
 							values, null, null);
 				}
-				DownloadTask task = new DownloadTask(mContext, mSystemFacade, this, notifer);
-				mSubmittedTask = mSystemFacade.runOnThreadPool(task);
+				if (MultiplexedEngine.canHandle(mContext,
+						mSystemFacade, this)) {
+					mSubmittedTask = MultiplexedEngine.getInstance(mContext)
+							.submit(this, mSystemFacade, notifer);
+				} else {
+					DownloadTask task = new DownloadTask(mContext, mSystemFacade, this, notifer);
+					mSubmittedTask = mSystemFacade.runOnThreadPool(task);
+				}
 			}
 			return isReady;
     	}
@@ -516,6 +648,14 @@ public class DownloadInfo {
         return ContentUris.withAppendedId(Downloads.ALL_DOWNLOADS_CONTENT_URI, mId);
     }
 
+    public Uri getSegmentsUri() {
+        return Uri.withAppendedPath(getAllDownloadsUri(), Downloads.Segments.URI_SEGMENT);
+    }
+
+    public Uri getAttemptsUri() {
+        return Uri.withAppendedPath(getAllDownloadsUri(), Downloads.Attempts.URI_SEGMENT);
+    }
+
 
     public void logVerboseInfo() {
         Log.v(Constants.TAG, "Service adding new entry");
@@ -554,10 +694,11 @@ public class DownloadInfo {
         if (Downloads.isStatusCompleted(mStatus)) {
             return -1;
         }
+        long hostStart = HostHealthRegistry.getInstance().nextStartTime(getHost(), now);
         if (mStatus != Downloads.STATUS_WAITING_TO_RETRY) {
-            return 0;
+            return hostStart - now;
         }
-        long when = restartTime(now);
+        long when = Math.max(restartTime(now), hostStart);
         if (when <= now) {
             return 0;
         }
@@ -52,13 +52,32 @@ public class DownloadNotifier {
 	private final Context mContext;
 	private final NotificationManager mNotifManager;
 	/**
-	 * Currently active notifications, mapped from clustering tag to timestamp
-	 * when first shown.
+	 * What a notification currently shows, to post it again only when that
+	 * changes.
+	 */
+	private static class Shown {
+		/** Timestamp when first shown. */
+		public final long mFirstShown;
+		/** Everything shown but the progress. */
+		public String mContent;
+		/** The progress shown. */
+		public String mProgress;
+		/** {@link SystemClock#elapsedRealtime()} of the last post. */
+		public long mPostedAt;
+
+		public Shown(long firstShown) {
+			mFirstShown = firstShown;
+		}
+	}
+
+	/**
+	 * Currently active notifications, mapped from clustering tag to what they
+	 * show.
 	 * 
 	 * @see #buildNotificationTag(DownloadInfo)
 	 */
 	// @GuardedBy("mActiveNotifs")
-	private final HashMap<String, Long> mActiveNotifs = new HashMap<String, Long>();
+	private final HashMap<String, Shown> mActiveNotifs = new HashMap<String, Shown>();
 	/**
 	 * Current speed of active downloads, mapped from {@link DownloadInfo#mId}
 	 * to speed in bytes per second.
@@ -79,7 +98,10 @@ public class DownloadNotifier {
 	}
 
 	public void cancelAll() {
-		mNotifManager.cancelAll();
+		synchronized (mActiveNotifs) {
+			mActiveNotifs.clear();
+			mNotifManager.cancelAll();
+		}
 	}
 
 	/**
@@ -124,20 +146,63 @@ public class DownloadNotifier {
 			}
 		}
 		// Build notification for each cluster
+		final long now = SystemClock.elapsedRealtime();
 		for (String tag : clustered.keySet()) {
 			final int type = getNotificationTagType(tag);
 			final Collection<DownloadInfo> cluster = clustered.get(tag);
-			final NotificationCompat.Builder builder = new NotificationCompat.Builder(
-					mContext);
 			// Use time when cluster was first shown to avoid shuffling
-			final long firstShown;
-			if (mActiveNotifs.containsKey(tag)) {
-				firstShown = mActiveNotifs.get(tag);
-			} else {
-				firstShown = System.currentTimeMillis();
-				mActiveNotifs.put(tag, firstShown);
+			Shown shown = mActiveNotifs.get(tag);
+			if (shown == null) {
+				shown = new Shown(System.currentTimeMillis());
+				mActiveNotifs.put(tag, shown);
+			}
+			// Calculate progress
+			String remainingText = null;
+			String percentText = null;
+			int percent = -1;
+			if (type == TYPE_ACTIVE) {
+				long current = 0;
+				long total = 0;
+				long speed = 0;
+				synchronized (mDownloadSpeed) {
+					for (DownloadInfo info : cluster) {
+						if (info.mTotalBytes != -1) {
+							current += info.mCurrentBytes;
+							total += info.mTotalBytes;
+							speed += mDownloadSpeed.get(info.mId) == null ? 0:mDownloadSpeed.get(info.mId) ;
+						}
+					}
+				}
+				
+				if (total > 0) {
+					percent = (int) ((current * 100) / total);
+					percentText = res.getString(R.string.download_percent,
+							percent);
+					if (speed > 0) {
+						final long remainingMillis = (total - current) / speed;
+						remainingText = res.getString(
+								R.string.download_remaining,
+								DateUtils.formatDuration(remainingMillis));
+					}
+				}
 			}
-			builder.setWhen(firstShown);
+			// Post only what changed, and progress no more often than
+			// MIN_NOTIFICATION_INTERVAL: each post is a call to the system
+			final String content = buildContent(cluster);
+			final String progress = percent + "|" + remainingText;
+			if (content.equals(shown.mContent)) {
+				if (progress.equals(shown.mProgress)
+						|| now - shown.mPostedAt < Constants.MIN_NOTIFICATION_INTERVAL) {
+					continue;
+				}
+			}
+			shown.mContent = content;
+			shown.mProgress = progress;
+			shown.mPostedAt = now;
+
+			final NotificationCompat.Builder builder = new NotificationCompat.Builder(
+					mContext);
+			builder.setWhen(shown.mFirstShown);
 			// Show relevant icon
 			if (type == TYPE_ACTIVE) {
 				builder.setSmallIcon(android.R.drawable.stat_sys_download);
@@ -187,33 +252,9 @@ public class DownloadNotifier {
 				builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0,
 						hideIntent, 0));
 			}
-			// Calculate and show progress
-			String remainingText = null;
-			String percentText = null;
+			// Show progress
 			if (type == TYPE_ACTIVE) {
-				long current = 0;
-				long total = 0;
-				long speed = 0;
-				synchronized (mDownloadSpeed) {
-					for (DownloadInfo info : cluster) {
-						if (info.mTotalBytes != -1) {
-							current += info.mCurrentBytes;
-							total += info.mTotalBytes;
-							speed += mDownloadSpeed.get(info.mId) == null ? 0:mDownloadSpeed.get(info.mId) ;
-						}
-					}
-				}
-				
-				if (total > 0) {
-					final int percent = (int) ((current * 100) / total);
-					percentText = res.getString(R.string.download_percent,
-							percent);
-					if (speed > 0) {
-						final long remainingMillis = (total - current) / speed;
-						remainingText = res.getString(
-								R.string.download_remaining,
-								DateUtils.formatDuration(remainingMillis));
-					}
+				if (percent >= 0) {
 					builder.setProgress(100, percent, false);
 				} else {
 					builder.setProgress(100, 0, true);
@@ -282,6 +323,21 @@ public class DownloadNotifier {
 		}
 	}
 
+	/**
+	 * Describe what the notification of a cluster shows besides its progress:
+	 * which downloads, under which titles, in which state.
+	 */
+	private static String buildContent(Collection<DownloadInfo> cluster) {
+		final StringBuilder content = new StringBuilder();
+		for (DownloadInfo info : cluster) {
+			content.append(info.mId).append('|').append(info.mStatus)
+					.append('|').append(info.mDestination).append('|')
+					.append(info.mTitle).append('|').append(info.mDescription)
+					.append('\n');
+		}
+		return content.toString();
+	}
+
 	private static CharSequence getDownloadTitle(Resources res,
 			DownloadInfo info) {
 		if (!TextUtils.isEmpty(info.mTitle)) {
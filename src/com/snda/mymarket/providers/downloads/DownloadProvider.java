@@ -25,21 +25,27 @@ import java.util.List;
 import java.util.Map;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.CrossProcessCursor;
 import android.database.Cursor;
 import android.database.CursorWindow;
 import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
@@ -58,10 +64,10 @@ public final class DownloadProvider extends ContentProvider {
 	/** Database filename */
 	private static final String DB_NAME = DB_PATH + "downloads.db";
 	/** Current database version */
-	private static final int DB_VERSION = 107;
+	private static final int DB_VERSION = 117;
 			 
 	/** Name of table in the database */
-	private static final String DB_TABLE = "downloads";
+	static final String DB_TABLE = "downloads";
 
 	/** MIME type for the entire download list */
 	private static final String DOWNLOAD_LIST_TYPE = "vnd.android.cursor.dir/download";
@@ -87,6 +93,14 @@ public final class DownloadProvider extends ContentProvider {
 	private static final int ALL_DOWNLOADS_ID = 4;
 	/** URI matcher constant for the URI of a download's request headers */
 	private static final int REQUEST_HEADERS_URI = 5;
+	/** URI matcher constant for the URI of a download's segments */
+	private static final int SEGMENTS_URI = 6;
+	/** URI matcher constant for the URI of a download's attempts */
+	private static final int ATTEMPTS_URI = 7;
+	/** URI matcher constant for the URI of the index of completed downloads */
+	private static final int CACHE_URI = 8;
+	/** URI matcher constant for the URI of the request headers of many downloads */
+	private static final int ALL_REQUEST_HEADERS_URI = 9;
 	static {
 		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads", MY_DOWNLOADS);
 		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads/#",
@@ -98,6 +112,17 @@ public final class DownloadProvider extends ContentProvider {
 				+ Downloads.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);
 		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/#/"
 				+ Downloads.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads/#/"
+				+ Downloads.Segments.URI_SEGMENT, SEGMENTS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/#/"
+				+ Downloads.Segments.URI_SEGMENT, SEGMENTS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads/#/"
+				+ Downloads.Attempts.URI_SEGMENT, ATTEMPTS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/#/"
+				+ Downloads.Attempts.URI_SEGMENT, ATTEMPTS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "download_cache", CACHE_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/"
+				+ Downloads.RequestHeaders.URI_SEGMENT, ALL_REQUEST_HEADERS_URI);
 	}
 
 	/** Different base URIs that could be used to access an individual download */
@@ -117,7 +142,18 @@ public final class DownloadProvider extends ContentProvider {
 			Downloads.COLUMN_FILE_NAME_HINT, 
 			Downloads.COLUMN_MEDIAPROVIDER_URI,
 			Downloads.COLUMN_DELETED,
-			Downloads.COLUMN_SPEED,};
+			Downloads.COLUMN_SPEED,
+			Downloads.COLUMN_ROW_VERSION,
+			Downloads.COLUMN_MAX_BYTES_PER_SECOND,
+			Downloads.COLUMN_ALLOW_COMPRESSION,
+			Downloads.COLUMN_DELTA_BASE,
+			Downloads.COLUMN_DELTA_URI,
+			Downloads.COLUMN_DELTA_SHA256,
+			Downloads.COLUMN_DIGEST_ALGORITHM,
+			Downloads.COLUMN_EXPECTED_DIGEST,
+			Downloads.COLUMN_EXPECTED_SIZE,
+			Downloads.COLUMN_MIRRORS,
+			Downloads.COLUMN_METALINK,};
 
 	private static HashSet<String> sAppReadableColumnsSet;
 	static {
@@ -127,11 +163,48 @@ public final class DownloadProvider extends ContentProvider {
 		}
 	}
 
+	/** Columns that may appear in a selection on a download's segments */
+	private static HashSet<String> sSegmentColumnsSet;
+	static {
+		sSegmentColumnsSet = new HashSet<String>();
+		sSegmentColumnsSet.add(Downloads.Segments.COLUMN_SEGMENT);
+		sSegmentColumnsSet.add(Downloads.Segments.COLUMN_START_BYTE);
+		sSegmentColumnsSet.add(Downloads.Segments.COLUMN_END_BYTE);
+		sSegmentColumnsSet.add(Downloads.Segments.COLUMN_CURRENT_BYTES);
+	}
+
+	/** Columns that may appear in a selection on a download's attempts */
+	private static HashSet<String> sAttemptColumnsSet;
+	static {
+		sAttemptColumnsSet = new HashSet<String>();
+		sAttemptColumnsSet.add(Downloads.Attempts.COLUMN_STARTED_AT);
+		sAttemptColumnsSet.add(Downloads.Attempts.COLUMN_STATUS);
+		sAttemptColumnsSet.add(Downloads.Attempts.COLUMN_NETWORK_TYPE);
+	}
+
+	/** Columns that may appear in a selection on the download cache */
+	private static HashSet<String> sCacheColumnsSet;
+	static {
+		sCacheColumnsSet = new HashSet<String>();
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_DOWNLOAD_ID);
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_URI);
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_ETAG);
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_TOTAL_BYTES);
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_SHA256);
+		sCacheColumnsSet.add(Downloads.Cache.COLUMN_CREATED_AT);
+	}
+
 	/** The database that lies underneath this content provider */
 	private SQLiteOpenHelper mOpenHelper = null;
 
 	SystemFacade mSystemFacade;
 
+	/**
+	 * Set while the calling thread applies a batch, whose changes are
+	 * notified once at the end rather than by each operation.
+	 */
+	private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
 	/**
 	 * This class encapsulates a SQL where clause and its parameters. It makes
 	 * it possible for shared methods (like
@@ -171,23 +244,55 @@ public final class DownloadProvider extends ContentProvider {
 	}
 	
 	/**
-	 * use static instance
+	 * use static instance. Reads and writes share it: with write-ahead
+	 * logging its queries run on a pool of read connections while its
+	 * writes go through the one writer connection.
 	 */
-	private static SQLiteDatabase sWritableDatabase;
-	private static SQLiteDatabase sReadableDatabase;
+	private static volatile SQLiteDatabase sDatabase;
 	
-	private synchronized SQLiteDatabase getWritableDatabase(){
-		if(sWritableDatabase == null){
-			sWritableDatabase = mOpenHelper.getWritableDatabase();
+	private SQLiteDatabase getWritableDatabase(){
+		SQLiteDatabase db = sDatabase;
+		if(db == null){
+			synchronized (DownloadProvider.class) {
+				if(sDatabase == null){
+					sDatabase = mOpenHelper.getWritableDatabase();
+				}
+				db = sDatabase;
+			}
 		}
-		return sWritableDatabase;
+		return db;
 	}
 	
-	private synchronized SQLiteDatabase getReadableDatabase(){
-		if(sReadableDatabase == null){
-			sReadableDatabase = mOpenHelper.getReadableDatabase();
+	private SQLiteDatabase getReadableDatabase(){
+		try {
+			return getWritableDatabase();
+		} catch (SQLiteException ex) {
+			// e.g. the disk is full; queries can still be answered
+			Log.w(Constants.TAG, "database not writable: " + ex);
+			return mOpenHelper.getReadableDatabase();
 		}
-		return sReadableDatabase;
+	}
+
+	/**
+	 * The row version given to the last written download, -1 until it has
+	 * been read from the database.
+	 */
+	private static long sRowVersion = -1;
+
+	/**
+	 * Stamp the values of a download row about to be written with the next row
+	 * version. Must be called inside the transaction writing the row: SQLite
+	 * runs one write transaction at a time, so versions are committed in the
+	 * order they are handed out and a reader never skips one.
+	 */
+	private static synchronized void stampRowVersion(SQLiteDatabase db,
+			ContentValues values) {
+		if (sRowVersion < 0) {
+			sRowVersion = DatabaseUtils.longForQuery(db, "SELECT MAX("
+					+ Downloads.COLUMN_ROW_VERSION + ") FROM " + DB_TABLE,
+					null);
+		}
+		values.put(Downloads.COLUMN_ROW_VERSION, ++sRowVersion);
 	}
 
 	/**
@@ -196,9 +301,85 @@ public final class DownloadProvider extends ContentProvider {
 	 * when a new version of the provider needs an updated version of the
 	 * database.
 	 */
-	private final class DatabaseHelper extends SQLiteOpenHelper {
+	static final class DatabaseHelper extends SQLiteOpenHelper {
+		/**
+		 * The indexes the queries of the provider, DownloadManager.Query and
+		 * DownloadService rely on, as table and column.
+		 */
+		static final String[][] QUERY_INDEXES = {
+				{ Downloads.RequestHeaders.HEADERS_DB_TABLE,
+						Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID },
+				{ Downloads.Segments.SEGMENTS_DB_TABLE,
+						Downloads.Segments.COLUMN_DOWNLOAD_ID },
+				{ Downloads.Cache.CACHE_DB_TABLE,
+						Downloads.Cache.COLUMN_DOWNLOAD_ID },
+				{ DB_TABLE, Downloads.COLUMN_STATUS },
+				{ DB_TABLE, Downloads.COLUMN_LAST_MODIFICATION },
+				{ DB_TABLE, Downloads.COLUMN_TOTAL_BYTES },
+				{ DB_TABLE, Constants.UID },
+				{ DB_TABLE, Downloads.COLUMN_OTHER_UID } };
+
 		public DatabaseHelper(final Context context) {
-			super(context, DB_NAME, null, DB_VERSION);
+			this(context, DB_NAME);
+		}
+
+		/**
+		 * Open a database of the provider's schema under another name.
+		 */
+		DatabaseHelper(final Context context, String name) {
+			super(context, name, null, DB_VERSION);
+		}
+
+		/**
+		 * Create the indexes of {@link #QUERY_INDEXES}.
+		 */
+		static void createQueryIndexes(SQLiteDatabase db) {
+			for (String[] index : QUERY_INDEXES) {
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + index[0] + "_"
+						+ index[1] + " ON " + index[0] + "(" + index[1] + ")");
+			}
+		}
+
+		/**
+		 * Drop the indexes of {@link #QUERY_INDEXES}, to compare query plans
+		 * without them.
+		 */
+		static void dropQueryIndexes(SQLiteDatabase db) {
+			for (String[] index : QUERY_INDEXES) {
+				db.execSQL("DROP INDEX IF EXISTS " + index[0] + "_" + index[1]);
+			}
+		}
+
+		/**
+		 * Switches the database to write-ahead logging where SQLite has it, so
+		 * that queries read from a pool of connections while the single
+		 * writer commits, instead of waiting for each progress update.
+		 */
+		@Override
+		public void onOpen(final SQLiteDatabase db) {
+			if (Build.VERSION.SDK_INT < 11 || db.isReadOnly()
+					|| !db.enableWriteAheadLogging()) {
+				return;
+			}
+			// With the log, a commit only appends to it; syncing at every
+			// checkpoint rather than every commit can lose the last updates
+			// on power loss but never corrupts the database. Downloads write
+			// the same few rows over and over, so a longer log lets a
+			// checkpoint copy each page once for many commits.
+			execPragma(db, "synchronous=NORMAL");
+			execPragma(db, "wal_autocheckpoint="
+					+ Constants.WAL_AUTOCHECKPOINT_PAGES);
+			execPragma(db, "journal_size_limit=" + Constants.WAL_SIZE_LIMIT);
+		}
+
+		private void execPragma(SQLiteDatabase db, String pragma) {
+			// some pragmas return their value, which execSQL doesn't accept
+			Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+			try {
+				cursor.moveToFirst();
+			} finally {
+				cursor.close();
+			}
 		}
 
 		/**
@@ -307,6 +488,63 @@ public final class DownloadProvider extends ContentProvider {
 						"INTEGER NOT NULL DEFAULT 0");
 				break;
 
+			case 108:
+				createSegmentsTable(db);
+				break;
+
+			case 109:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_ROW_VERSION,
+						"INTEGER NOT NULL DEFAULT 0");
+				db.execSQL("CREATE INDEX " + DB_TABLE + "_"
+						+ Downloads.COLUMN_ROW_VERSION + " ON " + DB_TABLE
+						+ "(" + Downloads.COLUMN_ROW_VERSION + ")");
+				break;
+
+			case 110:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_MAX_BYTES_PER_SECOND,
+						"INTEGER NOT NULL DEFAULT 0");
+				break;
+
+			case 111:
+				createAttemptsTable(db);
+				break;
+
+			case 112:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_ALLOW_COMPRESSION,
+						"INTEGER NOT NULL DEFAULT 0");
+				addColumn(db, DB_TABLE, Constants.CONTENT_ENCODING, "TEXT");
+				break;
+
+			case 113:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_DELTA_BASE, "TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_DELTA_URI, "TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_DELTA_SHA256, "TEXT");
+				break;
+
+			case 114:
+				createCacheTable(db);
+				break;
+
+			case 115:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_DIGEST_ALGORITHM,
+						"TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_EXPECTED_DIGEST,
+						"TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_EXPECTED_SIZE,
+						"INTEGER NOT NULL DEFAULT -1");
+				addColumn(db, DB_TABLE, Constants.DIGEST_STATE, "TEXT");
+				break;
+
+			case 116:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_MIRRORS, "TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_METALINK,
+						"INTEGER NOT NULL DEFAULT 0");
+				break;
+
+			case 117:
+				createQueryIndexes(db);
+				break;
+
 			default:
 				throw new IllegalStateException("Don't know how to upgrade to "
 						+ version);
@@ -419,6 +657,79 @@ public final class DownloadProvider extends ContentProvider {
 					+ " TEXT NOT NULL," + Downloads.RequestHeaders.COLUMN_VALUE
 					+ " TEXT NOT NULL" + ");");
 		}
+
+		private void createSegmentsTable(SQLiteDatabase db) {
+			db.execSQL("DROP TABLE IF EXISTS "
+					+ Downloads.Segments.SEGMENTS_DB_TABLE);
+			db.execSQL("CREATE TABLE " + Downloads.Segments.SEGMENTS_DB_TABLE
+					+ "(" + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ Downloads.Segments.COLUMN_DOWNLOAD_ID
+					+ " INTEGER NOT NULL,"
+					+ Downloads.Segments.COLUMN_SEGMENT + " INTEGER NOT NULL,"
+					+ Downloads.Segments.COLUMN_START_BYTE
+					+ " INTEGER NOT NULL,"
+					+ Downloads.Segments.COLUMN_END_BYTE + " INTEGER NOT NULL,"
+					+ Downloads.Segments.COLUMN_CURRENT_BYTES
+					+ " INTEGER NOT NULL DEFAULT 0" + ");");
+		}
+
+		private void createAttemptsTable(SQLiteDatabase db) {
+			db.execSQL("DROP TABLE IF EXISTS "
+					+ Downloads.Attempts.ATTEMPTS_DB_TABLE);
+			db.execSQL("CREATE TABLE " + Downloads.Attempts.ATTEMPTS_DB_TABLE
+					+ "(" + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ Downloads.Attempts.COLUMN_DOWNLOAD_ID
+					+ " INTEGER NOT NULL,"
+					+ Downloads.Attempts.COLUMN_STARTED_AT
+					+ " INTEGER NOT NULL,"
+					+ Downloads.Attempts.COLUMN_STATUS + " INTEGER NOT NULL,"
+					+ Downloads.Attempts.COLUMN_NETWORK_TYPE
+					+ " INTEGER NOT NULL DEFAULT -1,"
+					+ Downloads.Attempts.COLUMN_BYTES
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_TOTAL_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_CONNECTIVITY_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_REQUEST_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_FIRST_BYTE_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_TRANSFER_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_SYNC_TIME
+					+ " INTEGER NOT NULL DEFAULT 0,"
+					+ Downloads.Attempts.COLUMN_DATABASE_TIME
+					+ " INTEGER NOT NULL DEFAULT 0" + ");");
+			db.execSQL("CREATE INDEX "
+					+ Downloads.Attempts.ATTEMPTS_DB_TABLE + "_"
+					+ Downloads.Attempts.COLUMN_DOWNLOAD_ID + " ON "
+					+ Downloads.Attempts.ATTEMPTS_DB_TABLE + "("
+					+ Downloads.Attempts.COLUMN_DOWNLOAD_ID + ")");
+		}
+
+		private void createCacheTable(SQLiteDatabase db) {
+			db.execSQL("DROP TABLE IF EXISTS " + Downloads.Cache.CACHE_DB_TABLE);
+			db.execSQL("CREATE TABLE " + Downloads.Cache.CACHE_DB_TABLE + "("
+					+ "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+					+ Downloads.Cache.COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL,"
+					+ Downloads.Cache.COLUMN_URI + " TEXT NOT NULL,"
+					+ Downloads.Cache.COLUMN_ETAG + " TEXT,"
+					+ Downloads.Cache.COLUMN_TOTAL_BYTES + " INTEGER NOT NULL,"
+					+ Downloads.Cache.COLUMN_SHA256 + " TEXT,"
+					+ Downloads.Cache.COLUMN_DATA + " TEXT NOT NULL,"
+					+ Downloads.Cache.COLUMN_MIME_TYPE + " TEXT,"
+					+ Downloads.Cache.COLUMN_CREATED_AT + " INTEGER NOT NULL"
+					+ ");");
+			db.execSQL("CREATE INDEX " + Downloads.Cache.CACHE_DB_TABLE + "_"
+					+ Downloads.Cache.COLUMN_URI + " ON "
+					+ Downloads.Cache.CACHE_DB_TABLE + "("
+					+ Downloads.Cache.COLUMN_URI + ")");
+			db.execSQL("CREATE INDEX " + Downloads.Cache.CACHE_DB_TABLE + "_"
+					+ Downloads.Cache.COLUMN_SHA256 + " ON "
+					+ Downloads.Cache.CACHE_DB_TABLE + "("
+					+ Downloads.Cache.COLUMN_SHA256 + ")");
+		}
 	}
 
 	/**
@@ -463,6 +774,16 @@ public final class DownloadProvider extends ContentProvider {
 	 */
 	@Override
 	public Uri insert(final Uri uri, final ContentValues values) {
+		if (sURIMatcher.match(uri) == SEGMENTS_URI) {
+			return insertSegment(getWritableDatabase(), uri, values);
+		}
+		if (sURIMatcher.match(uri) == ATTEMPTS_URI) {
+			return insertAttempt(getWritableDatabase(), uri, values);
+		}
+		if (sURIMatcher.match(uri) == CACHE_URI) {
+			return insertCacheEntry(getWritableDatabase(), uri, values);
+		}
+
 		checkInsertPermissions(values);
 //		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		SQLiteDatabase db = getWritableDatabase();
@@ -594,6 +915,27 @@ public final class DownloadProvider extends ContentProvider {
 					filteredValues);
 			copyBoolean(Downloads.COLUMN_ALLOW_ROAMING, values, filteredValues);
 		}
+		copyLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND, values, filteredValues);
+		copyBoolean(Downloads.COLUMN_ALLOW_COMPRESSION, values, filteredValues);
+		copyString(Downloads.COLUMN_DELTA_BASE, values, filteredValues);
+		copyString(Downloads.COLUMN_DELTA_URI, values, filteredValues);
+		copyString(Downloads.COLUMN_DELTA_SHA256, values, filteredValues);
+		String digestAlgorithm = values
+				.getAsString(Downloads.COLUMN_DIGEST_ALGORITHM);
+		if (digestAlgorithm != null) {
+			if (!StreamingDigest.isSupported(digestAlgorithm)
+					|| values.getAsString(Downloads.COLUMN_EXPECTED_DIGEST) == null) {
+				throw new IllegalArgumentException("unsupported digest: "
+						+ digestAlgorithm);
+			}
+			copyString(Downloads.COLUMN_DIGEST_ALGORITHM, values,
+					filteredValues);
+			copyString(Downloads.COLUMN_EXPECTED_DIGEST, values,
+					filteredValues);
+		}
+		copyLong(Downloads.COLUMN_EXPECTED_SIZE, values, filteredValues);
+		copyString(Downloads.COLUMN_MIRRORS, values, filteredValues);
+		copyBoolean(Downloads.COLUMN_METALINK, values, filteredValues);
 
 		if (Constants.LOGVV) {
 			Log.v(Constants.TAG, "initiating download with UID "
@@ -609,7 +951,15 @@ public final class DownloadProvider extends ContentProvider {
 		Context context = getContext();
 		context.startService(new Intent(context, DownloadService.class));
 
-		long rowID = db.insert(DB_TABLE, null, filteredValues);
+		long rowID;
+		db.beginTransaction();
+		try {
+			stampRowVersion(db, filteredValues);
+			rowID = db.insert(DB_TABLE, null, filteredValues);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 		if (rowID == -1) {
 			Log.d(Constants.TAG, "couldn't insert into downloads database");
 			return null;
@@ -692,6 +1042,15 @@ public final class DownloadProvider extends ContentProvider {
 					Request.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION);
 		}
 
+		// the base of a patch is opened with the rights of the download
+		// manager, so only callers trusted with all downloads may name one
+		if (values.containsKey(Downloads.COLUMN_DELTA_BASE)
+				|| values.containsKey(Downloads.COLUMN_DELTA_URI)
+				|| values.containsKey(Downloads.COLUMN_DELTA_SHA256)) {
+			throw new SecurityException(Downloads.PERMISSION_ACCESS
+					+ " permission is required to download patches");
+		}
+
 		// remove the rest of the columns that are allowed (with any value)
 		values.remove(Downloads.COLUMN_URI);
 		values.remove(Downloads.COLUMN_TITLE);
@@ -706,6 +1065,13 @@ public final class DownloadProvider extends ContentProvider {
 		values.remove(Downloads.COLUMN_ALLOW_ROAMING);
 		values.remove(Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
 		values.remove(Downloads.COLUMN_MEDIA_SCANNED);
+		values.remove(Downloads.COLUMN_MAX_BYTES_PER_SECOND);
+		values.remove(Downloads.COLUMN_ALLOW_COMPRESSION);
+		values.remove(Downloads.COLUMN_DIGEST_ALGORITHM);
+		values.remove(Downloads.COLUMN_EXPECTED_DIGEST);
+		values.remove(Downloads.COLUMN_EXPECTED_SIZE);
+		values.remove(Downloads.COLUMN_MIRRORS);
+		values.remove(Downloads.COLUMN_METALINK);
 		Iterator<Map.Entry<String, Object>> iterator = values.valueSet()
 				.iterator();
 		while (iterator.hasNext()) {
@@ -758,8 +1124,6 @@ public final class DownloadProvider extends ContentProvider {
 			final String selection, final String[] selectionArgs,
 			final String sort) {
 
-		Helpers.validateSelection(selection, sAppReadableColumnsSet);
-
 //		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 		SQLiteDatabase db = getReadableDatabase();
 
@@ -771,6 +1135,24 @@ public final class DownloadProvider extends ContentProvider {
 			throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
 
+		if (match == SEGMENTS_URI) {
+			return querySegments(db, uri, projection, selection,
+					selectionArgs, sort);
+		}
+		if (match == ATTEMPTS_URI) {
+			return queryAttempts(db, uri, projection, selection,
+					selectionArgs, sort);
+		}
+		if (match == CACHE_URI) {
+			return queryCache(db, uri, projection, selection, selectionArgs,
+					sort);
+		}
+
+		Helpers.validateSelection(selection, sAppReadableColumnsSet);
+
+		if (match == ALL_REQUEST_HEADERS_URI) {
+			return queryAllRequestHeaders(db, uri, selection, selectionArgs);
+		}
 		if (match == REQUEST_HEADERS_URI) {
 			if (projection != null || selection != null || sort != null) {
 				throw new UnsupportedOperationException(
@@ -899,7 +1281,29 @@ public final class DownloadProvider extends ContentProvider {
 	}
 
 	/**
-	 * Delete request headers for downloads matching the given query.
+	 * Handle a query for the request headers of all the downloads matching a
+	 * selection, in one pass over the headers table rather than one query per
+	 * download.
+	 */
+	private Cursor queryAllRequestHeaders(SQLiteDatabase db, Uri uri,
+			String selection, String[] selectionArgs) {
+		enforceLocalAccess(uri);
+		String where = Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID
+				+ " IN (SELECT " + Downloads._ID + " FROM " + DB_TABLE
+				+ (selection != null ? " WHERE " + selection : "") + ")";
+		String[] projection = new String[] {
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID,
+				Downloads.RequestHeaders.COLUMN_HEADER,
+				Downloads.RequestHeaders.COLUMN_VALUE };
+		Cursor cursor = db.query(Downloads.RequestHeaders.HEADERS_DB_TABLE,
+				projection, where, selectionArgs, null, null,
+				Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID);
+		return new ReadOnlyCursorWrapper(cursor);
+	}
+
+	/**
+	 * Delete request headers, segments, attempts and cache entries for
+	 * downloads matching the given query.
 	 */
 	private void deleteRequestHeaders(SQLiteDatabase db, String where,
 			String[] whereArgs) {
@@ -914,12 +1318,256 @@ public final class DownloadProvider extends ContentProvider {
 						+ "=" + id;
 				db.delete(Downloads.RequestHeaders.HEADERS_DB_TABLE, idWhere,
 						null);
+				db.delete(Downloads.Segments.SEGMENTS_DB_TABLE,
+						Downloads.Segments.COLUMN_DOWNLOAD_ID + "=" + id, null);
+				db.delete(Downloads.Attempts.ATTEMPTS_DB_TABLE,
+						Downloads.Attempts.COLUMN_DOWNLOAD_ID + "=" + id, null);
+				db.delete(Downloads.Cache.CACHE_DB_TABLE,
+						Downloads.Cache.COLUMN_DOWNLOAD_ID + "=" + id, null);
 			}
 		} finally {
 			cursor.close();
 		}
 	}
 
+	/**
+	 * The bookkeeping of the download service itself, such as segments and
+	 * recorded attempts, is private to the download manager: only callers
+	 * running inside this process may read or change it.
+	 */
+	private void enforceLocalAccess(Uri uri) {
+		if (Binder.getCallingPid() != Process.myPid()) {
+			throw new SecurityException("Only the download manager may access "
+					+ uri);
+		}
+	}
+
+	/**
+	 * Handle a query for the attempts made at a download. Through
+	 * my_downloads, only the attempts of the caller's own downloads are
+	 * visible.
+	 */
+	private Cursor queryAttempts(SQLiteDatabase db, Uri uri,
+			String[] projection, String selection, String[] selectionArgs,
+			String sort) {
+		Helpers.validateSelection(selection, sAttemptColumnsSet);
+		if (uri.getPathSegments().get(0).equals("my_downloads")) {
+			SqlSelection owned = getWhereClause(uri, null, null,
+					MY_DOWNLOADS_ID);
+			Cursor download = db.query(DB_TABLE,
+					new String[] { Downloads._ID }, owned.getSelection(),
+					owned.getParameters(), null, null, null);
+			try {
+				if (download.getCount() == 0) {
+					throw new SecurityException("No such download: " + uri);
+				}
+			} finally {
+				download.close();
+			}
+		}
+		SqlSelection fullSelection = getAttemptsWhereClause(uri, selection,
+				selectionArgs);
+		if (sort == null) {
+			sort = Downloads.Attempts.COLUMN_STARTED_AT + " DESC";
+		}
+		Cursor cursor = db.query(Downloads.Attempts.ATTEMPTS_DB_TABLE,
+				projection, fullSelection.getSelection(),
+				fullSelection.getParameters(), null, null, sort);
+		return new ReadOnlyCursorWrapper(cursor);
+	}
+
+	/**
+	 * Record an attempt at a download, dropping its oldest attempts beyond
+	 * {@link Constants#MAX_ATTEMPTS_PER_DOWNLOAD}.
+	 */
+	private Uri insertAttempt(SQLiteDatabase db, Uri uri, ContentValues values) {
+		enforceLocalAccess(uri);
+		String downloadId = getDownloadIdFromUri(uri);
+		ContentValues filteredValues = new ContentValues();
+		filteredValues.put(Downloads.Attempts.COLUMN_DOWNLOAD_ID,
+				Long.parseLong(downloadId));
+		copyLong(Downloads.Attempts.COLUMN_STARTED_AT, values, filteredValues);
+		copyInteger(Downloads.Attempts.COLUMN_STATUS, values, filteredValues);
+		copyInteger(Downloads.Attempts.COLUMN_NETWORK_TYPE, values,
+				filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_BYTES, values, filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_TOTAL_TIME, values, filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_CONNECTIVITY_TIME, values,
+				filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_REQUEST_TIME, values,
+				filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_FIRST_BYTE_TIME, values,
+				filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_TRANSFER_TIME, values,
+				filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_SYNC_TIME, values, filteredValues);
+		copyLong(Downloads.Attempts.COLUMN_DATABASE_TIME, values,
+				filteredValues);
+		long rowID;
+		db.beginTransaction();
+		try {
+			rowID = db.insert(Downloads.Attempts.ATTEMPTS_DB_TABLE, null,
+					filteredValues);
+			db.delete(Downloads.Attempts.ATTEMPTS_DB_TABLE,
+					Downloads.Attempts.COLUMN_DOWNLOAD_ID + " = ? AND id NOT IN "
+							+ "(SELECT id FROM "
+							+ Downloads.Attempts.ATTEMPTS_DB_TABLE + " WHERE "
+							+ Downloads.Attempts.COLUMN_DOWNLOAD_ID
+							+ " = ? ORDER BY id DESC LIMIT "
+							+ Constants.MAX_ATTEMPTS_PER_DOWNLOAD + ")",
+					new String[] { downloadId, downloadId });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (rowID == -1) {
+			Log.d(Constants.TAG, "couldn't insert into attempts table");
+			return null;
+		}
+		return ContentUris.withAppendedId(uri, rowID);
+	}
+
+	/**
+	 * Handle a query on the index of completed downloads. Entries of
+	 * downloads marked as deleted are left out, their files are about to go.
+	 */
+	private Cursor queryCache(SQLiteDatabase db, Uri uri, String[] projection,
+			String selection, String[] selectionArgs, String sort) {
+		enforceLocalAccess(uri);
+		Helpers.validateSelection(selection, sCacheColumnsSet);
+		SqlSelection fullSelection = new SqlSelection();
+		fullSelection.appendClause(selection, selectionArgs);
+		fullSelection.appendClause(Downloads.Cache.COLUMN_DOWNLOAD_ID
+				+ " IN (SELECT " + Downloads._ID + " FROM " + DB_TABLE
+				+ " WHERE " + Downloads.COLUMN_DELETED + " = 0)");
+		if (sort == null) {
+			sort = Downloads.Cache.COLUMN_CREATED_AT + " DESC";
+		}
+		return db.query(Downloads.Cache.CACHE_DB_TABLE, projection,
+				fullSelection.getSelection(), fullSelection.getParameters(),
+				null, null, sort);
+	}
+
+	/**
+	 * Add a completed download to the cache, replacing its earlier entry if
+	 * it had completed before.
+	 */
+	private Uri insertCacheEntry(SQLiteDatabase db, Uri uri,
+			ContentValues values) {
+		enforceLocalAccess(uri);
+		ContentValues filteredValues = new ContentValues();
+		copyLong(Downloads.Cache.COLUMN_DOWNLOAD_ID, values, filteredValues);
+		copyString(Downloads.Cache.COLUMN_URI, values, filteredValues);
+		copyString(Downloads.Cache.COLUMN_ETAG, values, filteredValues);
+		copyLong(Downloads.Cache.COLUMN_TOTAL_BYTES, values, filteredValues);
+		copyString(Downloads.Cache.COLUMN_SHA256, values, filteredValues);
+		copyString(Downloads.Cache.COLUMN_DATA, values, filteredValues);
+		copyString(Downloads.Cache.COLUMN_MIME_TYPE, values, filteredValues);
+		copyLong(Downloads.Cache.COLUMN_CREATED_AT, values, filteredValues);
+		long rowID;
+		db.beginTransaction();
+		try {
+			db.delete(Downloads.Cache.CACHE_DB_TABLE,
+					Downloads.Cache.COLUMN_DOWNLOAD_ID + " = ?",
+					new String[] { filteredValues.getAsString(
+							Downloads.Cache.COLUMN_DOWNLOAD_ID) });
+			rowID = db.insert(Downloads.Cache.CACHE_DB_TABLE, null,
+					filteredValues);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (rowID == -1) {
+			Log.d(Constants.TAG, "couldn't insert into cache table");
+			return null;
+		}
+		return ContentUris.withAppendedId(uri, rowID);
+	}
+
+	private SqlSelection getAttemptsWhereClause(final Uri uri,
+			final String where, final String[] whereArgs) {
+		SqlSelection selection = new SqlSelection();
+		selection.appendClause(where, whereArgs);
+		selection.appendClause(Downloads.Attempts.COLUMN_DOWNLOAD_ID + " = ?",
+				getDownloadIdFromUri(uri));
+		return selection;
+	}
+
+	/**
+	 * Handle a query for the byte ranges of a segmented download.
+	 */
+	private Cursor querySegments(SQLiteDatabase db, Uri uri,
+			String[] projection, String selection, String[] selectionArgs,
+			String sort) {
+		enforceLocalAccess(uri);
+		Helpers.validateSelection(selection, sSegmentColumnsSet);
+		SqlSelection fullSelection = getSegmentsWhereClause(uri, selection,
+				selectionArgs);
+		if (sort == null) {
+			sort = Downloads.Segments.COLUMN_SEGMENT;
+		}
+		return db.query(Downloads.Segments.SEGMENTS_DB_TABLE, projection,
+				fullSelection.getSelection(), fullSelection.getParameters(),
+				null, null, sort);
+	}
+
+	/**
+	 * Insert a byte range for a segmented download.
+	 */
+	private Uri insertSegment(SQLiteDatabase db, Uri uri, ContentValues values) {
+		enforceLocalAccess(uri);
+		ContentValues filteredValues = new ContentValues();
+		filteredValues.put(Downloads.Segments.COLUMN_DOWNLOAD_ID,
+				Long.parseLong(getDownloadIdFromUri(uri)));
+		copyInteger(Downloads.Segments.COLUMN_SEGMENT, values, filteredValues);
+		copyLong(Downloads.Segments.COLUMN_START_BYTE, values, filteredValues);
+		copyLong(Downloads.Segments.COLUMN_END_BYTE, values, filteredValues);
+		copyLong(Downloads.Segments.COLUMN_CURRENT_BYTES, values,
+				filteredValues);
+		long rowID = db.insert(Downloads.Segments.SEGMENTS_DB_TABLE, null,
+				filteredValues);
+		if (rowID == -1) {
+			Log.d(Constants.TAG, "couldn't insert into segments table");
+			return null;
+		}
+		return ContentUris.withAppendedId(uri, rowID);
+	}
+
+	/**
+	 * Update the progress of some segments of a download. No change
+	 * notification is sent, the download row itself carries the progress that
+	 * observers are interested in.
+	 */
+	private int updateSegments(SQLiteDatabase db, Uri uri,
+			ContentValues values, String where, String[] whereArgs) {
+		enforceLocalAccess(uri);
+		Helpers.validateSelection(where, sSegmentColumnsSet);
+		SqlSelection selection = getSegmentsWhereClause(uri, where, whereArgs);
+		return db.update(Downloads.Segments.SEGMENTS_DB_TABLE, values,
+				selection.getSelection(), selection.getParameters());
+	}
+
+	/**
+	 * Delete some segments of a download.
+	 */
+	private int deleteSegments(SQLiteDatabase db, Uri uri, String where,
+			String[] whereArgs) {
+		enforceLocalAccess(uri);
+		Helpers.validateSelection(where, sSegmentColumnsSet);
+		SqlSelection selection = getSegmentsWhereClause(uri, where, whereArgs);
+		return db.delete(Downloads.Segments.SEGMENTS_DB_TABLE,
+				selection.getSelection(), selection.getParameters());
+	}
+
+	private SqlSelection getSegmentsWhereClause(final Uri uri,
+			final String where, final String[] whereArgs) {
+		SqlSelection selection = new SqlSelection();
+		selection.appendClause(where, whereArgs);
+		selection.appendClause(Downloads.Segments.COLUMN_DOWNLOAD_ID + " = ?",
+				getDownloadIdFromUri(uri));
+		return selection;
+	}
+
 	/**
 	 * Updates a row in the database
 	 */
@@ -927,11 +1575,15 @@ public final class DownloadProvider extends ContentProvider {
 	public int update(final Uri uri, final ContentValues values,
 			final String where, final String[] whereArgs) {
 
-		Helpers.validateSelection(where, sAppReadableColumnsSet);
-
 //		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		SQLiteDatabase db = getWritableDatabase();
 
+		if (sURIMatcher.match(uri) == SEGMENTS_URI) {
+			return updateSegments(db, uri, values, where, whereArgs);
+		}
+
+		Helpers.validateSelection(where, sAppReadableColumnsSet);
+
 		int count;
 		boolean startService = false;
 
@@ -960,6 +1612,8 @@ public final class DownloadProvider extends ContentProvider {
 					filteredValues);
 			copyInteger(Downloads.COLUMN_MEDIA_SCANNED, values, filteredValues);
 			copyInteger(Downloads.COLUMN_DELETED, values, filteredValues);
+			copyLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND, values,
+					filteredValues);
 		} else {
 			filteredValues = values;
 			String filename = values.getAsString(Downloads._DATA);
@@ -992,8 +1646,17 @@ public final class DownloadProvider extends ContentProvider {
 			SqlSelection selection = getWhereClause(uri, where, whereArgs,
 					match);
 			if (filteredValues.size() > 0) {
-				count = db.update(DB_TABLE, filteredValues,
-						selection.getSelection(), selection.getParameters());
+				ContentValues stampedValues = new ContentValues(filteredValues);
+				db.beginTransaction();
+				try {
+					stampRowVersion(db, stampedValues);
+					count = db.update(DB_TABLE, stampedValues,
+							selection.getSelection(),
+							selection.getParameters());
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
 			} else {
 				count = 0;
 			}
@@ -1012,6 +1675,31 @@ public final class DownloadProvider extends ContentProvider {
 		return count;
 	}
 
+	/**
+	 * Apply a batch of operations in a single transaction, followed by a
+	 * single change notification for all the downloads it touched.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = getWritableDatabase();
+		ContentProviderResult[] results;
+		db.beginTransaction();
+		mApplyingBatch.set(Boolean.TRUE);
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+		} finally {
+			mApplyingBatch.set(null);
+			db.endTransaction();
+		}
+		for (Uri uriToNotify : BASE_URIS) {
+			getContext().getContentResolver().notifyChange(uriToNotify, null);
+		}
+		return results;
+	}
+
 	/**
 	 * Notify of a change through both URIs (/my_downloads and /all_downloads)
 	 * 
@@ -1021,6 +1709,10 @@ public final class DownloadProvider extends ContentProvider {
 	 *            the match ID from {@link #sURIMatcher}
 	 */
 	private void notifyContentChanged(final Uri uri, int uriMatch) {
+		if (mApplyingBatch.get() != null) {
+			// applyBatch() notifies once the whole batch is stored
+			return;
+		}
 		Long downloadId = null;
 		if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
 			downloadId = Long.parseLong(getDownloadIdFromUri(uri));
@@ -1059,12 +1751,20 @@ public final class DownloadProvider extends ContentProvider {
 	public int delete(final Uri uri, final String where,
 			final String[] whereArgs) {
 
-		Helpers.validateSelection(where, sAppReadableColumnsSet);
-
 //		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		SQLiteDatabase db = getWritableDatabase();
 		int count;
 		int match = sURIMatcher.match(uri);
+		if (match == SEGMENTS_URI) {
+			return deleteSegments(db, uri, where, whereArgs);
+		}
+		if (match == CACHE_URI) {
+			enforceLocalAccess(uri);
+			Helpers.validateSelection(where, sCacheColumnsSet);
+			return db.delete(Downloads.Cache.CACHE_DB_TABLE, where, whereArgs);
+		}
+
+		Helpers.validateSelection(where, sAppReadableColumnsSet);
 		switch (match) {
 		case MY_DOWNLOADS:
 		case MY_DOWNLOADS_ID:
@@ -1083,6 +1783,10 @@ public final class DownloadProvider extends ContentProvider {
 			throw new UnsupportedOperationException("Cannot delete URI: " + uri);
 		}
 		notifyContentChanged(uri, match);
+		if (count > 0) {
+			getContext().getContentResolver().notifyChange(
+					Downloads.DELETED_CONTENT_URI, null);
+		}
 		return count;
 	}
 
@@ -1182,6 +1886,14 @@ public final class DownloadProvider extends ContentProvider {
 		}
 	}
 
+	private static final void copyLong(String key, ContentValues from,
+			ContentValues to) {
+		Long l = from.getAsLong(key);
+		if (l != null) {
+			to.put(key, l);
+		}
+	}
+
 	private static final void copyBoolean(String key, ContentValues from,
 			ContentValues to) {
 		Boolean b = from.getAsBoolean(key);
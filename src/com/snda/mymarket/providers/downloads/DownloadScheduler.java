@@ -0,0 +1,291 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which submitted downloads run and when.
+ * <p>
+ * Up to a configurable number of downloads run at the same time, no more
+ * than a few of them against the same host. Waiting downloads are kept in one
+ * queue per scheduling class; classes are served in order and each queue in
+ * the order it was filled, skipping a download only while its host is at its
+ * cap. Cancelling the future of a waiting download takes it out of its queue.
+ */
+class DownloadScheduler {
+
+	/** Downloads the user can see, served first. */
+	public static final int CLASS_FOREGROUND = 0;
+	/** Downloads running without any notification. */
+	public static final int CLASS_BACKGROUND = 1;
+	private static final int CLASS_COUNT = 2;
+
+	/**
+	 * Implemented by the tasks that tell the scheduler what they are. Other
+	 * runnables are background work without a host.
+	 */
+	public interface Schedulable {
+		/** The id of the download, of which only one task may run at a time. */
+		public long getDownloadId();
+
+		/** The host the task connects to, or null if it isn't known. */
+		public String getHost();
+
+		/** One of the CLASS_* constants. */
+		public int getSchedulingClass();
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Object mLock = new Object();
+	private final LinkedList<Job>[] mQueues;
+	private final Map<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+	private final Set<Long> mRunningDownloads = new HashSet<Long>();
+	private int mRunning = 0;
+	private int mMaxRunning;
+	private final int mMaxRunningPerHost;
+
+	@SuppressWarnings("unchecked")
+	DownloadScheduler(int maxRunning, int maxRunningPerHost) {
+		mMaxRunning = maxRunning;
+		mMaxRunningPerHost = maxRunningPerHost;
+		mQueues = new LinkedList[CLASS_COUNT];
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			mQueues[i] = new LinkedList<Job>();
+		}
+		// the scheduler never hands out more jobs than there are threads, so
+		// the queue of the executor stays empty
+		mExecutor = new ThreadPoolExecutor(maxRunning, maxRunning,
+				Constants.KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Change how many downloads may run at the same time. Lowering it lets the
+	 * running downloads finish, raising it starts waiting ones right away.
+	 */
+	public void setMaxRunning(int maxRunning) {
+		if (maxRunning < 1) {
+			throw new IllegalArgumentException("maxRunning must be positive");
+		}
+		synchronized (mLock) {
+			mMaxRunning = maxRunning;
+			if (maxRunning > mExecutor.getMaximumPoolSize()) {
+				mExecutor.setMaximumPoolSize(maxRunning);
+				mExecutor.setCorePoolSize(maxRunning);
+			} else {
+				mExecutor.setCorePoolSize(maxRunning);
+				mExecutor.setMaximumPoolSize(maxRunning);
+			}
+			dispatchLocked();
+		}
+	}
+
+	/**
+	 * Queue a task, which starts as soon as the limits allow it.
+	 */
+	public Future<?> submit(Runnable task) {
+		Job job = new Job(task);
+		synchronized (mLock) {
+			mQueues[job.mClass].addLast(job);
+			dispatchLocked();
+		}
+		return job;
+	}
+
+	/**
+	 * Queue a task helping a running download, such as a segment worker or a
+	 * mirror probe. It counts against the same limits as downloads, but may run
+	 * next to the download it helps.
+	 * 
+	 * @param host
+	 *            the host the task connects to, or null if it isn't known
+	 * @param schedulingClass
+	 *            the class of the download it helps
+	 */
+	public Future<?> submitHelper(Runnable task, String host,
+			int schedulingClass) {
+		Job job = new Job(task, null, host, schedulingClass);
+		synchronized (mLock) {
+			mQueues[job.mClass].addLast(job);
+			dispatchLocked();
+		}
+		return job;
+	}
+
+	/**
+	 * Take a slot for a download run outside the executor, such as one
+	 * transferred by the MultiplexedEngine, if the limits allow it now. Every
+	 * reserved slot must be given back with {@link #release}.
+	 * 
+	 * @param host
+	 *            the host the download connects to, or null if it isn't known
+	 * @return whether the slot was taken
+	 */
+	public boolean tryReserve(String host) {
+		synchronized (mLock) {
+			if (mRunning >= mMaxRunning || !hasRoomLocked(host)) {
+				return false;
+			}
+			mRunning++;
+			addHostLocked(host);
+			return true;
+		}
+	}
+
+	/**
+	 * Give back a slot taken with {@link #tryReserve}.
+	 */
+	public void release(String host) {
+		synchronized (mLock) {
+			mRunning--;
+			removeHostLocked(host);
+			dispatchLocked();
+		}
+	}
+
+	/**
+	 * Cancel every task that hasn't started yet. Running tasks aren't touched.
+	 */
+	public void cancelWaiting() {
+		LinkedList<Job> waiting = new LinkedList<Job>();
+		synchronized (mLock) {
+			for (LinkedList<Job> queue : mQueues) {
+				waiting.addAll(queue);
+				queue.clear();
+			}
+		}
+		for (Job job : waiting) {
+			job.cancel(false);
+		}
+	}
+
+	/**
+	 * Start waiting jobs while there is room for them.
+	 */
+	private void dispatchLocked() {
+		for (LinkedList<Job> queue : mQueues) {
+			Iterator<Job> it = queue.iterator();
+			while (mRunning < mMaxRunning && it.hasNext()) {
+				Job job = it.next();
+				if (!canRunLocked(job)) {
+					continue;
+				}
+				it.remove();
+				startLocked(job);
+			}
+		}
+	}
+
+	private boolean canRunLocked(Job job) {
+		if (job.mDownloadId != null
+				&& mRunningDownloads.contains(job.mDownloadId)) {
+			// still winding down after a cancel
+			return false;
+		}
+		return hasRoomLocked(job.mHost);
+	}
+
+	private boolean hasRoomLocked(String host) {
+		if (host == null) {
+			return true;
+		}
+		Integer running = mRunningPerHost.get(host);
+		return running == null || running < mMaxRunningPerHost;
+	}
+
+	private void addHostLocked(String host) {
+		if (host != null) {
+			Integer running = mRunningPerHost.get(host);
+			mRunningPerHost.put(host, running == null ? 1 : running + 1);
+		}
+	}
+
+	private void removeHostLocked(String host) {
+		if (host != null) {
+			int running = mRunningPerHost.get(host) - 1;
+			if (running == 0) {
+				mRunningPerHost.remove(host);
+			} else {
+				mRunningPerHost.put(host, running);
+			}
+		}
+	}
+
+	private void startLocked(Job job) {
+		mRunning++;
+		if (job.mDownloadId != null) {
+			mRunningDownloads.add(job.mDownloadId);
+		}
+		addHostLocked(job.mHost);
+		mExecutor.execute(job);
+	}
+
+	private void finished(Job job) {
+		synchronized (mLock) {
+			mRunning--;
+			if (job.mDownloadId != null) {
+				mRunningDownloads.remove(job.mDownloadId);
+			}
+			removeHostLocked(job.mHost);
+			dispatchLocked();
+		}
+	}
+
+	/**
+	 * A submitted task, waiting in its queue until the scheduler starts it.
+	 */
+	private class Job extends FutureTask<Object> {
+		public final Long mDownloadId;
+		public final String mHost;
+		public final int mClass;
+
+		public Job(Runnable task, Long downloadId, String host,
+				int schedulingClass) {
+			super(task, null);
+			mDownloadId = downloadId;
+			mHost = host;
+			mClass = Math.max(0, Math.min(CLASS_COUNT - 1, schedulingClass));
+		}
+
+		public Job(Runnable task) {
+			super(task, null);
+			if (task instanceof Schedulable) {
+				Schedulable schedulable = (Schedulable) task;
+				mDownloadId = schedulable.getDownloadId();
+				mHost = schedulable.getHost();
+				mClass = Math.max(0, Math.min(CLASS_COUNT - 1,
+						schedulable.getSchedulingClass()));
+			} else {
+				mDownloadId = null;
+				mHost = null;
+				mClass = CLASS_BACKGROUND;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				finished(this);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (mLock) {
+				mQueues[mClass].remove(this);
+			}
+			return super.cancel(mayInterruptIfRunning);
+		}
+	}
+}
@@ -20,6 +20,7 @@ import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -83,8 +84,39 @@ public class DownloadService extends Service {
 		context.startService(intent);
 	}
 
+	/**
+	 * Change how many downloads may run at the same time. Lowering it lets the
+	 * running downloads finish, raising it starts waiting ones right away.
+	 * 
+	 * @param maxRunning
+	 *            the limit, at least 1
+	 */
+	public static void setMaxRunningDownloads(int maxRunning) {
+		RealSystemFacade.setMaxRunningDownloads(maxRunning);
+	}
+
+	/**
+	 * Select whether fresh downloads started from now on run on the
+	 * MultiplexedEngine, one selector thread for all of them, rather than on a
+	 * thread each. Downloads already running stay where they are.
+	 */
+	public static void setMultiplexedEngineEnabled(boolean enabled) {
+		MultiplexedEngine.setEnabled(enabled);
+	}
+
+	/**
+	 * Select whether downloads started from now on go over HTTP/2 to the
+	 * servers speaking it, h2c included, rather than over HttpURLConnection or
+	 * AndroidHttpClient. Downloads already running keep their connections.
+	 */
+	public static void setHttp2Enabled(boolean enabled) {
+		HttpStackPool.setHttpStack(enabled ? Constants.HTTP_STACK_HTTP2
+				: Constants.HTTP_STACK_AUTO);
+	}
+
 	/** Observer to get notified when the content observer's data changes */
 	private DownloadManagerContentObserver mObserver;
+	private DeletedDownloadsObserver mDeletedObserver;
 
 	/** Class to handle Notification Manager updates */
 	private DownloadNotifier mNotifier;
@@ -108,6 +140,13 @@ public class DownloadService extends Service {
 	private Handler mUpdateHandler;
 	private volatile int mLastStartId;
 
+	/** The highest row version read by {@link #updateLocked()}, -1 before the first pass. */
+	private long mLastRowVersion = -1;
+	/** When {@link #updateLocked()} last reread every download. */
+	private long mLastFullSweep;
+	/** Set when rows were deleted, which only a full pass can notice. */
+	private volatile boolean mFullSweepRequested;
+
 
 	SystemFacade mSystemFacade;
 	private AlarmManager mAlarmManager;
@@ -134,6 +173,23 @@ public class DownloadService extends Service {
 
 	}
 
+	/**
+	 * Receives notifications when downloads are deleted from the content
+	 * provider
+	 */
+	private class DeletedDownloadsObserver extends ContentObserver {
+
+		public DeletedDownloadsObserver() {
+			super(new Handler());
+		}
+
+		public void onChange(final boolean selfChange) {
+			mFullSweepRequested = true;
+			updateFromProvider();
+		}
+
+	}
+
 	/**
 	 * Returns an IBinder instance when someone wants to connect to this
 	 * service. Binding to this service is not allowed.
@@ -161,6 +217,9 @@ public class DownloadService extends Service {
 		mObserver = new DownloadManagerContentObserver();
 		getContentResolver().registerContentObserver(
 				Downloads.ALL_DOWNLOADS_CONTENT_URI, true, mObserver);
+		mDeletedObserver = new DeletedDownloadsObserver();
+		getContentResolver().registerContentObserver(
+				Downloads.DELETED_CONTENT_URI, false, mDeletedObserver);
 
 		mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
 		mNotifier = new DownloadNotifier(this);
@@ -209,8 +268,10 @@ public class DownloadService extends Service {
 	 */
 	public void onDestroy() {
 		getContentResolver().unregisterContentObserver(mObserver);
+		getContentResolver().unregisterContentObserver(mDeletedObserver);
 		mScanner.shutdown();
 		mUpdateThread.quit();
+		HttpStackPool.shutdown();
 		if (Constants.LOGVV) {
 			Log.v(Constants.TAG, "Service onDestroy");
 		}
@@ -281,6 +342,8 @@ public class DownloadService extends Service {
 					if (DEBUG_LIFECYCLE)
 						Log.v(Constants.TAG, "Nothing left; stopped");
 					getContentResolver().unregisterContentObserver(mObserver);
+					getContentResolver().unregisterContentObserver(
+							mDeletedObserver);
 					mScanner.shutdown();
 					mUpdateThread.quit();
 				}
@@ -305,19 +368,47 @@ public class DownloadService extends Service {
 		final long now = mSystemFacade.currentTimeMillis();
 		boolean isActive = false;
 		long nextActionMillis = Long.MAX_VALUE;
+
+		// Only rows written since the last pass need to be read again. Deleted
+		// rows leave no version behind, so they are found by rereading the
+		// whole table, which also happens now and then as a safety net.
+		final boolean fullSweep = mLastRowVersion < 0 || mFullSweepRequested
+				|| now - mLastFullSweep >= Constants.FULL_SWEEP_INTERVAL
+				|| now < mLastFullSweep;
 		final Set<Long> staleIds = new HashSet<Long>(mDownloads.size());
+		String selection = null;
+		String[] selectionArgs = null;
+		if (fullSweep) {
+			mFullSweepRequested = false;
+			mLastFullSweep = now;
+			for (int i = 0; i < mDownloads.size(); i++) {
+				staleIds.add(mDownloads.keyAt(i));
+			}
+		} else {
+			selection = Downloads.COLUMN_ROW_VERSION + " > ?";
+			selectionArgs = new String[] { Long.toString(mLastRowVersion) };
+		}
+
 		final ContentResolver resolver = getContentResolver();
 		final Cursor cursor = resolver.query(
-				Downloads.ALL_DOWNLOADS_CONTENT_URI, null, null, null,
-				null);
+				Downloads.ALL_DOWNLOADS_CONTENT_URI, null, selection,
+				selectionArgs, null);
 		try {
 			final DownloadInfo.Reader reader = new DownloadInfo.Reader(
 					resolver, cursor);
+			if (mDownloads.size() == 0) {
+				// at start every row is new, read all their headers at once
+				reader.readAheadRequestHeaders(selection, selectionArgs);
+			}
 			final int idColumn = cursor
 					.getColumnIndexOrThrow(Downloads._ID);
+			final int versionColumn = cursor
+					.getColumnIndexOrThrow(Downloads.COLUMN_ROW_VERSION);
 			while (cursor.moveToNext()) {
 				final long id = cursor.getLong(idColumn);
 				staleIds.remove(id);
+				mLastRowVersion = Math.max(mLastRowVersion,
+						cursor.getLong(versionColumn));
 				DownloadInfo info = mDownloads.get(id);
 				if (info != null) {
 					updateDownload(reader, info, now);
@@ -332,28 +423,66 @@ public class DownloadService extends Service {
 					}
 					Helpers.deleteFile(getContentResolver(), info.mId,
 							info.mFileName, info.mMimeType);
-				} else {
-					// Kick off download task if ready
-					final boolean activeDownload = info.startIfReady( this.mNotifier );
-					final boolean activeScan = info.startScanIfReady(mScanner);
-					if (DEBUG_LIFECYCLE && (activeDownload || activeScan) ) {
-						Log.v(Constants.TAG, "Download " + info.mId + ": activeDownload="
-								+ activeDownload + ", activeScan=" + activeScan);
-					}
-					isActive |= activeDownload;
-					isActive |= activeScan;
 				}
-				// Keep track of nearest next action
-				nextActionMillis = Math.min(info.nextActionMillis(now),
-						nextActionMillis);
 			}
 		} finally {
 			cursor.close();
 		}
+		if (mLastRowVersion < 0) {
+			// empty table, the next pass only has to look at new rows
+			mLastRowVersion = 0;
+		}
 		// Clean up stale downloads that disappeared
 		for (Long id : staleIds) {
 			deleteDownloadLocked(id);
 		}
+
+		// Unchanged downloads may still be ready to start, since retry delays
+		// expire and connectivity changes without touching the database.
+		// Downloads against healthy, fast hosts are queued first, so that
+		// they get the slots before those against hosts that keep failing
+		final DownloadInfo[] infos = new DownloadInfo[mDownloads.size()];
+		final long[] ranks = new long[infos.length];
+		final HostHealthRegistry registry = HostHealthRegistry.getInstance();
+		final Map<String, Long> hostRanks = new HashMap<String, Long>();
+		final Integer[] order = new Integer[infos.length];
+		for (int i = 0; i < infos.length; i++) {
+			infos[i] = mDownloads.valueAt(i);
+			final String host = infos[i].getHost();
+			Long rank = hostRanks.get(host);
+			if (rank == null) {
+				rank = registry.rank(host);
+				hostRanks.put(host, rank);
+			}
+			ranks[i] = rank;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				if (ranks[lhs] != ranks[rhs]) {
+					return ranks[lhs] < ranks[rhs] ? -1 : 1;
+				}
+				return lhs - rhs;
+			}
+		});
+		for (int index : order) {
+			final DownloadInfo info = infos[index];
+			if (!info.mDeleted) {
+				// Kick off download task if ready
+				final boolean activeDownload = info.startIfReady( this.mNotifier );
+				final boolean activeScan = info.startScanIfReady(mScanner);
+				if (DEBUG_LIFECYCLE && (activeDownload || activeScan) ) {
+					Log.v(Constants.TAG, "Download " + info.mId + ": activeDownload="
+							+ activeDownload + ", activeScan=" + activeScan);
+				}
+				isActive |= activeDownload;
+				isActive |= activeScan;
+			}
+			// Keep track of nearest next action
+			nextActionMillis = Math.min(info.nextActionMillis(now),
+					nextActionMillis);
+		}
 		// Update notifications visible to user
 		mNotifier.updateWith(mDownloads);
 		// Set alarm when next action is in future. It's okay if the service
@@ -16,15 +16,34 @@
 
 package com.snda.mymarket.providers.downloads;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -32,23 +51,42 @@ import org.apache.http.client.methods.HttpGet;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
-import android.os.Build;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.PowerManager;
 import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import com.snda.mymarket.providers.DownloadManager.Request;
+
 /**
  * Runs an actual download
  */
-public class DownloadTask implements Runnable {
+public class DownloadTask implements Runnable, DownloadScheduler.Schedulable {
+
+	/** Engine used by transferData(), see Constants.TRANSFER_ENGINE_* */
+	private static volatile int sTransferEngine = Constants.DEFAULT_TRANSFER_ENGINE;
+
+	/** Size of the byte[] the stream engine and the segments read into. */
+	private static volatile int sBufferSize = Constants.BUFFER_SIZE;
+
+	/** Direct buffers of the NIO transfer engine, one per download thread. */
+	private static final ThreadLocal<ByteBuffer> sDirectBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(Constants.NIO_BUFFER_SIZE);
+		}
+	};
 
 	private Context mContext;
 	private DownloadInfo mInfo;
 	private SystemFacade mSystemFacade;
 	private DownloadNotifier mNotifer;
+	private BandwidthLimiter mLimiter;
+	/** Phase timings of the current attempt, set for the duration of run(). */
+	private Trace mTrace;
 
 	public DownloadTask(Context context, SystemFacade systemFacade,
 			DownloadInfo info, DownloadNotifier notifer) {
@@ -56,6 +94,39 @@ public class DownloadTask implements Runnable {
 		mSystemFacade = systemFacade;
 		mInfo = info;
 		mNotifer = notifer;
+		mLimiter = new BandwidthLimiter(systemFacade, info);
+	}
+
+	/**
+	 * Select the engine that moves response data to disk for transfers started
+	 * from now on, so the engines can be compared against each other.
+	 * 
+	 * @param engine
+	 *            one of the Constants.TRANSFER_ENGINE_* values
+	 */
+	public static void setTransferEngine(int engine) {
+		if (engine != Constants.TRANSFER_ENGINE_STREAM
+				&& engine != Constants.TRANSFER_ENGINE_NIO
+				&& engine != Constants.TRANSFER_ENGINE_PIPELINE) {
+			throw new IllegalArgumentException("Unknown transfer engine "
+					+ engine);
+		}
+		sTransferEngine = engine;
+	}
+
+	public static int getTransferEngine() {
+		return sTransferEngine;
+	}
+
+	/**
+	 * Select the size of the buffer the stream engine and the segments of a
+	 * download read into, for transfers started from now on.
+	 */
+	public static void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		sBufferSize = bufferSize;
 	}
 
 	/**
@@ -77,7 +148,7 @@ public class DownloadTask implements Runnable {
 	 */
 	private static class State {
 		public String mFilename;
-		public FileOutputStream mStream;
+		public RandomAccessFile mFile;
 		public String mMimeType;
 		public boolean mCountRetry = false;
 		public int mRetryAfter = 0;
@@ -85,6 +156,27 @@ public class DownloadTask implements Runnable {
 		public String mNewUri;
 		public boolean mGotData = false;
 		public String mRequestUri;
+		/** The URI the request started from, before any redirect. */
+		public String mSourceUri;
+		/**
+		 * The sources to move on to when the current one fails, fastest
+		 * first; null unless the file has mirrors.
+		 */
+		public List<String> mSources;
+		/**
+		 * Whether the destination receives a patch to apply to the base file
+		 * rather than the file itself.
+		 */
+		public boolean mDelta;
+		/** The ETag of the content in the destination, null if unknown. */
+		public String mETag;
+		/** The SHA-256 digest of the complete file in hex, null if unknown. */
+		public String mSha256;
+		/**
+		 * The digest of the destination from its start, null unless the app
+		 * gave one to verify.
+		 */
+		public StreamingDigest mDigest;
 
 		/** Historical bytes/second speed of this download. */
 		public long mSpeed;
@@ -93,9 +185,14 @@ public class DownloadTask implements Runnable {
 		/** Bytes transferred since current sample started. */
 		public long mSpeedSampleBytes;
 
+		/** Byte ranges being fetched in parallel, null for a single stream. */
+		public Segment[] mSegments;
+
 		public State(DownloadInfo info) {
 			mMimeType = sanitizeMimeType(info.mMimeType);
-			mRequestUri = info.mUri;
+			mDelta = info.mDeltaUri != null;
+			mRequestUri = mDelta ? info.mDeltaUri : info.mUri;
+			mSourceUri = mRequestUri;
 			mFilename = info.mFileName;
 		}
 	}
@@ -104,14 +201,155 @@ public class DownloadTask implements Runnable {
 	 * State within executeDownload()
 	 */
 	private static class InnerState {
-		public int mBytesSoFar = 0;
+		public long mBytesSoFar = 0;
 		public String mHeaderETag;
 		public boolean mContinuingDownload = false;
 		public String mHeaderContentLength;
 		public String mHeaderContentDisposition;
 		public String mHeaderContentLocation;
-		public int mBytesNotified = 0;
+		public long mBytesNotified = 0;
 		public long mTimeLastNotification = 0;
+		/**
+		 * Whether the destination already has its full length, so that only
+		 * the database knows how much of it has been downloaded.
+		 */
+		public boolean mPreallocated = false;
+		/** The queue of pipelined writes, while the pipelined engine runs. */
+		public WriterPool.Sink mSink;
+		/**
+		 * The content coding of the data in the destination, null when it is
+		 * written as it is to be kept.
+		 */
+		public String mContentEncoding;
+	}
+
+	/**
+	 * A byte range of a segmented download, fetched over its own connection.
+	 */
+	private static class Segment {
+		public final int mIndex;
+		public final long mStartByte;
+		public final long mEndByte;
+		/** Bytes of this range written to the destination file so far. */
+		public volatile long mCurrentBytes;
+		/** Value of mCurrentBytes last stored in the database. */
+		public long mPersistedBytes;
+
+		public Segment(int index, long startByte, long endByte,
+				long currentBytes) {
+			mIndex = index;
+			mStartByte = startByte;
+			mEndByte = endByte;
+			mCurrentBytes = Math.min(currentBytes, length());
+			mPersistedBytes = mCurrentBytes;
+		}
+
+		public long length() {
+			return mEndByte - mStartByte + 1;
+		}
+
+		public boolean isComplete() {
+			return mCurrentBytes >= length();
+		}
+	}
+
+	/**
+	 * How long one attempt at the download spent in each of its phases. The
+	 * segments of a download add their time from their own threads.
+	 */
+	private static class Trace {
+		public static final int PHASE_CONNECTIVITY = 0;
+		public static final int PHASE_REQUEST = 1;
+		public static final int PHASE_FIRST_BYTE = 2;
+		public static final int PHASE_TRANSFER = 3;
+		public static final int PHASE_SYNC = 4;
+		public static final int PHASE_DATABASE = 5;
+		private static final int PHASES = 6;
+
+		/** Wall clock time the attempt started at. */
+		public final long mStartedAt;
+		private final long mStart = System.nanoTime();
+		private final AtomicLongArray mElapsed = new AtomicLongArray(PHASES);
+		/** When the headers of the last response arrived, in ns. */
+		private volatile long mResponseAt;
+		/** When the first byte of a body arrived, in ns, 0 until then. */
+		private volatile long mFirstByteAt;
+		public long mBytes;
+
+		public Trace(long startedAt) {
+			mStartedAt = startedAt;
+		}
+
+		/**
+		 * Add the time since start, from System.nanoTime(), to a phase.
+		 */
+		public void add(int phase, long start) {
+			mElapsed.addAndGet(phase, System.nanoTime() - start);
+		}
+
+		public void markResponse() {
+			mResponseAt = System.nanoTime();
+		}
+
+		/**
+		 * Called after every read that returned data; only the first one of
+		 * the attempt counts.
+		 */
+		public void markFirstByte() {
+			if (mFirstByteAt != 0) {
+				return;
+			}
+			synchronized (this) {
+				if (mFirstByteAt == 0) {
+					long now = System.nanoTime();
+					mElapsed.addAndGet(PHASE_FIRST_BYTE, now - mResponseAt);
+					mFirstByteAt = now;
+				}
+			}
+		}
+
+		/**
+		 * Add the time since start, less the wait for the first byte and the
+		 * database writes made meanwhile, to the transfer phase.
+		 */
+		public void addTransfer(long start, long databaseBefore) {
+			long from = Math.max(start, mFirstByteAt);
+			long database = mElapsed.get(PHASE_DATABASE) - databaseBefore;
+			mElapsed.addAndGet(PHASE_TRANSFER,
+					Math.max(0, System.nanoTime() - from - database));
+		}
+
+		public long get(int phase) {
+			return mElapsed.get(phase);
+		}
+
+		public ContentValues toContentValues(int status, Integer networkType) {
+			ContentValues values = new ContentValues();
+			values.put(Downloads.Attempts.COLUMN_STARTED_AT, mStartedAt);
+			values.put(Downloads.Attempts.COLUMN_STATUS, status);
+			values.put(Downloads.Attempts.COLUMN_NETWORK_TYPE,
+					networkType != null ? networkType : -1);
+			values.put(Downloads.Attempts.COLUMN_BYTES, mBytes);
+			values.put(Downloads.Attempts.COLUMN_TOTAL_TIME,
+					toMillis(System.nanoTime() - mStart));
+			values.put(Downloads.Attempts.COLUMN_CONNECTIVITY_TIME,
+					toMillis(get(PHASE_CONNECTIVITY)));
+			values.put(Downloads.Attempts.COLUMN_REQUEST_TIME,
+					toMillis(get(PHASE_REQUEST)));
+			values.put(Downloads.Attempts.COLUMN_FIRST_BYTE_TIME,
+					toMillis(get(PHASE_FIRST_BYTE)));
+			values.put(Downloads.Attempts.COLUMN_TRANSFER_TIME,
+					toMillis(get(PHASE_TRANSFER)));
+			values.put(Downloads.Attempts.COLUMN_SYNC_TIME,
+					toMillis(get(PHASE_SYNC)));
+			values.put(Downloads.Attempts.COLUMN_DATABASE_TIME,
+					toMillis(get(PHASE_DATABASE)));
+			return values;
+		}
+
+		private static long toMillis(long nanos) {
+			return nanos / 1000000;
+		}
 	}
 
 	/**
@@ -147,16 +385,33 @@ public class DownloadTask implements Runnable {
 		private static final long serialVersionUID = 1L;
 	}
 
+	public long getDownloadId() {
+		return mInfo.mId;
+	}
+
+	public String getHost() {
+		return mInfo.getHost();
+	}
+
+	/**
+	 * Downloads shown to the user go ahead of those running without any
+	 * notification.
+	 */
+	public int getSchedulingClass() {
+		return mInfo.mVisibility == Request.VISIBILITY_HIDDEN ? DownloadScheduler.CLASS_BACKGROUND
+				: DownloadScheduler.CLASS_FOREGROUND;
+	}
+
 	/**
 	 * Executes the download in a separate thread
 	 */
 	public void run() {
+		mTrace = new Trace(mSystemFacade.currentTimeMillis());
 		if (mInfo.mStatus != Downloads.STATUS_RUNNING) {
 			mInfo.mStatus = Downloads.STATUS_RUNNING;
 			ContentValues values = new ContentValues();
 			values.put(Downloads.COLUMN_STATUS, mInfo.mStatus);
-			mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-					values, null, null);
+			updateDownload(values);
 		} else {
 			if (Constants.LOGV) {
 				Log.v(Constants.TAG, "download status is: " + mInfo.mStatus);
@@ -181,15 +436,15 @@ public class DownloadTask implements Runnable {
 				Log.v(Constants.TAG, "initiating download for " + mInfo.mUri);
 			}
 
-			if (Build.VERSION.SDK_INT >= 9) {
-				client = new HurlStack();
-            } else {
-                // Prior to Gingerbread, HttpUrlConnection was unreliable.
-                // See: http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-            	client = new HttpClientStack(AndroidHttpClient.newInstance(userAgent()));
-            }
-
-			boolean finished = false;
+			// content already on the device needs no connection at all
+			boolean finished = copyFromCache(state);
+			if (!finished) {
+				client = createHttpStack();
+				if (mInfo.mMetalink) {
+					readMetalink(state, client);
+				}
+				selectSource(state);
+			}
 			while (!finished) {
 				Log.i(Constants.TAG, "Initiating request for download "
 						+ mInfo.mId);
@@ -199,6 +454,12 @@ public class DownloadTask implements Runnable {
 					finished = true;
 				} catch (RetryDownload exc) {
 					// fall through
+				} catch (StopRequest error) {
+					if (state.mDelta && isPatchFailure(error.mFinalStatus)) {
+						fallBackToFullDownload(state, error);
+					} else if (!switchSource(state, error)) {
+						throw error;
+					}
 				} finally {
 					request.abort();
 					request = null;
@@ -209,6 +470,7 @@ public class DownloadTask implements Runnable {
 				Log.v(Constants.TAG, "download completed for " + mInfo.mUri);
 			}
 			finalizeDestinationFile(state);
+			recordInCache(state);
 			finalStatus = Downloads.STATUS_SUCCESS;
 		} catch (StopRequest error) {
 			// remove the cause before printing, in case it contains PII
@@ -223,6 +485,7 @@ public class DownloadTask implements Runnable {
 			// falls through to the code that reports an error
 		} finally {
 			mNotifer.notifyDownloadSpeed(mInfo.mId, 0);
+			recordHostHealth(state, finalStatus, client != null);
 			
 			if (wakeLock != null) {
 				wakeLock.release();
@@ -237,14 +500,361 @@ public class DownloadTask implements Runnable {
 					finalStatus = Downloads.STATUS_UNKNOWN_ERROR;
 				}
 			}
+			ProgressAggregator.getInstance(mContext).remove(mInfo.mId);
+			ProgressChannel.getInstance().remove(mInfo.mId);
+			saveDigest(state, finalStatus);
 			cleanupDestination(state, finalStatus);
 			notifyDownloadCompleted(finalStatus, state.mCountRetry,
 					state.mRetryAfter, state.mGotData, state.mFilename,
 					state.mNewUri, state.mMimeType);
+			recordAttempt(finalStatus);
 			mInfo.cancelTask();
 		}
 	}
 
+	/**
+	 * Tell the host health registry how the source of this download did, so
+	 * that downloads against a failing host wait for it together. Only the
+	 * failures of the host count, not those of the device or network.
+	 * 
+	 * @param connected
+	 *            whether the download got as far as connecting
+	 */
+	private void recordHostHealth(State state, int finalStatus,
+			boolean connected) {
+		HostHealthRegistry registry = HostHealthRegistry.getInstance();
+		String host = Uri.parse(state.mSourceUri).getHost();
+		long now = mSystemFacade.currentTimeMillis();
+		if (connected && Downloads.isStatusSuccess(finalStatus)) {
+			registry.recordSuccess(host, mInfo.mId, now);
+		} else if (connected && !state.mGotData
+				&& isHostFailure(finalStatus)) {
+			registry.recordFailure(host, mInfo.mId, now, state.mRetryAfter);
+		} else {
+			registry.release(host, mInfo.mId);
+		}
+		if (!TextUtils.equals(host, getHost())) {
+			// the download is scheduled by the host of its URI
+			registry.release(getHost(), mInfo.mId);
+		}
+	}
+
+	/**
+	 * Whether a download stopped with a status because of its host: a server
+	 * error, a 503 or a failed connection while the network is up.
+	 */
+	private static boolean isHostFailure(int status) {
+		return status == Downloads.STATUS_WAITING_TO_RETRY
+				|| (status >= 500 && status < 600);
+	}
+
+	/**
+	 * Whether a delta download that stopped with a status is better off
+	 * downloading the full file than retrying the patch.
+	 */
+	private static boolean isPatchFailure(int status) {
+		switch (status) {
+		case Downloads.STATUS_CANNOT_RESUME:
+		case Downloads.STATUS_UNHANDLED_REDIRECT:
+		case Downloads.STATUS_UNHANDLED_HTTP_CODE:
+		case Downloads.STATUS_HTTP_DATA_ERROR:
+		case Downloads.STATUS_TOO_MANY_REDIRECTS:
+		case Downloads.STATUS_INTEGRITY_ERROR:
+			return true;
+		}
+		// the HTTP errors, not the ones of this device
+		return (status >= 400 && status < Downloads.MIN_ARTIFICIAL_ERROR_STATUS)
+				|| (status >= 500 && status < 600);
+	}
+
+	/**
+	 * Drop the patch of a delta download and start over with the full file.
+	 */
+	private void fallBackToFullDownload(State state, StopRequest error) {
+		Log.w(Constants.TAG, "Patch for download " + mInfo.mId
+				+ " failed, downloading the full file: " + error.getMessage());
+		closeDestination(state);
+		if (state.mFilename != null) {
+			new File(state.mFilename).delete();
+			state.mFilename = null;
+		}
+		state.mDelta = false;
+		state.mRequestUri = mInfo.mUri;
+		state.mSourceUri = mInfo.mUri;
+		state.mRedirectCount = 0;
+		state.mDigest = null;
+		mInfo.mDeltaUri = null;
+		mInfo.mETag = null;
+		mInfo.mContentEncoding = null;
+		mInfo.mCurrentBytes = 0;
+		mInfo.mTotalBytes = -1;
+
+		ContentValues values = new ContentValues();
+		values.putNull(Downloads.COLUMN_DELTA_URI);
+		values.putNull(Downloads._DATA);
+		values.putNull(Constants.ETAG);
+		values.putNull(Constants.CONTENT_ENCODING);
+		values.putNull(Constants.DIGEST_STATE);
+		values.put(Downloads.COLUMN_CURRENT_BYTES, 0);
+		values.put(Downloads.COLUMN_TOTAL_BYTES, -1);
+		updateDownload(values);
+		selectSource(state);
+	}
+
+	/**
+	 * Whether a source that stopped a download with a status is better left
+	 * for another source of the file than retried later.
+	 */
+	private static boolean isSourceFailure(int status) {
+		switch (status) {
+		case Downloads.STATUS_WAITING_TO_RETRY:
+		case Downloads.STATUS_CANNOT_RESUME:
+		case Downloads.STATUS_UNHANDLED_REDIRECT:
+		case Downloads.STATUS_UNHANDLED_HTTP_CODE:
+		case Downloads.STATUS_HTTP_DATA_ERROR:
+		case Downloads.STATUS_TOO_MANY_REDIRECTS:
+			return true;
+		}
+		return (status >= 400 && status < Downloads.MIN_ARTIFICIAL_ERROR_STATUS)
+				|| (status >= 500 && status < 600);
+	}
+
+	/**
+	 * Read the Metalink document of a download, and store the sources, size
+	 * and digest of the file it describes in place of the document.
+	 */
+	private void readMetalink(State state, HttpStack client)
+			throws StopRequest {
+		checkConnectivity(state);
+		String uri = mInfo.mUri;
+		Metalink metalink;
+		for (int redirects = 0;; redirects++) {
+			HttpGet request = new HttpGet(uri);
+			try {
+				addCustomHeaders(request);
+				HttpResponse response = sendRequest(state, client, request);
+				int statusCode = response.getStatusLine().getStatusCode();
+				Header location = response.getFirstHeader("Location");
+				if ((statusCode == 301 || statusCode == 302
+						|| statusCode == 303 || statusCode == 307)
+						&& location != null) {
+					if (redirects >= Constants.MAX_REDIRECTS) {
+						throw new StopRequest(
+								Downloads.STATUS_TOO_MANY_REDIRECTS,
+								"too many redirects");
+					}
+					try {
+						uri = new URI(uri).resolve(
+								new URI(location.getValue())).toString();
+					} catch (URISyntaxException ex) {
+						throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+								"Couldn't resolve redirect URI");
+					}
+					continue;
+				}
+				if (statusCode == 503
+						&& mInfo.mNumFailed < Constants.MAX_RETRIES) {
+					handleServiceUnavailable(state, response);
+				}
+				if (statusCode != Downloads.STATUS_SUCCESS) {
+					handleOtherStatus(state, new InnerState(), statusCode);
+				}
+				metalink = parseMetalink(state, response);
+				break;
+			} finally {
+				request.abort();
+			}
+		}
+
+		List<String> urls = metalink.mUrls;
+		mInfo.mUri = urls.get(0);
+		mInfo.mMirrors = urls.size() > 1 ? TextUtils.join("\n",
+				urls.subList(1, urls.size())) : null;
+		mInfo.mMetalink = false;
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_URI, mInfo.mUri);
+		values.put(Downloads.COLUMN_MIRRORS, mInfo.mMirrors);
+		values.put(Downloads.COLUMN_METALINK, false);
+		// what the app expects wins over what the document says
+		if (mInfo.mDigestAlgorithm == null && metalink.mHash != null) {
+			mInfo.mDigestAlgorithm = metalink.mHashAlgorithm;
+			mInfo.mExpectedDigest = metalink.mHash;
+			values.put(Downloads.COLUMN_DIGEST_ALGORITHM,
+					mInfo.mDigestAlgorithm);
+			values.put(Downloads.COLUMN_EXPECTED_DIGEST, mInfo.mExpectedDigest);
+		}
+		if (mInfo.mExpectedSize < 0 && metalink.mSize >= 0) {
+			mInfo.mExpectedSize = metalink.mSize;
+			values.put(Downloads.COLUMN_EXPECTED_SIZE, mInfo.mExpectedSize);
+		}
+		updateDownload(values);
+		if (!state.mDelta) {
+			state.mRequestUri = mInfo.mUri;
+			state.mSourceUri = mInfo.mUri;
+		}
+		Log.i(Constants.TAG, "Download " + mInfo.mId + " has "
+				+ urls.size() + " sources from its metalink");
+	}
+
+	/**
+	 * Read the body of a response as a Metalink document.
+	 */
+	private Metalink parseMetalink(State state, HttpResponse response)
+			throws StopRequest {
+		ByteArrayOutputStream document = new ByteArrayOutputStream();
+		InputStream in = openResponseEntity(state, response);
+		try {
+			byte[] data = new byte[sBufferSize];
+			int count;
+			while ((count = in.read(data)) != -1) {
+				document.write(data, 0, count);
+				if (document.size() > Constants.MAX_METALINK_SIZE) {
+					throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+							"metalink larger than "
+									+ Constants.MAX_METALINK_SIZE + " bytes");
+				}
+			}
+		} catch (IOException ex) {
+			logNetworkState();
+			throw new StopRequest(getFinalStatusForHttpError(state),
+					"while reading metalink: " + ex.toString(), ex);
+		} finally {
+			closeQuietly(in);
+		}
+		try {
+			return Metalink.parse(new ByteArrayInputStream(document
+					.toByteArray()));
+		} catch (IOException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+					ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Rank the sources of a download with mirrors by probing them, and start
+	 * from the fastest. Small downloads and those that can't use the network
+	 * yet keep the given order.
+	 */
+	private void selectSource(State state) {
+		List<String> sources = mInfo.getSources();
+		if (state.mDelta || sources.size() < 2) {
+			state.mSources = null;
+			return;
+		}
+		List<String> probed = sources.subList(0,
+				Math.min(sources.size(), Constants.MAX_MIRROR_PROBES));
+		long size = mInfo.mTotalBytes >= 0 ? mInfo.mTotalBytes
+				: mInfo.mExpectedSize;
+		boolean probe = size < 0
+				|| size - mInfo.mCurrentBytes >= Constants.MIN_MIRROR_PROBE_SIZE;
+		List<String> ranked = new ArrayList<String>();
+		if (probe && mInfo.checkCanUseNetwork() == DownloadInfo.NETWORK_OK) {
+			List<HttpGet> requests = new ArrayList<HttpGet>();
+			for (String source : probed) {
+				HttpGet request = new HttpGet(source);
+				addCustomHeaders(request);
+				requests.add(request);
+			}
+			long start = System.nanoTime();
+			int[] order = new MirrorProber(mSystemFacade, sBufferSize,
+					getSchedulingClass())
+					.rank(requests);
+			mTrace.add(Trace.PHASE_REQUEST, start);
+			for (int index : order) {
+				ranked.add(probed.get(index));
+			}
+		} else {
+			ranked.addAll(probed);
+		}
+		ranked.addAll(sources.subList(probed.size(), sources.size()));
+
+		state.mSourceUri = ranked.remove(0);
+		state.mRequestUri = state.mSourceUri;
+		state.mSources = ranked;
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "download " + mInfo.mId + " starts from "
+					+ state.mSourceUri);
+		}
+	}
+
+	/**
+	 * Move a download with mirrors on to its next source when the current
+	 * one fails, picking up where the failed one stopped.
+	 * 
+	 * @return whether there was another source to move on to
+	 */
+	private boolean switchSource(State state, StopRequest error) {
+		if (state.mSources == null || state.mSources.isEmpty()
+				|| state.mDelta || !isSourceFailure(error.mFinalStatus)) {
+			return false;
+		}
+		String next = state.mSources.remove(0);
+		if (isHostFailure(error.mFinalStatus)) {
+			HostHealthRegistry.getInstance().recordFailure(
+					Uri.parse(state.mSourceUri).getHost(), mInfo.mId,
+					mSystemFacade.currentTimeMillis(), state.mRetryAfter);
+		}
+		Log.w(Constants.TAG, "Source " + state.mSourceUri + " of download "
+				+ mInfo.mId + " failed, moving on to " + next + ": "
+				+ error.getMessage());
+		closeDestination(state);
+		state.mSourceUri = next;
+		state.mRequestUri = next;
+		state.mRedirectCount = 0;
+		state.mCountRetry = false;
+		state.mRetryAfter = 0;
+		return true;
+	}
+
+	/**
+	 * Whether an interrupted download may resume from another source than the
+	 * one it started from. The ETags of mirrors have nothing in common, so the
+	 * rest of the file is checked against the known length instead.
+	 */
+	private boolean resumesAcrossSources() {
+		return mInfo.mMirrors != null && mInfo.mDeltaUri == null
+				&& mInfo.mTotalBytes > 0;
+	}
+
+	/**
+	 * Store the phase timings of this attempt, so that slow downloads can be
+	 * told apart from slow servers, radios or storage.
+	 */
+	private void recordAttempt(int finalStatus) {
+		ContentValues values = mTrace.toContentValues(finalStatus,
+				mSystemFacade.getActiveNetworkType());
+		try {
+			mContext.getContentResolver().insert(mInfo.getAttemptsUri(),
+					values);
+		} catch (RuntimeException ex) {
+			// the timings are only diagnostics, never fail the download
+			Log.w(Constants.TAG, "couldn't record attempt for download "
+					+ mInfo.mId + ": " + ex);
+		}
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "attempt at download " + mInfo.mId + ": "
+					+ values);
+		}
+	}
+
+	/**
+	 * Write values to the row of this download, counting the time against the
+	 * database phase of the attempt.
+	 */
+	private void updateDownload(ContentValues values) {
+		long start = System.nanoTime();
+		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
+				values, null, null);
+		mTrace.add(Trace.PHASE_DATABASE, start);
+	}
+
+	/**
+	 * Create the HTTP stack used for one connection of this download.
+	 */
+	private HttpStack createHttpStack() {
+		return HttpStackPool.getInstance().lease();
+	}
+
 	/**
 	 * Fully execute a single download request - setup and send the request,
 	 * handle the response, and transfer the data to the destination file.
@@ -252,76 +862,1033 @@ public class DownloadTask implements Runnable {
 	private void executeDownload(State state, HttpStack client,
 			HttpGet request) throws StopRequest, RetryDownload {
 		InnerState innerState = new InnerState();
-		byte data[] = new byte[Constants.BUFFER_SIZE];
+		byte data[] = new byte[sBufferSize];
 
 		setupDestinationFile(state, innerState);
-		addRequestHeaders(innerState, request);
+		prepareDigest(state, innerState);
+		long bytesBefore = innerState.mBytesSoFar;
+		try {
+			executeRequest(state, innerState, client, request, data);
+		} finally {
+			mTrace.mBytes += Math.max(0, innerState.mBytesSoFar - bytesBefore);
+			state.mETag = innerState.mHeaderETag;
+			if (innerState.mBytesSoFar > 0) {
+				// a request retried in this attempt resumes from there
+				mInfo.mCurrentBytes = innerState.mBytesSoFar;
+			}
+		}
+	}
 
-		// check just before sending the request to avoid using an invalid
-		// connection at all
-		checkConnectivity(state);
+	/**
+	 * Whether this download may share its content with other downloads
+	 * through the cache. Content fetched with credentials may differ from one
+	 * requester to the next, so it is neither reused nor offered for reuse.
+	 */
+	static boolean isCacheable(DownloadInfo info) {
+		for (Pair<String, String> header : info.getHeaders()) {
+			if (!header.first.equalsIgnoreCase("Referer")) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		HttpResponse response = sendRequest(state, client, request);
-		handleExceptionalStatus(state, innerState, response);
+	/**
+	 * Complete a fresh download from a completed download of the same
+	 * content, without connecting: one with the digest of a delta download,
+	 * or one of the same URI completed moments ago.
+	 * 
+	 * @return whether the destination now holds the whole file
+	 */
+	private boolean copyFromCache(State state) throws StopRequest {
+		if (state.mFilename != null || mInfo.mCurrentBytes > 0) {
+			return false;
+		}
+		DownloadCache cache = new DownloadCache(mContext, sBufferSize);
+		DownloadCache.Entry entry = null;
+		try {
+			if (state.mDelta && mInfo.mDeltaSha256 != null) {
+				entry = cache.findBySha256(mInfo.mDeltaSha256);
+			}
+			if (entry == null && isCacheable(mInfo)) {
+				entry = cache.findRecent(mInfo.mUri,
+						mSystemFacade.currentTimeMillis()
+								- Constants.CACHE_REUSE_WINDOW);
+			}
+		} catch (RuntimeException ex) {
+			// the cache is only a shortcut, the download can always go ahead
+			Log.w(Constants.TAG, "couldn't look up download " + mInfo.mId
+					+ " in cache: " + ex);
+		}
+		if (entry == null) {
+			return false;
+		}
 
-		if (Constants.LOGV) {
-			Log.v(Constants.TAG, "received response for " + mInfo.mUri);
+		if (state.mMimeType == null) {
+			state.mMimeType = sanitizeMimeType(entry.mMimeType);
+		}
+		try {
+			state.mFilename = Helpers.generateSaveFile(mContext, mInfo.mUri,
+					mInfo.mHint, 0, null, null, state.mMimeType,
+					mInfo.mDestination, entry.mTotalBytes, mInfo.mIsPublicApi);
+		} catch (Helpers.GenerateSaveFileError exc) {
+			throw new StopRequest(exc.mStatus, exc.mMessage);
+		}
+		if (!cache.copy(entry, new File(state.mFilename))) {
+			state.mFilename = null;
+			return false;
+		}
+		state.mSha256 = entry.mSha256;
+		state.mDigest = null;
+		String problem = checkIntegrity(state);
+		if (problem != null) {
+			Log.w(Constants.TAG, "Not copying download " + mInfo.mId
+					+ " from " + entry.mFilename + ": " + problem);
+			new File(state.mFilename).delete();
+			state.mFilename = null;
+			state.mSha256 = null;
+			return false;
 		}
 
-		processResponseHeaders(state, innerState, response);
-		InputStream entityStream = openResponseEntity(state, response);
-		transferData(state, innerState, data, entityStream);
+		state.mETag = entry.mETag;
+		mInfo.mTotalBytes = entry.mTotalBytes;
+		ContentValues values = new ContentValues();
+		values.put(Downloads._DATA, state.mFilename);
+		if (state.mMimeType != null) {
+			values.put(Downloads.COLUMN_MIME_TYPE, state.mMimeType);
+		}
+		values.put(Constants.ETAG, entry.mETag);
+		values.put(Downloads.COLUMN_TOTAL_BYTES, entry.mTotalBytes);
+		values.put(Downloads.COLUMN_CURRENT_BYTES, entry.mTotalBytes);
+		updateDownload(values);
+		Log.i(Constants.TAG, "Download " + mInfo.mId + " copied from "
+				+ entry.mFilename);
+		return true;
 	}
 
 	/**
-	 * Check if current connectivity is valid for this request.
+	 * Complete a fresh download from a completed download of the same URI
+	 * once the server has told which version of the content it has, instead
+	 * of transferring the body.
+	 * 
+	 * @return whether the destination now holds the whole file
 	 */
-	private void checkConnectivity(State state) throws StopRequest {
-		int networkUsable = mInfo.checkCanUseNetwork();
-		if (networkUsable != DownloadInfo.NETWORK_OK) {
-			int status = Downloads.STATUS_WAITING_FOR_NETWORK;
-			if (networkUsable == DownloadInfo.NETWORK_UNUSABLE_DUE_TO_SIZE) {
-				status = Downloads.STATUS_QUEUED_FOR_WIFI;
-				mInfo.notifyPauseDueToSize(true);
-			} else if (networkUsable == DownloadInfo.NETWORK_RECOMMENDED_UNUSABLE_DUE_TO_SIZE) {
-				status = Downloads.STATUS_QUEUED_FOR_WIFI;
-				mInfo.notifyPauseDueToSize(false);
+	private boolean copyFromCache(State state, InnerState innerState)
+			throws StopRequest {
+		if (innerState.mContinuingDownload || state.mDelta
+				|| innerState.mHeaderETag == null
+				|| innerState.mHeaderContentLength == null
+				|| innerState.mContentEncoding != null || !isCacheable(mInfo)) {
+			return false;
+		}
+		long totalBytes = Long.parseLong(innerState.mHeaderContentLength);
+		DownloadCache cache = new DownloadCache(mContext, sBufferSize);
+		DownloadCache.Entry entry;
+		try {
+			entry = cache.findByContent(mInfo.mUri, innerState.mHeaderETag,
+					totalBytes);
+		} catch (RuntimeException ex) {
+			Log.w(Constants.TAG, "couldn't look up download " + mInfo.mId
+					+ " in cache: " + ex);
+			return false;
+		}
+		if (entry == null) {
+			return false;
+		}
+
+		closeDestination(state);
+		File destination = new File(state.mFilename);
+		boolean copied = cache.copy(entry, destination);
+		if (copied) {
+			StreamingDigest digest = state.mDigest;
+			state.mDigest = null;
+			state.mSha256 = entry.mSha256;
+			String problem = checkIntegrity(state);
+			if (problem != null) {
+				Log.w(Constants.TAG, "Not copying download " + mInfo.mId
+						+ " from " + entry.mFilename + ": " + problem);
+				// never write through a link to the cached file
+				destination.delete();
+				state.mDigest = digest;
+				state.mSha256 = null;
+				copied = false;
+			}
+		}
+		if (!copied) {
+			try {
+				state.mFile = openDestination(state, 0);
+			} catch (IOException exc) {
+				throw new StopRequest(Downloads.STATUS_FILE_ERROR,
+						"while reopening destination file: " + exc.toString(),
+						exc);
+			}
+			return false;
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, totalBytes);
+		updateDownload(values);
+		Log.i(Constants.TAG, "Download " + mInfo.mId + " copied from "
+				+ entry.mFilename + " after revalidation");
+		return true;
+	}
+
+	/**
+	 * Offer a completed download to the cache.
+	 */
+	private void recordInCache(State state) {
+		if (!isCacheable(mInfo)) {
+			return;
+		}
+		try {
+			new DownloadCache(mContext, sBufferSize).record(mInfo.mId,
+					mInfo.mUri, state.mETag, state.mSha256, state.mFilename,
+					state.mMimeType, mSystemFacade.currentTimeMillis());
+		} catch (RuntimeException ex) {
+			Log.w(Constants.TAG, "couldn't add download " + mInfo.mId
+					+ " to cache: " + ex);
+		}
+	}
+
+	/**
+	 * The part of executeDownload() after the destination is set up.
+	 */
+	private void executeRequest(State state, InnerState innerState,
+			HttpStack client, HttpGet request, byte[] data)
+			throws StopRequest, RetryDownload {
+		if (state.mSegments != null) {
+			// every range already has its place in the file, pick them all up
+			// where they stopped
+			checkConnectivity(state);
+			long start = System.nanoTime();
+			long databaseBefore = mTrace.get(Trace.PHASE_DATABASE);
+			try {
+				transferSegments(state, innerState, null, null);
+			} finally {
+				mTrace.addTransfer(start, databaseBefore);
+			}
+			return;
+		}
+		addRequestHeaders(innerState, request);
+
+		// check just before sending the request to avoid using an invalid
+		// connection at all
+		checkConnectivity(state);
+
+		HttpResponse response = sendRequest(state, client, request);
+		handleExceptionalStatus(state, innerState, response);
+
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "received response for " + mInfo.mUri);
+		}
+
+		processResponseHeaders(state, innerState, response);
+		if (copyFromCache(state, innerState)) {
+			return;
+		}
+		preallocateDestination(state, innerState);
+		InputStream entityStream = openResponseEntity(state, response);
+		long start = System.nanoTime();
+		long databaseBefore = mTrace.get(Trace.PHASE_DATABASE);
+		try {
+			if (!state.mDelta && state.mSources == null
+					&& shouldSegment(innerState, response)) {
+				planSegments(state);
+				transferSegments(state, innerState, client, entityStream);
+				return;
+			}
+			transferData(state, innerState, data, entityStream);
+		} finally {
+			mTrace.addTransfer(start, databaseBefore);
+		}
+	}
+
+	/**
+	 * Check if current connectivity is valid for this request.
+	 */
+	private void checkConnectivity(State state) throws StopRequest {
+		long start = System.nanoTime();
+		int networkUsable = mInfo.checkCanUseNetwork();
+		mTrace.add(Trace.PHASE_CONNECTIVITY, start);
+		if (networkUsable != DownloadInfo.NETWORK_OK) {
+			int status = Downloads.STATUS_WAITING_FOR_NETWORK;
+			if (networkUsable == DownloadInfo.NETWORK_UNUSABLE_DUE_TO_SIZE) {
+				status = Downloads.STATUS_QUEUED_FOR_WIFI;
+				mInfo.notifyPauseDueToSize(true);
+			} else if (networkUsable == DownloadInfo.NETWORK_RECOMMENDED_UNUSABLE_DUE_TO_SIZE) {
+				status = Downloads.STATUS_QUEUED_FOR_WIFI;
+				mInfo.notifyPauseDueToSize(false);
+			}
+			throw new StopRequest(status,
+					mInfo.getLogMessageForNetworkError(networkUsable));
+		}
+	}
+
+	/**
+	 * Transfer as much data as possible from the HTTP response to the
+	 * destination file.
+	 * 
+	 * @param data
+	 *            buffer to use to read data
+	 * @param entityStream
+	 *            stream for reading the HTTP response entity
+	 */
+	private void transferData(State state, InnerState innerState, byte[] data,
+			InputStream entityStream) throws StopRequest {
+		int engine = sTransferEngine;
+		if (engine == Constants.TRANSFER_ENGINE_NIO) {
+			transferDataNio(state, innerState, entityStream);
+			return;
+		}
+		if (engine == Constants.TRANSFER_ENGINE_PIPELINE) {
+			transferDataPipelined(state, innerState, entityStream);
+			return;
+		}
+		for (;;) {
+			int bytesRead = readFromResponse(state, innerState, data,
+					entityStream);
+			if (bytesRead == -1) { // success, end of stream already reached
+				handleEndOfStream(state, innerState);
+				return;
+			}
+
+			mTrace.markFirstByte();
+			state.mGotData = true;
+			writeDataToDestination(state, innerState, data, bytesRead);
+			if (digestsTransfer(state, innerState)) {
+				state.mDigest.update(data, 0, bytesRead);
+			}
+			innerState.mBytesSoFar += bytesRead;
+			reportProgress(state, innerState);
+			throttle(state, bytesRead);
+
+			if (Constants.LOGVV) {
+				Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar
+						+ " for " + mInfo.mUri);
+			}
+
+			checkPausedOrCanceled(state);
+		}
+	}
+
+	/**
+	 * NIO variant of transferData(). Reads land in a direct buffer and are
+	 * written through one FileChannel kept open for the whole attempt. When the
+	 * entity is itself backed by a file channel the data is moved with
+	 * transferFrom() and never enters the Java heap.
+	 */
+	private void transferDataNio(State state, InnerState innerState,
+			InputStream entityStream) throws StopRequest {
+		ReadableByteChannel in = Channels.newChannel(entityStream);
+		FileChannel out = openDestinationChannel(state, innerState);
+		ByteBuffer buffer = (in instanceof FileChannel) ? null : sDirectBuffer
+				.get();
+		// a direct buffer is digested through the heap
+		byte[] digestScratch = state.mDigest != null ? new byte[sBufferSize]
+				: null;
+		for (;;) {
+			int bytesRead;
+			if (buffer == null) {
+				bytesRead = transferFromChannel(state, innerState,
+						(FileChannel) in, out);
+			} else {
+				bytesRead = readFromChannel(state, innerState, buffer, in);
+			}
+			if (bytesRead == -1) { // success, end of stream already reached
+				handleEndOfStream(state, innerState);
+				return;
+			}
+
+			mTrace.markFirstByte();
+			state.mGotData = true;
+			if (buffer != null) {
+				writeBufferToDestination(state, buffer, out);
+				if (digestsTransfer(state, innerState)) {
+					ByteBuffer written = buffer.duplicate();
+					written.flip();
+					state.mDigest.update(written, digestScratch);
+				}
+			}
+			innerState.mBytesSoFar += bytesRead;
+			reportProgress(state, innerState);
+			throttle(state, bytesRead);
+
+			if (Constants.LOGVV) {
+				Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar
+						+ " for " + mInfo.mUri);
+			}
+
+			checkPausedOrCanceled(state);
+		}
+	}
+
+	/**
+	 * Pipelined variant of transferData(). This thread only reads from the
+	 * network into pooled buffers and hands them to the shared
+	 * {@link WriterPool}, which writes them to the file in order. The thread
+	 * waits only when the pool or the queue of this file is full.
+	 */
+	private void transferDataPipelined(State state, InnerState innerState,
+			InputStream entityStream) throws StopRequest {
+		WriterPool pool = WriterPool.getInstance();
+		WriterPool.Sink sink = pool.openSink(openDestinationChannel(state,
+				innerState));
+		innerState.mSink = sink;
+		try {
+			for (;;) {
+				byte[] buffer = pool.acquireBuffer();
+				int bytesRead;
+				try {
+					bytesRead = fillFromResponse(state, innerState, buffer,
+							entityStream);
+				} catch (StopRequest error) {
+					pool.releaseBuffer(buffer);
+					throw error;
+				}
+				if (bytesRead == -1) { // success, end of stream already reached
+					pool.releaseBuffer(buffer);
+					flushSink(state, sink);
+					handleEndOfStream(state, innerState);
+					return;
+				}
+
+				mTrace.markFirstByte();
+				state.mGotData = true;
+				// the writer owns the buffer once handed over
+				if (digestsTransfer(state, innerState)) {
+					state.mDigest.update(buffer, 0, bytesRead);
+				}
+				try {
+					sink.write(buffer, bytesRead);
+				} catch (IOException ex) {
+					throw newWriteError(state, bytesRead, ex);
+				}
+				innerState.mBytesSoFar += bytesRead;
+				reportProgress(state, innerState);
+				throttle(state, bytesRead);
+
+				if (Constants.LOGVV) {
+					Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar
+							+ " for " + mInfo.mUri);
+				}
+
+				checkPausedOrCanceled(state);
+			}
+		} finally {
+			// whatever was read must be in the file before the final status
+			// is stored, a resume starts from the file length
+			innerState.mSink = null;
+			try {
+				sink.flush();
+			} catch (IOException ex) {
+				// already reported through write() or flushSink()
+			}
+		}
+	}
+
+	/**
+	 * Read from the response until the buffer is full or no more data is
+	 * available without blocking, so that pooled buffers aren't wasted on a
+	 * single network packet.
+	 * 
+	 * @return the number of bytes read or -1 if the end of the stream has been
+	 *         reached
+	 */
+	private int fillFromResponse(State state, InnerState innerState,
+			byte[] buffer, InputStream entityStream) throws StopRequest {
+		int length = readFromResponse(state, innerState, buffer, entityStream);
+		if (length == -1) {
+			return -1;
+		}
+		try {
+			while (length < buffer.length && entityStream.available() > 0) {
+				int bytesRead = entityStream.read(buffer, length,
+						buffer.length - length);
+				if (bytesRead == -1) {
+					break;
+				}
+				length += bytesRead;
+			}
+		} catch (IOException ex) {
+			// keep what was read, the next read reports the failure
+		}
+		return length;
+	}
+
+	private void flushSink(State state, WriterPool.Sink sink)
+			throws StopRequest {
+		try {
+			sink.flush();
+		} catch (IOException ex) {
+			throw newWriteError(state, 0, ex);
+		}
+	}
+
+	/**
+	 * Open the channel the NIO engine writes through, positioned at the end of
+	 * the data received so far.
+	 */
+	private FileChannel openDestinationChannel(State state,
+			InnerState innerState) throws StopRequest {
+		try {
+			if (state.mFile == null) {
+				state.mFile = openDestination(state, innerState.mBytesSoFar);
+			}
+			return state.mFile.getChannel();
+		} catch (IOException exc) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR,
+					"while opening destination channel: " + exc.toString(), exc);
+		}
+	}
+
+	/**
+	 * Open the destination file for writing at the given offset. The file is
+	 * opened for random access rather than appending, since a preallocated
+	 * file is already longer than the data received so far.
+	 */
+	private RandomAccessFile openDestination(State state, long offset)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(state.mFilename, "rw");
+		try {
+			file.seek(offset);
+		} catch (IOException ex) {
+			file.close();
+			throw ex;
+		}
+		return file;
+	}
+
+	/**
+	 * Reserve the space of the whole download on disk as soon as its length is
+	 * known, so that a full disk stops the download right away rather than
+	 * when it is almost done, and the file gets laid out in as few extents as
+	 * possible.
+	 */
+	private void preallocateDestination(State state, InnerState innerState)
+			throws StopRequest {
+		if (!Constants.PREALLOCATE_DESTINATION
+				|| innerState.mContinuingDownload
+				|| innerState.mHeaderContentLength == null
+				|| state.mFile == null) {
+			return;
+		}
+		long totalBytes = Long.parseLong(innerState.mHeaderContentLength);
+		if (totalBytes <= 0) {
+			return;
+		}
+		try {
+			Helpers.preallocate(state.mFilename, state.mFile, totalBytes);
+		} catch (IOException ex) {
+			throw newWriteError(state, totalBytes, ex);
+		}
+		innerState.mPreallocated = true;
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "preallocated " + totalBytes + " bytes for "
+					+ mInfo.mUri);
+		}
+	}
+
+	/**
+	 * Read some data from the response channel into the given buffer.
+	 * 
+	 * @return the number of bytes read or -1 if the end of the stream has been
+	 *         reached
+	 */
+	private int readFromChannel(State state, InnerState innerState,
+			ByteBuffer buffer, ReadableByteChannel in) throws StopRequest {
+		buffer.clear();
+		try {
+			return in.read(buffer);
+		} catch (IOException ex) {
+			throw newReadError(state, innerState, ex);
+		}
+	}
+
+	/**
+	 * Move some data straight from a file backed response to the destination.
+	 * 
+	 * @return the number of bytes moved or -1 if the end of the stream has
+	 *         been reached
+	 */
+	private int transferFromChannel(State state, InnerState innerState,
+			FileChannel in, FileChannel out) throws StopRequest {
+		try {
+			if (in.position() >= in.size()) {
+				return -1;
+			}
+			long position = out.position();
+			long count = out.transferFrom(in, position,
+					Constants.NIO_BUFFER_SIZE);
+			out.position(position + count);
+			return (int) count;
+		} catch (IOException ex) {
+			// the failing side isn't known, blame the disk only when it is
+			// clearly at fault
+			StopRequest error = newWriteError(state, Constants.NIO_BUFFER_SIZE,
+					ex);
+			if (error.mFinalStatus != Downloads.STATUS_FILE_ERROR) {
+				throw error;
+			}
+			throw newReadError(state, innerState, ex);
+		}
+	}
+
+	/**
+	 * Write the data read into the buffer to the destination channel.
+	 */
+	private void writeBufferToDestination(State state, ByteBuffer buffer,
+			FileChannel out) throws StopRequest {
+		buffer.flip();
+		int bytes = buffer.remaining();
+		try {
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+		} catch (IOException ex) {
+			throw newWriteError(state, bytes, ex);
+		}
+	}
+
+	/**
+	 * Decide whether a fresh response is worth splitting into byte ranges
+	 * fetched over parallel connections.
+	 */
+	private boolean shouldSegment(InnerState innerState, HttpResponse response) {
+		if (Constants.SEGMENT_COUNT < 2 || innerState.mContinuingDownload
+				|| innerState.mHeaderContentLength == null
+				|| innerState.mContentEncoding != null) {
+			return false;
+		}
+		if (innerState.mHeaderETag == null && !mInfo.mNoIntegrity) {
+			// without a validator the ranges could come from different
+			// versions of the entity
+			return false;
+		}
+		Header header = response.getFirstHeader("Accept-Ranges");
+		if (header == null
+				|| !header.getValue().toLowerCase(Locale.ENGLISH)
+						.contains("bytes")) {
+			return false;
+		}
+		return mInfo.mTotalBytes >= 2 * Constants.MIN_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Split the download into byte ranges and store them, so that each range
+	 * can be resumed on its own.
+	 */
+	private void planSegments(State state) {
+		long totalBytes = mInfo.mTotalBytes;
+		int count = (int) Math.min(Constants.SEGMENT_COUNT, totalBytes
+				/ Constants.MIN_SEGMENT_SIZE);
+		long segmentSize = totalBytes / count;
+
+		// the ranges are written with their own file handles
+		closeDestination(state);
+		deleteSegments();
+
+		Segment[] segments = new Segment[count];
+		ContentValues values = new ContentValues();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long startByte = i * segmentSize;
+			long endByte = (i == count - 1) ? totalBytes - 1 : startByte
+					+ segmentSize - 1;
+			segments[i] = new Segment(i, startByte, endByte, 0);
+			values.put(Downloads.Segments.COLUMN_SEGMENT, i);
+			values.put(Downloads.Segments.COLUMN_START_BYTE, startByte);
+			values.put(Downloads.Segments.COLUMN_END_BYTE, endByte);
+			values.put(Downloads.Segments.COLUMN_CURRENT_BYTES, 0);
+			mContext.getContentResolver().insert(mInfo.getSegmentsUri(),
+					values);
+		}
+		mTrace.add(Trace.PHASE_DATABASE, start);
+		state.mSegments = segments;
+
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "fetching " + mInfo.mUri + " in " + count
+					+ " segments");
+		}
+	}
+
+	/**
+	 * Read the byte ranges stored for this download.
+	 * 
+	 * @return the ranges, or null if there are none or they don't cover the
+	 *         whole download
+	 */
+	private Segment[] readSegments() {
+		if (mInfo.mTotalBytes <= 0) {
+			return null;
+		}
+		String[] projection = new String[] {
+				Downloads.Segments.COLUMN_SEGMENT,
+				Downloads.Segments.COLUMN_START_BYTE,
+				Downloads.Segments.COLUMN_END_BYTE,
+				Downloads.Segments.COLUMN_CURRENT_BYTES };
+		Cursor cursor = mContext.getContentResolver().query(
+				mInfo.getSegmentsUri(), projection, null, null,
+				Downloads.Segments.COLUMN_SEGMENT);
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			if (cursor.getCount() == 0) {
+				return null;
+			}
+			Segment[] segments = new Segment[cursor.getCount()];
+			long nextByte = 0;
+			for (int i = 0; cursor.moveToNext(); i++) {
+				Segment segment = new Segment(cursor.getInt(0),
+						cursor.getLong(1), cursor.getLong(2), cursor.getLong(3));
+				if (segment.mIndex != i || segment.mStartByte != nextByte
+						|| segment.mEndByte < segment.mStartByte) {
+					Log.w(Constants.TAG, "inconsistent segments for download "
+							+ mInfo.mId);
+					return null;
+				}
+				segments[i] = segment;
+				nextByte = segment.mEndByte + 1;
+			}
+			return nextByte == mInfo.mTotalBytes ? segments : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Store the progress of the ranges that moved since the last call.
+	 */
+	private void persistSegments(Segment[] segments) {
+		ContentValues values = new ContentValues();
+		long start = System.nanoTime();
+		for (Segment segment : segments) {
+			long currentBytes = segment.mCurrentBytes;
+			if (currentBytes == segment.mPersistedBytes) {
+				continue;
+			}
+			values.put(Downloads.Segments.COLUMN_CURRENT_BYTES, currentBytes);
+			mContext.getContentResolver().update(mInfo.getSegmentsUri(),
+					values, Downloads.Segments.COLUMN_SEGMENT + " = ?",
+					new String[] { Integer.toString(segment.mIndex) });
+			segment.mPersistedBytes = currentBytes;
+		}
+		mTrace.add(Trace.PHASE_DATABASE, start);
+	}
+
+	private void deleteSegments() {
+		long start = System.nanoTime();
+		mContext.getContentResolver().delete(mInfo.getSegmentsUri(), null,
+				null);
+		mTrace.add(Trace.PHASE_DATABASE, start);
+	}
+
+	private static long sumSegmentBytes(Segment[] segments) {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.mCurrentBytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Fetch the unfinished byte ranges of the download in parallel, one
+	 * connection each, while this thread reports the combined progress and
+	 * watches for pause and cancel requests.
+	 * 
+	 * @param client
+	 *            stack that produced entityStream, or null
+	 * @param entityStream
+	 *            body of a fresh response, used for the first range so its
+	 *            connection isn't wasted, or null
+	 */
+	private void transferSegments(State state, InnerState innerState,
+			HttpStack client, InputStream entityStream) throws StopRequest {
+		Segment[] segments = state.mSegments;
+		List<SegmentWorker> workers = new ArrayList<SegmentWorker>();
+		for (Segment segment : segments) {
+			if (!segment.isComplete()) {
+				boolean useEntity = segment.mIndex == 0
+						&& entityStream != null;
+				workers.add(new SegmentWorker(state, segment,
+						innerState.mHeaderETag, useEntity ? client : null,
+						useEntity ? entityStream : null));
+			}
+		}
+
+		CountDownLatch done = new CountDownLatch(workers.size());
+		for (SegmentWorker worker : workers) {
+			worker.mDone = done;
+		}
+		// the ranges are taken in order by runners: one on the slot of this
+		// download, which only watches meanwhile, the others on slots of their
+		// own as the limits of the scheduler allow
+		final Queue<SegmentWorker> pending = new ConcurrentLinkedQueue<SegmentWorker>(
+				workers);
+		Runnable runner = new Runnable() {
+			public void run() {
+				SegmentWorker worker;
+				while ((worker = pending.poll()) != null) {
+					worker.run();
+				}
+			}
+		};
+		List<Future<?>> helpers = new ArrayList<Future<?>>();
+		if (!workers.isEmpty()) {
+			mSystemFacade.startThread(new Thread(runner, "DownloadSegment-"
+					+ mInfo.mId));
+		}
+		for (int i = 1; i < workers.size(); i++) {
+			helpers.add(mSystemFacade.runHelperOnThreadPool(runner, getHost(),
+					getSchedulingClass()));
+		}
+
+		long initialBytes = sumSegmentBytes(segments);
+		boolean interrupted = false;
+		try {
+			boolean finished = false;
+			while (!finished) {
+				try {
+					finished = done.await(Constants.SEGMENT_POLL_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException exc) {
+					// pause and cancel are signalled through the database
+					interrupted = true;
+				}
+				for (SegmentWorker worker : workers) {
+					if (worker.mError != null) {
+						state.mCountRetry |= worker.mState.mCountRetry;
+						state.mRetryAfter = Math.max(state.mRetryAfter,
+								worker.mState.mRetryAfter);
+						throw worker.mError;
+					}
+				}
+
+				long bytesSoFar = sumSegmentBytes(segments);
+				if (bytesSoFar > initialBytes) {
+					state.mGotData = true;
+				}
+				innerState.mBytesSoFar = bytesSoFar;
+				reportProgress(state, innerState);
+
+				if (Constants.LOGVV) {
+					Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar
+							+ " for " + mInfo.mUri);
+				}
+
+				if (!finished) {
+					checkPausedOrCanceled(state);
+				}
+			}
+		} finally {
+			for (Future<?> helper : helpers) {
+				helper.cancel(false);
+			}
+			for (SegmentWorker worker : workers) {
+				worker.stop();
+			}
+			// ranges no runner took won't count down themselves
+			while (pending.poll() != null) {
+				done.countDown();
+			}
+			// let the workers finish their last write so the stored offsets
+			// never run ahead of the file
+			try {
+				done.await(HttpStack.TIMEOUT_MSECONDES, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException exc) {
+				interrupted = true;
+			}
+			persistSegments(segments);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		deleteSegments();
+		state.mSegments = null;
+		handleEndOfStream(state, innerState);
+	}
+
+	/**
+	 * Fetches a single byte range of a segmented download and writes it at its
+	 * offset in the destination file.
+	 */
+	private class SegmentWorker implements Runnable {
+		private final Segment mSegment;
+		/** Private copy so each connection follows its own redirects. */
+		private final State mState;
+		private final String mETag;
+		private final boolean mOwnsClient;
+		private InputStream mEntityStream;
+		private CountDownLatch mDone;
+		private volatile HttpStack mClient;
+		private volatile HttpGet mRequest;
+		private volatile boolean mStopped = false;
+		private volatile StopRequest mError;
+
+		public SegmentWorker(State state, Segment segment, String eTag,
+				HttpStack client, InputStream entityStream) {
+			mSegment = segment;
+			mState = new State(mInfo);
+			mState.mFilename = state.mFilename;
+			mState.mRequestUri = state.mRequestUri;
+			mState.mRedirectCount = state.mRedirectCount;
+			mETag = eTag;
+			mClient = client;
+			mOwnsClient = client == null;
+			mEntityStream = entityStream;
+		}
+
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			RandomAccessFile file = null;
+			try {
+				file = openSegmentFile();
+				byte data[] = new byte[sBufferSize];
+				boolean finished = false;
+				while (!finished && !mStopped) {
+					try {
+						transferSegment(file, data);
+						finished = true;
+					} catch (RetryDownload exc) {
+						// redirected, try again at the new location
+					}
+				}
+			} catch (StopRequest error) {
+				if (!mStopped) {
+					mError = error;
+				}
+			} catch (Throwable ex) {
+				if (!mStopped) {
+					mError = new StopRequest(Downloads.STATUS_UNKNOWN_ERROR,
+							"while fetching segment: " + ex.toString(), ex);
+				}
+			} finally {
+				if (mOwnsClient) {
+					closeClient();
+				}
+				if (file != null) {
+					try {
+						file.close();
+					} catch (IOException ex) {
+						Log.w(Constants.TAG, "IOException while closing segment: "
+								+ ex);
+					}
+				}
+				mDone.countDown();
+			}
+		}
+
+		/**
+		 * Abort the connection of this range, usually from another thread.
+		 */
+		public void stop() {
+			mStopped = true;
+			HttpGet request = mRequest;
+			if (request != null) {
+				request.abort();
+			}
+			closeClient();
+		}
+
+		private void closeClient() {
+			HttpStack client = mClient;
+			mClient = null;
+			if (client != null) {
+				try {
+					client.close();
+				} catch (IOException ex) {
+					Log.w(Constants.TAG, "IOException while closing segment: "
+							+ ex);
+				}
 			}
-			throw new StopRequest(status,
-					mInfo.getLogMessageForNetworkError(networkUsable));
 		}
-	}
 
-	/**
-	 * Transfer as much data as possible from the HTTP response to the
-	 * destination file.
-	 * 
-	 * @param data
-	 *            buffer to use to read data
-	 * @param entityStream
-	 *            stream for reading the HTTP response entity
-	 */
-	private void transferData(State state, InnerState innerState, byte[] data,
-			InputStream entityStream) throws StopRequest {
-		for (;;) {
-			int bytesRead = readFromResponse(state, innerState, data,
-					entityStream);
-			if (bytesRead == -1) { // success, end of stream already reached
-				handleEndOfStream(state, innerState);
-				return;
+		private RandomAccessFile openSegmentFile() throws StopRequest {
+			try {
+				return new RandomAccessFile(mState.mFilename, "rw");
+			} catch (FileNotFoundException exc) {
+				throw new StopRequest(Downloads.STATUS_FILE_ERROR,
+						"while opening destination for segment: "
+								+ exc.toString(), exc);
 			}
+		}
 
-			state.mGotData = true;
-			writeDataToDestination(state, data, bytesRead);
-			innerState.mBytesSoFar += bytesRead;
-			reportProgress(state, innerState);
+		private void transferSegment(RandomAccessFile file, byte[] data)
+				throws StopRequest, RetryDownload {
+			InputStream entityStream = mEntityStream;
+			mEntityStream = null;
+			if (entityStream == null) {
+				entityStream = openSegmentEntity();
+			}
+			try {
+				file.seek(mSegment.mStartByte + mSegment.mCurrentBytes);
+			} catch (IOException ex) {
+				throw newWriteError(mState, 0, ex);
+			}
 
-			if (Constants.LOGVV) {
-				Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar
-						+ " for " + mInfo.mUri);
+			while (!mSegment.isComplete() && !mStopped) {
+				int toRead = (int) Math.min(data.length, mSegment.length()
+						- mSegment.mCurrentBytes);
+				int bytesRead;
+				try {
+					bytesRead = entityStream.read(data, 0, toRead);
+				} catch (IOException ex) {
+					logNetworkState();
+					throw new StopRequest(getFinalStatusForHttpError(mState),
+							"while reading segment: " + ex.toString(), ex);
+				}
+				if (bytesRead == -1) {
+					throw new StopRequest(getFinalStatusForHttpError(mState),
+							"closed socket before end of segment");
+				}
+				mTrace.markFirstByte();
+				try {
+					file.write(data, 0, bytesRead);
+				} catch (IOException ex) {
+					throw newWriteError(mState, bytesRead, ex);
+				}
+				mSegment.mCurrentBytes += bytesRead;
+				throttle(mState, bytesRead);
+			}
+		}
+
+		/**
+		 * Request the remainder of this range on a connection of its own.
+		 */
+		private InputStream openSegmentEntity() throws StopRequest,
+				RetryDownload {
+			closeClient();
+			HttpStack client = createHttpStack();
+			mClient = client;
+			HttpGet request = new HttpGet(mState.mRequestUri);
+			mRequest = request;
+			if (mStopped) {
+				throw new StopRequest(Downloads.STATUS_PAUSED_BY_APP,
+						"segment stopped");
 			}
 
-			checkPausedOrCanceled(state);
+			long firstByte = mSegment.mStartByte + mSegment.mCurrentBytes;
+			addCustomHeaders(request);
+			if (mETag != null) {
+				request.addHeader("If-Match", mETag);
+			}
+			request.addHeader("Range", "bytes=" + firstByte + "-"
+					+ mSegment.mEndByte);
+
+			InnerState innerState = new InnerState();
+			innerState.mContinuingDownload = true;
+			innerState.mHeaderETag = mETag;
+			HttpResponse response = sendRequest(mState, client, request);
+			handleExceptionalStatus(mState, innerState, response);
+
+			Header header = response.getFirstHeader("Content-Range");
+			if (header != null
+					&& !header.getValue().startsWith("bytes " + firstByte + "-")) {
+				throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+						"unexpected content range for segment");
+			}
+			return openResponseEntity(mState, response);
 		}
 	}
 
@@ -345,12 +1912,17 @@ public class DownloadTask implements Runnable {
 			new File(state.mFilename).delete();
 			state.mFilename = null;
 		}
+		if (state.mSegments != null && Downloads.isStatusError(finalStatus)) {
+			deleteSegments();
+			state.mSegments = null;
+		}
 	}
 
 	/**
 	 * Sync the destination file to storage.
 	 */
 	private void syncDestination(State state) {
+		long start = System.nanoTime();
 		FileOutputStream downloadedFileStream = null;
 		try {
 			downloadedFileStream = new FileOutputStream(state.mFilename, true);
@@ -377,6 +1949,7 @@ public class DownloadTask implements Runnable {
 					Log.w(Constants.TAG, "exception while closing file: ", ex);
 				}
 			}
+			mTrace.add(Trace.PHASE_SYNC, start);
 		}
 	}
 
@@ -386,9 +1959,9 @@ public class DownloadTask implements Runnable {
 	private void closeDestination(State state) {
 		try {
 			// close the file
-			if (state.mStream != null) {
-				state.mStream.close();
-				state.mStream = null;
+			if (state.mFile != null) {
+				state.mFile.close();
+				state.mFile = null;
 			}
 		} catch (IOException ex) {
 			if (Constants.LOGV) {
@@ -418,11 +1991,35 @@ public class DownloadTask implements Runnable {
 		}
 	}
 
+	/**
+	 * Hold the download back after a read for as long as its bandwidth limits
+	 * require, staying responsive to pause and cancel while waiting.
+	 */
+	private void throttle(State state, int bytesRead) throws StopRequest {
+		long wait = mLimiter.acquire(bytesRead);
+		while (wait > 0) {
+			long step = Math.min(wait, Constants.BANDWIDTH_SLEEP_STEP);
+			try {
+				Thread.sleep(step);
+			} catch (InterruptedException ex) {
+				// pause and cancel are signalled through the database
+				Thread.currentThread().interrupt();
+				checkPausedOrCanceled(state);
+				return;
+			}
+			wait -= step;
+			checkPausedOrCanceled(state);
+		}
+	}
+
 	/**
 	 * Report download progress through the database if necessary.
 	 */
-	private void reportProgress(State state, InnerState innerState) {
+	private void reportProgress(State state, InnerState innerState)
+			throws StopRequest {
 		long now = mSystemFacade.currentTimeMillis();
+		ProgressChannel.getInstance().publish(mInfo.mId,
+				innerState.mBytesSoFar, mInfo.mTotalBytes, state.mSpeed);
 
 		final long sampleDelta = now - state.mSpeedSampleStart;
 		if (sampleDelta > 500) {
@@ -446,11 +2043,16 @@ public class DownloadTask implements Runnable {
 
 		if (innerState.mBytesSoFar - innerState.mBytesNotified > Constants.MIN_PROGRESS_STEP
 				&& now - innerState.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
-			ContentValues values = new ContentValues();
-			values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
-			values.put(Downloads.COLUMN_SPEED, state.mSpeed);
-			mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-					values, null, null);
+			if (innerState.mPreallocated && innerState.mSink != null) {
+				// the length of a preallocated file doesn't tell how far it
+				// has been written, a resume trusts the stored progress
+				flushSink(state, innerState.mSink);
+			}
+			ProgressAggregator.getInstance(mContext).publish(mInfo.mId,
+					innerState.mBytesSoFar, state.mSpeed);
+			if (state.mSegments != null) {
+				persistSegments(state.mSegments);
+			}
 			innerState.mBytesNotified = innerState.mBytesSoFar;
 			innerState.mTimeLastNotification = now;
 		}
@@ -464,56 +2066,63 @@ public class DownloadTask implements Runnable {
 	 * @param bytesRead
 	 *            how many bytes to write from the buffer
 	 */
-	private void writeDataToDestination(State state, byte[] data, int bytesRead)
-			throws StopRequest {
+	private void writeDataToDestination(State state, InnerState innerState,
+			byte[] data, int bytesRead) throws StopRequest {
 		for (;;) {
 			try {
-				if (state.mStream == null) {
-					state.mStream = new FileOutputStream(state.mFilename, true);
+				if (state.mFile == null) {
+					state.mFile = openDestination(state,
+							innerState.mBytesSoFar);
 				}
-				state.mStream.write(data, 0, bytesRead);
+				state.mFile.write(data, 0, bytesRead);
 				if (mInfo.mDestination == Downloads.DESTINATION_EXTERNAL) {
 					closeDestination(state);
 				}
 				return;
 			} catch (IOException ex) {
-				if (!Helpers.isExternalMediaMounted()) {
-					throw new StopRequest(
-							Downloads.STATUS_DEVICE_NOT_FOUND_ERROR,
-							"external media not mounted while writing destination file");
-				}
-
-				long availableBytes = Helpers.getAvailableBytes(Helpers
-						.getFilesystemRoot(state.mFilename));
-				if (availableBytes < bytesRead) {
-					throw new StopRequest(
-							Downloads.STATUS_INSUFFICIENT_SPACE_ERROR,
-							"insufficient space while writing destination file",
-							ex);
-				}
-				throw new StopRequest(Downloads.STATUS_FILE_ERROR,
-						"while writing destination file: " + ex.toString(), ex);
+				throw newWriteError(state, bytesRead, ex);
 			}
 		}
 	}
 
+	/**
+	 * Translate a failed write to the destination file into the reason the
+	 * download has to stop.
+	 */
+	private StopRequest newWriteError(State state, long bytesRead,
+			IOException ex) {
+		if (!Helpers.isExternalMediaMounted()) {
+			return new StopRequest(Downloads.STATUS_DEVICE_NOT_FOUND_ERROR,
+					"external media not mounted while writing destination file");
+		}
+
+		long availableBytes = Helpers.getAvailableBytes(Helpers
+				.getFilesystemRoot(state.mFilename));
+		if (availableBytes < bytesRead) {
+			return new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR,
+					"insufficient space while writing destination file", ex);
+		}
+		return new StopRequest(Downloads.STATUS_FILE_ERROR,
+				"while writing destination file: " + ex.toString(), ex);
+	}
+
 	/**
 	 * Called when we've reached the end of the HTTP response stream, to update
 	 * the database and check for consistency.
 	 */
 	private void handleEndOfStream(State state, InnerState innerState)
 			throws StopRequest {
+		ProgressAggregator.getInstance(mContext).remove(mInfo.mId);
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
 		if (innerState.mHeaderContentLength == null) {
 			values.put(Downloads.COLUMN_TOTAL_BYTES, innerState.mBytesSoFar);
 		}
-		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-				values, null, null);
+		updateDownload(values);
 
 		boolean lengthMismatched = (innerState.mHeaderContentLength != null)
-				&& (innerState.mBytesSoFar != Integer
-						.parseInt(innerState.mHeaderContentLength));
+				&& (innerState.mBytesSoFar != Long
+						.parseLong(innerState.mHeaderContentLength));
 		if (lengthMismatched) {
 			if (cannotResume(innerState)) {
 				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME,
@@ -523,11 +2132,296 @@ public class DownloadTask implements Runnable {
 						"closed socket before end of file");
 			}
 		}
+		if (innerState.mContentEncoding != null) {
+			inflateDestination(state);
+		}
+		if (state.mDelta) {
+			applyPatch(state);
+			// the validator was the patch's
+			innerState.mHeaderETag = null;
+		}
+		String problem = checkIntegrity(state);
+		if (problem != null) {
+			throw new StopRequest(Downloads.STATUS_INTEGRITY_ERROR, problem);
+		}
+	}
+
+	/**
+	 * Whether the data written by the transfer is the data of the file, in
+	 * order, so that the digest can be fed as it is written.
+	 */
+	private boolean canDigestTransfer(State state, InnerState innerState) {
+		return innerState.mContentEncoding == null && !state.mDelta
+				&& state.mSegments == null;
+	}
+
+	/**
+	 * Whether the data the transfer is about to count goes into the digest,
+	 * which then has to cover everything before it.
+	 */
+	private boolean digestsTransfer(State state, InnerState innerState) {
+		return state.mDigest != null && canDigestTransfer(state, innerState)
+				&& state.mDigest.getCount() == innerState.mBytesSoFar;
+	}
+
+	/**
+	 * Set up the digest of the destination for a request. A resumed download
+	 * continues the digest of the previous request, or the one its last
+	 * attempt saved, digesting from the file only what came after it.
+	 */
+	private void prepareDigest(State state, InnerState innerState)
+			throws StopRequest {
+		if (mInfo.mDigestAlgorithm == null) {
+			state.mDigest = null;
+			return;
+		}
+		StreamingDigest digest = null;
+		if (innerState.mContinuingDownload
+				&& canDigestTransfer(state, innerState)) {
+			digest = state.mDigest;
+			if (digest == null) {
+				digest = StreamingDigest.restoreState(mInfo.mDigestState);
+			}
+		}
+		if (digest == null
+				|| !digest.getAlgorithm().equalsIgnoreCase(
+						mInfo.mDigestAlgorithm)
+				|| digest.getCount() > innerState.mBytesSoFar) {
+			digest = StreamingDigest.getInstance(mInfo.mDigestAlgorithm);
+		}
+		if (innerState.mContinuingDownload
+				&& canDigestTransfer(state, innerState)) {
+			catchUpDigest(digest, state.mFilename, innerState.mBytesSoFar);
+		}
+		state.mDigest = digest;
+	}
+
+	/**
+	 * Digest the part of a file after what a digest has seen, up to some
+	 * length.
+	 */
+	private void catchUpDigest(StreamingDigest digest, String filename,
+			long length) throws StopRequest {
+		if (digest.getCount() >= length) {
+			return;
+		}
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "digesting " + (length - digest.getCount())
+					+ " bytes of " + filename);
+		}
+		byte[] data = new byte[sBufferSize];
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			file.seek(digest.getCount());
+			while (digest.getCount() < length) {
+				int count = file.read(data, 0, (int) Math.min(data.length,
+						length - digest.getCount()));
+				if (count == -1) {
+					throw new IOException("file shorter than " + length);
+				}
+				digest.update(data, 0, count);
+			}
+		} catch (IOException ex) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR,
+					"while digesting destination: " + ex.toString(), ex);
+		} finally {
+			closeQuietly(file);
+		}
+	}
+
+	/**
+	 * Keep the digest of an interrupted download for the attempt that resumes
+	 * it.
+	 */
+	private void saveDigest(State state, int finalStatus) {
+		if (state.mDigest == null || Downloads.isStatusCompleted(finalStatus)) {
+			return;
+		}
+		ContentValues values = new ContentValues();
+		values.put(Constants.DIGEST_STATE, state.mDigest.saveState());
+		updateDownload(values);
+	}
+
+	/**
+	 * Check a complete download against the size and digest the app expects.
+	 * The digest catches up with whatever part of the file the transfer
+	 * couldn't feed it, and a SHA-256 already verified for the file is
+	 * trusted as it is.
+	 * 
+	 * @return why the file isn't the expected one, null if it is
+	 */
+	private String checkIntegrity(State state) throws StopRequest {
+		long length = new File(state.mFilename).length();
+		if (mInfo.mExpectedSize >= 0 && length != mInfo.mExpectedSize) {
+			return "file has " + length + " bytes, expected "
+					+ mInfo.mExpectedSize;
+		}
+		if (mInfo.mDigestAlgorithm == null) {
+			return null;
+		}
+		String actual;
+		if (state.mSha256 != null
+				&& StreamingDigest.SHA256
+						.equalsIgnoreCase(mInfo.mDigestAlgorithm)) {
+			actual = state.mSha256;
+		} else {
+			StreamingDigest digest = state.mDigest;
+			if (digest == null || digest.getCount() > length) {
+				digest = StreamingDigest.getInstance(mInfo.mDigestAlgorithm);
+			}
+			catchUpDigest(digest, state.mFilename, length);
+			actual = digest.digest();
+		}
+		if (!actual.equalsIgnoreCase(mInfo.mExpectedDigest)) {
+			return "file has " + mInfo.mDigestAlgorithm + " " + actual
+					+ ", expected " + mInfo.mExpectedDigest;
+		}
+		if (StreamingDigest.SHA256.equalsIgnoreCase(mInfo.mDigestAlgorithm)) {
+			state.mSha256 = actual.toLowerCase(Locale.ENGLISH);
+		}
+		return null;
+	}
+
+	/**
+	 * Replace the patch of a complete delta download with the file rebuilt from
+	 * it and the base file. Any failure is reported as a data error, for which
+	 * the full file is downloaded instead.
+	 */
+	private void applyPatch(State state) throws StopRequest {
+		closeDestination(state);
+		File patch = new File(state.mFilename);
+		File patched = new File(state.mFilename + ".patched");
+		long patchedBytes;
+		StreamingDigest digest;
+		try {
+			if (mInfo.mDeltaBase == null || mInfo.mDeltaSha256 == null) {
+				throw new DeltaPatcher.PatchException("no base file or digest");
+			}
+			digest = state.mDigest != null ? StreamingDigest
+					.getInstance(state.mDigest.getAlgorithm()) : null;
+			patchedBytes = new DeltaPatcher(sBufferSize).apply(new File(
+					mInfo.mDeltaBase), patch, patched, mInfo.mDeltaSha256,
+					digest);
+			if (!patched.renameTo(patch)) {
+				throw new DeltaPatcher.PatchException(
+						"couldn't replace patch with patched file");
+			}
+		} catch (DeltaPatcher.PatchException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+					"while applying patch: " + ex.getMessage(), ex);
+		} finally {
+			patched.delete();
+		}
+
+		long patchBytes = mInfo.mTotalBytes;
+		state.mDelta = false;
+		state.mSha256 = mInfo.mDeltaSha256;
+		state.mDigest = digest;
+		mInfo.mDeltaUri = null;
+		mInfo.mETag = null;
+		mInfo.mTotalBytes = patchedBytes;
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, patchedBytes);
+		values.put(Downloads.COLUMN_TOTAL_BYTES, patchedBytes);
+		// the file is now complete on its own
+		values.putNull(Downloads.COLUMN_DELTA_URI);
+		values.putNull(Constants.ETAG);
+		updateDownload(values);
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "patched " + mInfo.mDeltaBase + " into "
+					+ patchedBytes + " bytes from a " + patchBytes
+					+ " byte patch");
+		}
+	}
+
+	/**
+	 * Replace the compressed data of a complete download with the inflated
+	 * content, through a temporary file so that a failure leaves the
+	 * compressed data for the next attempt.
+	 */
+	private void inflateDestination(State state) throws StopRequest {
+		closeDestination(state);
+		File inflated = new File(state.mFilename + ".inflate");
+		// the digest is of the inflated file, computed on the way
+		StreamingDigest digest = state.mDigest != null ? StreamingDigest
+				.getInstance(state.mDigest.getAlgorithm()) : null;
+		byte[] data = new byte[sBufferSize];
+		long inflatedBytes = 0;
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			try {
+				in = new GZIPInputStream(new FileInputStream(state.mFilename),
+						sBufferSize);
+				out = new FileOutputStream(inflated);
+			} catch (IOException ex) {
+				throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+						"while opening compressed download: " + ex, ex);
+			}
+			for (;;) {
+				int bytesRead;
+				try {
+					bytesRead = in.read(data);
+				} catch (IOException ex) {
+					throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
+							"while inflating download: " + ex, ex);
+				}
+				if (bytesRead == -1) {
+					break;
+				}
+				try {
+					out.write(data, 0, bytesRead);
+				} catch (IOException ex) {
+					throw newWriteError(state, bytesRead, ex);
+				}
+				if (digest != null) {
+					digest.update(data, 0, bytesRead);
+				}
+				inflatedBytes += bytesRead;
+			}
+			try {
+				out.close();
+				out = null;
+			} catch (IOException ex) {
+				throw newWriteError(state, 0, ex);
+			}
+			if (!inflated.renameTo(new File(state.mFilename))) {
+				throw new StopRequest(Downloads.STATUS_FILE_ERROR,
+						"couldn't replace compressed download");
+			}
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+			inflated.delete();
+		}
+
+		state.mDigest = digest;
+		mInfo.mTotalBytes = inflatedBytes;
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, inflatedBytes);
+		values.put(Downloads.COLUMN_TOTAL_BYTES, inflatedBytes);
+		values.putNull(Constants.CONTENT_ENCODING);
+		updateDownload(values);
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "inflated " + mInfo.mUri + " to "
+					+ inflatedBytes + " bytes");
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// nothing can really be done about it
+			}
+		}
 	}
 
 	private boolean cannotResume(InnerState innerState) {
 		return innerState.mBytesSoFar > 0 && !mInfo.mNoIntegrity
-				&& innerState.mHeaderETag == null;
+				&& innerState.mHeaderETag == null && !resumesAcrossSources();
 	}
 
 	/**
@@ -545,20 +2439,28 @@ public class DownloadTask implements Runnable {
 		try {
 			return entityStream.read(data);
 		} catch (IOException ex) {
-			logNetworkState();
-			ContentValues values = new ContentValues();
-			values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
-			mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-					values, null, null);
-			if (cannotResume(innerState)) {
-				String message = "while reading response: " + ex.toString()
-						+ ", can't resume interrupted download with no ETag";
-				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, message,
-						ex);
-			} else {
-				throw new StopRequest(getFinalStatusForHttpError(state),
-						"while reading response: " + ex.toString(), ex);
-			}
+			throw newReadError(state, innerState, ex);
+		}
+	}
+
+	/**
+	 * Record the progress made before a failed read from the response and
+	 * translate the failure into the reason the download has to stop.
+	 */
+	private StopRequest newReadError(State state, InnerState innerState,
+			IOException ex) {
+		logNetworkState();
+		ProgressAggregator.getInstance(mContext).remove(mInfo.mId);
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
+		updateDownload(values);
+		if (cannotResume(innerState)) {
+			String message = "while reading response: " + ex.toString()
+					+ ", can't resume interrupted download with no ETag";
+			return new StopRequest(Downloads.STATUS_CANNOT_RESUME, message, ex);
+		} else {
+			return new StopRequest(getFinalStatusForHttpError(state),
+					"while reading response: " + ex.toString(), ex);
 		}
 	}
 
@@ -594,11 +2496,30 @@ public class DownloadTask implements Runnable {
 	private void processResponseHeaders(State state, InnerState innerState,
 			HttpResponse response) throws StopRequest {
 		if (innerState.mContinuingDownload) {
-			// ignore response headers on resume requests
+			// ignore response headers on resume requests, but the rest of
+			// the data has to come in the coding of what we have
+			if (!TextUtils.equals(getContentEncoding(response),
+					innerState.mContentEncoding)) {
+				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME,
+						"content coding changed on resume");
+			}
+			if (resumesAcrossSources()) {
+				checkContentRange(innerState, response);
+			}
 			return;
 		}
 
 		readResponseHeaders(state, innerState, response);
+		if (mInfo.mExpectedSize >= 0
+				&& innerState.mHeaderContentLength != null
+				&& innerState.mContentEncoding == null
+				&& !state.mDelta
+				&& Long.parseLong(innerState.mHeaderContentLength)
+						!= mInfo.mExpectedSize) {
+			throw new StopRequest(Downloads.STATUS_INTEGRITY_ERROR,
+					"server reports " + innerState.mHeaderContentLength
+							+ " bytes, expected " + mInfo.mExpectedSize);
+		}
 
 		try {
 			state.mFilename = Helpers.generateSaveFile(
@@ -617,8 +2538,9 @@ public class DownloadTask implements Runnable {
 			throw new StopRequest(exc.mStatus, exc.mMessage);
 		}
 		try {
-			state.mStream = new FileOutputStream(state.mFilename);
-		} catch (FileNotFoundException exc) {
+			state.mFile = new RandomAccessFile(state.mFilename, "rw");
+			state.mFile.setLength(0);
+		} catch (IOException exc) {
 			throw new StopRequest(Downloads.STATUS_FILE_ERROR,
 					"while opening destination file: " + exc.toString(), exc);
 		}
@@ -645,9 +2567,10 @@ public class DownloadTask implements Runnable {
 		if (state.mMimeType != null) {
 			values.put(Downloads.COLUMN_MIME_TYPE, state.mMimeType);
 		}
+		values.put(Constants.CONTENT_ENCODING, innerState.mContentEncoding);
+		values.putNull(Constants.DIGEST_STATE);
 		values.put(Downloads.COLUMN_TOTAL_BYTES, mInfo.mTotalBytes);
-		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-				values, null, null);
+		updateDownload(values);
 	}
 
 	/**
@@ -655,15 +2578,19 @@ public class DownloadTask implements Runnable {
 	 */
 	private void readResponseHeaders(State state, InnerState innerState,
 			HttpResponse response) throws StopRequest {
-		Header header = response.getFirstHeader("Content-Disposition");
-		if (header != null) {
-			innerState.mHeaderContentDisposition = header.getValue();
-		}
-		header = response.getFirstHeader("Content-Location");
-		if (header != null) {
-			innerState.mHeaderContentLocation = header.getValue();
+		Header header;
+		// the name and type of a patch aren't those of the file it makes
+		if (!state.mDelta) {
+			header = response.getFirstHeader("Content-Disposition");
+			if (header != null) {
+				innerState.mHeaderContentDisposition = header.getValue();
+			}
+			header = response.getFirstHeader("Content-Location");
+			if (header != null) {
+				innerState.mHeaderContentLocation = header.getValue();
+			}
 		}
-		if (state.mMimeType == null) {
+		if (state.mMimeType == null && !state.mDelta) {
 			header = response.getFirstHeader("Content-Type");
 			if (header != null) {
 				state.mMimeType = sanitizeMimeType(header.getValue());
@@ -673,6 +2600,7 @@ public class DownloadTask implements Runnable {
 		if (header != null) {
 			innerState.mHeaderETag = header.getValue();
 		}
+		innerState.mContentEncoding = getContentEncoding(response);
 		String headerTransferEncoding = null;
 		header = response.getFirstHeader("Transfer-Encoding");
 		if (header != null) {
@@ -776,8 +2704,8 @@ public class DownloadTask implements Runnable {
 
 		String newUri;
 		try {
-			newUri = new URI(mInfo.mUri).resolve(new URI(header.getValue()))
-					.toString();
+			newUri = new URI(state.mSourceUri).resolve(
+					new URI(header.getValue())).toString();
 		} catch (URISyntaxException ex) {
 			if (Constants.LOGV) {
 				Log.d(Constants.TAG,
@@ -789,7 +2717,8 @@ public class DownloadTask implements Runnable {
 		}
 		++state.mRedirectCount;
 		state.mRequestUri = newUri;
-		if (statusCode == 301 || statusCode == 303) {
+		if ((statusCode == 301 || statusCode == 303) && !state.mDelta
+				&& state.mSourceUri.equals(mInfo.mUri)) {
 			// use the new URI for all future requests (should a retry/resume be
 			// necessary)
 			state.mNewUri = newUri;
@@ -797,6 +2726,24 @@ public class DownloadTask implements Runnable {
 		throw new RetryDownload();
 	}
 
+	/**
+	 * Check that a response resuming a download from another source than the
+	 * one it started from holds the rest of a file of the same length.
+	 */
+	private void checkContentRange(InnerState innerState,
+			HttpResponse response) throws StopRequest {
+		Header header = response.getFirstHeader("Content-Range");
+		String expected = "bytes " + innerState.mBytesSoFar + "-"
+				+ (mInfo.mTotalBytes - 1) + "/" + mInfo.mTotalBytes;
+		if (header == null
+				|| !header.getValue().trim().equalsIgnoreCase(expected)) {
+			throw new StopRequest(Downloads.STATUS_CANNOT_RESUME,
+					"resumed with Content-Range "
+							+ (header != null ? header.getValue() : null)
+							+ ", expected " + expected);
+		}
+	}
+
 	/**
 	 * Handle a 503 Service Unavailable status by processing the Retry-After
 	 * header.
@@ -839,8 +2786,14 @@ public class DownloadTask implements Runnable {
 	 */
 	private HttpResponse sendRequest(State state, HttpStack client,
 			HttpGet request) throws StopRequest {
+		long start = System.nanoTime();
 		try {
-			return client.performRequest(request);
+			HttpResponse response = client.performRequest(request);
+			mTrace.markResponse();
+			HostHealthRegistry.getInstance().recordLatency(
+					request.getURI().getHost(),
+					(System.nanoTime() - start) / 1000000);
+			return response;
 		} catch (IllegalArgumentException ex) {
 			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR,
 					"while trying to execute request: " + ex.toString(), ex);
@@ -848,6 +2801,8 @@ public class DownloadTask implements Runnable {
 			logNetworkState();
 			throw new StopRequest(getFinalStatusForHttpError(state),
 					"while trying to execute request: " + ex.toString(), ex);
+		} finally {
+			mTrace.add(Trace.PHASE_REQUEST, start);
 		}
 	}
 
@@ -881,38 +2836,64 @@ public class DownloadTask implements Runnable {
 			File f = new File(state.mFilename);
 			if (f.exists()) {
 				long fileLength = f.length();
+				Segment[] segments = fileLength > 0 ? readSegments() : null;
 				if (fileLength == 0) {
 					// The download hadn't actually started, we can restart from
 					// scratch
 					f.delete();
 					state.mFilename = null;
-				} else if (mInfo.mETag == null && !mInfo.mNoIntegrity) {
+				} else if (mInfo.mETag == null && !mInfo.mNoIntegrity
+						&& !resumesAcrossSources()) {
 					// This should've been caught upon failure
 					f.delete();
 					throw new StopRequest(Downloads.STATUS_CANNOT_RESUME,
 							"Trying to resume a download that can't be resumed");
+				} else if (segments != null) {
+					// The ranges were written out of order, so the file length
+					// says nothing about the progress; each range resumes from
+					// its own offset
+					state.mSegments = segments;
+					innerState.mBytesSoFar = sumSegmentBytes(state.mSegments);
+					innerState.mHeaderContentLength = Long
+							.toString(mInfo.mTotalBytes);
+					innerState.mHeaderETag = mInfo.mETag;
+					innerState.mContinuingDownload = true;
 				} else {
-					// All right, we'll be able to resume this download
+					// All right, we'll be able to resume this download. A
+					// preallocated file has its full length from the start,
+					// only the stored progress tells how much of it is there
+					long bytesSoFar = fileLength;
+					if (fileLength == mInfo.mTotalBytes
+							&& mInfo.mCurrentBytes < fileLength) {
+						bytesSoFar = mInfo.mCurrentBytes;
+						innerState.mPreallocated = true;
+					}
 					try {
-						state.mStream = new FileOutputStream(state.mFilename,
-								true);
-					} catch (FileNotFoundException exc) {
+						state.mFile = openDestination(state, bytesSoFar);
+					} catch (IOException exc) {
 						throw new StopRequest(Downloads.STATUS_FILE_ERROR,
 								"while opening destination for resuming: "
 										+ exc.toString(), exc);
 					}
-					innerState.mBytesSoFar = (int) fileLength;
+					innerState.mBytesSoFar = bytesSoFar;
 					if (mInfo.mTotalBytes != -1) {
 						innerState.mHeaderContentLength = Long
 								.toString(mInfo.mTotalBytes);
 					}
 					innerState.mHeaderETag = mInfo.mETag;
+					innerState.mContentEncoding = mInfo.mContentEncoding;
 					innerState.mContinuingDownload = true;
 				}
 			}
 		}
 
-		if (state.mStream != null
+		if (state.mSegments == null) {
+			// ranges left over from an earlier attempt must never be mixed
+			// with a contiguous download
+			deleteSegments();
+		}
+
+		if (state.mFile != null
 				&& mInfo.mDestination == Downloads.DESTINATION_EXTERNAL) {
 			closeDestination(state);
 		}
@@ -922,6 +2903,56 @@ public class DownloadTask implements Runnable {
 	 * Add custom headers for this download to the HTTP request.
 	 */
 	private void addRequestHeaders(InnerState innerState, HttpGet request) {
+		addCustomHeaders(request);
+
+		// a resumed download must get the rest in the coding it started with,
+		// the range counts bytes of that coding
+		String encoding = innerState.mContinuingDownload ? innerState.mContentEncoding
+				: acceptedContentEncoding();
+		if (encoding != null) {
+			request.setHeader("Accept-Encoding", encoding);
+		}
+		if (innerState.mContinuingDownload) {
+			// the ETag may be the one of another mirror
+			if (innerState.mHeaderETag != null && !resumesAcrossSources()) {
+				request.addHeader("If-Match", innerState.mHeaderETag);
+			}
+			request.addHeader("Range", "bytes=" + innerState.mBytesSoFar + "-");
+		}
+	}
+
+	/**
+	 * The compressed coding to ask for when starting this download, or null to
+	 * transfer it as it is.
+	 */
+	private String acceptedContentEncoding() {
+		if (!mInfo.mAllowCompression
+				|| !Helpers.isCompressibleMimeType(mInfo.mMimeType)) {
+			return null;
+		}
+		return "gzip";
+	}
+
+	/**
+	 * The coding of a response the download has to undo once complete, or
+	 * null if the data is kept as it comes.
+	 */
+	private String getContentEncoding(HttpResponse response) {
+		Header header = response.getFirstHeader("Content-Encoding");
+		if (header == null || !mInfo.mAllowCompression) {
+			return null;
+		}
+		String encoding = header.getValue().trim().toLowerCase(Locale.ENGLISH);
+		if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+			return "gzip";
+		}
+		return null;
+	}
+
+	/**
+	 * Add the headers sent with every request of this download.
+	 */
+	private void addCustomHeaders(HttpGet request) {
 		for (Pair<String, String> header : mInfo.getHeaders()) {
 			request.addHeader(header.first, header.second);
 		}
@@ -933,13 +2964,6 @@ public class DownloadTask implements Runnable {
 		// Defeat transparent gzip compression, since it doesn't allow us to
 		// easily resume partial downloads.
 		request.addHeader("Accept-Encoding", "identity");
-
-		if (innerState.mContinuingDownload) {
-			if (innerState.mHeaderETag != null) {
-				request.addHeader("If-Match", innerState.mHeaderETag);
-			}
-			request.addHeader("Range", "bytes=" + innerState.mBytesSoFar + "-");
-		}
 	}
 
 	/**
@@ -977,8 +3001,7 @@ public class DownloadTask implements Runnable {
 			values.put(Constants.FAILED_CONNECTIONS, mInfo.mNumFailed + 1);
 		}
 
-		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-				values, null, null);
+		updateDownload(values);
 	}
 
 	/**
@@ -991,7 +3014,7 @@ public class DownloadTask implements Runnable {
 	 *         single mimetype in lowercase and with surrounding whitespaces
 	 *         trimmed.
 	 */
-	private static String sanitizeMimeType(String mimeType) {
+	static String sanitizeMimeType(String mimeType) {
 		try {
 			mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
 
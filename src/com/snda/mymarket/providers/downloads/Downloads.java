@@ -84,6 +84,16 @@ public final class Downloads implements BaseColumns {
 	public static final Uri ALL_DOWNLOADS_CONTENT_URI = Uri.parse("content://"
 			+ AUTHORITY + "/all_downloads");
 
+	/**
+	 * The URI notified when download rows have been deleted. Row versions
+	 * can't tell which rows disappeared, so observers of this URI have to
+	 * reread the whole table.
+	 * 
+	 * @hide
+	 */
+	public static final Uri DELETED_CONTENT_URI = Uri.parse("content://"
+			+ AUTHORITY + "/all_downloads/deleted");
+
 	/**
 	 * Broadcast Action: this is sent by the download manager to the app that
 	 * had initiated a download when that download completes. The download's
@@ -398,6 +408,149 @@ public final class Downloads implements BaseColumns {
 	 */
 	public static final String COLUMN_SPEED = "download_speed";
 
+	/**
+	 * The name of the column containing the version of the row, raised every
+	 * time the row is written, so that readers can fetch only what changed
+	 * since their last read.
+	 * <P>
+	 * Type: INTEGER
+	 * </P>
+	 * <P>
+	 * Owner can Read
+	 * </P>
+	 * 
+	 * @hide
+	 */
+	public static final String COLUMN_ROW_VERSION = "row_version";
+
+	/**
+	 * The name of the column holding the bandwidth this download may use, in
+	 * bytes per second, or 0 for no limit.
+	 * <P>
+	 * Type: INTEGER
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read/Write
+	 * </P>
+	 */
+	public static final String COLUMN_MAX_BYTES_PER_SECOND = "max_bytes_per_second";
+
+	/**
+	 * The name of the column holding whether the server may send this download
+	 * gzip-compressed. The file is inflated once complete.
+	 * <P>
+	 * Type: BOOLEAN
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_ALLOW_COMPRESSION = "allow_compression";
+
+	/**
+	 * The name of the column holding the path of an older version of the file,
+	 * which a patch from {@link #COLUMN_DELTA_URI} turns into the new one.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_DELTA_BASE = "delta_base";
+
+	/**
+	 * The name of the column holding the URI of the patch downloaded instead of
+	 * the full file. It is cleared if the file can't be rebuilt from the
+	 * patch, and the full file is downloaded from {@link #COLUMN_URI} then.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_DELTA_URI = "delta_uri";
+
+	/**
+	 * The name of the column holding the SHA-256 digest, in hex, that the file
+	 * rebuilt from the patch must have.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_DELTA_SHA256 = "delta_sha256";
+
+	/**
+	 * The name of the column holding the algorithm of
+	 * {@link #COLUMN_EXPECTED_DIGEST}: MD5, SHA-1 or SHA-256.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_DIGEST_ALGORITHM = "digest_algorithm";
+
+	/**
+	 * The name of the column holding the digest, in hex, that the downloaded
+	 * file must have. It is computed as the data arrives; a file with another
+	 * digest fails with {@link #STATUS_INTEGRITY_ERROR}.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_EXPECTED_DIGEST = "expected_digest";
+
+	/**
+	 * The name of the column holding the size in bytes that the downloaded
+	 * file must have, -1 if unknown. A file of another size fails with
+	 * {@link #STATUS_INTEGRITY_ERROR}.
+	 * <P>
+	 * Type: INTEGER
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_EXPECTED_SIZE = "expected_size";
+
+	/**
+	 * The name of the column holding other HTTP URIs of the same file, one per
+	 * line. The download starts from whichever source answers fastest, and
+	 * moves on to the next one, resuming where it stopped, when a source fails
+	 * or stalls.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_MIRRORS = "mirrors";
+
+	/**
+	 * The name of the column telling whether {@link #COLUMN_URI} is a Metalink
+	 * document describing the file rather than the file itself. The document
+	 * is read before the download starts; its sources then replace
+	 * {@link #COLUMN_URI} and {@link #COLUMN_MIRRORS}, and its size and digest
+	 * are expected unless the app gave its own, and this column is cleared.
+	 * <P>
+	 * Type: BOOLEAN
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read
+	 * </P>
+	 */
+	public static final String COLUMN_METALINK = "metalink";
+
 	/**
 	 * The name of the column where the initiating application can provide the
 	 * UID of another application that is allowed to access this download. If
@@ -753,7 +906,13 @@ public final class Downloads implements BaseColumns {
 	/**
 	 * The lowest-valued error status that is not an actual HTTP status code.
 	 */
-	public static final int MIN_ARTIFICIAL_ERROR_STATUS = 488;
+	public static final int MIN_ARTIFICIAL_ERROR_STATUS = 487;
+
+	/**
+	 * The downloaded file doesn't have the size or digest the initiating
+	 * application expects.
+	 */
+	public static final int STATUS_INTEGRITY_ERROR = 487;
 
 	/**
 	 * The requested destination file already exists.
@@ -861,10 +1020,118 @@ public final class Downloads implements BaseColumns {
 		 */
 		public static final String URI_SEGMENT = "headers";
 
+		/**
+		 * The URI of the headers of many downloads at once, private to the
+		 * download manager process. A query selects downloads, like a query
+		 * of {@link Downloads#ALL_DOWNLOADS_CONTENT_URI}, and returns the
+		 * download id, header and value of each of their headers, grouped by
+		 * download.
+		 */
+		public static final Uri ALL_CONTENT_URI = Uri.withAppendedPath(
+				ALL_DOWNLOADS_CONTENT_URI, URI_SEGMENT);
+
 		/**
 		 * Prefix for ContentValues keys that contain HTTP header lines, to be
 		 * passed to DownloadProvider.insert().
 		 */
 		public static final String INSERT_KEY_PREFIX = "http_header_";
 	}
+
+	/**
+	 * Constants related to the byte ranges of a download that is fetched over
+	 * several parallel connections. These rows are private to the download
+	 * manager process and are removed once the download completes or fails.
+	 */
+	public static class Segments {
+		public static final String SEGMENTS_DB_TABLE = "download_segments";
+		public static final String COLUMN_DOWNLOAD_ID = "download_id";
+		/** Position of the segment within the download, starting at 0 */
+		public static final String COLUMN_SEGMENT = "segment";
+		/** Offset of the first byte of the segment in the destination file */
+		public static final String COLUMN_START_BYTE = "start_byte";
+		/** Offset of the last byte of the segment, inclusive */
+		public static final String COLUMN_END_BYTE = "end_byte";
+		/** Number of bytes of the segment that have been written so far */
+		public static final String COLUMN_CURRENT_BYTES = "current_bytes";
+
+		/**
+		 * Path segment to add to a download URI to retrieve its segments
+		 */
+		public static final String URI_SEGMENT = "segments";
+	}
+
+	/**
+	 * Constants related to the attempts made at a download, each one a run of
+	 * the download from its start or resumption until it succeeds, fails or
+	 * is interrupted. Each attempt records how long it spent in every phase,
+	 * so that a slow download can be blamed on the network, the server, the
+	 * storage or the database. All times are in milliseconds and the phases
+	 * don't overlap; waiting for bandwidth counts as transfer time. Only the
+	 * most recent attempts of a download are kept.
+	 */
+	public static class Attempts {
+		public static final String ATTEMPTS_DB_TABLE = "download_attempts";
+		public static final String COLUMN_DOWNLOAD_ID = "download_id";
+		/** When the attempt started, in System.currentTimeMillis() */
+		public static final String COLUMN_STARTED_AT = "started_at";
+		/** The status the download had at the end of the attempt */
+		public static final String COLUMN_STATUS = "status";
+		/** ConnectivityManager.TYPE_* of the network at the end, or -1 if none */
+		public static final String COLUMN_NETWORK_TYPE = "network_type";
+		/** Number of bytes downloaded during the attempt */
+		public static final String COLUMN_BYTES = "bytes";
+		/** Wall time of the whole attempt */
+		public static final String COLUMN_TOTAL_TIME = "total_time";
+		/** Time spent checking whether the network may be used */
+		public static final String COLUMN_CONNECTIVITY_TIME = "connectivity_time";
+		/**
+		 * Time spent sending requests until their response headers arrived,
+		 * including name lookups and connection setup
+		 */
+		public static final String COLUMN_REQUEST_TIME = "request_time";
+		/** Time from the response headers to the first byte of the body */
+		public static final String COLUMN_FIRST_BYTE_TIME = "first_byte_time";
+		/** Time spent moving the body to the destination after its first byte */
+		public static final String COLUMN_TRANSFER_TIME = "transfer_time";
+		/** Time spent syncing the destination file to storage */
+		public static final String COLUMN_SYNC_TIME = "sync_time";
+		/** Time the download thread spent writing to this provider */
+		public static final String COLUMN_DATABASE_TIME = "database_time";
+
+		/**
+		 * Path segment to add to a download URI to retrieve its attempts
+		 */
+		public static final String URI_SEGMENT = "attempts";
+	}
+
+	/**
+	 * Constants related to the index of completed downloads, which lets a new
+	 * download of content already on the device be satisfied by a local copy.
+	 * An entry is keyed by the normalized URI, ETag and length of the content,
+	 * and by its SHA-256 digest when known, and is removed together with its
+	 * download. The index is private to the download manager.
+	 */
+	public static class Cache {
+		public static final String CACHE_DB_TABLE = "download_cache";
+		public static final String COLUMN_DOWNLOAD_ID = "download_id";
+		/** The URI of the download, normalized */
+		public static final String COLUMN_URI = "uri";
+		/** The ETag of the content, null if the server gave none */
+		public static final String COLUMN_ETAG = "etag";
+		/** The length of the file */
+		public static final String COLUMN_TOTAL_BYTES = "total_bytes";
+		/** The SHA-256 digest of the file in hex, null if unknown */
+		public static final String COLUMN_SHA256 = "sha256";
+		/** The path of the file */
+		public static final String COLUMN_DATA = "_data";
+		public static final String COLUMN_MIME_TYPE = "mimetype";
+		/** When the download completed, in System.currentTimeMillis() */
+		public static final String COLUMN_CREATED_AT = "created_at";
+
+		/**
+		 * The content:// URI of the index
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://"
+				+ AUTHORITY + "/download_cache");
+	}
 }
@@ -17,6 +17,12 @@
 package com.snda.mymarket.providers.downloads;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -31,6 +37,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
 import android.os.SystemClock;
@@ -417,6 +424,72 @@ public class Helpers {
 		return stat.getBlockSize() * availableBlocks;
 	}
 
+	/**
+	 * Whether content of a MIME type gets meaningfully smaller when compressed
+	 * for the transfer. Archives, packages and most media are compressed
+	 * already; anything unknown is assumed compressible.
+	 */
+	public static boolean isCompressibleMimeType(String mimeType) {
+		if (mimeType == null) {
+			return true;
+		}
+		mimeType = mimeType.toLowerCase(Locale.ENGLISH);
+		if (mimeType.startsWith("text/") || mimeType.endsWith("+xml")
+				|| mimeType.endsWith("+json")) {
+			return true;
+		}
+		if (mimeType.startsWith("audio/") || mimeType.startsWith("video/")
+				|| (mimeType.startsWith("image/") && !mimeType.equals("image/bmp"))) {
+			return false;
+		}
+		return !(mimeType.equals("application/vnd.android.package-archive")
+				|| mimeType.equals("application/java-archive")
+				|| mimeType.equals("application/zip")
+				|| mimeType.equals("application/gzip")
+				|| mimeType.equals("application/x-gzip")
+				|| mimeType.equals("application/x-bzip2")
+				|| mimeType.equals("application/x-xz")
+				|| mimeType.equals("application/x-7z-compressed")
+				|| mimeType.equals("application/x-rar-compressed"));
+	}
+
+	/**
+	 * Give a file its full length up front. Where the platform exposes
+	 * posix_fallocate() (API 21 and up) the blocks are actually reserved;
+	 * otherwise the file is only extended, which ext4 and friends keep sparse
+	 * until the data is written, so the free space is checked first instead.
+	 * 
+	 * @throws IOException
+	 *             if the file can't be extended, or the filesystem at path
+	 *             doesn't have length bytes left
+	 */
+	public static void preallocate(String path, RandomAccessFile file,
+			long length) throws IOException {
+		if (Build.VERSION.SDK_INT >= 21) {
+			try {
+				Class<?> os = Class.forName("android.system.Os");
+				Method fallocate = os.getMethod("posix_fallocate",
+						FileDescriptor.class, long.class, long.class);
+				fallocate.invoke(null, file.getFD(), 0L, length);
+				return;
+			} catch (InvocationTargetException ex) {
+				// not every filesystem supports fallocate(), fall back to
+				// extending the file
+				Log.w(Constants.TAG, "posix_fallocate failed: " + ex.getCause());
+			} catch (Exception ex) {
+				Log.w(Constants.TAG, "posix_fallocate unavailable: " + ex);
+			}
+		}
+		// a sparse file reserves nothing, fail now rather than when the
+		// disk fills up halfway through the download
+		long available = getAvailableBytes(getFilesystemRoot(path));
+		if (available < length - file.length()) {
+			throw new IOException("can't preallocate " + length
+					+ " bytes, only " + available + " available");
+		}
+		file.setLength(length);
+	}
+
 	private static String chooseFilename(String url, String hint,
 			String contentDisposition, String contentLocation, int destination) {
 		String filename = null;
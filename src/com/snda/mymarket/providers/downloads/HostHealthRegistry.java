@@ -0,0 +1,217 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Tracks the health of the hosts downloads connect to, shared by all tasks.
+ * <p>
+ * Each host has a circuit. While it is closed, downloads start as usual and
+ * their failures are counted. After {@link Constants#CIRCUIT_FAILURE_THRESHOLD}
+ * failures in a row, or a 503 with Retry-After, it opens: no download against
+ * the host starts until the delay runs out, which doubles each time the
+ * circuit opens again. Then a single download is let through as a probe; if it
+ * succeeds the circuit closes and every download waiting to retry against the
+ * host starts right away, otherwise the circuit opens again.
+ */
+class HostHealthRegistry {
+
+	private static HostHealthRegistry sInstance;
+
+	public static synchronized HostHealthRegistry getInstance() {
+		if (sInstance == null) {
+			sInstance = new HostHealthRegistry();
+		}
+		return sInstance;
+	}
+
+	/** Downloads start against the host. */
+	private static final int CLOSED = 0;
+	/** No download starts against the host until the circuit half-opens. */
+	private static final int OPEN = 1;
+	/** A single download probes the host. */
+	private static final int HALF_OPEN = 2;
+
+	/** How a host ranks when its latency isn't known yet, in ms. */
+	private static final long DEFAULT_LATENCY = 500;
+
+	private static class Health {
+		public int mState = CLOSED;
+		/** Failures since the last success. */
+		public int mFailures;
+		/** How many times in a row the circuit opened. */
+		public int mOpenings;
+		public long mOpenUntil;
+		/** The download probing the host while half open. */
+		public long mProbeId = -1;
+		/** When the circuit last closed after being open, 0 if never. */
+		public long mRecoveredAt;
+		/** Moving average of the time to a response, -1 if unknown. */
+		public long mLatency = -1;
+	}
+
+	private final Map<String, Health> mHosts = new HashMap<String, Health>();
+
+	private Health get(String host) {
+		Health health = mHosts.get(host);
+		if (health == null) {
+			health = new Health();
+			mHosts.put(host, health);
+		}
+		return health;
+	}
+
+	/**
+	 * Ask whether a download may start against a host now. Once the delay of
+	 * an open circuit runs out, the first download to ask becomes the probe.
+	 */
+	public synchronized boolean allowStart(String host, long downloadId,
+			long now) {
+		if (host == null) {
+			return true;
+		}
+		Health health = mHosts.get(host);
+		if (health == null || health.mState == CLOSED) {
+			return true;
+		}
+		if (health.mState == HALF_OPEN) {
+			return health.mProbeId == downloadId;
+		}
+		if (now < health.mOpenUntil) {
+			return false;
+		}
+		health.mState = HALF_OPEN;
+		health.mProbeId = downloadId;
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "download " + downloadId + " probes " + host);
+		}
+		return true;
+	}
+
+	/**
+	 * The time from which a download may start against a host: now unless
+	 * its circuit is open, when the circuit half-opens otherwise.
+	 */
+	public synchronized long nextStartTime(String host, long now) {
+		Health health = host != null ? mHosts.get(host) : null;
+		if (health == null || health.mState != OPEN) {
+			return now;
+		}
+		return Math.max(now, health.mOpenUntil);
+	}
+
+	/**
+	 * Whether the circuit of a host closed again after some time, so that
+	 * downloads that failed against it before may retry without waiting.
+	 */
+	public synchronized boolean hasRecoveredSince(String host, long time) {
+		Health health = host != null ? mHosts.get(host) : null;
+		return health != null && health.mState == CLOSED
+				&& health.mRecoveredAt > time;
+	}
+
+	/**
+	 * Order hosts for the download slots: those with a closed circuit first,
+	 * faster ones before slower ones.
+	 *
+	 * @return a rank, lower is better
+	 */
+	public synchronized long rank(String host) {
+		Health health = host != null ? mHosts.get(host) : null;
+		if (health == null) {
+			return DEFAULT_LATENCY;
+		}
+		long latency = health.mLatency >= 0 ? health.mLatency
+				: DEFAULT_LATENCY;
+		if (health.mState != CLOSED) {
+			return Long.MAX_VALUE / 2 + latency;
+		}
+		if (health.mFailures > 0) {
+			return Long.MAX_VALUE / 4 + latency;
+		}
+		return latency;
+	}
+
+	/**
+	 * Record the time a host took to respond to a request.
+	 */
+	public synchronized void recordLatency(String host, long millis) {
+		if (host == null) {
+			return;
+		}
+		Health health = get(host);
+		health.mLatency = health.mLatency < 0 ? millis
+				: (health.mLatency * 3 + millis) / 4;
+	}
+
+	/**
+	 * Record that a download got what it wanted from a host.
+	 */
+	public synchronized void recordSuccess(String host, long downloadId,
+			long now) {
+		if (host == null) {
+			return;
+		}
+		Health health = get(host);
+		if (health.mState != CLOSED) {
+			Log.i(Constants.TAG, "Host " + host + " recovered");
+			health.mRecoveredAt = now;
+		}
+		health.mState = CLOSED;
+		health.mFailures = 0;
+		health.mOpenings = 0;
+		health.mProbeId = -1;
+	}
+
+	/**
+	 * Record that a download failed against a host for reasons of the host.
+	 *
+	 * @param retryAfter
+	 *            how long the host asked to be left alone in ms, 0 if it
+	 *            didn't
+	 */
+	public synchronized void recordFailure(String host, long downloadId,
+			long now, long retryAfter) {
+		if (host == null) {
+			return;
+		}
+		Health health = get(host);
+		health.mFailures++;
+		boolean probeFailed = health.mState == HALF_OPEN
+				&& health.mProbeId == downloadId;
+		if (health.mState == OPEN
+				|| (health.mState == HALF_OPEN && !probeFailed)) {
+			// a download started before the circuit opened, already counted
+			return;
+		}
+		if (probeFailed || retryAfter > 0
+				|| health.mFailures >= Constants.CIRCUIT_FAILURE_THRESHOLD) {
+			long delay = Constants.CIRCUIT_OPEN_DELAY
+					<< Math.min(health.mOpenings, 10);
+			delay = Math.min(delay, Constants.CIRCUIT_MAX_OPEN_DELAY);
+			health.mState = OPEN;
+			health.mOpenings++;
+			health.mOpenUntil = now + Math.max(delay, retryAfter);
+			health.mProbeId = -1;
+			Log.w(Constants.TAG, "Host " + host + " failed "
+					+ health.mFailures + " times, holding its downloads for "
+					+ (health.mOpenUntil - now) / 1000 + " s");
+		}
+	}
+
+	/**
+	 * Record that a download against a host stopped for reasons of its own,
+	 * such as a pause, which say nothing about the host. A probe that stops
+	 * so leaves the next download to probe.
+	 */
+	public synchronized void release(String host, long downloadId) {
+		Health health = host != null ? mHosts.get(host) : null;
+		if (health != null && health.mState == HALF_OPEN
+				&& health.mProbeId == downloadId) {
+			health.mState = OPEN;
+			health.mProbeId = -1;
+		}
+	}
+}
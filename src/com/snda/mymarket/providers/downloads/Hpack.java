@@ -0,0 +1,362 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.util.Pair;
+
+/**
+ * Header compression for HTTP/2, as specified by RFC 7541. The encoder only
+ * writes literals that stay out of the dynamic table, which keeps the
+ * requests of a download small enough without having to track what the
+ * server remembers. The decoder understands everything a server may send.
+ */
+class Hpack {
+
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+			{ ":path", "/" }, { ":path", "/index.html" },
+			{ ":scheme", "http" }, { ":scheme", "https" },
+			{ ":status", "200" }, { ":status", "204" }, { ":status", "206" },
+			{ ":status", "304" }, { ":status", "400" }, { ":status", "404" },
+			{ ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+			{ "accept-ranges", "" }, { "accept", "" },
+			{ "access-control-allow-origin", "" }, { "age", "" },
+			{ "allow", "" }, { "authorization", "" },
+			{ "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" },
+			{ "content-length", "" }, { "content-location", "" },
+			{ "content-range", "" }, { "content-type", "" },
+			{ "cookie", "" }, { "date", "" }, { "etag", "" },
+			{ "expect", "" }, { "expires", "" }, { "from", "" },
+			{ "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+			{ "if-none-match", "" }, { "if-range", "" },
+			{ "if-unmodified-since", "" }, { "last-modified", "" },
+			{ "link", "" }, { "location", "" }, { "max-forwards", "" },
+			{ "proxy-authenticate", "" }, { "proxy-authorization", "" },
+			{ "range", "" }, { "referer", "" }, { "refresh", "" },
+			{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" },
+			{ "transfer-encoding", "" }, { "user-agent", "" },
+			{ "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+	/** Huffman codes of the 256 octets and of EOS, from Appendix B. */
+	private static final int[] HUFFMAN_CODES = { 0x1ff8, 0x7fffd8, 0xfffffe2,
+			0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8,
+			0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb,
+			0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1,
+			0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6,
+			0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8,
+			0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb,
+			0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c,
+			0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa,
+			0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+			0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71,
+			0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74,
+			0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d,
+			0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd,
+			0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3,
+			0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb,
+			0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec,
+			0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2,
+			0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9,
+			0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9,
+			0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea,
+			0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb,
+			0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed,
+			0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3,
+			0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0,
+			0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8,
+			0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf,
+			0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6,
+			0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4,
+			0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4,
+			0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9,
+			0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee,
+			0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb,
+			0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9,
+			0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee,
+			0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff };
+
+	private static final byte[] HUFFMAN_LENGTHS = { 13, 23, 28, 28, 28, 28,
+			28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+			28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10,
+			10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6,
+			12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6,
+			5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14,
+			13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24,
+			23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21,
+			21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26,
+			20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26,
+			27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21,
+			22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27,
+			27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30 };
+
+	/**
+	 * The Huffman code as a binary tree: node n has its children at
+	 * 2n and 2n + 1, a negative child is the leaf of symbol -child - 1.
+	 */
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		// a complete code over 257 symbols has 256 inner nodes
+		int[] tree = new int[2 * 256];
+		int nodes = 1;
+		for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[slot] = -symbol - 1;
+				} else {
+					if (tree[slot] == 0) {
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	private static final int EOS = 256;
+
+	/**
+	 * Encode the headers of a request into a header block.
+	 *
+	 * @param headers
+	 *            the pseudo-headers first, then the regular ones, all names
+	 *            in lowercase
+	 */
+	public static byte[] encode(List<Pair<String, String>> headers) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Pair<String, String> header : headers) {
+			int nameIndex = 0;
+			boolean indexed = false;
+			for (int i = 0; i < STATIC_TABLE.length && !indexed; i++) {
+				if (STATIC_TABLE[i][0].equals(header.first)) {
+					if (nameIndex == 0) {
+						nameIndex = i + 1;
+					}
+					if (STATIC_TABLE[i][1].equals(header.second)) {
+						nameIndex = i + 1;
+						indexed = true;
+					}
+				}
+			}
+			if (indexed) {
+				// indexed header field
+				writeInt(out, 0x80, 7, nameIndex);
+			} else {
+				// literal header field without indexing
+				writeInt(out, 0x00, 4, nameIndex);
+				if (nameIndex == 0) {
+					writeString(out, header.first);
+				}
+				writeString(out, header.second);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int flags,
+			int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes;
+		try {
+			bytes = value.getBytes("ISO-8859-1");
+		} catch (IOException ex) {
+			throw new AssertionError(ex);
+		}
+		writeInt(out, 0x00, 7, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Decodes the header blocks of one connection, which share a dynamic
+	 * table and so have to be decoded in the order they arrive.
+	 */
+	public static class Decoder {
+		/** Newest entry first. */
+		private final LinkedList<String[]> mDynamicTable = new LinkedList<String[]>();
+		private final int mMaxTableSizeLimit;
+		private int mMaxTableSize;
+		private int mTableSize = 0;
+
+		private byte[] mBlock;
+		private int mPosition;
+		private int mEnd;
+
+		/**
+		 * @param maxTableSize
+		 *            the SETTINGS_HEADER_TABLE_SIZE sent to the peer
+		 */
+		public Decoder(int maxTableSize) {
+			mMaxTableSizeLimit = maxTableSize;
+			mMaxTableSize = maxTableSize;
+		}
+
+		public List<Pair<String, String>> decode(byte[] block, int offset,
+				int length) throws IOException {
+			mBlock = block;
+			mPosition = offset;
+			mEnd = offset + length;
+			List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+			while (mPosition < mEnd) {
+				int b = mBlock[mPosition] & 0xff;
+				if ((b & 0x80) != 0) {
+					String[] entry = getEntry(readInt(7));
+					headers.add(Pair.create(entry[0], entry[1]));
+				} else if ((b & 0xc0) == 0x40) {
+					String[] entry = readLiteral(6);
+					headers.add(Pair.create(entry[0], entry[1]));
+					addEntry(entry);
+				} else if ((b & 0xe0) == 0x20) {
+					int size = readInt(5);
+					if (size > mMaxTableSizeLimit) {
+						throw new IOException("HPACK table size " + size
+								+ " over limit");
+					}
+					mMaxTableSize = size;
+					evict();
+				} else {
+					// without indexing or never indexed
+					String[] entry = readLiteral(4);
+					headers.add(Pair.create(entry[0], entry[1]));
+				}
+			}
+			mBlock = null;
+			return headers;
+		}
+
+		private String[] readLiteral(int prefixBits) throws IOException {
+			int index = readInt(prefixBits);
+			String name = index == 0 ? readString() : getEntry(index)[0];
+			return new String[] { name, readString() };
+		}
+
+		private String[] getEntry(int index) throws IOException {
+			if (index > 0 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			index -= STATIC_TABLE.length + 1;
+			if (index < 0 || index >= mDynamicTable.size()) {
+				throw new IOException("HPACK index out of range");
+			}
+			return mDynamicTable.get(index);
+		}
+
+		private void addEntry(String[] entry) {
+			int size = entrySize(entry);
+			if (size > mMaxTableSize) {
+				mDynamicTable.clear();
+				mTableSize = 0;
+				return;
+			}
+			mDynamicTable.addFirst(entry);
+			mTableSize += size;
+			evict();
+		}
+
+		private void evict() {
+			while (mTableSize > mMaxTableSize) {
+				mTableSize -= entrySize(mDynamicTable.removeLast());
+			}
+		}
+
+		private int entrySize(String[] entry) {
+			// the strings hold one char per octet
+			return entry[0].length() + entry[1].length() + 32;
+		}
+
+		private int readByte() throws IOException {
+			if (mPosition >= mEnd) {
+				throw new IOException("HPACK block truncated");
+			}
+			return mBlock[mPosition++] & 0xff;
+		}
+
+		private int readInt(int prefixBits) throws IOException {
+			int max = (1 << prefixBits) - 1;
+			int value = readByte() & max;
+			if (value < max) {
+				return value;
+			}
+			for (int shift = 0; shift < 28; shift += 7) {
+				int b = readByte();
+				value += (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("HPACK integer too large");
+		}
+
+		private String readString() throws IOException {
+			boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+			int length = readInt(7);
+			if (length > mEnd - mPosition) {
+				throw new IOException("HPACK block truncated");
+			}
+			String value = huffman ? decodeHuffman(mBlock, mPosition, length)
+					: new String(mBlock, mPosition, length, "ISO-8859-1");
+			mPosition += length;
+			return value;
+		}
+	}
+
+	static String decodeHuffman(byte[] data, int offset, int length)
+			throws IOException {
+		StringBuilder value = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		int depth = 0;
+		boolean allOnes = true;
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (b >>> bit) & 1;
+				int child = HUFFMAN_TREE[2 * node + one];
+				depth++;
+				allOnes &= one == 1;
+				if (child < 0) {
+					int symbol = -child - 1;
+					if (symbol == EOS) {
+						throw new IOException("HPACK string holds EOS");
+					}
+					value.append((char) symbol);
+					node = 0;
+					depth = 0;
+					allOnes = true;
+				} else {
+					node = child;
+				}
+			}
+		}
+		// what is left must be a prefix of EOS no longer than 7 bits
+		if (depth > 7 || !allOnes) {
+			throw new IOException("HPACK string badly padded");
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,974 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * One HTTP/2 connection to an origin, carrying the requests of any number of
+ * downloads as concurrent streams. A reader thread takes the frames off the
+ * socket and buffers the body of each stream until its download reads it.
+ * <p>
+ * Each stream is granted a window of {@link Constants#HTTP2_STREAM_WINDOW}
+ * and the connection one of {@link Constants#HTTP2_CONNECTION_WINDOW}, both
+ * given back as the downloads consume what they received. The windows are
+ * what the server may send ahead of the downloads, so they bound the memory
+ * held by a stalled download while letting a fast one fill the pipe.
+ */
+class Http2Connection {
+
+	private static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H',
+			'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M',
+			'\r', '\n', '\r', '\n' };
+	/** "h2" and "http/1.1" as ALPN protocol names. */
+	private static final byte[] ALPN_PROTOCOLS = { 2, 'h', '2', 8, 'h', 't',
+			't', 'p', '/', '1', '.', '1' };
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_RST_STREAM = 0x3;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PUSH_PROMISE = 0x5;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final int ERROR_NO_ERROR = 0x0;
+	private static final int ERROR_PROTOCOL_ERROR = 0x1;
+	private static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+	private static final int ERROR_CANCEL = 0x8;
+
+	/** The window every stream and the connection start with. */
+	private static final int DEFAULT_WINDOW = 65535;
+	/** The largest frame we accept, the default of the protocol. */
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int HEADER_TABLE_SIZE = 4096;
+
+	/**
+	 * Open a connection to an origin.
+	 *
+	 * @param secure
+	 *            whether to negotiate h2 over TLS; otherwise h2c is spoken over
+	 *            plain TCP without asking first
+	 * @return the connection, or null if the server didn't agree to HTTP/2
+	 */
+	public static Http2Connection open(String host, int port, boolean secure)
+			throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port),
+					HttpStack.TIMEOUT_MSECONDES);
+			socket.setSoTimeout(HttpStack.TIMEOUT_MSECONDES);
+			socket.setTcpNoDelay(true);
+			if (secure) {
+				SSLSocket sslSocket = (SSLSocket) HttpsURLConnection
+						.getDefaultSSLSocketFactory().createSocket(socket,
+								host, port, true);
+				socket = sslSocket;
+				if (!enableAlpn(sslSocket, host)) {
+					socket.close();
+					return null;
+				}
+				sslSocket.startHandshake();
+				if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+						host, sslSocket.getSession())) {
+					throw new SSLPeerUnverifiedException("Hostname " + host
+							+ " not verified");
+				}
+				if (!"h2".equals(getAlpnProtocol(sslSocket))) {
+					socket.close();
+					return null;
+				}
+			}
+			Http2Connection connection = new Http2Connection(host, socket);
+			boolean started;
+			try {
+				started = connection.start();
+			} catch (IOException ex) {
+				if (secure) {
+					throw ex;
+				}
+				// an HTTP/1 server answers the preface with an error and
+				// hangs up
+				started = false;
+			}
+			if (!started) {
+				socket.close();
+				return null;
+			}
+			return connection;
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
+		} catch (RuntimeException ex) {
+			socket.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Offer h2 during the TLS handshake, through the hidden methods of the
+	 * platform socket up to Pie and through SSLParameters after.
+	 *
+	 * @return whether the platform can negotiate the protocol
+	 */
+	private static boolean enableAlpn(SSLSocket socket, String host) {
+		try {
+			socket.getClass().getMethod("setHostname", String.class)
+					.invoke(socket, host);
+		} catch (Exception ex) {
+			// SNI comes from the host given to createSocket then
+		}
+		try {
+			socket.getClass().getMethod("setAlpnProtocols", byte[].class)
+					.invoke(socket, (Object) ALPN_PROTOCOLS);
+			return true;
+		} catch (Exception ex) {
+			// try the public API
+		}
+		try {
+			SSLParameters params = socket.getSSLParameters();
+			params.getClass()
+					.getMethod("setApplicationProtocols", String[].class)
+					.invoke(params,
+							(Object) new String[] { "h2", "http/1.1" });
+			socket.setSSLParameters(params);
+			return true;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	private static String getAlpnProtocol(SSLSocket socket) {
+		try {
+			Method method = socket.getClass().getMethod(
+					"getAlpnSelectedProtocol");
+			byte[] protocol = (byte[]) method.invoke(socket);
+			return protocol != null ? new String(protocol, "US-ASCII") : null;
+		} catch (Exception ex) {
+			// try the public API
+		}
+		try {
+			return (String) socket.getClass()
+					.getMethod("getApplicationProtocol").invoke(socket);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	private final String mHost;
+	private final Socket mSocket;
+	private final DataInputStream mIn;
+	private final OutputStream mOut;
+	/** Serializes the frames written by the downloads and the reader. */
+	private final Object mWriteLock = new Object();
+	private final Hpack.Decoder mDecoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+	private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+
+	// guarded by this
+	private final Map<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+	private int mNextStreamId = 1;
+	/** Streams waiting for their id, counted against the concurrency limit. */
+	private int mPendingStreams = 0;
+	private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+	private int mPeerMaxFrameSize = MAX_FRAME_SIZE;
+	private int mConnectionUnacked = 0;
+	private boolean mShutdown = false;
+	private IOException mFailure;
+	private long mIdleSince = System.currentTimeMillis();
+
+	// only touched by the reader thread
+	private int mContinuationStream = 0;
+	private byte[] mHeaderBlock;
+	private int mHeaderBlockLength;
+	private boolean mHeaderBlockEndsStream;
+
+	private Http2Connection(String host, Socket socket) throws IOException {
+		mHost = host;
+		mSocket = socket;
+		mIn = new DataInputStream(socket.getInputStream());
+		mOut = new BufferedOutputStream(socket.getOutputStream(),
+				MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Exchange the connection prefaces and start reading.
+	 *
+	 * @return whether the server answered with HTTP/2 settings
+	 */
+	private boolean start() throws IOException {
+		synchronized (mWriteLock) {
+			mOut.write(PREFACE);
+			byte[] settings = new byte[18];
+			putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+			putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE,
+					Constants.HTTP2_STREAM_WINDOW);
+			putSetting(settings, 12, SETTINGS_HEADER_TABLE_SIZE,
+					HEADER_TABLE_SIZE);
+			writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+			writeWindowUpdate(0, Constants.HTTP2_CONNECTION_WINDOW
+					- DEFAULT_WINDOW);
+			mOut.flush();
+		}
+		// the server preface is a settings frame; anything else means the
+		// other end doesn't speak HTTP/2
+		byte[] header = new byte[9];
+		mIn.readFully(header);
+		int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8)
+				| (header[2] & 0xff);
+		if (header[3] != TYPE_SETTINGS || length > MAX_FRAME_SIZE
+				|| length % 6 != 0) {
+			return false;
+		}
+		mIn.readFully(mFrame, 0, length);
+		onSettings(header[4] & 0xff, length);
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, Constants.TAG + "-h2-" + mHost);
+		reader.setDaemon(true);
+		reader.start();
+		return true;
+	}
+
+	private static void putSetting(byte[] settings, int offset, int id,
+			int value) {
+		settings[offset] = (byte) (id >>> 8);
+		settings[offset + 1] = (byte) id;
+		settings[offset + 2] = (byte) (value >>> 24);
+		settings[offset + 3] = (byte) (value >>> 16);
+		settings[offset + 4] = (byte) (value >>> 8);
+		settings[offset + 5] = (byte) value;
+	}
+
+	/**
+	 * Whether new streams can still be opened on this connection.
+	 */
+	public synchronized boolean isUsable() {
+		return !mShutdown;
+	}
+
+	/**
+	 * Whether the connection carried no stream for longer than the keep-alive.
+	 */
+	public synchronized boolean isIdle(long now) {
+		return !hasStreams() && now - mIdleSince > Constants.HTTP_KEEP_ALIVE;
+	}
+
+	public synchronized boolean hasStreams() {
+		return !mStreams.isEmpty() || mPendingStreams > 0;
+	}
+
+	/**
+	 * Send a request without a body.
+	 *
+	 * @param headers
+	 *            the pseudo-headers first, all names in lowercase
+	 */
+	public Stream newStream(List<Pair<String, String>> headers)
+			throws IOException {
+		byte[] block = Hpack.encode(headers);
+		synchronized (this) {
+			long deadline = System.currentTimeMillis()
+					+ HttpStack.TIMEOUT_MSECONDES;
+			while (!mShutdown
+					&& mStreams.size() + mPendingStreams >= mMaxConcurrentStreams) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new SocketTimeoutException(
+							"timed out waiting for a free HTTP/2 stream");
+				}
+				waitOn(this, wait);
+			}
+			checkShutdown();
+			mPendingStreams++;
+		}
+		Stream stream;
+		synchronized (mWriteLock) {
+			// streams have to be opened in the order of their ids
+			synchronized (this) {
+				mPendingStreams--;
+				checkShutdown();
+				stream = new Stream(mNextStreamId);
+				mStreams.put(stream.mId, stream);
+				mNextStreamId += 2;
+				if (mNextStreamId < 0) {
+					// ids ran out, the next download gets a new connection
+					mShutdown = true;
+				}
+			}
+			int offset = 0;
+			int type = TYPE_HEADERS;
+			do {
+				int length = Math.min(mPeerMaxFrameSize, block.length - offset);
+				int flags = offset + length == block.length ? FLAG_END_HEADERS
+						: 0;
+				if (type == TYPE_HEADERS) {
+					flags |= FLAG_END_STREAM;
+				}
+				writeFrame(type, flags, stream.mId, block, offset, length);
+				offset += length;
+				type = TYPE_CONTINUATION;
+			} while (offset < block.length);
+			mOut.flush();
+		}
+		return stream;
+	}
+
+	private void checkShutdown() throws IOException {
+		if (mShutdown) {
+			throw mFailure != null ? mFailure : new IOException(
+					"HTTP/2 connection shut down");
+		}
+	}
+
+	/**
+	 * Close the connection, failing the streams still open.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			mShutdown = true;
+		}
+		try {
+			synchronized (mWriteLock) {
+				byte[] payload = new byte[8];
+				// no stream opened by the server was processed
+				putInt(payload, 4, ERROR_NO_ERROR);
+				writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+				mOut.flush();
+			}
+		} catch (IOException ex) {
+			// closing anyway
+		}
+		closeSocket();
+	}
+
+	private void closeSocket() {
+		try {
+			mSocket.close();
+		} catch (IOException ex) {
+			// nothing to do about it
+		}
+	}
+
+	private void readLoop() {
+		IOException failure;
+		try {
+			// idle connections stay open until the pool reaps them
+			mSocket.setSoTimeout(0);
+			for (;;) {
+				readFrame();
+			}
+		} catch (IOException ex) {
+			failure = ex;
+		}
+		List<Stream> streams;
+		synchronized (this) {
+			if (!mShutdown && Constants.LOGV) {
+				Log.v(Constants.TAG, "HTTP/2 connection to " + mHost
+						+ " failed: " + failure);
+			}
+			mShutdown = true;
+			mFailure = failure;
+			streams = new ArrayList<Stream>(mStreams.values());
+			mStreams.clear();
+			notifyAll();
+		}
+		for (Stream stream : streams) {
+			stream.fail(failure);
+		}
+		closeSocket();
+	}
+
+	private void readFrame() throws IOException {
+		int length = mIn.readUnsignedByte() << 16
+				| mIn.readUnsignedShort();
+		int type = mIn.readUnsignedByte();
+		int flags = mIn.readUnsignedByte();
+		int streamId = mIn.readInt() & 0x7fffffff;
+		if (length > MAX_FRAME_SIZE) {
+			throw protocolError("frame of " + length + " bytes");
+		}
+		if (mContinuationStream != 0
+				&& (type != TYPE_CONTINUATION || streamId != mContinuationStream)) {
+			throw protocolError("expected CONTINUATION");
+		}
+		mIn.readFully(mFrame, 0, length);
+
+		switch (type) {
+		case TYPE_DATA:
+			onData(streamId, flags, length);
+			break;
+		case TYPE_HEADERS:
+			onHeaders(streamId, flags, length);
+			break;
+		case TYPE_CONTINUATION:
+			if (streamId != mContinuationStream) {
+				throw protocolError("unexpected CONTINUATION");
+			}
+			appendHeaderBlock(0, length);
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				endHeaderBlock();
+			}
+			break;
+		case TYPE_RST_STREAM:
+			if (length != 4) {
+				throw protocolError("RST_STREAM of " + length + " bytes");
+			}
+			Stream stream = removeStream(streamId);
+			if (stream != null) {
+				stream.fail(new IOException("HTTP/2 stream reset with error "
+						+ getInt(mFrame, 0)));
+			}
+			break;
+		case TYPE_SETTINGS:
+			if (length % 6 != 0) {
+				throw protocolError("SETTINGS of " + length + " bytes");
+			}
+			onSettings(flags, length);
+			break;
+		case TYPE_PUSH_PROMISE:
+			// push was disabled in our settings
+			throw protocolError("unexpected PUSH_PROMISE");
+		case TYPE_PING:
+			if ((flags & FLAG_ACK) == 0 && length == 8) {
+				synchronized (mWriteLock) {
+					writeFrame(TYPE_PING, FLAG_ACK, 0, mFrame, 0, 8);
+					mOut.flush();
+				}
+			}
+			break;
+		case TYPE_GOAWAY:
+			onGoAway(getInt(mFrame, 0) & 0x7fffffff);
+			break;
+		default:
+			// PRIORITY and WINDOW_UPDATE don't matter to a connection that
+			// sends no data, unknown types are ignored
+			break;
+		}
+	}
+
+	private void onData(int streamId, int flags, int length) throws IOException {
+		int offset = 0;
+		int dataLength = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (length < 1 || (mFrame[0] & 0xff) >= length) {
+				throw protocolError("bad DATA padding");
+			}
+			offset = 1;
+			dataLength = length - 1 - (mFrame[0] & 0xff);
+		}
+		Stream stream;
+		synchronized (this) {
+			stream = mStreams.get(streamId);
+		}
+		int unread = 0;
+		if (stream != null) {
+			unread = stream.receive(mFrame, offset, dataLength,
+					(flags & FLAG_END_STREAM) != 0);
+			if (unread < 0) {
+				removeStream(streamId);
+				writeRstStream(streamId, ERROR_FLOW_CONTROL_ERROR);
+				unread = dataLength;
+			}
+		} else {
+			// the stream was reset by us, nobody will read this
+			unread = dataLength;
+		}
+		// padding counts against the window too
+		consumed(length - dataLength + unread);
+		if ((flags & FLAG_END_STREAM) != 0) {
+			removeStream(streamId);
+		}
+	}
+
+	private void onHeaders(int streamId, int flags, int length)
+			throws IOException {
+		int offset = 0;
+		int end = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (length < 1) {
+				throw protocolError("bad HEADERS padding");
+			}
+			offset = 1;
+			end -= mFrame[0] & 0xff;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			offset += 5;
+		}
+		if (offset > end) {
+			throw protocolError("bad HEADERS padding");
+		}
+		mHeaderBlockLength = 0;
+		mHeaderBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+		mContinuationStream = streamId;
+		appendHeaderBlock(offset, end - offset);
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			endHeaderBlock();
+		}
+	}
+
+	private void appendHeaderBlock(int offset, int length) throws IOException {
+		if (mHeaderBlock == null) {
+			mHeaderBlock = new byte[MAX_FRAME_SIZE];
+		}
+		if (mHeaderBlockLength + length > mHeaderBlock.length) {
+			if (mHeaderBlockLength + length > 16 * MAX_FRAME_SIZE) {
+				throw protocolError("header block too large");
+			}
+			byte[] block = new byte[Math.max(mHeaderBlockLength + length,
+					2 * mHeaderBlock.length)];
+			System.arraycopy(mHeaderBlock, 0, block, 0, mHeaderBlockLength);
+			mHeaderBlock = block;
+		}
+		System.arraycopy(mFrame, offset, mHeaderBlock, mHeaderBlockLength,
+				length);
+		mHeaderBlockLength += length;
+	}
+
+	private void endHeaderBlock() throws IOException {
+		int streamId = mContinuationStream;
+		mContinuationStream = 0;
+		// decode even for a stream we dropped, to keep the table in sync
+		List<Pair<String, String>> headers = mDecoder.decode(mHeaderBlock, 0,
+				mHeaderBlockLength);
+		Stream stream;
+		synchronized (this) {
+			stream = mStreams.get(streamId);
+		}
+		if (stream != null) {
+			stream.receiveHeaders(headers, mHeaderBlockEndsStream);
+			if (mHeaderBlockEndsStream) {
+				removeStream(streamId);
+			}
+		}
+	}
+
+	private void onSettings(int flags, int length) throws IOException {
+		if ((flags & FLAG_ACK) != 0) {
+			return;
+		}
+		synchronized (this) {
+			for (int offset = 0; offset < length; offset += 6) {
+				int id = ((mFrame[offset] & 0xff) << 8)
+						| (mFrame[offset + 1] & 0xff);
+				int value = getInt(mFrame, offset + 2);
+				if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+					mMaxConcurrentStreams = value;
+				} else if (id == SETTINGS_MAX_FRAME_SIZE) {
+					mPeerMaxFrameSize = value;
+				}
+			}
+			notifyAll();
+		}
+		synchronized (mWriteLock) {
+			writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, mFrame, 0, 0);
+			mOut.flush();
+		}
+	}
+
+	private void onGoAway(int lastStreamId) {
+		List<Stream> refused = new ArrayList<Stream>();
+		synchronized (this) {
+			mShutdown = true;
+			for (Stream stream : mStreams.values()) {
+				if (stream.mId > lastStreamId) {
+					refused.add(stream);
+				}
+			}
+			for (Stream stream : refused) {
+				mStreams.remove(stream.mId);
+			}
+			notifyAll();
+		}
+		for (Stream stream : refused) {
+			// never processed by the server, the download can retry
+			stream.fail(new IOException("HTTP/2 stream refused by GOAWAY"));
+		}
+	}
+
+	private Stream removeStream(int streamId) {
+		Stream stream;
+		boolean drained = false;
+		synchronized (this) {
+			stream = mStreams.remove(streamId);
+			if (stream != null) {
+				if (mStreams.isEmpty()) {
+					mIdleSince = System.currentTimeMillis();
+					drained = mShutdown;
+				}
+				notifyAll();
+			}
+		}
+		if (drained) {
+			// the last stream of a connection taking no new ones
+			shutdown();
+		}
+		return stream;
+	}
+
+	/**
+	 * Let the streams in flight finish, but open no new ones. Used when a
+	 * stream timed out, since the connection may be dead without knowing.
+	 */
+	private synchronized void drain() {
+		mShutdown = true;
+	}
+
+	/**
+	 * Give bytes a download has read, or that nobody will read, back to the
+	 * connection window.
+	 */
+	private void consumed(int bytes) throws IOException {
+		int increment;
+		synchronized (this) {
+			mConnectionUnacked += bytes;
+			if (mConnectionUnacked < Constants.HTTP2_CONNECTION_WINDOW / 2
+					|| mShutdown) {
+				return;
+			}
+			increment = mConnectionUnacked;
+			mConnectionUnacked = 0;
+		}
+		synchronized (mWriteLock) {
+			writeWindowUpdate(0, increment);
+			mOut.flush();
+		}
+	}
+
+	private IOException protocolError(String message) {
+		try {
+			synchronized (mWriteLock) {
+				byte[] payload = new byte[8];
+				// no stream opened by the server was processed
+				putInt(payload, 4, ERROR_PROTOCOL_ERROR);
+				writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+				mOut.flush();
+			}
+		} catch (IOException ex) {
+			// failing anyway
+		}
+		return new IOException("HTTP/2 protocol error: " + message);
+	}
+
+	private void writeRstStream(int streamId, int errorCode)
+			throws IOException {
+		synchronized (mWriteLock) {
+			byte[] payload = new byte[4];
+			putInt(payload, 0, errorCode);
+			writeFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+			mOut.flush();
+		}
+	}
+
+	private void writeWindowUpdate(int streamId, int increment)
+			throws IOException {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, increment);
+		writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	/**
+	 * Write a frame. Callers hold mWriteLock and flush.
+	 */
+	private void writeFrame(int type, int flags, int streamId, byte[] payload,
+			int offset, int length) throws IOException {
+		mOut.write(length >>> 16);
+		mOut.write(length >>> 8);
+		mOut.write(length);
+		mOut.write(type);
+		mOut.write(flags);
+		mOut.write(streamId >>> 24);
+		mOut.write(streamId >>> 16);
+		mOut.write(streamId >>> 8);
+		mOut.write(streamId);
+		mOut.write(payload, offset, length);
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24)
+				| ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	private static void waitOn(Object monitor, long millis)
+			throws InterruptedIOException {
+		try {
+			monitor.wait(millis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted");
+		}
+	}
+
+	/**
+	 * One request and its response. The reader thread fills it in, the
+	 * download reads it through {@link #getInputStream()}.
+	 */
+	public class Stream {
+		public final int mId;
+
+		// guarded by this
+		private List<Pair<String, String>> mResponseHeaders;
+		private IOException mError;
+		private boolean mFinished = false;
+		private boolean mClosed = false;
+		/** Received body bytes from mHead on, wrapping around. */
+		private byte[] mBuffer;
+		private int mHead = 0;
+		private int mCount = 0;
+		private int mUnacked = 0;
+
+		Stream(int id) {
+			mId = id;
+		}
+
+		/**
+		 * Wait for the final response headers.
+		 */
+		public synchronized List<Pair<String, String>> getResponseHeaders()
+				throws IOException {
+			long deadline = System.currentTimeMillis()
+					+ HttpStack.TIMEOUT_MSECONDES;
+			while (mResponseHeaders == null && mError == null) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					drain();
+					throw new SocketTimeoutException(
+							"timed out waiting for HTTP/2 response");
+				}
+				waitOn(this, wait);
+			}
+			if (mResponseHeaders == null) {
+				throw mError;
+			}
+			return mResponseHeaders;
+		}
+
+		public InputStream getInputStream() {
+			return new StreamInputStream();
+		}
+
+		/**
+		 * Stop the stream, telling the server unless it already finished.
+		 */
+		public void close() {
+			boolean reset;
+			int unread;
+			synchronized (this) {
+				if (mClosed) {
+					return;
+				}
+				mClosed = true;
+				reset = !mFinished && mError == null;
+				unread = mCount;
+				mCount = 0;
+				mBuffer = null;
+				notifyAll();
+			}
+			try {
+				if (reset && removeStream(mId) != null) {
+					writeRstStream(mId, ERROR_CANCEL);
+				}
+				consumed(unread);
+			} catch (IOException ex) {
+				// the connection failed, it goes away with it
+			}
+		}
+
+		synchronized void receiveHeaders(List<Pair<String, String>> headers,
+				boolean endStream) {
+			if (mResponseHeaders == null) {
+				for (Pair<String, String> header : headers) {
+					if (header.first.equals(":status")
+							&& header.second.startsWith("1")) {
+						// informational, the final response follows
+						return;
+					}
+				}
+				mResponseHeaders = headers;
+			}
+			// later blocks are trailers, nothing a download needs
+			if (endStream) {
+				mFinished = true;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Buffer body bytes received for this stream.
+		 *
+		 * @return how many of them nobody will read, or -1 if the server
+		 *         overran the window
+		 */
+		synchronized int receive(byte[] data, int offset, int length,
+				boolean endStream) {
+			if (endStream) {
+				mFinished = true;
+			}
+			notifyAll();
+			if (mClosed || mError != null) {
+				return length;
+			}
+			if (mCount + length > Constants.HTTP2_STREAM_WINDOW) {
+				mError = new IOException("HTTP/2 stream window overrun");
+				return -1;
+			}
+			if (mBuffer == null || mCount + length > mBuffer.length) {
+				// start small, most downloads read about as fast as they
+				// receive and never need the whole window
+				int capacity = mBuffer == null ? 4 * MAX_FRAME_SIZE
+						: mBuffer.length;
+				while (capacity < mCount + length) {
+					capacity *= 2;
+				}
+				byte[] buffer = new byte[Math.min(capacity,
+						Constants.HTTP2_STREAM_WINDOW)];
+				copyOut(buffer, 0, mCount);
+				mBuffer = buffer;
+				mHead = 0;
+			}
+			int tail = (mHead + mCount) % mBuffer.length;
+			int first = Math.min(length, mBuffer.length - tail);
+			System.arraycopy(data, offset, mBuffer, tail, first);
+			System.arraycopy(data, offset + first, mBuffer, 0, length - first);
+			mCount += length;
+			return 0;
+		}
+
+		synchronized void fail(IOException error) {
+			if (mError == null && !mFinished) {
+				mError = error;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Copy buffered bytes out without consuming them.
+		 */
+		private void copyOut(byte[] target, int offset, int length) {
+			if (mBuffer == null) {
+				return;
+			}
+			int first = Math.min(length, mBuffer.length - mHead);
+			System.arraycopy(mBuffer, mHead, target, offset, first);
+			System.arraycopy(mBuffer, 0, target, offset + first, length - first);
+		}
+
+		private int read(byte[] target, int offset, int length)
+				throws IOException {
+			int read;
+			int increment = 0;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis()
+						+ HttpStack.TIMEOUT_MSECONDES;
+				while (mCount == 0 && !mFinished && mError == null && !mClosed) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						drain();
+						throw new SocketTimeoutException(
+								"timed out reading HTTP/2 stream");
+					}
+					waitOn(this, wait);
+				}
+				if (mClosed) {
+					throw new IOException("HTTP/2 stream closed");
+				}
+				if (mCount == 0) {
+					if (mError != null) {
+						throw mError;
+					}
+					return -1;
+				}
+				read = Math.min(length, mCount);
+				copyOut(target, offset, read);
+				mHead = (mHead + read) % mBuffer.length;
+				mCount -= read;
+				mUnacked += read;
+				if (mUnacked >= Constants.HTTP2_STREAM_WINDOW / 2
+						&& !mFinished) {
+					increment = mUnacked;
+					mUnacked = 0;
+				}
+			}
+			if (increment > 0) {
+				synchronized (mWriteLock) {
+					writeWindowUpdate(mId, increment);
+					mOut.flush();
+				}
+			}
+			consumed(read);
+			return read;
+		}
+
+		private class StreamInputStream extends InputStream {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count)
+					throws IOException {
+				if (count == 0) {
+					return 0;
+				}
+				return Stream.this.read(buffer, offset, count);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Stream.this) {
+					return mCount;
+				}
+			}
+
+			@Override
+			public void close() {
+				Stream.this.close();
+			}
+		}
+	}
+}
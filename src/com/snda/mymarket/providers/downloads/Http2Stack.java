@@ -0,0 +1,272 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * An {@link HttpStack} speaking HTTP/2. All the downloads from one origin
+ * share a single connection from a {@link Pool}, each of their requests
+ * being a stream of it, so that a bulk update opens one TCP and TLS
+ * connection per server instead of one per download.
+ */
+public class Http2Stack implements HttpStack {
+
+	private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP",
+			2, 0);
+
+	/** Headers about the HTTP/1 connection, which HTTP/2 forbids. */
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+
+	static {
+		CONNECTION_HEADERS.add("connection");
+		CONNECTION_HEADERS.add("host");
+		CONNECTION_HEADERS.add("keep-alive");
+		CONNECTION_HEADERS.add("proxy-connection");
+		CONNECTION_HEADERS.add("te");
+		CONNECTION_HEADERS.add("transfer-encoding");
+		CONNECTION_HEADERS.add("upgrade");
+	}
+
+	private final Pool mPool;
+	private volatile Http2Connection.Stream mStream;
+
+	public Http2Stack(Pool pool) {
+		mPool = pool;
+	}
+
+	/**
+	 * Whether requests to the origin of a URI go over HTTP/2. Connects to
+	 * the origin the first time it is asked about.
+	 */
+	public boolean isMultiplexed(URI uri) throws IOException {
+		return mPool.get(uri) != null;
+	}
+
+	@Override
+	public HttpResponse performRequest(HttpUriRequest request)
+			throws IOException {
+		// a redirect or retry is sent through this stack again
+		close();
+		URI uri = request.getURI();
+		Http2Connection connection = mPool.get(uri);
+		if (connection == null) {
+			throw new IOException("no HTTP/2 connection to " + uri.getHost());
+		}
+
+		List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+		headers.add(Pair.create(":method", request.getMethod()));
+		headers.add(Pair.create(":scheme", uri.getScheme()));
+		headers.add(Pair.create(":authority", uri.getPort() != -1 ? uri
+				.getHost() + ":" + uri.getPort() : uri.getHost()));
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		headers.add(Pair.create(":path", path));
+		for (Header header : request.getAllHeaders()) {
+			String name = header.getName().toLowerCase(Locale.ENGLISH);
+			if (!CONNECTION_HEADERS.contains(name)) {
+				headers.add(Pair.create(name, header.getValue()));
+			}
+		}
+
+		Http2Connection.Stream stream = connection.newStream(headers);
+		mStream = stream;
+		int status = -1;
+		BasicHttpResponse response = new BasicHttpResponse(
+				new BasicStatusLine(HTTP_2, 0, ""));
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(-1);
+		for (Pair<String, String> header : stream.getResponseHeaders()) {
+			if (header.first.equals(":status")) {
+				try {
+					status = Integer.parseInt(header.second);
+				} catch (NumberFormatException ex) {
+					// reported below
+				}
+			} else if (!header.first.startsWith(":")) {
+				response.addHeader(header.first, header.second);
+				if (header.first.equals("content-length")) {
+					try {
+						entity.setContentLength(Long.parseLong(header.second));
+					} catch (NumberFormatException ex) {
+						// the download reads until the stream ends
+					}
+				} else if (header.first.equals("content-type")) {
+					entity.setContentType(header.second);
+				} else if (header.first.equals("content-encoding")) {
+					entity.setContentEncoding(header.second);
+				}
+			}
+		}
+		if (status == -1) {
+			close();
+			throw new IOException("HTTP/2 response without status");
+		}
+		response.setStatusLine(new BasicStatusLine(HTTP_2, status, ""));
+		entity.setContent(stream.getInputStream());
+		response.setEntity(entity);
+		return response;
+	}
+
+	/**
+	 * Stop the stream of the last request, if still open. The connection
+	 * stays up for the other downloads.
+	 */
+	@Override
+	public void close() throws IOException {
+		Http2Connection.Stream stream = mStream;
+		mStream = null;
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * The HTTP/2 connections shared by all the downloads, one per origin.
+	 * Origins found not to speak HTTP/2 are remembered for the life of the
+	 * pool, so that the next downloads go straight to HTTP/1.1.
+	 */
+	public static class Pool {
+		private final boolean mCleartext;
+		// guarded by this
+		private final Map<String, Http2Connection> mConnections = new HashMap<String, Http2Connection>();
+		private final Set<String> mHttp1Origins = new HashSet<String>();
+		/** Held while connecting, so that one origin gets one connection. */
+		private final Map<String, Object> mOriginLocks = new HashMap<String, Object>();
+		private boolean mClosed = false;
+
+		/**
+		 * @param cleartext
+		 *            whether http URIs go over HTTP/2 too, assuming the server
+		 *            speaks it without asking first; otherwise only https
+		 *            URIs do, when TLS negotiates it
+		 */
+		public Pool(boolean cleartext) {
+			mCleartext = cleartext;
+		}
+
+		/**
+		 * @return the connection to the origin of a URI, or null if requests
+		 *         to it have to go over HTTP/1.1
+		 */
+		public Http2Connection get(URI uri) throws IOException {
+			String scheme = uri.getScheme();
+			String host = uri.getHost();
+			boolean secure = "https".equalsIgnoreCase(scheme);
+			if (host == null || !(secure || mCleartext
+					&& "http".equalsIgnoreCase(scheme))) {
+				return null;
+			}
+			if (System.getProperty(secure ? "https.proxyHost"
+					: "http.proxyHost") != null) {
+				// tunnelling through proxies is left to HttpURLConnection
+				return null;
+			}
+			int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+			String origin = scheme.toLowerCase(Locale.ENGLISH) + "://"
+					+ host.toLowerCase(Locale.ENGLISH) + ":" + port;
+
+			Object originLock;
+			synchronized (this) {
+				Http2Connection connection = getUsable(origin);
+				if (connection != null || mHttp1Origins.contains(origin)) {
+					return connection;
+				}
+				originLock = mOriginLocks.get(origin);
+				if (originLock == null) {
+					originLock = new Object();
+					mOriginLocks.put(origin, originLock);
+				}
+			}
+			synchronized (originLock) {
+				synchronized (this) {
+					// another download may have connected meanwhile
+					Http2Connection connection = getUsable(origin);
+					if (connection != null || mHttp1Origins.contains(origin)) {
+						return connection;
+					}
+				}
+				Http2Connection connection = Http2Connection.open(host, port,
+						secure);
+				synchronized (this) {
+					if (connection == null) {
+						if (Constants.LOGV) {
+							Log.v(Constants.TAG, origin
+									+ " doesn't speak HTTP/2");
+						}
+						mHttp1Origins.add(origin);
+					} else if (mClosed) {
+						connection.shutdown();
+						throw new IOException("HTTP/2 connections shut down");
+					} else {
+						mConnections.put(origin, connection);
+					}
+					return connection;
+				}
+			}
+		}
+
+		/**
+		 * Look up the connection to an origin, reaping the connections that
+		 * are shut down or have been idle too long on the way.
+		 */
+		private Http2Connection getUsable(String origin) {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Http2Connection>> it = mConnections
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Http2Connection connection = it.next().getValue();
+				if (!connection.isUsable()) {
+					it.remove();
+					// otherwise it closes itself once its last stream is done
+					if (!connection.hasStreams()) {
+						connection.shutdown();
+					}
+				} else if (connection.isIdle(now)) {
+					it.remove();
+					connection.shutdown();
+				}
+			}
+			return mConnections.get(origin);
+		}
+
+		/**
+		 * Close every connection. Streams still open fail.
+		 */
+		public void close() {
+			List<Http2Connection> connections;
+			synchronized (this) {
+				mClosed = true;
+				connections = new ArrayList<Http2Connection>(
+						mConnections.values());
+				mConnections.clear();
+			}
+			for (Http2Connection connection : connections) {
+				connection.shutdown();
+			}
+		}
+	}
+}
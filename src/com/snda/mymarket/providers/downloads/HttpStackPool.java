@@ -0,0 +1,232 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpParams;
+
+import android.net.http.AndroidHttpClient;
+import android.os.Build;
+
+/**
+ * Hands out the {@link HttpStack}s used by downloads. They all share one pool
+ * of keep-alive connections, so that downloads, redirects and retries to the
+ * same host skip the TCP and TLS handshakes, and one limit on the connections
+ * open to each host at the same time.
+ * <p>
+ * From Gingerbread on, {@link java.net.HttpURLConnection} already keeps such a
+ * pool for the whole process; before, a single {@link AndroidHttpClient} is
+ * shared by all downloads. With {@link Constants#HTTP_STACK_HTTP2}, servers
+ * speaking HTTP/2 get a single connection carrying all their downloads through
+ * {@link Http2Stack}, outside of the per-host limit. The pool lives as long as
+ * {@link DownloadService}, which shuts it down when it is destroyed.
+ */
+class HttpStackPool {
+
+	private static HttpStackPool sInstance;
+	/** One of the Constants.HTTP_STACK_* values. */
+	private static int sHttpStack = Constants.HTTP_STACK_AUTO;
+
+	public static synchronized HttpStackPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new HttpStackPool();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Select the kind of stack leased from now on, so the stacks can be
+	 * compared against each other. Stacks already leased keep their kind.
+	 * 
+	 * @param stack
+	 *            one of the Constants.HTTP_STACK_* values
+	 */
+	public static synchronized void setHttpStack(int stack) {
+		if (stack != Constants.HTTP_STACK_AUTO
+				&& stack != Constants.HTTP_STACK_HURL
+				&& stack != Constants.HTTP_STACK_APACHE
+				&& stack != Constants.HTTP_STACK_HTTP2) {
+			throw new IllegalArgumentException("Unknown HTTP stack " + stack);
+		}
+		if (stack != sHttpStack) {
+			sHttpStack = stack;
+			shutdown();
+		}
+	}
+
+	/**
+	 * Close the idle connections of the pool. Stacks leased afterwards come
+	 * from a new pool.
+	 */
+	public static synchronized void shutdown() {
+		if (sInstance != null) {
+			sInstance.close();
+			sInstance = null;
+		}
+	}
+
+	/** The client shared before Gingerbread, null when HttpURLConnection is used. */
+	private final AndroidHttpClient mClient;
+	/** The HTTP/2 connections, null when HTTP/2 isn't used. */
+	private final Http2Stack.Pool mHttp2Pool;
+	private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	HttpStackPool() {
+		boolean hurl = sHttpStack == Constants.HTTP_STACK_HURL
+				|| sHttpStack == Constants.HTTP_STACK_HTTP2
+				|| (sHttpStack == Constants.HTTP_STACK_AUTO && Build.VERSION.SDK_INT >= 9);
+		if (sHttpStack == Constants.HTTP_STACK_HTTP2) {
+			mHttp2Pool = new Http2Stack.Pool(true);
+		} else {
+			mHttp2Pool = null;
+		}
+		if (hurl) {
+			System.setProperty("http.keepAlive", "true");
+			System.setProperty("http.maxConnections",
+					Integer.toString(Constants.MAX_CONNECTIONS_PER_HOST));
+			mClient = null;
+		} else {
+			// Prior to Gingerbread, HttpUrlConnection was unreliable.
+			// See: http://android-developers.blogspot.com/2011/09/androids-http-clients.html
+			mClient = AndroidHttpClient.newInstance(Constants.DEFAULT_USER_AGENT);
+			// the connection manager reads these when it first meets a route
+			HttpParams params = mClient.getParams();
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(Constants.MAX_CONNECTIONS_PER_HOST));
+			ConnManagerParams.setMaxTotalConnections(params,
+					Constants.MAX_CONNECTIONS);
+		}
+	}
+
+	/**
+	 * Lease a stack for the requests of one download, or of one of its
+	 * segments. Closing the stack returns it to the pool.
+	 */
+	public HttpStack lease() {
+		return new Lease();
+	}
+
+	private void close() {
+		if (mClient != null) {
+			mClient.close();
+		}
+		if (mHttp2Pool != null) {
+			mHttp2Pool.close();
+		}
+	}
+
+	private Semaphore getHostPermits(String host) {
+		Semaphore permits = mHostPermits.get(host);
+		if (permits == null) {
+			permits = new Semaphore(Constants.MAX_CONNECTIONS_PER_HOST, true);
+			Semaphore existing = mHostPermits.putIfAbsent(host, permits);
+			if (existing != null) {
+				permits = existing;
+			}
+		}
+		return permits;
+	}
+
+	/**
+	 * A stack leased from the pool. Unless its last request went over HTTP/2,
+	 * it holds a connection permit for the host of that request until the
+	 * next request or until it is closed.
+	 */
+	private class Lease implements HttpStack {
+		private final HttpStack mDelegate;
+		private final Http2Stack mHttp2;
+		private Semaphore mPermit;
+		private boolean mClosed = false;
+
+		public Lease() {
+			if (mClient != null) {
+				mDelegate = new HttpClientStack(mClient);
+			} else {
+				mDelegate = new HurlStack();
+			}
+			mHttp2 = mHttp2Pool != null ? new Http2Stack(mHttp2Pool) : null;
+		}
+
+		@Override
+		public HttpResponse performRequest(HttpUriRequest request)
+				throws IOException {
+			releasePermit();
+			if (mHttp2 != null) {
+				mHttp2.close();
+				if (mHttp2.isMultiplexed(request.getURI())) {
+					return mHttp2.performRequest(request);
+				}
+			}
+			String host = request.getURI().getHost();
+			if (host != null) {
+				acquirePermit(getHostPermits(host));
+			}
+			try {
+				return mDelegate.performRequest(request);
+			} catch (IOException ex) {
+				releasePermit();
+				throw ex;
+			} catch (RuntimeException ex) {
+				releasePermit();
+				throw ex;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				mClosed = true;
+			}
+			try {
+				if (mHttp2 != null) {
+					mHttp2.close();
+				}
+				if (mClient != null) {
+					// the connection goes back to the shared manager once its
+					// request is consumed or aborted; only reap what has been
+					// idle for too long
+					mClient.getConnectionManager().closeIdleConnections(
+							Constants.HTTP_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+				} else {
+					mDelegate.close();
+				}
+			} finally {
+				releasePermit();
+			}
+		}
+
+		private void acquirePermit(Semaphore permits) throws IOException {
+			try {
+				if (!permits.tryAcquire(HttpStack.TIMEOUT_MSECONDES,
+						TimeUnit.MILLISECONDS)) {
+					throw new IOException(
+							"timed out waiting for a connection to the host");
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted waiting for a connection");
+			}
+			synchronized (this) {
+				if (mClosed) {
+					// closed by another thread while waiting
+					permits.release();
+					throw new IOException("connection closed");
+				}
+				mPermit = permits;
+			}
+		}
+
+		private synchronized void releasePermit() {
+			if (mPermit != null) {
+				mPermit.release();
+				mPermit = null;
+			}
+		}
+	}
+}
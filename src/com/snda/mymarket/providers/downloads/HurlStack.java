@@ -17,6 +17,7 @@
 package com.snda.mymarket.providers.downloads;
 
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -38,10 +39,15 @@ import org.apache.http.message.BasicStatusLine;
 
 /**
  * An {@link HttpStack} based on {@link HttpURLConnection}.
+ * <p>
+ * Connections are left to the keep-alive pool of {@link HttpURLConnection}:
+ * a response read to the end gives its connection back for the next request
+ * to the same host, and only a connection abandoned halfway is torn down.
  */
 public class HurlStack implements HttpStack {
 
-    private HttpURLConnection client;
+    private volatile HttpURLConnection client;
+    private volatile ResponseStream mResponseStream;
 
     /**
      * An interface for transforming URLs before use.
@@ -80,6 +86,9 @@ public class HurlStack implements HttpStack {
             url = rewritten;
         }
         URL parsedUrl = new URL(url);
+        // a redirect or retry is sent through this stack again, let the
+        // previous connection go first
+        close();
         client = openConnection(parsedUrl, request);
         for (Header headerName : request.getAllHeaders()) {
             client.addRequestProperty(headerName.getName(), headerName.getValue());
@@ -97,6 +106,7 @@ public class HurlStack implements HttpStack {
                 client.getResponseCode(), client.getResponseMessage());
         BasicHttpResponse response = new BasicHttpResponse(responseStatus);
         response.setEntity(entityFromConnection(client));
+        mResponseStream = (ResponseStream) response.getEntity().getContent();
         for (Entry<String, List<String>> header : client.getHeaderFields().entrySet()) {
             if (header.getKey() != null) {
                 Header h = new BasicHeader(header.getKey(), header.getValue().get(0));
@@ -119,7 +129,8 @@ public class HurlStack implements HttpStack {
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
-        entity.setContent(inputStream);
+        entity.setContent(new ResponseStream(inputStream,
+                connection.getContentLength()));
         entity.setContentLength(connection.getContentLength());
         entity.setContentEncoding(connection.getContentEncoding());
         entity.setContentType(connection.getContentType());
@@ -151,10 +162,115 @@ public class HurlStack implements HttpStack {
         return connection;
     }
 
+	/**
+	 * Release the connection of the last response. It goes back to the
+	 * keep-alive pool if the response was read to the end, or if what is left
+	 * of it is small enough to be drained, like the body of a redirect or an
+	 * error. It is closed otherwise.
+	 */
 	@Override
 	public void close() throws IOException {
-		if ( client != null ) {
-			client.disconnect();
+		HttpURLConnection connection = client;
+		ResponseStream stream = mResponseStream;
+		client = null;
+		mResponseStream = null;
+		if (connection == null) {
+			return;
+		}
+		if (stream != null && (stream.isExhausted() || stream.drain())) {
+			stream.close();
+		} else {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * The body of a response, remembering whether it has been read to the end.
+	 */
+	private static class ResponseStream extends FilterInputStream {
+		private final long mContentLength;
+		private volatile long mBytesRead = 0;
+		private volatile boolean mExhausted = false;
+
+		/**
+		 * @param contentLength
+		 *            the length of the body, -1 if unknown
+		 */
+		public ResponseStream(InputStream in, long contentLength) {
+			super(in);
+			mContentLength = contentLength;
+		}
+
+		public boolean isExhausted() {
+			return mExhausted || in == null;
+		}
+
+		/**
+		 * Read the rest of the body, if its length is known and at most
+		 * {@link Constants#MAX_DRAIN_BYTES}.
+		 * 
+		 * @return whether the body has been read to the end
+		 */
+		public boolean drain() {
+			if (mContentLength < 0
+					|| mContentLength - mBytesRead > Constants.MAX_DRAIN_BYTES) {
+				return false;
+			}
+			byte[] buffer = new byte[Constants.MAX_DRAIN_BYTES];
+			try {
+				int total = 0;
+				while (total <= Constants.MAX_DRAIN_BYTES) {
+					int bytesRead = read(buffer, 0, buffer.length);
+					if (bytesRead == -1) {
+						return true;
+					}
+					total += bytesRead;
+				}
+			} catch (IOException ex) {
+				// the connection can't be reused
+			}
+			return false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			int b = in.read();
+			if (b == -1) {
+				mExhausted = true;
+			} else {
+				mBytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			int bytesRead = in.read(buffer, offset, count);
+			if (bytesRead == -1) {
+				mExhausted = true;
+			} else {
+				mBytesRead += bytesRead;
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in == null ? 0 : in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,178 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * The description of a file from a Metalink document: where to get it, how big
+ * it is and its digest. Both Metalink 4 (RFC 5854) and Metalink 3 documents
+ * are read; only the first file of a document is kept, and only its HTTP
+ * sources.
+ */
+class Metalink {
+	/** The HTTP URIs of the file, most preferred first. */
+	public final List<String> mUrls = new ArrayList<String>();
+	/** The size of the file in bytes, -1 if not given. */
+	public long mSize = -1;
+	/** The algorithm of mHash, as a StreamingDigest name, null if no hash. */
+	public String mHashAlgorithm;
+	/** The digest of the file in hex, null if not given. */
+	public String mHash;
+
+	private static class Url {
+		public final String mUri;
+		/** Lower is preferred. */
+		public final int mRank;
+		public final int mOrder;
+
+		public Url(String uri, int rank, int order) {
+			mUri = uri;
+			mRank = rank;
+			mOrder = order;
+		}
+	}
+
+	/**
+	 * Read a Metalink document.
+	 *
+	 * @throws IOException
+	 *             if the document can't be read or describes no HTTP source
+	 */
+	public static Metalink parse(InputStream in) throws IOException {
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(in, null);
+			return parse(parser);
+		} catch (XmlPullParserException ex) {
+			IOException error = new IOException("malformed metalink: "
+					+ ex.getMessage());
+			error.initCause(ex);
+			throw error;
+		}
+	}
+
+	private static Metalink parse(XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		Metalink metalink = new Metalink();
+		List<Url> urls = new ArrayList<Url>();
+		int files = 0;
+		String hashType = null;
+		int event;
+		while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+			if (event != XmlPullParser.START_TAG) {
+				continue;
+			}
+			String name = parser.getName();
+			if (name.equals("file")) {
+				files++;
+			}
+			if (files != 1) {
+				continue;
+			}
+			if (name.equals("size")) {
+				try {
+					metalink.mSize = Long.parseLong(parser.nextText().trim());
+				} catch (NumberFormatException ex) {
+					metalink.mSize = -1;
+				}
+			} else if (name.equals("hash")) {
+				// a v3 document also has piece hashes, which have no type
+				String algorithm = toAlgorithm(parser.getAttributeValue(null,
+						"type"));
+				String hash = parser.nextText().trim();
+				if (algorithm != null && isStronger(algorithm, hashType)) {
+					hashType = algorithm;
+					metalink.mHash = hash;
+				}
+			} else if (name.equals("url")) {
+				String priority = parser.getAttributeValue(null, "priority");
+				String preference = parser.getAttributeValue(null,
+						"preference");
+				int rank;
+				if (priority != null) {
+					// v4: 1 to 999999, lower first
+					rank = parseInt(priority, 999999);
+				} else if (preference != null) {
+					// v3: 0 to 100, higher first
+					rank = 100 - parseInt(preference, 0);
+				} else {
+					rank = Integer.MAX_VALUE;
+				}
+				String uri = parser.nextText().trim();
+				if (uri.toLowerCase(Locale.ENGLISH).startsWith("http://")) {
+					urls.add(new Url(uri, rank, urls.size()));
+				}
+			}
+		}
+		if (urls.isEmpty()) {
+			throw new IOException("metalink has no HTTP source");
+		}
+
+		Collections.sort(urls, new Comparator<Url>() {
+			@Override
+			public int compare(Url lhs, Url rhs) {
+				if (lhs.mRank != rhs.mRank) {
+					return lhs.mRank < rhs.mRank ? -1 : 1;
+				}
+				return lhs.mOrder - rhs.mOrder;
+			}
+		});
+		for (Url url : urls) {
+			if (!metalink.mUrls.contains(url.mUri)) {
+				metalink.mUrls.add(url.mUri);
+			}
+		}
+		metalink.mHashAlgorithm = hashType;
+		return metalink;
+	}
+
+	/**
+	 * The StreamingDigest algorithm of a Metalink hash type, null if there is
+	 * none.
+	 */
+	private static String toAlgorithm(String type) {
+		if (type == null) {
+			return null;
+		}
+		type = type.toLowerCase(Locale.ENGLISH);
+		if (type.equals("sha-256") || type.equals("sha256")) {
+			return StreamingDigest.SHA256;
+		} else if (type.equals("sha-1") || type.equals("sha1")) {
+			return StreamingDigest.SHA1;
+		} else if (type.equals("md5")) {
+			return StreamingDigest.MD5;
+		}
+		return null;
+	}
+
+	private static boolean isStronger(String algorithm, String than) {
+		return than == null || strength(algorithm) > strength(than);
+	}
+
+	private static int strength(String algorithm) {
+		if (algorithm.equals(StreamingDigest.SHA256)) {
+			return 3;
+		} else if (algorithm.equals(StreamingDigest.SHA1)) {
+			return 2;
+		}
+		return 1;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+}
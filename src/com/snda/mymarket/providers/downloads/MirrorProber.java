@@ -0,0 +1,208 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+/**
+ * Ranks the sources of a download by fetching the start of the file from all
+ * of them at once: the time to the response tells the latency of a source,
+ * the time to the rest of the probe its throughput.
+ */
+class MirrorProber {
+	private final SystemFacade mSystemFacade;
+	private final int mBufferSize;
+	private final int mSchedulingClass;
+
+	/**
+	 * The probe of one source.
+	 */
+	private class Probe implements Runnable {
+		public final int mOrder;
+		public final HttpGet mRequest;
+		public final long mDeadline;
+		public CountDownLatch mDone;
+		/**
+		 * The estimated time to fetch the whole probe in ns, -1 until the
+		 * probe finishes.
+		 */
+		public volatile long mScore = -1;
+		public volatile boolean mFailed = false;
+
+		public Probe(int order, HttpGet request, long deadline) {
+			mOrder = order;
+			mRequest = request;
+			mDeadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			HttpStack client = HttpStackPool.getInstance().lease();
+			InputStream in = null;
+			try {
+				mRequest.addHeader("Range", "bytes=0-"
+						+ (Constants.MIRROR_PROBE_BYTES - 1));
+				long start = System.nanoTime();
+				HttpResponse response = client.performRequest(mRequest);
+				long responseAt = System.nanoTime();
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200 && status != 206) {
+					throw new IOException("http status " + status);
+				}
+				in = response.getEntity().getContent();
+				byte[] data = new byte[mBufferSize];
+				long bytes = 0;
+				while (bytes < Constants.MIRROR_PROBE_BYTES
+						&& System.nanoTime() < mDeadline) {
+					int count = in.read(data);
+					if (count == -1) {
+						break;
+					}
+					bytes += count;
+				}
+				long latency = responseAt - start;
+				long transfer = System.nanoTime() - responseAt;
+				if (bytes > 0 && bytes < Constants.MIRROR_PROBE_BYTES) {
+					// cut short by the deadline, or the whole file
+					transfer = transfer * Constants.MIRROR_PROBE_BYTES / bytes;
+				}
+				mScore = latency + transfer;
+			} catch (IOException ex) {
+				mFailed = true;
+				if (Constants.LOGV) {
+					Log.v(Constants.TAG, "probe of " + mRequest.getURI()
+							+ " failed: " + ex);
+				}
+			} catch (RuntimeException ex) {
+				mFailed = true;
+				Log.w(Constants.TAG, "probe of " + mRequest.getURI()
+						+ " failed: " + ex);
+			} finally {
+				// never let the connection be reused for the rest of the body
+				mRequest.abort();
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException ex) {
+						// aborted anyway
+					}
+				}
+				try {
+					client.close();
+				} catch (IOException ex) {
+					// nothing can really be done about it
+				}
+				mDone.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @param schedulingClass
+	 *            the class of the download probing, which the probes run in
+	 */
+	MirrorProber(SystemFacade systemFacade, int bufferSize,
+			int schedulingClass) {
+		mSystemFacade = systemFacade;
+		mBufferSize = bufferSize;
+		mSchedulingClass = schedulingClass;
+	}
+
+	/**
+	 * Probe sources and order them fastest first. The sources that haven't
+	 * answered by the deadline follow those that have, and the ones whose
+	 * probe failed come last; each group keeps the order it was given in.
+	 *
+	 * @param requests
+	 *            a GET request for each source, with the headers of the
+	 *            download
+	 * @return the indices of the requests in rank order
+	 */
+	public int[] rank(List<HttpGet> requests) {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(Constants.MIRROR_PROBE_TIMEOUT);
+		final List<Probe> probes = new ArrayList<Probe>();
+		CountDownLatch done = new CountDownLatch(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			Probe probe = new Probe(i, requests.get(i), deadline);
+			probe.mDone = done;
+			probes.add(probe);
+		}
+		// the other probes take slots of the scheduler like downloads do, the
+		// first one runs on the slot of the download probing
+		List<Future<?>> helpers = new ArrayList<Future<?>>();
+		for (int i = 1; i < probes.size(); i++) {
+			helpers.add(mSystemFacade.runHelperOnThreadPool(probes.get(i),
+					probes.get(i).mRequest.getURI().getHost(), mSchedulingClass));
+		}
+		if (!probes.isEmpty()) {
+			probes.get(0).run();
+		}
+		try {
+			// the probes stop reading at the deadline, leave them a moment to
+			// report
+			long wait = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime()) + 500;
+			done.await(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		// probes still waiting for a slot are too late to count
+		for (Future<?> helper : helpers) {
+			helper.cancel(false);
+		}
+
+		// the scores are read once, a late probe may still finish meanwhile
+		final long[] scores = new long[probes.size()];
+		for (Probe probe : probes) {
+			scores[probe.mOrder] = probe.mFailed ? -2 : probe.mScore;
+			if (scores[probe.mOrder] == -1) {
+				probe.mRequest.abort();
+			}
+		}
+		List<Probe> ranked = new ArrayList<Probe>(probes);
+		Collections.sort(ranked, new Comparator<Probe>() {
+			@Override
+			public int compare(Probe lhs, Probe rhs) {
+				long left = scores[lhs.mOrder];
+				long right = scores[rhs.mOrder];
+				if (group(left) != group(right)) {
+					return group(left) - group(right);
+				}
+				if (left >= 0 && left != right) {
+					return left < right ? -1 : 1;
+				}
+				return lhs.mOrder - rhs.mOrder;
+			}
+		});
+		int[] order = new int[ranked.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = ranked.get(i).mOrder;
+			if (Constants.LOGV) {
+				long score = scores[order[i]];
+				Log.v(Constants.TAG, "mirror " + requests.get(order[i]).getURI()
+						+ ": " + (score >= 0 ? score / 1000000 + " ms"
+						: score == -1 ? "no answer" : "failed"));
+			}
+		}
+		return order;
+	}
+
+	private static int group(long score) {
+		if (score >= 0) {
+			return 0;
+		}
+		return score == -1 ? 1 : 2;
+	}
+}
@@ -0,0 +1,1026 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * Runs many downloads at once on a single thread. One selector drives their
+ * non-blocking sockets: requests are written, response headers are parsed as
+ * they arrive and bodies go straight from one shared direct buffer to the
+ * destination channels. Every download in flight costs a socket and a few
+ * hundred bytes instead of a thread, a wake lock and a blocking read.
+ * <p>
+ * The engine only covers the common case: a fresh download over plain HTTP
+ * answered with 200 and a Content-Length. Anything else, such as a redirect,
+ * an error status, a chunked body or a failed connection, hands the download
+ * over to a regular {@link DownloadTask}, which already knows how to retry,
+ * resume and report it. File creation, database writes and syncs run on a
+ * worker thread so that they never hold up the selector.
+ */
+class MultiplexedEngine {
+
+	private static MultiplexedEngine sInstance;
+	private static volatile boolean sEnabled = Constants.MULTIPLEXED_ENGINE_ENABLED;
+
+	/** The largest response header accepted before handing over. */
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_RESOLVING = 1;
+	private static final int STATE_CONNECTING = 2;
+	private static final int STATE_SENDING = 3;
+	private static final int STATE_HEADERS = 4;
+	/** Waiting for the worker to create the destination. */
+	private static final int STATE_PREPARING = 5;
+	private static final int STATE_BODY = 6;
+	private static final int STATE_DONE = 7;
+
+	public static synchronized MultiplexedEngine getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new MultiplexedEngine(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Select whether fresh downloads started from now on run on the engine.
+	 */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * Whether a download can start on the engine. Resumed downloads keep
+	 * going through DownloadTask, which owns the logic to continue them, and
+	 * so do downloads the cache or a proxy has to serve.
+	 */
+	public static boolean canHandle(Context context, SystemFacade systemFacade,
+			DownloadInfo info) {
+		if (!sEnabled || info.mUri == null || info.mCurrentBytes > 0
+				|| info.mFileName != null || info.mAllowCompression
+				|| info.mDeltaUri != null || info.mDigestAlgorithm != null
+				|| info.mExpectedSize >= 0 || info.mMirrors != null
+				|| info.mMetalink) {
+			return false;
+		}
+		Uri uri = Uri.parse(info.mUri);
+		if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+			return false;
+		}
+		return !usesProxy(info.mUri) && !isCached(context, systemFacade, info);
+	}
+
+	/**
+	 * Whether connections to a URI go through a proxy, which the engine
+	 * doesn't speak to.
+	 */
+	private static boolean usesProxy(String uri) {
+		try {
+			for (Proxy proxy : ProxySelector.getDefault().select(new URI(uri))) {
+				if (proxy.type() != Proxy.Type.DIRECT) {
+					return true;
+				}
+			}
+			return false;
+		} catch (URISyntaxException ex) {
+			return true;
+		} catch (RuntimeException ex) {
+			return true;
+		}
+	}
+
+	/**
+	 * Whether DownloadTask can copy the download from the cache instead.
+	 */
+	private static boolean isCached(Context context, SystemFacade systemFacade,
+			DownloadInfo info) {
+		if (!DownloadTask.isCacheable(info)) {
+			return false;
+		}
+		try {
+			return new DownloadCache(context, Constants.BUFFER_SIZE).findRecent(
+					info.mUri, systemFacade.currentTimeMillis()
+							- Constants.CACHE_REUSE_WINDOW) != null;
+		} catch (RuntimeException ex) {
+			// the cache is only a shortcut, the engine can always go ahead
+			Log.w(Constants.TAG, "couldn't look up download " + info.mId
+					+ " in cache: " + ex);
+			return false;
+		}
+	}
+
+	private final Context mContext;
+	private final Selector mSelector;
+	/** Creates destinations, writes to the database and hands over. */
+	private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+	/** Name lookups block, so they run off the selector thread. */
+	private final ExecutorService mResolver = Executors.newCachedThreadPool();
+	private final ConcurrentLinkedQueue<Runnable> mActions = new ConcurrentLinkedQueue<Runnable>();
+	private final PowerManager.WakeLock mWakeLock;
+
+	// only touched by the selector thread
+	private final ByteBuffer mBuffer = ByteBuffer
+			.allocateDirect(Constants.NIO_BUFFER_SIZE);
+	private final LinkedList<Transfer> mQueue = new LinkedList<Transfer>();
+	private final List<Transfer> mActive = new ArrayList<Transfer>();
+	private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+	private long mLastCheck;
+
+	MultiplexedEngine(Context context) {
+		mContext = context;
+		try {
+			mSelector = Selector.open();
+		} catch (IOException ex) {
+			throw new IllegalStateException("can't open selector", ex);
+		}
+		PowerManager pm = (PowerManager) context
+				.getSystemService(Context.POWER_SERVICE);
+		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+				Constants.TAG + "-Multiplexer");
+		mWakeLock.setReferenceCounted(false);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				loop();
+			}
+		}, Constants.TAG + "-Multiplexer");
+		thread.start();
+	}
+
+	/**
+	 * Start a download on the engine.
+	 *
+	 * @return a future that is done once the download stopped, here or in
+	 *         the DownloadTask it was handed over to
+	 */
+	public Future<?> submit(DownloadInfo info, SystemFacade systemFacade,
+			DownloadNotifier notifier) {
+		final Transfer transfer = new Transfer(info, systemFacade, notifier);
+		post(new Runnable() {
+			public void run() {
+				mQueue.add(transfer);
+			}
+		});
+		return transfer.mHandle;
+	}
+
+	/**
+	 * Run an action on the selector thread.
+	 */
+	private void post(Runnable action) {
+		mActions.add(action);
+		mSelector.wakeup();
+	}
+
+	private void loop() {
+		for (;;) {
+			Runnable action;
+			while ((action = mActions.poll()) != null) {
+				action.run();
+			}
+			startQueued();
+
+			long now = System.currentTimeMillis();
+			if (now - mLastCheck >= Constants.MULTIPLEXED_CHECK_INTERVAL) {
+				mLastCheck = now;
+				checkTransfers(now);
+			}
+			long timeout = Constants.MULTIPLEXED_CHECK_INTERVAL;
+			for (Transfer transfer : mActive) {
+				if (transfer.mResumeAt != 0) {
+					if (transfer.mResumeAt <= now) {
+						transfer.mResumeAt = 0;
+						transfer.mKey.interestOps(SelectionKey.OP_READ);
+					} else {
+						timeout = Math.min(timeout, transfer.mResumeAt - now);
+					}
+				}
+			}
+			if (mActive.isEmpty() && mQueue.isEmpty()) {
+				mWakeLock.release();
+				timeout = 0;
+			}
+
+			try {
+				mSelector.select(timeout);
+			} catch (IOException ex) {
+				Log.w(Constants.TAG, "selector failed: " + ex);
+				continue;
+			}
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Transfer transfer = (Transfer) key.attachment();
+				if (!key.isValid() || transfer.mState == STATE_DONE) {
+					continue;
+				}
+				try {
+					if (key.isConnectable()) {
+						onConnectable(transfer);
+					} else if (key.isWritable()) {
+						onWritable(transfer);
+					} else if (key.isReadable()) {
+						onReadable(transfer);
+					}
+				} catch (IOException ex) {
+					onNetworkError(transfer, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start queued downloads while the limits allow it.
+	 */
+	private void startQueued() {
+		Iterator<Transfer> it = mQueue.iterator();
+		while (mActive.size() < Constants.MULTIPLEXED_MAX_TRANSFERS
+				&& it.hasNext()) {
+			final Transfer transfer = it.next();
+			Integer running = mActivePerHost.get(transfer.mHost);
+			if (running != null
+					&& running >= Constants.MAX_CONNECTIONS_PER_HOST) {
+				continue;
+			}
+			if (!transfer.mSystemFacade.tryReserveSlot(transfer.mHost)) {
+				// the scheduler's limits count the engine's downloads too
+				continue;
+			}
+			it.remove();
+			mActivePerHost.put(transfer.mHost, running == null ? 1
+					: running + 1);
+			mActive.add(transfer);
+			mWakeLock.acquire();
+
+			if (transfer.mInfo.checkCanUseNetwork() != DownloadInfo.NETWORK_OK) {
+				// DownloadTask knows which status and notification that takes
+				handOver(transfer);
+				continue;
+			}
+			transfer.mState = STATE_RESOLVING;
+			transfer.mLastActivity = System.currentTimeMillis();
+			mResolver.execute(new Runnable() {
+				public void run() {
+					resolve(transfer);
+				}
+			});
+		}
+	}
+
+	private void resolve(final Transfer transfer) {
+		InetAddress address = null;
+		try {
+			address = InetAddress.getByName(transfer.mHost);
+		} catch (IOException ex) {
+			Log.w(Constants.TAG, "couldn't resolve host for download "
+					+ transfer.mInfo.mId + ": " + ex);
+		}
+		final InetAddress resolved = address;
+		post(new Runnable() {
+			public void run() {
+				if (transfer.mState != STATE_RESOLVING) {
+					return;
+				}
+				if (resolved == null) {
+					handOver(transfer);
+					return;
+				}
+				connect(transfer, resolved);
+			}
+		});
+	}
+
+	private void connect(Transfer transfer, InetAddress address) {
+		try {
+			SocketChannel channel = SocketChannel.open();
+			transfer.mChannel = channel;
+			channel.configureBlocking(false);
+			transfer.mConnectStart = System.nanoTime();
+			boolean connected = channel.connect(new InetSocketAddress(address,
+					transfer.mPort));
+			transfer.mKey = channel.register(mSelector,
+					connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+					transfer);
+			transfer.mState = connected ? STATE_SENDING : STATE_CONNECTING;
+		} catch (IOException ex) {
+			onNetworkError(transfer, ex);
+		}
+	}
+
+	private void onConnectable(Transfer transfer) throws IOException {
+		if (transfer.mChannel.finishConnect()) {
+			transfer.mState = STATE_SENDING;
+			transfer.mKey.interestOps(SelectionKey.OP_WRITE);
+			transfer.mLastActivity = System.currentTimeMillis();
+		}
+	}
+
+	private void onWritable(Transfer transfer) throws IOException {
+		transfer.mChannel.write(transfer.mRequest);
+		transfer.mLastActivity = System.currentTimeMillis();
+		if (!transfer.mRequest.hasRemaining()) {
+			transfer.mState = STATE_HEADERS;
+			transfer.mKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void onReadable(Transfer transfer) throws IOException {
+		ByteBuffer buffer = mBuffer;
+		buffer.clear();
+		int read = transfer.mChannel.read(buffer);
+		if (read == -1) {
+			if (transfer.mState == STATE_BODY
+					&& transfer.mBytesSoFar == transfer.mContentLength) {
+				finish(transfer, Downloads.STATUS_SUCCESS);
+			} else {
+				onNetworkError(transfer, new IOException(
+						"connection closed before end of response"));
+			}
+			return;
+		}
+		if (read == 0) {
+			return;
+		}
+		transfer.mLastActivity = System.currentTimeMillis();
+		buffer.flip();
+		if (transfer.mState == STATE_HEADERS) {
+			if (consumeHeaders(transfer, buffer)) {
+				onHeaders(transfer, buffer);
+			}
+			return;
+		}
+		writeBody(transfer, buffer);
+	}
+
+	/**
+	 * Move header bytes from the buffer into the transfer, up to the blank
+	 * line ending them.
+	 *
+	 * @return whether all the headers have arrived
+	 */
+	private boolean consumeHeaders(Transfer transfer, ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			transfer.mHeaderBytes.write(b);
+			if (b == '\n') {
+				if (++transfer.mNewlines == 2) {
+					return true;
+				}
+			} else if (b != '\r') {
+				transfer.mNewlines = 0;
+			}
+		}
+		if (transfer.mHeaderBytes.size() > MAX_HEADER_SIZE) {
+			handOver(transfer);
+		}
+		return false;
+	}
+
+	/**
+	 * Parse the response headers. On a plain 200 with a known length, have the
+	 * worker create the destination while the socket waits.
+	 */
+	private void onHeaders(final Transfer transfer, ByteBuffer buffer) {
+		transfer.mResponseAt = System.nanoTime();
+		String[] lines;
+		try {
+			lines = transfer.mHeaderBytes.toString("ISO-8859-1").split("\r?\n");
+		} catch (IOException ex) {
+			handOver(transfer);
+			return;
+		}
+		transfer.mHeaderBytes = null;
+		String[] status = lines[0].split(" ");
+		if (status.length < 2 || !status[0].startsWith("HTTP/")
+				|| !status[1].equals("200")) {
+			handOver(transfer);
+			return;
+		}
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0) {
+				headers.put(lines[i].substring(0, colon).trim()
+						.toLowerCase(Locale.ENGLISH), lines[i].substring(
+						colon + 1).trim());
+			}
+		}
+		String contentLength = headers.get("content-length");
+		if (headers.containsKey("transfer-encoding") || contentLength == null) {
+			handOver(transfer);
+			return;
+		}
+		try {
+			transfer.mContentLength = Long.parseLong(contentLength);
+		} catch (NumberFormatException ex) {
+			handOver(transfer);
+			return;
+		}
+		transfer.mContentDisposition = headers.get("content-disposition");
+		transfer.mContentLocation = headers.get("content-location");
+		transfer.mETag = headers.get("etag");
+		transfer.mMimeType = transfer.mInfo.mMimeType != null ? transfer.mInfo.mMimeType
+				: headers.get("content-type");
+		transfer.mMimeType = DownloadTask.sanitizeMimeType(transfer.mMimeType);
+		transfer.mInfo.mTotalBytes = transfer.mContentLength;
+		if (transfer.mInfo.checkCanUseNetwork() != DownloadInfo.NETWORK_OK) {
+			// too big for this network now that the size is known
+			handOver(transfer);
+			return;
+		}
+
+		// keep what already came of the body until the file is open
+		transfer.mPendingBody = new byte[buffer.remaining()];
+		buffer.get(transfer.mPendingBody);
+		transfer.mState = STATE_PREPARING;
+		transfer.mKey.interestOps(0);
+		mWorker.execute(new Runnable() {
+			public void run() {
+				prepareDestination(transfer);
+			}
+		});
+	}
+
+	/**
+	 * Create the destination file and store what the headers told, on the
+	 * worker thread.
+	 */
+	private void prepareDestination(final Transfer transfer) {
+		final DownloadInfo info = transfer.mInfo;
+		final String filename;
+		final RandomAccessFile file;
+		try {
+			filename = Helpers.generateSaveFile(mContext, info.mUri,
+					info.mHint, info.mCurrentBytes,
+					transfer.mContentDisposition, transfer.mContentLocation,
+					transfer.mMimeType, info.mDestination,
+					transfer.mContentLength, info.mIsPublicApi);
+			file = new RandomAccessFile(filename, "rw");
+			file.setLength(0);
+		} catch (final Helpers.GenerateSaveFileError exc) {
+			Log.w(Constants.TAG, "Aborting request for download " + info.mId
+					+ ": " + exc.mMessage);
+			post(new Runnable() {
+				public void run() {
+					finish(transfer, exc.mStatus);
+				}
+			});
+			return;
+		} catch (IOException exc) {
+			Log.w(Constants.TAG, "Aborting request for download " + info.mId
+					+ ": while opening destination file: " + exc);
+			post(new Runnable() {
+				public void run() {
+					finish(transfer, Downloads.STATUS_FILE_ERROR);
+				}
+			});
+			return;
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(Downloads._DATA, filename);
+		if (transfer.mETag != null) {
+			values.put(Constants.ETAG, transfer.mETag);
+		}
+		if (transfer.mMimeType != null) {
+			values.put(Downloads.COLUMN_MIME_TYPE, transfer.mMimeType);
+		}
+		values.put(Downloads.COLUMN_TOTAL_BYTES, transfer.mContentLength);
+		updateDownload(transfer, values);
+		info.mFileName = filename;
+		info.mETag = transfer.mETag;
+		info.mMimeType = transfer.mMimeType;
+
+		post(new Runnable() {
+			public void run() {
+				transfer.mFilename = filename;
+				transfer.mFile = file;
+				if (transfer.mState != STATE_PREPARING) {
+					// stopped meanwhile
+					closeFile(transfer);
+					return;
+				}
+				transfer.mState = STATE_BODY;
+				transfer.mKey.interestOps(SelectionKey.OP_READ);
+				ByteBuffer pending = ByteBuffer.wrap(transfer.mPendingBody);
+				transfer.mPendingBody = null;
+				writeBody(transfer, pending);
+			}
+		});
+	}
+
+	private void writeBody(Transfer transfer, ByteBuffer buffer) {
+		long remaining = transfer.mContentLength - transfer.mBytesSoFar;
+		if (buffer.remaining() > remaining) {
+			// ignore anything the server sends past the announced length
+			buffer.limit(buffer.position() + (int) remaining);
+		}
+		int bytes = buffer.remaining();
+		if (bytes == 0) {
+			if (remaining == 0) {
+				finish(transfer, Downloads.STATUS_SUCCESS);
+			}
+			return;
+		}
+		if (transfer.mFirstByteAt == 0) {
+			transfer.mFirstByteAt = System.nanoTime();
+		}
+		try {
+			FileChannel channel = transfer.mFile.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException ex) {
+			Log.w(Constants.TAG, "Aborting request for download "
+					+ transfer.mInfo.mId + ": while writing destination file: "
+					+ ex);
+			long available = Helpers.getAvailableBytes(Helpers
+					.getFilesystemRoot(transfer.mFilename));
+			finish(transfer, available < bytes ? Downloads.STATUS_INSUFFICIENT_SPACE_ERROR
+					: Downloads.STATUS_FILE_ERROR);
+			return;
+		}
+		transfer.mBytesSoFar += bytes;
+		reportProgress(transfer);
+		if (transfer.mBytesSoFar == transfer.mContentLength) {
+			finish(transfer, Downloads.STATUS_SUCCESS);
+			return;
+		}
+		long wait = transfer.mLimiter.acquire(bytes);
+		if (wait > 0) {
+			transfer.mResumeAt = System.currentTimeMillis() + wait;
+			transfer.mKey.interestOps(0);
+		}
+	}
+
+	private void reportProgress(Transfer transfer) {
+		long now = System.currentTimeMillis();
+		ProgressChannel.getInstance().publish(transfer.mInfo.mId,
+				transfer.mBytesSoFar, transfer.mInfo.mTotalBytes,
+				transfer.mSpeed);
+		long sampleDelta = now - transfer.mSpeedSampleStart;
+		if (sampleDelta > 500) {
+			long sampleSpeed = ((transfer.mBytesSoFar - transfer.mSpeedSampleBytes) * 1000)
+					/ sampleDelta;
+			if (transfer.mSpeed == 0) {
+				transfer.mSpeed = sampleSpeed;
+			} else {
+				transfer.mSpeed = ((transfer.mSpeed * 3) + sampleSpeed) / 4;
+			}
+			// Only notify once we have a full sample window
+			if (transfer.mSpeedSampleStart != 0) {
+				transfer.mNotifier.notifyDownloadSpeed(transfer.mInfo.mId,
+						transfer.mSpeed);
+			}
+			transfer.mSpeedSampleStart = now;
+			transfer.mSpeedSampleBytes = transfer.mBytesSoFar;
+		}
+		if (transfer.mBytesSoFar - transfer.mBytesNotified > Constants.MIN_PROGRESS_STEP
+				&& now - transfer.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
+			ProgressAggregator.getInstance(mContext).publish(
+					transfer.mInfo.mId, transfer.mBytesSoFar, transfer.mSpeed);
+			transfer.mBytesNotified = transfer.mBytesSoFar;
+			transfer.mTimeLastNotification = now;
+		}
+	}
+
+	/**
+	 * Stop downloads that were paused, canceled or have been silent for too
+	 * long.
+	 */
+	private void checkTransfers(long now) {
+		for (Transfer transfer : new ArrayList<Transfer>(mActive)) {
+			if (transfer.mState == STATE_PREPARING) {
+				continue;
+			}
+			DownloadInfo info = transfer.mInfo;
+			synchronized (info) {
+				if (info.mControl == Downloads.CONTROL_PAUSED) {
+					finish(transfer, Downloads.STATUS_PAUSED_BY_APP);
+					continue;
+				}
+			}
+			if (info.mStatus == Downloads.STATUS_CANCELED || info.mDeleted) {
+				finish(transfer, Downloads.STATUS_CANCELED);
+			} else if (transfer.mHandle.mCancelled) {
+				// stopped without a reason, the service starts it again
+				finish(transfer, Downloads.STATUS_RUNNING);
+			} else if (transfer.mResumeAt == 0
+					&& now - transfer.mLastActivity > HttpStack.TIMEOUT_MSECONDES) {
+				onNetworkError(transfer, new IOException("timed out"));
+			}
+		}
+		// queued downloads stopped before they got their turn
+		Iterator<Transfer> it = mQueue.iterator();
+		while (it.hasNext()) {
+			Transfer transfer = it.next();
+			if (transfer.mHandle.mCancelled) {
+				it.remove();
+				transfer.mState = STATE_DONE;
+				transfer.mHandle.done(null);
+			}
+		}
+	}
+
+	private void onNetworkError(Transfer transfer, IOException ex) {
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "network error for download "
+					+ transfer.mInfo.mId + ": " + ex);
+		}
+		handOver(transfer);
+	}
+
+	/**
+	 * Take a download off the selector and release what it holds there.
+	 */
+	private void deactivate(Transfer transfer) {
+		transfer.mState = STATE_DONE;
+		if (transfer.mKey != null) {
+			transfer.mKey.cancel();
+		}
+		if (transfer.mChannel != null) {
+			try {
+				transfer.mChannel.close();
+			} catch (IOException ex) {
+				// nothing to do about it
+			}
+		}
+		if (mActive.remove(transfer)) {
+			int running = mActivePerHost.get(transfer.mHost) - 1;
+			if (running == 0) {
+				mActivePerHost.remove(transfer.mHost);
+			} else {
+				mActivePerHost.put(transfer.mHost, running);
+			}
+			transfer.mSystemFacade.releaseSlot(transfer.mHost);
+		}
+	}
+
+	/**
+	 * Let a DownloadTask take the download from where it is.
+	 */
+	private void handOver(final Transfer transfer) {
+		if (transfer.mState == STATE_DONE) {
+			return;
+		}
+		deactivate(transfer);
+		mWorker.execute(new Runnable() {
+			public void run() {
+				DownloadInfo info = transfer.mInfo;
+				closeFile(transfer);
+				if (transfer.mBytesSoFar > 0) {
+					ProgressAggregator.getInstance(mContext).remove(info.mId);
+					ContentValues values = new ContentValues();
+					values.put(Downloads.COLUMN_CURRENT_BYTES,
+							transfer.mBytesSoFar);
+					updateDownload(transfer, values);
+					info.mCurrentBytes = transfer.mBytesSoFar;
+				}
+				if (Constants.LOGV) {
+					Log.v(Constants.TAG, "handing download " + info.mId
+							+ " over to a DownloadTask");
+				}
+				transfer.mHandle.done(transfer.mSystemFacade
+						.runOnThreadPool(new DownloadTask(mContext,
+								transfer.mSystemFacade, info,
+								transfer.mNotifier)));
+			}
+		});
+	}
+
+	/**
+	 * End a download with a final status, or with STATUS_RUNNING to only
+	 * store its progress.
+	 */
+	private void finish(final Transfer transfer, final int status) {
+		if (transfer.mState == STATE_DONE) {
+			return;
+		}
+		deactivate(transfer);
+		mWorker.execute(new Runnable() {
+			public void run() {
+				complete(transfer, status);
+			}
+		});
+	}
+
+	/**
+	 * Store the outcome of a download, on the worker thread.
+	 */
+	private void complete(Transfer transfer, int status) {
+		DownloadInfo info = transfer.mInfo;
+		if (status == Downloads.STATUS_SUCCESS) {
+			syncFile(transfer);
+		}
+		closeFile(transfer);
+		if (transfer.mFilename != null && Downloads.isStatusError(status)) {
+			new File(transfer.mFilename).delete();
+			transfer.mFilename = null;
+		}
+		transfer.mNotifier.notifyDownloadSpeed(info.mId, 0);
+		ProgressAggregator.getInstance(mContext).remove(info.mId);
+		ProgressChannel.getInstance().remove(info.mId);
+
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, transfer.mBytesSoFar);
+		if (status != Downloads.STATUS_RUNNING) {
+			values.put(Downloads.COLUMN_STATUS, status);
+			values.put(Downloads._DATA, transfer.mFilename);
+			values.put(Downloads.COLUMN_MIME_TYPE, transfer.mMimeType);
+			values.put(Downloads.COLUMN_LAST_MODIFICATION,
+					transfer.mSystemFacade.currentTimeMillis());
+			values.put(Constants.RETRY_AFTER_X_REDIRECT_COUNT, 0);
+			values.put(Constants.FAILED_CONNECTIONS, 0);
+		}
+		updateDownload(transfer, values);
+		if (Downloads.isStatusCompleted(status)) {
+			info.sendIntentIfRequested(status);
+		}
+		// failures against the host are handed over, and reported from there
+		if (status == Downloads.STATUS_SUCCESS) {
+			HostHealthRegistry.getInstance().recordSuccess(transfer.mHost,
+					info.mId, transfer.mSystemFacade.currentTimeMillis());
+		} else {
+			HostHealthRegistry.getInstance().release(transfer.mHost, info.mId);
+		}
+		recordAttempt(transfer, status);
+		transfer.mHandle.done(null);
+	}
+
+	private void syncFile(Transfer transfer) {
+		long start = System.nanoTime();
+		try {
+			transfer.mFile.getFD().sync();
+		} catch (IOException ex) {
+			Log.w(Constants.TAG, "IOException trying to sync "
+					+ transfer.mFilename + ": " + ex);
+		}
+		transfer.mSyncTime += System.nanoTime() - start;
+	}
+
+	private void closeFile(Transfer transfer) {
+		if (transfer.mFile != null) {
+			try {
+				transfer.mFile.close();
+			} catch (IOException ex) {
+				// nothing can really be done if the file can't be closed
+			}
+			transfer.mFile = null;
+		}
+	}
+
+	private void updateDownload(Transfer transfer, ContentValues values) {
+		long start = System.nanoTime();
+		mContext.getContentResolver().update(
+				transfer.mInfo.getAllDownloadsUri(), values, null, null);
+		transfer.mDatabaseTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Store the phase timings of a download that ended on the engine, like
+	 * DownloadTask does for its attempts.
+	 */
+	private void recordAttempt(Transfer transfer, int status) {
+		long now = System.nanoTime();
+		long connected = transfer.mConnectStart != 0 ? transfer.mConnectStart
+				: transfer.mStart;
+		long response = transfer.mResponseAt != 0 ? transfer.mResponseAt
+				: connected;
+		long firstByte = transfer.mFirstByteAt != 0 ? transfer.mFirstByteAt
+				: response;
+		Integer networkType = transfer.mSystemFacade.getActiveNetworkType();
+		ContentValues values = new ContentValues();
+		values.put(Downloads.Attempts.COLUMN_STARTED_AT, transfer.mStartedAt);
+		values.put(Downloads.Attempts.COLUMN_STATUS, status);
+		values.put(Downloads.Attempts.COLUMN_NETWORK_TYPE,
+				networkType != null ? networkType : -1);
+		values.put(Downloads.Attempts.COLUMN_BYTES, transfer.mBytesSoFar);
+		values.put(Downloads.Attempts.COLUMN_TOTAL_TIME,
+				(now - transfer.mStart) / 1000000);
+		values.put(Downloads.Attempts.COLUMN_REQUEST_TIME,
+				(response - connected) / 1000000);
+		values.put(Downloads.Attempts.COLUMN_FIRST_BYTE_TIME,
+				(firstByte - response) / 1000000);
+		if (transfer.mFirstByteAt != 0) {
+			values.put(Downloads.Attempts.COLUMN_TRANSFER_TIME, Math.max(0,
+					now - firstByte - transfer.mSyncTime
+							- transfer.mDatabaseTime) / 1000000);
+		}
+		values.put(Downloads.Attempts.COLUMN_SYNC_TIME,
+				transfer.mSyncTime / 1000000);
+		values.put(Downloads.Attempts.COLUMN_DATABASE_TIME,
+				transfer.mDatabaseTime / 1000000);
+		try {
+			mContext.getContentResolver().insert(
+					transfer.mInfo.getAttemptsUri(), values);
+		} catch (RuntimeException ex) {
+			// the timings are only diagnostics, never fail the download
+			Log.w(Constants.TAG, "couldn't record attempt for download "
+					+ transfer.mInfo.mId + ": " + ex);
+		}
+	}
+
+	/**
+	 * One download in flight on the engine. Its fields belong to the selector
+	 * thread, except while the worker prepares or completes it.
+	 */
+	private class Transfer {
+		public final DownloadInfo mInfo;
+		public final SystemFacade mSystemFacade;
+		public final DownloadNotifier mNotifier;
+		public final BandwidthLimiter mLimiter;
+		public final Handle mHandle = new Handle(this);
+		public final String mHost;
+		public final int mPort;
+		public final ByteBuffer mRequest;
+
+		public int mState = STATE_QUEUED;
+		public SocketChannel mChannel;
+		public SelectionKey mKey;
+		public ByteArrayOutputStream mHeaderBytes = new ByteArrayOutputStream();
+		/** Consecutive line ends seen, two end the headers. */
+		public int mNewlines;
+		public byte[] mPendingBody;
+
+		public long mContentLength;
+		public String mContentDisposition;
+		public String mContentLocation;
+		public String mETag;
+		public String mMimeType;
+		public String mFilename;
+		public RandomAccessFile mFile;
+
+		public long mBytesSoFar;
+		public long mBytesNotified;
+		public long mTimeLastNotification;
+		public long mSpeed;
+		public long mSpeedSampleStart;
+		public long mSpeedSampleBytes;
+		public long mLastActivity;
+		/** When to read again after the bandwidth limit, 0 if not waiting. */
+		public long mResumeAt;
+
+		public final long mStartedAt;
+		public final long mStart = System.nanoTime();
+		public long mConnectStart;
+		public long mResponseAt;
+		public long mFirstByteAt;
+		public long mSyncTime;
+		public long mDatabaseTime;
+
+		public Transfer(DownloadInfo info, SystemFacade systemFacade,
+				DownloadNotifier notifier) {
+			mInfo = info;
+			mSystemFacade = systemFacade;
+			mNotifier = notifier;
+			mLimiter = new BandwidthLimiter(systemFacade, info);
+			mStartedAt = systemFacade.currentTimeMillis();
+			Uri uri = Uri.parse(info.mUri);
+			mHost = uri.getHost();
+			mPort = uri.getPort() != -1 ? uri.getPort() : 80;
+			mRequest = ByteBuffer.wrap(buildRequest(uri).getBytes());
+		}
+
+		private String buildRequest(Uri uri) {
+			String path = uri.getEncodedPath();
+			if (path == null || path.length() == 0) {
+				path = "/";
+			}
+			if (uri.getEncodedQuery() != null) {
+				path += "?" + uri.getEncodedQuery();
+			}
+			StringBuilder request = new StringBuilder();
+			request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+			request.append("Host: ").append(mHost);
+			if (uri.getPort() != -1) {
+				request.append(':').append(uri.getPort());
+			}
+			request.append("\r\n");
+			boolean hasUserAgent = false;
+			for (Pair<String, String> header : mInfo.getHeaders()) {
+				hasUserAgent |= header.first.equalsIgnoreCase("User-Agent");
+				request.append(header.first).append(": ")
+						.append(header.second).append("\r\n");
+			}
+			if (!hasUserAgent) {
+				request.append("User-Agent: ")
+						.append(mInfo.mUserAgent != null ? mInfo.mUserAgent
+								: Constants.DEFAULT_USER_AGENT).append("\r\n");
+			}
+			// Defeat transparent gzip compression, since it doesn't allow us
+			// to easily resume partial downloads.
+			request.append("Accept-Encoding: identity\r\n");
+			request.append("Connection: close\r\n\r\n");
+			return request.toString();
+		}
+	}
+
+	/**
+	 * The future handed to DownloadInfo. It stays pending while the download
+	 * is on the engine and follows the DownloadTask it is handed over to.
+	 */
+	private class Handle implements Future<Object> {
+		private final Transfer mTransfer;
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile Future<?> mDelegate;
+		public volatile boolean mCancelled = false;
+
+		public Handle(Transfer transfer) {
+			mTransfer = transfer;
+		}
+
+		/**
+		 * @param delegate
+		 *            the future of the task that took over, or null if the
+		 *            download ended on the engine
+		 */
+		public void done(Future<?> delegate) {
+			mDelegate = delegate;
+			mDone.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			Future<?> delegate = mDelegate;
+			if (delegate != null) {
+				return delegate.cancel(mayInterruptIfRunning);
+			}
+			if (isDone()) {
+				return false;
+			}
+			mCancelled = true;
+			// look at it right away
+			post(new Runnable() {
+				public void run() {
+					mLastCheck = 0;
+				}
+			});
+			return true;
+		}
+
+		public boolean isCancelled() {
+			Future<?> delegate = mDelegate;
+			return delegate != null ? delegate.isCancelled() : mCancelled
+					&& isDone();
+		}
+
+		public boolean isDone() {
+			Future<?> delegate = mDelegate;
+			return delegate != null ? delegate.isDone()
+					: mDone.getCount() == 0;
+		}
+
+		public Object get() throws InterruptedException, ExecutionException {
+			mDone.await();
+			Future<?> delegate = mDelegate;
+			return delegate != null ? delegate.get() : null;
+		}
+
+		public Object get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!mDone.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			Future<?> delegate = mDelegate;
+			return delegate != null ? delegate.get(timeout, unit) : null;
+		}
+	}
+}
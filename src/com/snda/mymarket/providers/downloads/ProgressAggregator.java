@@ -0,0 +1,137 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Collects the progress of all running downloads and stores it in one batch.
+ * <p>
+ * Download threads only publish their latest byte count and speed, which is
+ * a few volatile writes. A single flusher thread wakes up every
+ * {@link Constants#PROGRESS_FLUSH_INTERVAL} ms and writes every row that
+ * changed through {@link ContentResolver#applyBatch}, which the provider runs
+ * in one transaction followed by one change notification, instead of one
+ * update and one notification per download.
+ */
+class ProgressAggregator {
+
+	private static ProgressAggregator sInstance;
+
+	public static synchronized ProgressAggregator getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ProgressAggregator(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * The latest progress published for one download.
+	 */
+	private static class Progress {
+		public volatile long mCurrentBytes;
+		public volatile long mSpeed;
+		/** Whether the values changed since they were last stored. */
+		public final AtomicBoolean mDirty = new AtomicBoolean();
+	}
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler;
+	private final Map<Long, Progress> mProgress = new ConcurrentHashMap<Long, Progress>();
+	/** Whether a flush is already posted. */
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	/** Held while a batch is written, so that a row can't be stored stale. */
+	private final Object mFlushLock = new Object();
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	ProgressAggregator(Context context) {
+		mResolver = context.getContentResolver();
+		HandlerThread thread = new HandlerThread(Constants.TAG
+				+ "-ProgressThread", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Record the progress of a download, to be stored with the next batch.
+	 */
+	public void publish(long id, long currentBytes, long speed) {
+		Progress progress = mProgress.get(id);
+		if (progress == null) {
+			progress = new Progress();
+			mProgress.put(id, progress);
+		}
+		progress.mCurrentBytes = currentBytes;
+		progress.mSpeed = speed;
+		progress.mDirty.set(true);
+		if (mScheduled.compareAndSet(false, true)) {
+			mHandler.postDelayed(mFlush, Constants.PROGRESS_FLUSH_INTERVAL);
+		}
+	}
+
+	/**
+	 * Forget the progress of a download that is about to store its progress
+	 * by itself, waiting for a batch being written so that it can't overwrite
+	 * the newer value afterwards.
+	 */
+	public void remove(long id) {
+		synchronized (mFlushLock) {
+			mProgress.remove(id);
+		}
+	}
+
+	/**
+	 * Store the progress of every download that changed since the last batch.
+	 */
+	private void flush() {
+		mScheduled.set(false);
+		synchronized (mFlushLock) {
+			ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+			for (Map.Entry<Long, Progress> entry : mProgress.entrySet()) {
+				Progress progress = entry.getValue();
+				if (!progress.mDirty.getAndSet(false)) {
+					continue;
+				}
+				operations.add(ContentProviderOperation
+						.newUpdate(ContentUris.withAppendedId(
+								Downloads.ALL_DOWNLOADS_CONTENT_URI,
+								entry.getKey()))
+						.withValue(Downloads.COLUMN_CURRENT_BYTES,
+								progress.mCurrentBytes)
+						.withValue(Downloads.COLUMN_SPEED, progress.mSpeed)
+						.build());
+			}
+			if (operations.isEmpty()) {
+				return;
+			}
+			try {
+				mResolver.applyBatch(Constants.AUTHORITY, operations);
+			} catch (RemoteException ex) {
+				Log.w(Constants.TAG, "failed to store download progress: " + ex);
+			} catch (OperationApplicationException ex) {
+				Log.w(Constants.TAG, "failed to store download progress: " + ex);
+			}
+		}
+		if (Constants.LOGVV) {
+			Log.v(Constants.TAG, "stored progress of " + mProgress.size()
+					+ " downloads");
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.snda.mymarket.providers.DownloadManager;
+
+/**
+ * Hands the progress of running downloads straight to the listeners
+ * registered through {@link DownloadManager#registerProgressListener}, without
+ * going through the database.
+ * <p>
+ * Download threads publish as they read; each download is passed on at most
+ * every {@link Constants#LIVE_PROGRESS_INTERVAL} ms, and not at all while
+ * nobody listens. Only the downloads run by this process are heard of.
+ */
+public class ProgressChannel {
+
+	private static ProgressChannel sInstance;
+
+	public static synchronized ProgressChannel getInstance() {
+		if (sInstance == null) {
+			sInstance = new ProgressChannel();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * A listener and the downloads it listens to.
+	 */
+	private class Registration {
+		public final DownloadManager.ProgressListener mListener;
+		public final Handler mHandler;
+		/** The ids listened to, null for all downloads. */
+		public final Set<Long> mIds;
+
+		public Registration(DownloadManager.ProgressListener listener,
+				Handler handler, Set<Long> ids) {
+			mListener = listener;
+			mHandler = handler;
+			mIds = ids;
+		}
+
+		public void post(final long id, final long currentBytes,
+				final long totalBytes, final long speed) {
+			mHandler.post(new Runnable() {
+				public void run() {
+					// unregistered while the update was queued
+					if (mRegistrations.contains(Registration.this)) {
+						mListener.onProgress(id, currentBytes, totalBytes, speed);
+					}
+				}
+			});
+		}
+	}
+
+	private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<Registration>();
+	/** When each download was last passed on, by id. */
+	private final Map<Long, Long> mLastPublished = new ConcurrentHashMap<Long, Long>();
+
+	private ProgressChannel() {
+	}
+
+	/**
+	 * Start passing the progress of some downloads to a listener.
+	 *
+	 * @param ids
+	 *            the downloads to listen to, all of them if empty
+	 */
+	public void register(DownloadManager.ProgressListener listener,
+			Handler handler, long... ids) {
+		Set<Long> watched = null;
+		if (ids != null && ids.length > 0) {
+			watched = new HashSet<Long>();
+			for (long id : ids) {
+				watched.add(id);
+			}
+		}
+		mRegistrations.add(new Registration(listener, handler, watched));
+	}
+
+	/**
+	 * Stop passing progress to a listener; no update is delivered to it after
+	 * this returns on the thread of its handler.
+	 */
+	public void unregister(DownloadManager.ProgressListener listener) {
+		for (Registration registration : mRegistrations) {
+			if (registration.mListener == listener) {
+				mRegistrations.remove(registration);
+			}
+		}
+	}
+
+	/**
+	 * Publish the progress of a running download.
+	 *
+	 * @param totalBytes
+	 *            the size of the download, -1 if unknown
+	 */
+	void publish(long id, long currentBytes, long totalBytes, long speed) {
+		if (mRegistrations.isEmpty()) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		Long last = mLastPublished.get(id);
+		if (last != null && now - last < Constants.LIVE_PROGRESS_INTERVAL) {
+			return;
+		}
+		mLastPublished.put(id, now);
+		for (Registration registration : mRegistrations) {
+			if (registration.mIds == null || registration.mIds.contains(id)) {
+				registration.post(id, currentBytes, totalBytes, speed);
+			}
+		}
+	}
+
+	/**
+	 * Forget a download that stopped running.
+	 */
+	void remove(long id) {
+		mLastPublished.remove(id);
+	}
+}
@@ -1,11 +1,6 @@
 package com.snda.mymarket.providers.downloads;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.Intent;
@@ -17,9 +12,6 @@ import android.util.Log;
 
 class RealSystemFacade implements SystemFacade {
 	
-	private static final int CORE_POOL_SIZE = Constants.CORE_POOL_SIZE;
-	private static final int MAXIMUM_POOL_SIZE = Constants.MAXIMUM_POOL_SIZE;
-	
 	private Context mContext;
 	
 	// 2 GB
@@ -29,15 +21,19 @@ class RealSystemFacade implements SystemFacade {
 	
 
 
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<Runnable>(Constants.MAXIMUM_WORK_QUEUE_SIZE);
+    /**
+     * The {@link DownloadScheduler} running the downloads of the whole process.
+     */
+    private static final DownloadScheduler sScheduler = new DownloadScheduler(
+    		Constants.MAX_RUNNING_DOWNLOADS,
+    		Constants.MAX_RUNNING_DOWNLOADS_PER_HOST);
 
     /**
-     * An {@link Executor} that can be used to execute tasks in parallel.
+     * Change how many downloads may run at the same time.
      */
-    public static final  ThreadPoolExecutor executor = new ThreadPoolExecutor(
-    		CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, 10, TimeUnit.SECONDS,
-    		sPoolWorkQueue);
+    public static void setMaxRunningDownloads(int maxRunning) {
+    	sScheduler.setMaxRunning(maxRunning);
+    }
 
 	public RealSystemFacade(Context context) {
 		mContext = context;
@@ -112,14 +108,28 @@ class RealSystemFacade implements SystemFacade {
 
 	@Override
 	public Future<?> runOnThreadPool(Runnable command) {
-		return executor.submit(command);
+		return sScheduler.submit(command);
+	}
+
+	@Override
+	public Future<?> runHelperOnThreadPool(Runnable runnable, String host,
+			int schedulingClass) {
+		return sScheduler.submitHelper(runnable, host, schedulingClass);
+	}
+
+	@Override
+	public boolean tryReserveSlot(String host) {
+		return sScheduler.tryReserve(host);
+	}
+
+	@Override
+	public void releaseSlot(String host) {
+		sScheduler.release(host);
 	}
 
 	@Override
 	public void clearThreadPool() {
-		synchronized (sPoolWorkQueue) {
-			sPoolWorkQueue.clear();
-		}
+		sScheduler.cancelWaiting();
 	}
 	
 }
@@ -90,7 +90,7 @@ public class SizeLimitActivity extends Activity
     }
 
     private void showDialog(Cursor cursor) {
-        int size = cursor.getInt(cursor.getColumnIndexOrThrow(Downloads.COLUMN_TOTAL_BYTES));
+        long size = cursor.getLong(cursor.getColumnIndexOrThrow(Downloads.COLUMN_TOTAL_BYTES));
         String sizeString = Formatter.formatFileSize(this, size);
         String queueText = getString(R.string.button_queue_for_wifi);
         boolean isWifiRequired =
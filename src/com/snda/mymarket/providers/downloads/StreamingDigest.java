@@ -0,0 +1,376 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An MD5, SHA-1 or SHA-256 digest computed as the data of a download goes
+ * by. Unlike MessageDigest, whose state can only be cloned within a process,
+ * the intermediate state can be saved to the database and restored, so that
+ * a download resumed after the process died continues its digest instead of
+ * reading the file again.
+ */
+abstract class StreamingDigest {
+	public static final String MD5 = "MD5";
+	public static final String SHA1 = "SHA-1";
+	public static final String SHA256 = "SHA-256";
+
+	private final String mAlgorithm;
+	private final boolean mLittleEndian;
+	/** The chaining variables. */
+	protected final int[] mState;
+	/** The bytes of the current block not processed yet. */
+	private final byte[] mBlock = new byte[64];
+	/** Number of bytes digested so far. */
+	private long mCount;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the algorithm isn't one of MD5, SHA1 and SHA256
+	 */
+	public static StreamingDigest getInstance(String algorithm) {
+		if (MD5.equalsIgnoreCase(algorithm)) {
+			return new Md5();
+		} else if (SHA1.equalsIgnoreCase(algorithm)) {
+			return new Sha1();
+		} else if (SHA256.equalsIgnoreCase(algorithm)) {
+			return new Sha256();
+		}
+		throw new IllegalArgumentException("Unsupported digest: " + algorithm);
+	}
+
+	public static boolean isSupported(String algorithm) {
+		return MD5.equalsIgnoreCase(algorithm)
+				|| SHA1.equalsIgnoreCase(algorithm)
+				|| SHA256.equalsIgnoreCase(algorithm);
+	}
+
+	/**
+	 * Restore a digest saved with {@link #saveState()}.
+	 *
+	 * @return the digest, or null if the saved state can't be read
+	 */
+	public static StreamingDigest restoreState(String saved) {
+		if (saved == null) {
+			return null;
+		}
+		String[] parts = saved.split(":", -1);
+		if (parts.length != 4 || !isSupported(parts[0])) {
+			return null;
+		}
+		StreamingDigest digest = getInstance(parts[0]);
+		try {
+			digest.mCount = Long.parseLong(parts[1]);
+			int fill = (int) (digest.mCount & 63);
+			if (digest.mCount < 0
+					|| parts[2].length() != digest.mState.length * 8
+					|| parts[3].length() != fill * 2) {
+				return null;
+			}
+			for (int i = 0; i < digest.mState.length; i++) {
+				digest.mState[i] = (int) Long.parseLong(
+						parts[2].substring(i * 8, i * 8 + 8), 16);
+			}
+			for (int i = 0; i < fill; i++) {
+				digest.mBlock[i] = (byte) Integer.parseInt(
+						parts[3].substring(i * 2, i * 2 + 2), 16);
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return digest;
+	}
+
+	protected StreamingDigest(String algorithm, boolean littleEndian,
+			int[] initialState) {
+		mAlgorithm = algorithm;
+		mLittleEndian = littleEndian;
+		mState = initialState;
+	}
+
+	public String getAlgorithm() {
+		return mAlgorithm;
+	}
+
+	/**
+	 * @return the number of bytes digested so far
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	public void update(byte[] data, int offset, int length) {
+		int fill = (int) (mCount & 63);
+		mCount += length;
+		if (fill > 0) {
+			int count = Math.min(64 - fill, length);
+			System.arraycopy(data, offset, mBlock, fill, count);
+			offset += count;
+			length -= count;
+			if (fill + count < 64) {
+				return;
+			}
+			processBlock(mBlock, 0);
+		}
+		while (length >= 64) {
+			processBlock(data, offset);
+			offset += 64;
+			length -= 64;
+		}
+		if (length > 0) {
+			System.arraycopy(data, offset, mBlock, 0, length);
+		}
+	}
+
+	/**
+	 * Digest the remaining bytes of a buffer, leaving its position alone.
+	 */
+	public void update(ByteBuffer buffer, byte[] scratch) {
+		ByteBuffer data = buffer.duplicate();
+		while (data.hasRemaining()) {
+			int count = Math.min(data.remaining(), scratch.length);
+			data.get(scratch, 0, count);
+			update(scratch, 0, count);
+		}
+	}
+
+	/**
+	 * @return the digest of the bytes so far in lower-case hex. More bytes
+	 *         can still be added afterwards.
+	 */
+	public String digest() {
+		StreamingDigest copy = getInstance(mAlgorithm);
+		System.arraycopy(mState, 0, copy.mState, 0, mState.length);
+		System.arraycopy(mBlock, 0, copy.mBlock, 0, mBlock.length);
+		copy.mCount = mCount;
+
+		int fill = (int) (mCount & 63);
+		byte[] padding = new byte[(fill < 56 ? 64 : 128) - fill];
+		padding[0] = (byte) 0x80;
+		long bits = mCount << 3;
+		for (int i = 0; i < 8; i++) {
+			int shift = mLittleEndian ? 8 * i : 8 * (7 - i);
+			padding[padding.length - 8 + i] = (byte) (bits >>> shift);
+		}
+		copy.update(padding, 0, padding.length);
+
+		StringBuilder builder = new StringBuilder(mState.length * 8);
+		for (int word : copy.mState) {
+			for (int i = 0; i < 4; i++) {
+				int shift = mLittleEndian ? 8 * i : 8 * (3 - i);
+				int b = (word >>> shift) & 0xff;
+				builder.append(Character.forDigit(b >> 4, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the intermediate state, for {@link #restoreState(String)}
+	 */
+	public String saveState() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(mAlgorithm).append(':').append(mCount).append(':');
+		for (int word : mState) {
+			String hex = Integer.toHexString(word);
+			for (int i = hex.length(); i < 8; i++) {
+				builder.append('0');
+			}
+			builder.append(hex);
+		}
+		builder.append(':');
+		int fill = (int) (mCount & 63);
+		for (int i = 0; i < fill; i++) {
+			builder.append(Character.forDigit((mBlock[i] >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(mBlock[i] & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Process the 64 byte block at an offset of an array.
+	 */
+	protected abstract void processBlock(byte[] block, int offset);
+
+	private static class Md5 extends StreamingDigest {
+		private static final int[] K = { 0xd76aa478, 0xe8c7b756,
+				0x242070db, 0xc1bdceee, 0xf57c0faf, 0x4787c62a, 0xa8304613,
+				0xfd469501, 0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+				0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821, 0xf61e2562,
+				0xc040b340, 0x265e5a51, 0xe9b6c7aa, 0xd62f105d, 0x02441453,
+				0xd8a1e681, 0xe7d3fbc8, 0x21e1cde6, 0xc33707d6, 0xf4d50d87,
+				0x455a14ed, 0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+				0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c, 0xa4beea44,
+				0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70, 0x289b7ec6, 0xeaa127fa,
+				0xd4ef3085, 0x04881d05, 0xd9d4d039, 0xe6db99e5, 0x1fa27cf8,
+				0xc4ac5665, 0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+				0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1, 0x6fa87e4f,
+				0xfe2ce6e0, 0xa3014314, 0x4e0811a1, 0xf7537e82, 0xbd3af235,
+				0x2ad7d2bb, 0xeb86d391 };
+		private static final int[] SHIFTS = { 7, 12, 17, 22, 5, 9, 14, 20, 4,
+				11, 16, 23, 6, 10, 15, 21 };
+
+		private final int[] mWords = new int[16];
+
+		Md5() {
+			super(MD5, true, new int[] { 0x67452301, 0xefcdab89, 0x98badcfe,
+					0x10325476 });
+		}
+
+		@Override
+		protected void processBlock(byte[] block, int offset) {
+			int[] x = mWords;
+			for (int i = 0; i < 16; i++, offset += 4) {
+				x[i] = (block[offset] & 0xff)
+						| (block[offset + 1] & 0xff) << 8
+						| (block[offset + 2] & 0xff) << 16
+						| (block[offset + 3] & 0xff) << 24;
+			}
+			int a = mState[0], b = mState[1], c = mState[2], d = mState[3];
+			for (int i = 0; i < 64; i++) {
+				int f, g;
+				if (i < 16) {
+					f = (b & c) | (~b & d);
+					g = i;
+				} else if (i < 32) {
+					f = (d & b) | (~d & c);
+					g = (5 * i + 1) & 15;
+				} else if (i < 48) {
+					f = b ^ c ^ d;
+					g = (3 * i + 5) & 15;
+				} else {
+					f = c ^ (b | ~d);
+					g = (7 * i) & 15;
+				}
+				int t = d;
+				d = c;
+				c = b;
+				b += Integer.rotateLeft(a + f + K[i] + x[g],
+						SHIFTS[(i >> 4) * 4 + (i & 3)]);
+				a = t;
+			}
+			mState[0] += a;
+			mState[1] += b;
+			mState[2] += c;
+			mState[3] += d;
+		}
+	}
+
+	private static class Sha1 extends StreamingDigest {
+		private final int[] mWords = new int[80];
+
+		Sha1() {
+			super(SHA1, false, new int[] { 0x67452301, 0xefcdab89,
+					0x98badcfe, 0x10325476, 0xc3d2e1f0 });
+		}
+
+		@Override
+		protected void processBlock(byte[] block, int offset) {
+			int[] w = mWords;
+			for (int i = 0; i < 16; i++, offset += 4) {
+				w[i] = block[offset] << 24 | (block[offset + 1] & 0xff) << 16
+						| (block[offset + 2] & 0xff) << 8
+						| (block[offset + 3] & 0xff);
+			}
+			for (int i = 16; i < 80; i++) {
+				w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14]
+						^ w[i - 16], 1);
+			}
+			int a = mState[0], b = mState[1], c = mState[2], d = mState[3];
+			int e = mState[4];
+			for (int i = 0; i < 80; i++) {
+				int f;
+				if (i < 20) {
+					f = ((b & c) | (~b & d)) + 0x5a827999;
+				} else if (i < 40) {
+					f = (b ^ c ^ d) + 0x6ed9eba1;
+				} else if (i < 60) {
+					f = ((b & c) | (b & d) | (c & d)) + 0x8f1bbcdc;
+				} else {
+					f = (b ^ c ^ d) + 0xca62c1d6;
+				}
+				int t = Integer.rotateLeft(a, 5) + f + e + w[i];
+				e = d;
+				d = c;
+				c = Integer.rotateLeft(b, 30);
+				b = a;
+				a = t;
+			}
+			mState[0] += a;
+			mState[1] += b;
+			mState[2] += c;
+			mState[3] += d;
+			mState[4] += e;
+		}
+	}
+
+	private static class Sha256 extends StreamingDigest {
+		private static final int[] K = { 0x428a2f98, 0x71374491,
+				0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+				0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+				0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1,
+				0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa,
+				0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8,
+				0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+				0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354,
+				0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+				0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585,
+				0x106aa070, 0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+				0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee,
+				0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb,
+				0xbef9a3f7, 0xc67178f2 };
+
+		private final int[] mWords = new int[64];
+
+		Sha256() {
+			super(SHA256, false, new int[] { 0x6a09e667, 0xbb67ae85,
+					0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c,
+					0x1f83d9ab, 0x5be0cd19 });
+		}
+
+		@Override
+		protected void processBlock(byte[] block, int offset) {
+			int[] w = mWords;
+			for (int i = 0; i < 16; i++, offset += 4) {
+				w[i] = block[offset] << 24 | (block[offset + 1] & 0xff) << 16
+						| (block[offset + 2] & 0xff) << 8
+						| (block[offset + 3] & 0xff);
+			}
+			for (int i = 16; i < 64; i++) {
+				int s0 = Integer.rotateRight(w[i - 15], 7)
+						^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+				int s1 = Integer.rotateRight(w[i - 2], 17)
+						^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+				w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+			}
+			int a = mState[0], b = mState[1], c = mState[2], d = mState[3];
+			int e = mState[4], f = mState[5], g = mState[6], h = mState[7];
+			for (int i = 0; i < 64; i++) {
+				int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+						^ Integer.rotateRight(e, 25);
+				int ch = (e & f) ^ (~e & g);
+				int t1 = h + s1 + ch + K[i] + w[i];
+				int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+						^ Integer.rotateRight(a, 22);
+				int maj = (a & b) ^ (a & c) ^ (b & c);
+				int t2 = s0 + maj;
+				h = g;
+				g = f;
+				f = e;
+				e = d + t1;
+				d = c;
+				c = b;
+				b = a;
+				a = t1 + t2;
+			}
+			mState[0] += a;
+			mState[1] += b;
+			mState[2] += c;
+			mState[3] += d;
+			mState[4] += e;
+			mState[5] += f;
+			mState[6] += g;
+			mState[7] += h;
+		}
+	}
+}
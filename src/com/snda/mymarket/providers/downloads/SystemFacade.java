@@ -56,12 +56,38 @@ interface SystemFacade {
     
     /**
      * post the runnable to the ThreadPool<br/>
+     * It starts once the limits of the download scheduler allow it; cancelling
+     * the returned future before that takes it out of the queue.
      * @param runnable
      */
     public Future<?> runOnThreadPool(Runnable runnable);
     
     /**
-     * clear the thread pool
+     * post a runnable helping a running download, such as a segment worker,
+     * to the ThreadPool<br/>
+     * It counts against the same limits as the downloads, but may run next to
+     * the download it helps.
+     * @param host the host the runnable connects to, or null
+     * @param schedulingClass the class of the download it helps
+     */
+    public Future<?> runHelperOnThreadPool(Runnable runnable, String host,
+            int schedulingClass);
+
+    /**
+     * take a slot of the ThreadPool for a download transferred elsewhere,
+     * such as on the MultiplexedEngine, if the limits allow it now<br/>
+     * @param host the host the download connects to, or null
+     * @return whether the slot was taken; give it back with releaseSlot
+     */
+    public boolean tryReserveSlot(String host);
+
+    /**
+     * give back a slot taken with tryReserveSlot
+     */
+    public void releaseSlot(String host);
+
+    /**
+     * cancel every runnable posted to the ThreadPool that hasn't started yet
      */
     public void clearThreadPool();
 }
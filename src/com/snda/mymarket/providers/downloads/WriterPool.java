@@ -0,0 +1,231 @@
+package com.snda.mymarket.providers.downloads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * Writes download data to disk on a small set of threads shared by all
+ * running downloads, so that a slow flash write never stalls a socket read.
+ * <p>
+ * Download threads take buffers from a pool that bounds the memory of the
+ * whole pipeline, fill them from the network and queue them on the
+ * {@link Sink} of their file. A sink is drained by at most one writer at a
+ * time, in order, and whatever has queued up is merged into one gathering
+ * write. A full pool or a full sink makes the download thread wait, which
+ * is the back-pressure that throttles the network when the disk can't keep
+ * up.
+ */
+class WriterPool {
+
+	private static WriterPool sInstance;
+
+	public static synchronized WriterPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new WriterPool(Constants.WRITER_THREADS,
+					Constants.WRITE_BUFFER_SIZE, Constants.WRITE_POOL_BUFFERS);
+		}
+		return sInstance;
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final int mBufferSize;
+	private final int mMaxBuffers;
+	private final LinkedList<byte[]> mFreeBuffers = new LinkedList<byte[]>();
+	private int mAllocatedBuffers = 0;
+
+	WriterPool(int threads, int bufferSize, int maxBuffers) {
+		mBufferSize = bufferSize;
+		mMaxBuffers = maxBuffers;
+		mExecutor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger(1);
+
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(new Runnable() {
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "DownloadWriter #" + mCount.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Take a buffer from the pool, waiting for a writer to return one if all
+	 * of them are in use.
+	 */
+	public byte[] acquireBuffer() {
+		synchronized (mFreeBuffers) {
+			boolean interrupted = false;
+			while (mFreeBuffers.isEmpty() && mAllocatedBuffers >= mMaxBuffers) {
+				try {
+					mFreeBuffers.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (!mFreeBuffers.isEmpty()) {
+				return mFreeBuffers.removeFirst();
+			}
+			mAllocatedBuffers++;
+		}
+		return new byte[mBufferSize];
+	}
+
+	public void releaseBuffer(byte[] buffer) {
+		synchronized (mFreeBuffers) {
+			mFreeBuffers.addFirst(buffer);
+			mFreeBuffers.notify();
+		}
+	}
+
+	/**
+	 * Open the queue of writes to a destination file. The caller keeps
+	 * ownership of the channel and closes it after {@link Sink#flush()}.
+	 */
+	public Sink openSink(FileChannel channel) {
+		return new Sink(channel);
+	}
+
+	/**
+	 * The ordered writes to one destination file.
+	 */
+	public class Sink implements Runnable {
+		private final FileChannel mChannel;
+		/** Filled buffers waiting for a writer. */
+		private final LinkedList<ByteBuffer> mQueue = new LinkedList<ByteBuffer>();
+		/** Buffers queued or being written. */
+		private int mOutstanding = 0;
+		/** Whether a writer owns this sink right now. */
+		private boolean mScheduled = false;
+		private IOException mError;
+
+		private Sink(FileChannel channel) {
+			mChannel = channel;
+		}
+
+		/**
+		 * Queue the first length bytes of a buffer from
+		 * {@link WriterPool#acquireBuffer()} for writing, waiting while this
+		 * file has too many writes outstanding. The buffer goes back to the
+		 * pool once written.
+		 *
+		 * @throws IOException
+		 *             if an earlier write to this file failed
+		 */
+		public synchronized void write(byte[] buffer, int length)
+				throws IOException {
+			boolean interrupted = false;
+			while (mError == null
+					&& mOutstanding >= Constants.WRITE_QUEUE_DEPTH) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (mError != null) {
+				releaseBuffer(buffer);
+				throw mError;
+			}
+			mQueue.addLast(ByteBuffer.wrap(buffer, 0, length));
+			mOutstanding++;
+			if (!mScheduled) {
+				mScheduled = true;
+				mExecutor.execute(this);
+			}
+		}
+
+		/**
+		 * Wait until everything queued so far is on disk.
+		 *
+		 * @throws IOException
+		 *             if one of the writes failed
+		 */
+		public synchronized void flush() throws IOException {
+			boolean interrupted = false;
+			while (mOutstanding > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (mError != null) {
+				throw mError;
+			}
+		}
+
+		/**
+		 * Write one batch of queued buffers, then give the writer back to the
+		 * pool so that other files get their turn.
+		 */
+		public void run() {
+			ByteBuffer[] batch;
+			synchronized (this) {
+				int count = Math.min(mQueue.size(),
+						Constants.WRITE_COALESCE_BUFFERS);
+				batch = new ByteBuffer[count];
+				for (int i = 0; i < count; i++) {
+					batch[i] = mQueue.removeFirst();
+				}
+			}
+
+			IOException error = null;
+			try {
+				long remaining = 0;
+				for (ByteBuffer buffer : batch) {
+					remaining += buffer.remaining();
+				}
+				while (remaining > 0) {
+					remaining -= mChannel.write(batch);
+				}
+			} catch (IOException ex) {
+				error = ex;
+			}
+			for (ByteBuffer buffer : batch) {
+				releaseBuffer(buffer.array());
+			}
+
+			synchronized (this) {
+				mOutstanding -= batch.length;
+				if (error != null) {
+					mError = error;
+					for (ByteBuffer buffer : mQueue) {
+						releaseBuffer(buffer.array());
+					}
+					mOutstanding -= mQueue.size();
+					mQueue.clear();
+				}
+				if (mQueue.isEmpty()) {
+					mScheduled = false;
+				} else {
+					mExecutor.execute(this);
+				}
+				notifyAll();
+			}
+		}
+	}
+}
@@ -40,6 +40,12 @@ public class DateSortedDownloadAdapter extends DateSortedExpandableListAdapter {
         mDelegate = new DownloadAdapter(context, cursor, selectionListener);
     }
 
+    @Override
+    void changeCursor(Cursor cursor) {
+        mDelegate.changeCursor(cursor);
+        super.changeCursor(cursor);
+    }
+
     @Override
     public View getChildView(int groupPosition, int childPosition,
                 boolean isLastChild, View convertView, ViewGroup parent) {
@@ -51,6 +51,8 @@ public class DateSortedExpandableListAdapter implements ExpandableListAdapter {
     private int mDateIndex;
     private int mIdIndex;
     private Context mContext;
+    private ChangeObserver mChangeObserver;
+    private MyDataSetObserver mDataSetObserver;
 
     private class ChangeObserver extends ContentObserver {
         public ChangeObserver() {
@@ -85,8 +87,10 @@ public class DateSortedExpandableListAdapter implements ExpandableListAdapter {
         mObservers = new Vector<DataSetObserver>();
         mCursor = cursor;
         mIdIndex = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_ID);
-        cursor.registerContentObserver(new ChangeObserver());
-        cursor.registerDataSetObserver(new MyDataSetObserver());
+        mChangeObserver = new ChangeObserver();
+        mDataSetObserver = new MyDataSetObserver();
+        cursor.registerContentObserver(mChangeObserver);
+        cursor.registerDataSetObserver(mDataSetObserver);
         mDateIndex = dateIndex;
         buildMap();
     }
@@ -263,6 +267,24 @@ public class DateSortedExpandableListAdapter implements ExpandableListAdapter {
         return mCursor.moveToPosition(index);
     }
 
+    /**
+     * Show the items of another Cursor, sorted by the same column, and close
+     * the one shown until now.
+     */
+    /* package */ void changeCursor(Cursor cursor) {
+        if (cursor == mCursor) {
+            return;
+        }
+        Cursor oldCursor = mCursor;
+        oldCursor.unregisterContentObserver(mChangeObserver);
+        oldCursor.unregisterDataSetObserver(mDataSetObserver);
+        mCursor = cursor;
+        cursor.registerContentObserver(mChangeObserver);
+        cursor.registerDataSetObserver(mDataSetObserver);
+        mDataSetObserver.onChanged();
+        oldCursor.close();
+    }
+
     /* package */ void refreshData() {
         if (mCursor.isClosed()) {
             return;
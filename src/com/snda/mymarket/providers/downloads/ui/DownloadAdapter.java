@@ -91,6 +91,12 @@ public class DownloadAdapter extends CursorAdapter {
 		.getColumnIndexOrThrow(DownloadManager.COLUMN_LAST_MODIFIED_TIMESTAMP);
     }
 
+    @Override
+    public void changeCursor(Cursor cursor) {
+	mCursor = cursor;
+	super.changeCursor(cursor);
+    }
+
     public View newView() {
 	DownloadItem view = (DownloadItem) LayoutInflater.from(mContext)
 		.inflate(R.layout.download_list_item, null);
@@ -74,6 +74,10 @@ public class DownloadItem extends RelativeLayout {
         mDownloadId = downloadId;
     }
 
+    public long getDownloadId() {
+        return mDownloadId;
+    }
+
     public void setSelectListener(DownloadSelectListener listener) {
         mListener = listener;
     }
@@ -22,19 +22,18 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.Intent;
-import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -49,6 +48,7 @@ import android.widget.Button;
 import android.widget.ExpandableListView;
 import android.widget.ExpandableListView.OnChildClickListener;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import com.snda.mymarket.downloadprovider.R;
@@ -58,10 +58,12 @@ import com.snda.mymarket.providers.downloads.ui.DownloadItem.DownloadSelectListe
 /**
  * View showing a list of all downloads the Download Manager knows about.
  */
-public class DownloadList extends Activity implements OnChildClickListener,
-		OnItemClickListener, DownloadSelectListener, OnClickListener,
-		OnCancelListener {
+public class DownloadList extends FragmentActivity implements
+		OnChildClickListener, OnItemClickListener, DownloadSelectListener,
+		OnClickListener, OnCancelListener,
+		LoaderManager.LoaderCallbacks<DownloadListLoader.Result> {
 	private static final String LOG_TAG = "DownloadList";
+	private static final int DOWNLOADS_LOADER = 0;
 
 	private ExpandableListView mDateOrderedListView;
 	private ListView mSizeOrderedListView;
@@ -74,8 +76,7 @@ public class DownloadList extends Activity implements OnChildClickListener,
 	private DateSortedDownloadAdapter mDateSortedAdapter;
 	private Cursor mSizeSortedCursor;
 	private DownloadAdapter mSizeSortedAdapter;
-	private MyContentObserver mContentObserver = new MyContentObserver();
-	private MyDataSetObserver mDataSetObserver = new MyDataSetObserver();
+	private MyProgressListener mProgressListener = new MyProgressListener();
 
 	private int mStatusColumnId;
 	private int mIdColumnId;
@@ -94,23 +95,28 @@ public class DownloadList extends Activity implements OnChildClickListener,
 	private Long mQueuedDownloadId = null;
 	private AlertDialog mQueuedDialog;
 
-	private class MyContentObserver extends ContentObserver {
-		public MyContentObserver() {
-			super(new Handler());
-		}
-
-		@Override
-		public void onChange(boolean selfChange) {
-			handleDownloadsChanged();
-		}
-	}
-
-	private class MyDataSetObserver extends DataSetObserver {
+	/**
+	 * Moves the progress bars of running downloads between the reloads of
+	 * the list that follow their progress through the database.
+	 */
+	private class MyProgressListener implements DownloadManager.ProgressListener {
 		@Override
-		public void onChanged() {
-			// may need to switch to or from the empty view
-			chooseListToShow();
-			ensureSomeGroupIsExpanded();
+		public void onProgress(long id, long currentBytes, long totalBytes,
+				long bytesPerSecond) {
+			if (totalBytes <= 0) {
+				return;
+			}
+			ListView list = activeListView();
+			for (int i = 0; i < list.getChildCount(); i++) {
+				View child = list.getChildAt(i);
+				if (child instanceof DownloadItem
+						&& ((DownloadItem) child).getDownloadId() == id) {
+					ProgressBar progressBar = (ProgressBar) child
+							.findViewById(R.id.download_progress);
+					progressBar.setIndeterminate(false);
+					progressBar.setProgress((int) (currentBytes * 100 / totalBytes));
+				}
+			}
 		}
 	}
 
@@ -122,20 +128,29 @@ public class DownloadList extends Activity implements OnChildClickListener,
 		mDownloadManager = new DownloadManager(getContentResolver(),
 				getPackageName());
 		mDownloadManager.setAccessAllDownloads(true);
-		DownloadManager.Query baseQuery = new DownloadManager.Query()
-				.setOnlyIncludeVisibleInDownloadsUi(true);
-		mDateSortedCursor = mDownloadManager.query(baseQuery);
-		mSizeSortedCursor = mDownloadManager.query(baseQuery.orderBy(
-				DownloadManager.COLUMN_TOTAL_SIZE_BYTES,
-				DownloadManager.Query.ORDER_DESCENDING));
 
+		// the list shows empty until the downloads are loaded
+		chooseListToShow();
+		getSupportLoaderManager().initLoader(DOWNLOADS_LOADER, null, this);
+	}
+
+	@Override
+	public Loader<DownloadListLoader.Result> onCreateLoader(int id, Bundle args) {
+		return new DownloadListLoader(this, mDownloadManager);
+	}
+
+	@Override
+	public void onLoadFinished(Loader<DownloadListLoader.Result> loader,
+			DownloadListLoader.Result result) {
 		// only attach everything to the listbox if we can access the download
-		// database. Otherwise,
-		// just show it empty
-		if (haveCursors()) {
-			startManagingCursor(mDateSortedCursor);
-			startManagingCursor(mSizeSortedCursor);
+		// database. Otherwise, just show it empty
+		if (result == null) {
+			return;
+		}
+		mDateSortedCursor = result.newDateSortedCursor();
+		mSizeSortedCursor = result.newSizeSortedCursor();
 
+		if (mDateSortedAdapter == null) {
 			mStatusColumnId = mDateSortedCursor
 					.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS);
 			mIdColumnId = mDateSortedCursor
@@ -153,11 +168,23 @@ public class DownloadList extends Activity implements OnChildClickListener,
 			mSizeSortedAdapter = new DownloadAdapter(this, mSizeSortedCursor,
 					this);
 			mSizeOrderedListView.setAdapter(mSizeSortedAdapter);
-
-			ensureSomeGroupIsExpanded();
+			supportInvalidateOptionsMenu();
+		} else {
+			// the adapters close the cursors they showed until now
+			mDateSortedAdapter.changeCursor(mDateSortedCursor);
+			mSizeSortedAdapter.changeCursor(mSizeSortedCursor);
 		}
 
+		// may need to switch to or from the empty view
 		chooseListToShow();
+		ensureSomeGroupIsExpanded();
+		handleDownloadsChanged();
+		showOrHideSelectionMenu();
+	}
+
+	@Override
+	public void onLoaderReset(Loader<DownloadListLoader.Result> loader) {
+		// the cursors are in memory, the adapters may keep showing them
 	}
 
 	/**
@@ -203,20 +230,13 @@ public class DownloadList extends Activity implements OnChildClickListener,
 	@Override
 	protected void onResume() {
 		super.onResume();
-		if (haveCursors()) {
-			mDateSortedCursor.registerContentObserver(mContentObserver);
-			mDateSortedCursor.registerDataSetObserver(mDataSetObserver);
-			refresh();
-		}
+		mDownloadManager.registerProgressListener(mProgressListener, null);
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
-		if (haveCursors()) {
-			mDateSortedCursor.unregisterContentObserver(mContentObserver);
-			mDateSortedCursor.unregisterDataSetObserver(mDataSetObserver);
-		}
+		mDownloadManager.unregisterProgressListener(mProgressListener);
 	}
 
 	@Override
@@ -258,6 +278,9 @@ public class DownloadList extends Activity implements OnChildClickListener,
 
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {
+		if (!haveCursors()) {
+			return super.onPrepareOptionsMenu(menu);
+		}
 		menu.findItem(R.id.download_menu_sort_by_size).setVisible(
 				!mIsSortedBySize);
 		menu.findItem(R.id.download_menu_sort_by_date).setVisible(
@@ -455,6 +478,9 @@ public class DownloadList extends Activity implements OnChildClickListener,
 		case DownloadManager.ERROR_CANNOT_RESUME:
 			return getString(R.string.dialog_cannot_resume);
 
+		case DownloadManager.ERROR_INTEGRITY:
+			return getString(R.string.dialog_integrity_error);
+
 		default:
 			return getUnknownErrorMessage();
 		}
@@ -562,27 +588,21 @@ public class DownloadList extends Activity implements OnChildClickListener,
 	 */
 	private void updateSelectionMenu() {
 		int deleteButtonStringId = R.string.delete_download;
-		if (mSelectedIds.size() == 1) {
-			Cursor cursor = mDownloadManager.query(new DownloadManager.Query()
-					.setFilterById(mSelectedIds.iterator().next()));
-			try {
-				cursor.moveToFirst();
-				switch (cursor.getInt(mStatusColumnId)) {
-				case DownloadManager.STATUS_FAILED:
-					deleteButtonStringId = R.string.delete_download;
-					break;
-
-				case DownloadManager.STATUS_PENDING:
-					deleteButtonStringId = R.string.remove_download;
-					break;
-
-				case DownloadManager.STATUS_PAUSED:
-				case DownloadManager.STATUS_RUNNING:
-					deleteButtonStringId = R.string.cancel_running_download;
-					break;
-				}
-			} finally {
-				cursor.close();
+		if (mSelectedIds.size() == 1 && haveCursors()
+				&& moveToDownload(mSelectedIds.iterator().next())) {
+			switch (mDateSortedCursor.getInt(mStatusColumnId)) {
+			case DownloadManager.STATUS_FAILED:
+				deleteButtonStringId = R.string.delete_download;
+				break;
+
+			case DownloadManager.STATUS_PENDING:
+				deleteButtonStringId = R.string.remove_download;
+				break;
+
+			case DownloadManager.STATUS_PAUSED:
+			case DownloadManager.STATUS_RUNNING:
+				deleteButtonStringId = R.string.cancel_running_download;
+				break;
 			}
 		}
 		mSelectionDeleteButton.setText(deleteButtonStringId);
@@ -600,15 +620,6 @@ public class DownloadList extends Activity implements OnChildClickListener,
 		}
 	}
 
-	/**
-	 * Requery the database and update the UI.
-	 */
-	private void refresh() {
-		mDateSortedCursor.requery();
-		mSizeSortedCursor.requery();
-		// Adapters get notification of changes and update automatically
-	}
-
 	private void clearSelection() {
 		mSelectedIds.clear();
 		showOrHideSelectionMenu();
@@ -641,7 +652,8 @@ public class DownloadList extends Activity implements OnChildClickListener,
 	}
 
 	/**
-	 * Called when there's a change to the downloads database.
+	 * Called when the downloads are reloaded after a change to the downloads
+	 * database.
 	 */
 	void handleDownloadsChanged() {
 		checkSelectionForDeletedEntries();
@@ -0,0 +1,187 @@
+package com.snda.mymarket.providers.downloads.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.snda.mymarket.providers.DownloadManager;
+import com.snda.mymarket.providers.downloads.Downloads;
+
+/**
+ * Loads the downloads shown by {@link DownloadList} off the main thread.
+ * <p>
+ * One query reads them in date order, and the columns the lists show are
+ * copied into memory, so that the lists never go back to the database as
+ * they scroll; the size order is sorted from the same rows instead of being
+ * queried again. Changes to the downloads reload them, at most every
+ * {@link #UPDATE_THROTTLE} ms, and a reload that finds every row as it was
+ * isn't delivered.
+ */
+class DownloadListLoader extends AsyncTaskLoader<DownloadListLoader.Result> {
+
+	/** The columns of the loaded rows. */
+	static final String[] COLUMNS = { DownloadManager.COLUMN_ID,
+			DownloadManager.COLUMN_TITLE, DownloadManager.COLUMN_STATUS,
+			DownloadManager.COLUMN_REASON,
+			DownloadManager.COLUMN_TOTAL_SIZE_BYTES,
+			DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR,
+			DownloadManager.COLUMN_MEDIA_TYPE,
+			DownloadManager.COLUMN_LAST_MODIFIED_TIMESTAMP,
+			DownloadManager.COLUMN_LOCAL_URI };
+	private static final int TOTAL_SIZE_INDEX = 4;
+
+	/** The shortest time between two loads, in ms. */
+	private static final long UPDATE_THROTTLE = 1000;
+
+	/**
+	 * The downloads in both orders. The cursors are in memory, they can be
+	 * read on the main thread.
+	 */
+	static class Result {
+		private final List<Object[]> mRows;
+
+		public Result(List<Object[]> rows) {
+			mRows = rows;
+		}
+
+		/**
+		 * The downloads, most recently modified first.
+		 */
+		public Cursor newDateSortedCursor() {
+			return toCursor(mRows);
+		}
+
+		/**
+		 * The downloads, largest first.
+		 */
+		public Cursor newSizeSortedCursor() {
+			List<Object[]> rows = new ArrayList<Object[]>(mRows);
+			// stable: downloads of the same size stay in date order
+			Collections.sort(rows, new Comparator<Object[]>() {
+				public int compare(Object[] lhs, Object[] rhs) {
+					long left = (Long) lhs[TOTAL_SIZE_INDEX];
+					long right = (Long) rhs[TOTAL_SIZE_INDEX];
+					return left > right ? -1 : (left < right ? 1 : 0);
+				}
+			});
+			return toCursor(rows);
+		}
+
+		/**
+		 * Whether two loads found the same rows.
+		 */
+		public boolean sameRowsAs(Result other) {
+			if (other.mRows.size() != mRows.size()) {
+				return false;
+			}
+			for (int i = 0; i < mRows.size(); i++) {
+				if (!Arrays.equals(mRows.get(i), other.mRows.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Cursor toCursor(List<Object[]> rows) {
+			MatrixCursor cursor = new MatrixCursor(COLUMNS, rows.size());
+			for (Object[] row : rows) {
+				cursor.addRow(row);
+			}
+			return cursor;
+		}
+	}
+
+	private final DownloadManager mDownloadManager;
+	private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+	private Result mResult;
+
+	public DownloadListLoader(Context context, DownloadManager downloadManager) {
+		super(context);
+		mDownloadManager = downloadManager;
+		setUpdateThrottle(UPDATE_THROTTLE);
+	}
+
+	/**
+	 * @return the downloads, or null if they can't be queried
+	 */
+	@Override
+	public Result loadInBackground() {
+		Cursor cursor = mDownloadManager.query(new DownloadManager.Query()
+				.setOnlyIncludeVisibleInDownloadsUi(true));
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			int[] columns = new int[COLUMNS.length];
+			for (int i = 0; i < COLUMNS.length; i++) {
+				columns[i] = cursor.getColumnIndexOrThrow(COLUMNS[i]);
+			}
+			List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				Object[] row = new Object[COLUMNS.length];
+				row[0] = cursor.getLong(columns[0]);
+				row[1] = cursor.getString(columns[1]);
+				row[2] = cursor.getLong(columns[2]);
+				row[3] = cursor.getLong(columns[3]);
+				row[4] = cursor.getLong(columns[4]);
+				row[5] = cursor.getLong(columns[5]);
+				row[6] = cursor.getString(columns[6]);
+				row[7] = cursor.getLong(columns[7]);
+				row[8] = cursor.getString(columns[8]);
+				rows.add(row);
+			}
+			return new Result(rows);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void deliverResult(Result result) {
+		if (isReset()) {
+			return;
+		}
+		if (result != null && mResult != null && result.sameRowsAs(mResult)) {
+			// nothing to show that isn't shown already
+			return;
+		}
+		mResult = result;
+		if (isStarted()) {
+			super.deliverResult(result);
+		}
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (mResult == null) {
+			getContext().getContentResolver().registerContentObserver(
+					Downloads.ALL_DOWNLOADS_CONTENT_URI, true, mObserver);
+		}
+		if (mResult != null) {
+			super.deliverResult(mResult);
+		}
+		if (takeContentChanged() || mResult == null) {
+			forceLoad();
+		}
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+		getContext().getContentResolver().unregisterContentObserver(mObserver);
+		mResult = null;
+	}
+}